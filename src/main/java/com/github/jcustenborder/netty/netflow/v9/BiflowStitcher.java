@@ -0,0 +1,663 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pairs the data records of the two directions of a session into Biflows. Place it after the NetFlowV9Decoder.
+ *
+ * A record of A to B waits in the table until a record of B to A (same ports and protocol, from any exporter)
+ * arrives within timeout; both are then passed on as one Biflow with forward and reverse counters. Further records
+ * of a waiting direction are added up. Records that found no partner within timeout are passed on as Biflows
+ * without reverse counters. If the table is full a record is passed on unpaired right away.
+ *
+ * IPv4 and IPv6 records are stitched. The table is kept in primitive arrays keyed by the addresses, ports and
+ * protocol, and expiry is driven by a timer wheel. IPv4 addresses fit the key as they are; IPv6 entries are keyed
+ * by a hash of their addresses, which are kept in a byte array (allocated with the first IPv6 record) and compared
+ * on every lookup. FlowSets without addresses are passed on in a new message (if there are any data FlowSets
+ * left). Not sharable, the state belongs to one channel.
+ */
+public class BiflowStitcher extends ChannelInboundHandlerAdapter implements NetFlow {
+
+  /**
+   * Both directions of a session. The forward direction is the one reported first.
+   */
+  public static final class Biflow {
+    // 4 or 16 bytes
+    final byte[] sourceAddress;
+    final byte[] destinationAddress;
+    final int sourcePort;
+    final int destinationPort;
+    final int protocol;
+    final long forwardOctets;
+    final long forwardPackets;
+    final long reverseOctets;
+    final long reversePackets;
+    final long start;
+    final long end;
+    final InetSocketAddress exporter;
+
+    Biflow(byte[] sourceAddress, byte[] destinationAddress, int sourcePort, int destinationPort, int protocol,
+           long forwardOctets, long forwardPackets, long reverseOctets, long reversePackets, long start, long end,
+           InetSocketAddress exporter) {
+      this.sourceAddress = sourceAddress;
+      this.destinationAddress = destinationAddress;
+      this.sourcePort = sourcePort;
+      this.destinationPort = destinationPort;
+      this.protocol = protocol;
+      this.forwardOctets = forwardOctets;
+      this.forwardPackets = forwardPackets;
+      this.reverseOctets = reverseOctets;
+      this.reversePackets = reversePackets;
+      this.start = start;
+      this.end = end;
+      this.exporter = exporter;
+    }
+
+    /**
+     * Source address of the forward direction.
+     *
+     * @return the source address of the forward direction
+     */
+    public InetAddress sourceAddress() {
+      return address(sourceAddress);
+    }
+
+    /**
+     * Destination address of the forward direction.
+     *
+     * @return the destination address of the forward direction
+     */
+    public InetAddress destinationAddress() {
+      return address(destinationAddress);
+    }
+
+    static InetAddress address(byte[] address) {
+      try {
+        return InetAddress.getByAddress(address);
+      } catch (UnknownHostException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    /**
+     * Source port of the forward direction.
+     *
+     * @return the source port of the forward direction
+     */
+    public int sourcePort() {
+      return sourcePort;
+    }
+
+    /**
+     * Destination port of the forward direction.
+     *
+     * @return the destination port of the forward direction
+     */
+    public int destinationPort() {
+      return destinationPort;
+    }
+
+    /**
+     * IP protocol number of the session.
+     *
+     * @return the IP protocol number
+     */
+    public int protocol() {
+      return protocol;
+    }
+
+    /**
+     * Octets sent from source to destination.
+     *
+     * @return octets from source to destination
+     */
+    public long forwardOctets() {
+      return forwardOctets;
+    }
+
+    /**
+     * Packets sent from source to destination.
+     *
+     * @return packets from source to destination
+     */
+    public long forwardPackets() {
+      return forwardPackets;
+    }
+
+    /**
+     * Octets sent from destination to source, 0 if unpaired.
+     *
+     * @return octets from destination to source, 0 if unpaired
+     */
+    public long reverseOctets() {
+      return reverseOctets;
+    }
+
+    /**
+     * Packets sent from destination to source, 0 if unpaired.
+     *
+     * @return packets from destination to source, 0 if unpaired
+     */
+    public long reversePackets() {
+      return reversePackets;
+    }
+
+    /**
+     * Tell paired Biflows from records that timed out alone.
+     *
+     * @return whether a record of the reverse direction was found
+     */
+    public boolean paired() {
+      return reversePackets != 0 || reverseOctets != 0;
+    }
+
+    /**
+     * The start of the session as reported by the exporters.
+     *
+     * @return start of the earliest record in milliseconds since the epoch
+     */
+    public long start() {
+      return start;
+    }
+
+    /**
+     * The end of the session as reported by the exporters.
+     *
+     * @return end of the latest record in milliseconds since the epoch
+     */
+    public long end() {
+      return end;
+    }
+
+    /**
+     * The exporter that reported the first record of the session.
+     *
+     * @return the exporter of the forward direction
+     */
+    public InetSocketAddress exporter() {
+      return exporter;
+    }
+
+    @Override
+    public String toString() {
+      return sourceAddress().getHostAddress() + ":" + sourcePort + " <-> " + destinationAddress().getHostAddress()
+          + ":" + destinationPort + " proto " + protocol + " (" + forwardPackets + "/" + forwardOctets + ", "
+          + reversePackets + "/" + reverseOctets + ")";
+    }
+  }
+
+  static final int NONE = -1;
+  static final int WHEEL_SLOTS = 128;
+  static final int IN_BYTES = CiscoFieldScheme.Field.IN_BYTES.typeId;
+  static final int IN_PKTS = CiscoFieldScheme.Field.IN_PKTS.typeId;
+  static final int LAST_SWITCHED = CiscoFieldScheme.Field.LAST_SWITCHED.typeId;
+  static final int FLOW_END_SECONDS = 151;
+  static final int FLOW_END_MILLISECONDS = 153;
+  // set in the ports key of IPv6 entries, whose addresses key is a hash
+  static final long IPV6 = 1L << 40;
+
+  final long timeoutMillis;
+  final long tickMillis;
+  final int capacity;
+  final NetFlow.Factory netflowFactory;
+
+  // hash table of waiting records: bucket heads and chains through next, which also links the free entries
+  final int[] buckets;
+  final int[] next;
+  // addresses (a hash of them for IPv6), then ports and protocol of every entry
+  final long[] addresses;
+  final long[] ports;
+  final long[] octets;
+  final long[] packets;
+  final long[] starts;
+  final long[] ends;
+  final long[] deadlines;
+  final InetSocketAddress[] exporters;
+  // source and destination address of IPv6 entries, 32 bytes per entry; null until the first IPv6 record
+  byte[] ipv6Addresses;
+  int free;
+  int size;
+
+  // timer wheel: one doubly linked list of entries per tick
+  final int[] wheel = new int[WHEEL_SLOTS];
+  final int[] wheelNext;
+  final int[] wheelPrevious;
+  // last tick whose slot was expired, NONE until the first record
+  long tick = NONE;
+
+  long paired;
+  long unpaired;
+  long overflows;
+  ScheduledFuture<?> expiry;
+
+  /**
+   * Create a stitcher with a table of a fixed size.
+   *
+   * @param timeout  how long a record waits for the reverse direction
+   * @param unit     unit of timeout
+   * @param capacity records waiting at most, each takes about 90 bytes (32 more once IPv6 records show up)
+   * @param factory  has to match the factory of the decoder
+   */
+  public BiflowStitcher(long timeout, TimeUnit unit, int capacity, NetFlow.Factory factory) {
+    if (unit.toMillis(timeout) <= 0) {
+      throw new IllegalArgumentException("timeout must be at least a millisecond");
+    }
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive");
+    }
+    this.timeoutMillis = unit.toMillis(timeout);
+    // the wheel spans twice the timeout, so a slot only ever holds entries due in the same tick
+    this.tickMillis = Math.max(1, (timeoutMillis + WHEEL_SLOTS / 2 - 1) / (WHEEL_SLOTS / 2));
+    this.capacity = capacity;
+    this.netflowFactory = factory;
+    this.buckets = new int[Integer.highestOneBit(Math.max(1, capacity - 1)) << 1];
+    this.next = new int[capacity];
+    this.addresses = new long[capacity];
+    this.ports = new long[capacity];
+    this.octets = new long[capacity];
+    this.packets = new long[capacity];
+    this.starts = new long[capacity];
+    this.ends = new long[capacity];
+    this.deadlines = new long[capacity];
+    this.exporters = new InetSocketAddress[capacity];
+    this.wheelNext = new int[capacity];
+    this.wheelPrevious = new int[capacity];
+    Arrays.fill(buckets, NONE);
+    Arrays.fill(wheel, NONE);
+    for (int entry = 0; entry < capacity; entry++) {
+      next[entry] = entry + 1 < capacity ? entry + 1 : NONE;
+    }
+    this.free = 0;
+  }
+
+  /**
+   * 30 second timeout, up to 256k waiting records.
+   */
+  public BiflowStitcher() {
+    this(30, TimeUnit.SECONDS, 1 << 18, new NetFlowFactoryImpl());
+  }
+
+  @Override
+  public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+    expiry = ctx.executor().scheduleAtFixedRate(() -> {
+      List<Object> output = new ArrayList<>();
+      expire(System.currentTimeMillis(), output);
+      if (!output.isEmpty()) {
+        fire(ctx, output);
+        ctx.fireChannelReadComplete();
+      }
+    }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+    if (expiry != null) {
+      expiry.cancel(false);
+    }
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (msg instanceof Message) {
+      List<Object> output = new ArrayList<>();
+      stitch((Message) msg, System.currentTimeMillis(), output);
+      fire(ctx, output);
+    } else {
+      ctx.fireChannelRead(msg);
+    }
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    // nothing more can arrive, pass on what is waiting
+    List<Object> output = new ArrayList<>();
+    expire(Long.MAX_VALUE, output);
+    fire(ctx, output);
+    ctx.fireChannelInactive();
+  }
+
+  static void fire(ChannelHandlerContext ctx, List<Object> output) {
+    for (Object message : output) {
+      ctx.fireChannelRead(message);
+    }
+  }
+
+  /**
+   * Stitch the records of the message and add the Biflows, and the message with the remaining FlowSets if any, to
+   * output.
+   */
+  void stitch(Message message, long now, List<Object> output) {
+    expire(now, output);
+    List<FlowSet> remaining = null;
+    List<FlowSet> flowSets = message.flowsets();
+    for (int i = 0; i < flowSets.size(); i++) {
+      FlowSet flowSet = flowSets.get(i);
+      RecordLayout layout = flowSet instanceof DataFlowSet && ((DataFlowSet) flowSet).template() != null
+          ? RecordLayout.of(((DataFlowSet) flowSet).template()) : null;
+      boolean ipv4 = layout != null && layout.length(PrefixEnrichmentHandler.IPV4_SRC_ADDR) == 4
+          && layout.length(PrefixEnrichmentHandler.IPV4_DST_ADDR) == 4;
+      boolean ipv6 = !ipv4 && layout != null && layout.length(PrefixEnrichmentHandler.IPV6_SRC_ADDR) == 16
+          && layout.length(PrefixEnrichmentHandler.IPV6_DST_ADDR) == 16;
+      if (!ipv4 && !ipv6) {
+        if (remaining != null) {
+          remaining.add(FlowDeduplicator.detach(netflowFactory, flowSet));
+        }
+        continue;
+      }
+      if (remaining == null) {
+        remaining = netflowFactory.flowSets();
+        for (int j = 0; j < i; j++) {
+          // the message is released below, which recycles pooled FlowSets
+          remaining.add(FlowDeduplicator.detach(netflowFactory, flowSets.get(j)));
+        }
+      }
+      DataFlowSet dataFlowSet = (DataFlowSet) flowSet;
+      byte[] data = dataFlowSet.data();
+      for (int record = 0; record < layout.recordCount(dataFlowSet); record++) {
+        add(layout, data, record, ipv6, message, now, output);
+      }
+    }
+    if (remaining == null) {
+      output.add(message);
+      return;
+    }
+    boolean hasData = false;
+    for (FlowSet flowSet : remaining) {
+      hasData |= flowSet instanceof DataFlowSet;
+    }
+    if (hasData) {
+      Header header = netflowFactory.header(message.version(), message.count(), message.uptime(),
+          message.timestamp(), message.flowSequence(), message.sourceID(), message.sender(), message.recipient());
+      output.add(netflowFactory.netflowMessage(header, remaining));
+    }
+    message.release();
+  }
+
+  void add(RecordLayout layout, byte[] data, int record, boolean ipv6, Message message, long now,
+           List<Object> output) {
+    int sourceOffset = layout.position(record, ipv6 ? PrefixEnrichmentHandler.IPV6_SRC_ADDR
+        : PrefixEnrichmentHandler.IPV4_SRC_ADDR);
+    int destinationOffset = layout.position(record, ipv6 ? PrefixEnrichmentHandler.IPV6_DST_ADDR
+        : PrefixEnrichmentHandler.IPV4_DST_ADDR);
+    long sourcePort = layout.has(FlowDeduplicator.L4_SRC_PORT)
+        ? layout.getUnsigned(data, record, FlowDeduplicator.L4_SRC_PORT) & 0xFFFF : 0;
+    long destinationPort = layout.has(FlowDeduplicator.L4_DST_PORT)
+        ? layout.getUnsigned(data, record, FlowDeduplicator.L4_DST_PORT) & 0xFFFF : 0;
+    long protocol = layout.has(FlowDeduplicator.PROTOCOL)
+        ? layout.getUnsigned(data, record, FlowDeduplicator.PROTOCOL) & 0xFF : 0;
+    long octets = layout.has(IN_BYTES) ? layout.getUnsigned(data, record, IN_BYTES) : 0;
+    long packets = layout.has(IN_PKTS) ? layout.getUnsigned(data, record, IN_PKTS) : 0;
+    long start = FlowDeduplicator.start(layout, data, record, message);
+    long end = end(layout, data, record, message);
+
+    long forwardAddresses;
+    long reverseAddresses;
+    long family = 0;
+    if (ipv6) {
+      forwardAddresses = hash(data, sourceOffset, destinationOffset);
+      reverseAddresses = hash(data, destinationOffset, sourceOffset);
+      family = IPV6;
+    } else {
+      long source = layout.getUnsigned(data, record, PrefixEnrichmentHandler.IPV4_SRC_ADDR);
+      long destination = layout.getUnsigned(data, record, PrefixEnrichmentHandler.IPV4_DST_ADDR);
+      forwardAddresses = source << 32 | destination;
+      reverseAddresses = destination << 32 | source;
+    }
+    long forwardPorts = family | sourcePort << 24 | destinationPort << 8 | protocol;
+    long reversePorts = family | destinationPort << 24 | sourcePort << 8 | protocol;
+
+    int reverse = find(reverseAddresses, reversePorts, data, destinationOffset, sourceOffset);
+    if (reverse != NONE) {
+      output.add(new Biflow(sourceAddress(reverse), destinationAddress(reverse), (int) destinationPort,
+          (int) sourcePort, (int) protocol, this.octets[reverse], this.packets[reverse], octets, packets,
+          Math.min(starts[reverse], start), Math.max(ends[reverse], end), exporters[reverse]));
+      remove(reverse);
+      paired++;
+      return;
+    }
+    int forward = find(forwardAddresses, forwardPorts, data, sourceOffset, destinationOffset);
+    if (forward != NONE) {
+      this.octets[forward] += octets;
+      this.packets[forward] += packets;
+      starts[forward] = Math.min(starts[forward], start);
+      ends[forward] = Math.max(ends[forward], end);
+      return;
+    }
+    if (free == NONE) {
+      overflows++;
+      int length = ipv6 ? 16 : 4;
+      output.add(new Biflow(Arrays.copyOfRange(data, sourceOffset, sourceOffset + length),
+          Arrays.copyOfRange(data, destinationOffset, destinationOffset + length), (int) sourcePort,
+          (int) destinationPort, (int) protocol, octets, packets, 0, 0, start, end, message.sender()));
+      return;
+    }
+    int entry = free;
+    free = next[entry];
+    int bucket = bucket(forwardAddresses, forwardPorts);
+    next[entry] = buckets[bucket];
+    buckets[bucket] = entry;
+    addresses[entry] = forwardAddresses;
+    ports[entry] = forwardPorts;
+    if (ipv6) {
+      if (ipv6Addresses == null) {
+        ipv6Addresses = new byte[capacity * 32];
+      }
+      System.arraycopy(data, sourceOffset, ipv6Addresses, entry * 32, 16);
+      System.arraycopy(data, destinationOffset, ipv6Addresses, entry * 32 + 16, 16);
+    }
+    this.octets[entry] = octets;
+    this.packets[entry] = packets;
+    starts[entry] = start;
+    ends[entry] = end;
+    exporters[entry] = message.sender();
+    deadlines[entry] = now + timeoutMillis;
+    schedule(entry);
+    size++;
+  }
+
+  /**
+   * @return end of the flow in milliseconds since the epoch
+   */
+  static long end(RecordLayout layout, byte[] data, int record, Message message) {
+    if (layout.has(FLOW_END_MILLISECONDS)) {
+      return layout.getUnsigned(data, record, FLOW_END_MILLISECONDS);
+    }
+    if (layout.has(FLOW_END_SECONDS)) {
+      return layout.getUnsigned(data, record, FLOW_END_SECONDS) * 1000;
+    }
+    long exported = (message.timestamp() & 0xFFFFFFFFL) * 1000;
+    if (layout.has(LAST_SWITCHED) && message.version() == 9) {
+      return exported - ((message.uptime() - layout.getUnsigned(data, record, LAST_SWITCHED)) & 0xFFFFFFFFL);
+    }
+    return exported;
+  }
+
+  /**
+   * Key of the IPv6 addresses at first and second of data.
+   */
+  static long hash(byte[] data, int first, int second) {
+    long h = 0xcbf29ce484222325L;
+    h = FlowDeduplicator.hash(h, data, first, 16);
+    h = FlowDeduplicator.hash(h, data, second, 16);
+    return FlowDeduplicator.mix(h, 0);
+  }
+
+  byte[] sourceAddress(int entry) {
+    if ((ports[entry] & IPV6) != 0) {
+      return Arrays.copyOfRange(ipv6Addresses, entry * 32, entry * 32 + 16);
+    }
+    return ipv4((int) (addresses[entry] >>> 32));
+  }
+
+  byte[] destinationAddress(int entry) {
+    if ((ports[entry] & IPV6) != 0) {
+      return Arrays.copyOfRange(ipv6Addresses, entry * 32 + 16, entry * 32 + 32);
+    }
+    return ipv4((int) addresses[entry]);
+  }
+
+  static byte[] ipv4(int address) {
+    return new byte[]{(byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8), (byte) address};
+  }
+
+  int bucket(long addresses, long ports) {
+    long h = (addresses ^ ports * 0x9E3779B97F4A7C15L) * 0xff51afd7ed558ccdL;
+    return (int) (h ^ h >>> 32) & (buckets.length - 1);
+  }
+
+  /**
+   * @param source      position in data of the address the entry's source has to match (IPv6 only)
+   * @param destination position in data of the address the entry's destination has to match (IPv6 only)
+   */
+  int find(long addresses, long ports, byte[] data, int source, int destination) {
+    for (int entry = buckets[bucket(addresses, ports)]; entry != NONE; entry = next[entry]) {
+      if (this.addresses[entry] == addresses && this.ports[entry] == ports
+          && ((ports & IPV6) == 0 || sameAddresses(entry, data, source, destination))) {
+        return entry;
+      }
+    }
+    return NONE;
+  }
+
+  boolean sameAddresses(int entry, byte[] data, int source, int destination) {
+    int stored = entry * 32;
+    for (int i = 0; i < 16; i++) {
+      if (ipv6Addresses[stored + i] != data[source + i] || ipv6Addresses[stored + 16 + i] != data[destination + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  void remove(int entry) {
+    int bucket = bucket(addresses[entry], ports[entry]);
+    if (buckets[bucket] == entry) {
+      buckets[bucket] = next[entry];
+    } else {
+      int previous = buckets[bucket];
+      while (next[previous] != entry) {
+        previous = next[previous];
+      }
+      next[previous] = next[entry];
+    }
+    unschedule(entry);
+    exporters[entry] = null;
+    next[entry] = free;
+    free = entry;
+    size--;
+  }
+
+  void schedule(int entry) {
+    int slot = (int) (deadlines[entry] / tickMillis) & (WHEEL_SLOTS - 1);
+    wheelPrevious[entry] = NONE;
+    wheelNext[entry] = wheel[slot];
+    if (wheel[slot] != NONE) {
+      wheelPrevious[wheel[slot]] = entry;
+    }
+    wheel[slot] = entry;
+  }
+
+  void unschedule(int entry) {
+    if (wheelPrevious[entry] != NONE) {
+      wheelNext[wheelPrevious[entry]] = wheelNext[entry];
+    } else {
+      wheel[(int) (deadlines[entry] / tickMillis) & (WHEEL_SLOTS - 1)] = wheelNext[entry];
+    }
+    if (wheelNext[entry] != NONE) {
+      wheelPrevious[wheelNext[entry]] = wheelPrevious[entry];
+    }
+  }
+
+  /**
+   * Pass on the records whose timeout passed as unpaired Biflows. A slot is due once its tick is over, so records
+   * wait up to a tick longer than the timeout.
+   */
+  void expire(long now, List<Object> output) {
+    long due = now / tickMillis - 1;
+    if (tick == NONE) {
+      tick = due;
+    }
+    if (due <= tick) {
+      return;
+    }
+    // after a long pause every slot is due once
+    long first = due - tick > WHEEL_SLOTS ? due - WHEEL_SLOTS + 1 : tick + 1;
+    for (long t = first; t <= due; t++) {
+      int entry = wheel[(int) t & (WHEEL_SLOTS - 1)];
+      while (entry != NONE) {
+        int following = wheelNext[entry];
+        if (deadlines[entry] <= now) {
+          long ports = this.ports[entry];
+          output.add(new Biflow(sourceAddress(entry), destinationAddress(entry), (int) (ports >>> 24) & 0xFFFF,
+              (int) (ports >>> 8) & 0xFFFF, (int) ports & 0xFF, octets[entry], packets[entry], 0, 0,
+              starts[entry], ends[entry], exporters[entry]));
+          remove(entry);
+          unpaired++;
+        }
+        entry = following;
+      }
+    }
+    tick = due;
+  }
+
+  /**
+   * Count the records in the table.
+   *
+   * @return records waiting for the reverse direction
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Count the sessions that were stitched.
+   *
+   * @return Biflows passed on with both directions
+   */
+  public long pairedCount() {
+    return paired;
+  }
+
+  /**
+   * Count the records that found no partner in time.
+   *
+   * @return Biflows passed on without a reverse direction after the timeout
+   */
+  public long unpairedCount() {
+    return unpaired;
+  }
+
+  /**
+   * Count the records the table had no room for.
+   *
+   * @return records passed on unpaired because the table was full
+   */
+  public long overflowCount() {
+    return overflows;
+  }
+}
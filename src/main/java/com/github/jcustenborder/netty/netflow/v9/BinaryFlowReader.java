@@ -0,0 +1,212 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Reads what a BinaryFlowWriter wrote, batch by batch and record by record, without copying: values are read in
+ * place and raw fields are handed out as slices of the buffer. The reader is a cursor; nextBatch() and nextRecord()
+ * move it, the getters refer to the current batch and record.
+ * <pre>
+ *   while (reader.nextBatch()) {
+ *     int octets = reader.schema().index(1);
+ *     while (reader.nextRecord()) {
+ *       total += reader.getLong(octets);
+ *     }
+ *   }
+ * </pre>
+ */
+public class BinaryFlowReader {
+  final SchemaRegistry registry;
+  final ByteBuf in;
+
+  FlowSchema schema;
+  InetAddress exporter;
+  int sourceID;
+  long timestamp;
+  int recordCount;
+  int remaining;
+  int batchEnd;
+  // start of every field of the current record
+  int[] positions = new int[16];
+  int recordEnd;
+
+  /**
+   * @param in read from its readerIndex to its writerIndex; the readerIndex is moved along
+   */
+  public BinaryFlowReader(SchemaRegistry registry, ByteBuf in) {
+    this.registry = registry;
+    this.in = in;
+  }
+
+  /**
+   * Move to the next batch, skipping what is left of the current one.
+   *
+   * @return false at the end of the buffer
+   * @throws IllegalArgumentException on an unknown schema id or a truncated batch
+   */
+  public boolean nextBatch() {
+    if (schema != null) {
+      in.readerIndex(batchEnd);
+      schema = null;
+    }
+    if (!in.isReadable()) {
+      return false;
+    }
+    int id = (int) readVarint(in, in.readerIndex());
+    in.readerIndex(varintEnd);
+    FlowSchema schema = registry.schema(id);
+    if (schema == null) {
+      throw new IllegalArgumentException("Unknown schema id " + id);
+    }
+    int addressLength = in.readUnsignedByte();
+    if (addressLength == 0) {
+      exporter = null;
+    } else {
+      byte[] address = new byte[addressLength];
+      in.readBytes(address);
+      try {
+        exporter = InetAddress.getByAddress(address);
+      } catch (UnknownHostException e) {
+        throw new IllegalArgumentException("Invalid exporter address", e);
+      }
+    }
+    sourceID = (int) readVarint(in, in.readerIndex());
+    in.readerIndex(varintEnd);
+    timestamp = readVarint(in, in.readerIndex());
+    in.readerIndex(varintEnd);
+    recordCount = (int) readVarint(in, in.readerIndex());
+    in.readerIndex(varintEnd);
+    int length = in.readInt();
+    if (length < 0 || length > in.readableBytes()) {
+      throw new IllegalArgumentException("Truncated batch of " + length + " bytes");
+    }
+    batchEnd = in.readerIndex() + length;
+    recordEnd = in.readerIndex();
+    remaining = recordCount;
+    if (positions.length < schema.fieldCount()) {
+      positions = new int[schema.fieldCount()];
+    }
+    this.schema = schema;
+    return true;
+  }
+
+  /**
+   * Move to the next record of the batch.
+   *
+   * @return false once all records of the batch have been read
+   */
+  public boolean nextRecord() {
+    if (schema == null || remaining == 0) {
+      return false;
+    }
+    int position = recordEnd;
+    for (int field = 0; field < schema.types.length; field++) {
+      positions[field] = position;
+      if (schema.varints[field]) {
+        while (in.getByte(position++) < 0) {
+          // continuation bit
+        }
+      } else {
+        position += schema.lengths[field] & 0xFFFF;
+      }
+    }
+    if (position > batchEnd) {
+      throw new IllegalArgumentException("Record overruns its batch");
+    }
+    recordEnd = position;
+    remaining--;
+    return true;
+  }
+
+  public FlowSchema schema() {
+    return schema;
+  }
+
+  /**
+   * @return the exporter of the batch, null if unknown
+   */
+  public InetAddress exporter() {
+    return exporter;
+  }
+
+  public int sourceID() {
+    return sourceID;
+  }
+
+  /**
+   * @return the export time of the batch in seconds since the epoch
+   */
+  public long timestamp() {
+    return timestamp;
+  }
+
+  public int recordCount() {
+    return recordCount;
+  }
+
+  /**
+   * @param field index of the field in the schema
+   * @return the field as unsigned number (the low 8 bytes of longer raw fields)
+   */
+  public long getLong(int field) {
+    int position = positions[field];
+    if (schema.varints[field]) {
+      return readVarint(in, position);
+    }
+    int length = schema.lengths[field] & 0xFFFF;
+    long value = 0;
+    for (int i = Math.max(0, length - 8); i < length; i++) {
+      value = value << 8 | in.getByte(position + i) & 0xFF;
+    }
+    return value;
+  }
+
+  /**
+   * @param field index of a raw (non varint) field in the schema
+   * @return the bytes of the field, a slice of the buffer that is only valid as long as the buffer is
+   */
+  public ByteBuf getBytes(int field) {
+    if (schema.varints[field]) {
+      throw new IllegalArgumentException("Field " + field + " is a varint");
+    }
+    return in.slice(positions[field], schema.lengths[field] & 0xFFFF);
+  }
+
+  // end of the last varint read, saves allocating a result pair
+  int varintEnd;
+
+  long readVarint(ByteBuf buffer, int position) {
+    long value = 0;
+    int shift = 0;
+    while (true) {
+      byte b = buffer.getByte(position++);
+      value |= (long) (b & 0x7F) << shift;
+      if (b >= 0) {
+        varintEnd = position;
+        return value;
+      }
+      shift += 7;
+      if (shift > 63) {
+        throw new IllegalArgumentException("Varint too long");
+      }
+    }
+  }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+/**
+ * Writes the data records of messages in a compact binary form, one batch per data FlowSet:
+ * <pre>
+ *   varint  schema id (see SchemaRegistry)
+ *   byte    exporter address length (0, 4 or 16), followed by the address
+ *   varint  sourceID
+ *   varint  export timestamp (seconds)
+ *   varint  record count
+ *   int     length of the records in bytes
+ *   records, every field in schema order: numbers of up to 8 bytes as unsigned varints, everything else raw
+ * </pre>
+ * Read it back with a BinaryFlowReader on the same registry (or one loaded from its file).
+ *
+ * As a handler it turns every message written to the channel into one ByteBuf and releases the message;
+ * write(message, out) appends to a buffer of the caller.
+ */
+@ChannelHandler.Sharable
+public class BinaryFlowWriter extends MessageToMessageEncoder<NetFlow.Message> implements NetFlow {
+  static final int CACHE_SIZE = 256;
+
+  /**
+   * Schema of a template, the template kept to tell cache hits from collisions.
+   */
+  static final class CachedSchema {
+    final TemplateFlowSet template;
+    final FlowSchema schema;
+
+    CachedSchema(TemplateFlowSet template, FlowSchema schema) {
+      this.template = template;
+      this.schema = schema;
+    }
+  }
+
+  final SchemaRegistry registry;
+  // direct mapped by template identity; racy updates are harmless since a CachedSchema is immutable
+  final CachedSchema[] schemas = new CachedSchema[CACHE_SIZE];
+
+  public BinaryFlowWriter(SchemaRegistry registry) {
+    this.registry = registry;
+  }
+
+  @Override
+  protected void encode(ChannelHandlerContext ctx, Message message, List<Object> out) throws Exception {
+    int size = 32;
+    for (FlowSet flowSet : message.flowsets()) {
+      size += flowSet instanceof DataFlowSet ? ((DataFlowSet) flowSet).data().length + 32 : 0;
+    }
+    ByteBuf buffer = ctx.alloc().ioBuffer(size);
+    try {
+      write(message, buffer);
+      out.add(buffer);
+      buffer = null;
+    } finally {
+      if (buffer != null) {
+        buffer.release();
+      }
+      message.release();
+    }
+  }
+
+  FlowSchema schema(TemplateFlowSet template) {
+    int index = System.identityHashCode(template) & (CACHE_SIZE - 1);
+    CachedSchema cached = schemas[index];
+    if (cached == null || cached.template != template) {
+      cached = schemas[index] = new CachedSchema(template, registry.schema(template));
+    }
+    return cached.schema;
+  }
+
+  /**
+   * Append a batch per data FlowSet of the message to out.
+   *
+   * @return the number of records written
+   */
+  public int write(Message message, ByteBuf out) {
+    int count = 0;
+    for (FlowSet flowSet : message.flowsets()) {
+      if (!(flowSet instanceof DataFlowSet) || ((DataFlowSet) flowSet).template() == null) {
+        continue;
+      }
+      DataFlowSet dataFlowSet = (DataFlowSet) flowSet;
+      RecordLayout layout = RecordLayout.of(dataFlowSet.template());
+      int records = layout.recordCount(dataFlowSet);
+      if (records == 0) {
+        continue;
+      }
+      FlowSchema schema = schema(dataFlowSet.template());
+      writeVarint(schema.id, out);
+      InetSocketAddress sender = message.sender();
+      if (sender != null && sender.getAddress() != null) {
+        byte[] address = sender.getAddress().getAddress();
+        out.writeByte(address.length).writeBytes(address);
+      } else {
+        out.writeByte(0);
+      }
+      writeVarint(message.sourceID() & 0xFFFFFFFFL, out);
+      writeVarint(message.timestamp() & 0xFFFFFFFFL, out);
+      writeVarint(records, out);
+      int lengthIndex = out.writerIndex();
+      out.writeInt(0);
+      byte[] data = dataFlowSet.data();
+      int recordLength = layout.recordLength();
+      for (int record = 0; record < records; record++) {
+        int position = record * recordLength;
+        for (int field = 0; field < schema.types.length; field++) {
+          int length = schema.lengths[field] & 0xFFFF;
+          if (schema.varints[field]) {
+            long value = 0;
+            for (int i = position; i < position + length; i++) {
+              value = value << 8 | data[i] & 0xFF;
+            }
+            writeVarint(value, out);
+          } else {
+            out.writeBytes(data, position, length);
+          }
+          position += length;
+        }
+      }
+      out.setInt(lengthIndex, out.writerIndex() - lengthIndex - 4);
+      count += records;
+    }
+    return count;
+  }
+
+  /**
+   * Unsigned LEB128: 7 bits per byte, least significant first, the high bit set on all but the last byte.
+   */
+  static void writeVarint(long value, ByteBuf out) {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) (value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+}
@@ -23,7 +23,7 @@ public class CiscoFieldScheme implements NetFlow.FieldScheme {
 
   @Override
   public Field getField(int typeId) {
-    return CISCO_FIELD_TYPES[typeId];
+    return typeId >= 0 && typeId < CISCO_FIELD_TYPES.length ? CISCO_FIELD_TYPES[typeId] : null;
   }
 
   private static final Field[] CISCO_FIELD_TYPES = Field.values();
@@ -32,7 +32,7 @@ public class CiscoFieldScheme implements NetFlow.FieldScheme {
    * Based on Table 6 here:
    * https://www.cisco.com/en/US/technologies/tk648/tk362/technologies_white_paper09186a00800a3db9.html#wp9001622
    */
-  enum Field implements NetFlow.Field {
+  public enum Field implements NetFlow.Field {
     RESERVED1                     (0,   0),
     IN_BYTES                      (1,   0, DataType.BIG_INTEGER),
     IN_PKTS                       (2,   0, DataType.BIG_INTEGER),
@@ -145,9 +145,9 @@ public class CiscoFieldScheme implements NetFlow.FieldScheme {
       this.length = (short) length;
       this.dataType = dataType;
 
-      assertThat(typeId >= 0 && typeId <= Short.MAX_VALUE, "'typeId' is out of range for " + this);
-      assertThat(length >= 0 && length <= Short.MAX_VALUE, "'length' is out of range for " + this);
-      assertThat(dataType != null, "'dataType' is null for " + this);
+      NetFlow.FieldScheme.assertThat(typeId >= 0 && typeId <= Short.MAX_VALUE, "'typeId' is out of range for " + this);
+      NetFlow.FieldScheme.assertThat(length >= 0 && length <= Short.MAX_VALUE, "'length' is out of range for " + this);
+      NetFlow.FieldScheme.assertThat(dataType != null, "'dataType' is null for " + this);
     }
 
     Field(int typeId, int length) {
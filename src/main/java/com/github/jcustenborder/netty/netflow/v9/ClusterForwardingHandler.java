@@ -0,0 +1,331 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.socket.DatagramPacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Front handler of a collector cluster. Every exporter (sender address plus sourceID) is owned by one node of
+ * the ConsistentHashRing, so all of its templates and data end up on the same node no matter how a load
+ * balancer spreads the datagrams. Datagrams of exporters owned by this node are passed on to the decoder;
+ * the others are sent, unchanged, to the owning node wrapped in a small header carrying the original sender,
+ * and the owning node's handler unwraps them so the decoder sees the exporter's address.
+ *
+ * Wrapped datagrams are only accepted from nodes of the ring (peers have to send from the address they are
+ * listed with, which is the case when they forward through their receiving channel) and are never forwarded
+ * again, so nodes with different views of the ring cannot bounce datagrams between each other. As UDP source
+ * addresses are easily spoofed, every wrapped datagram also carries an HMAC-SHA256 (truncated to 16 bytes) of
+ * its header and payload under a key shared by all nodes; datagrams with a wrong MAC are dropped. The MAC does not
+ * protect against replays of captured datagrams.
+ *
+ * Wire format of a forwarded datagram: magic 'NFCF', version 2, address length (4 or 16), the sender's address
+ * and port, the MAC, then the original datagram. Datagrams that would exceed the maximum UDP payload once
+ * wrapped are dropped.
+ *
+ * Not sharable, add a new instance per channel.
+ */
+public class ClusterForwardingHandler extends ChannelInboundHandlerAdapter {
+  private static final Logger log = LoggerFactory.getLogger(ClusterForwardingHandler.class);
+
+  static final int MAGIC = 0x4e464346;
+  static final byte VERSION = 2;
+  static final int MAC_LENGTH = 16;
+  static final String MAC_ALGORITHM = "HmacSHA256";
+  // IPv4 limit: 65535 - 20 bytes IP header - 8 bytes UDP header
+  static final int MAX_DATAGRAM = 65507;
+
+  final InetSocketAddress self;
+  volatile ConsistentHashRing ring;
+  volatile Set<InetSocketAddress> peers;
+  final Channel output;
+  final Mac mac;
+  final byte[] digest = new byte[32];
+  Channel channel;
+  boolean flushNeeded;
+
+  final LongAdder local = new LongAdder();
+  final LongAdder forwarded = new LongAdder();
+  final LongAdder received = new LongAdder();
+  final LongAdder dropped = new LongAdder();
+
+  /**
+   * @param self the address this node is listed with in the ring
+   * @param output the channel to forward through, null for the receiving channel
+   * @param key secret shared by all nodes of the cluster, at least 16 bytes
+   */
+  public ClusterForwardingHandler(InetSocketAddress self, ConsistentHashRing ring, Channel output, byte[] key) {
+    if (key.length < 16) {
+      throw new IllegalArgumentException("The cluster key must have at least 16 bytes");
+    }
+    this.self = self;
+    this.output = output;
+    try {
+      this.mac = Mac.getInstance(MAC_ALGORITHM);
+      this.mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+    } catch (GeneralSecurityException e) {
+      // every Java platform has to support HmacSHA256
+      throw new IllegalStateException(e);
+    }
+    ring(ring);
+  }
+
+  public ClusterForwardingHandler(InetSocketAddress self, ConsistentHashRing ring, byte[] key) {
+    this(self, ring, null, key);
+  }
+
+  public ConsistentHashRing ring() {
+    return ring;
+  }
+
+  /**
+   * Switch to a new ring, e.g. when nodes join or leave the cluster.
+   */
+  public void ring(ConsistentHashRing ring) {
+    if (!ring.nodes().contains(self)) {
+      throw new IllegalArgumentException(self + " is not a node of " + ring);
+    }
+    this.peers = new HashSet<>(ring.nodes());
+    this.ring = ring;
+  }
+
+  @Override
+  public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+    this.channel = output != null ? output : ctx.channel();
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (!(msg instanceof DatagramPacket)) {
+      ctx.fireChannelRead(msg);
+      return;
+    }
+    DatagramPacket packet = (DatagramPacket) msg;
+    ByteBuf content = packet.content();
+    InetSocketAddress sender = packet.sender();
+
+    if (isForwarded(content)) {
+      if (!peers.contains(sender)) {
+        log.debug("Ignored forwarded datagram from {} which is not a node of the cluster", sender);
+        dropped.increment();
+        packet.release();
+        return;
+      }
+      DatagramPacket unwrapped = unwrap(packet);
+      if (unwrapped == null) {
+        dropped.increment();
+        packet.release();
+        return;
+      }
+      received.increment();
+      ctx.fireChannelRead(unwrapped);
+      return;
+    }
+
+    InetSocketAddress owner = sender != null ? owner(content, sender.getAddress()) : null;
+    if (owner == null || owner.equals(self)) {
+      local.increment();
+      ctx.fireChannelRead(packet);
+      return;
+    }
+    try {
+      DatagramPacket wrapped = channel.isWritable() ? wrap(packet, owner) : null;
+      if (wrapped == null) {
+        dropped.increment();
+        return;
+      }
+      channel.write(wrapped, channel.voidPromise());
+      forwarded.increment();
+      flushNeeded = true;
+    } finally {
+      packet.release();
+    }
+  }
+
+  /**
+   * Owner of the datagram's exporter, from the sourceID (v9) / observation domain ID (IPFIX) / engine type and
+   * ID (v5) read in place - the same fields NetFlowV9Decoder.decodeHeader() reads - or null for anything
+   * that is not NetFlow, which is left to the local decoder to count.
+   */
+  InetSocketAddress owner(ByteBuf content, InetAddress address) {
+    int index = content.readerIndex();
+    int length = content.readableBytes();
+    if (address == null || length < 2) {
+      return null;
+    }
+    int sourceID;
+    switch (content.getShort(index)) {
+      case 5:
+        if (length < NetFlowV5Message.HEADER_LENGTH) {
+          return null;
+        }
+        sourceID = content.getUnsignedShort(index + 20);
+        break;
+      case 9:
+        if (length < 20) {
+          return null;
+        }
+        sourceID = content.getInt(index + 16);
+        break;
+      case 10:
+        if (length < 16) {
+          return null;
+        }
+        sourceID = content.getInt(index + 12);
+        break;
+      default:
+        return null;
+    }
+    return ring.owner(address, sourceID);
+  }
+
+  static boolean isForwarded(ByteBuf content) {
+    return content.readableBytes() >= 4 && content.getInt(content.readerIndex()) == MAGIC;
+  }
+
+  /**
+   * @return the datagram wrapped for the owner, null if it would exceed the maximum UDP payload
+   */
+  DatagramPacket wrap(DatagramPacket packet, InetSocketAddress owner) {
+    ByteBuf content = packet.content();
+    byte[] address = packet.sender().getAddress().getAddress();
+    int headerLength = 8 + address.length;
+    if (headerLength + MAC_LENGTH + content.readableBytes() > MAX_DATAGRAM) {
+      return null;
+    }
+    ByteBuf buffer = packet.content().alloc().ioBuffer(headerLength + MAC_LENGTH + content.readableBytes());
+    buffer.writeInt(MAGIC).writeByte(VERSION).writeByte(address.length).writeBytes(address)
+        .writeShort(packet.sender().getPort());
+    mac(buffer, 0, headerLength, content, content.readerIndex(), content.readableBytes());
+    buffer.writeBytes(digest, 0, MAC_LENGTH);
+    buffer.writeBytes(content, content.readerIndex(), content.readableBytes());
+    return new DatagramPacket(buffer, owner);
+  }
+
+  /**
+   * Compute the MAC of the header and payload into digest.
+   */
+  private void mac(ByteBuf header, int headerIndex, int headerLength, ByteBuf payload, int payloadIndex,
+                   int payloadLength) {
+    mac.update(header.nioBuffer(headerIndex, headerLength));
+    mac.update(payload.nioBuffer(payloadIndex, payloadLength));
+    try {
+      mac.doFinal(digest, 0);
+    } catch (ShortBufferException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return the original datagram (sharing the buffer of packet), null if the header is malformed or the MAC
+   *     does not match
+   */
+  DatagramPacket unwrap(DatagramPacket packet) {
+    ByteBuf content = packet.content();
+    int index = content.readerIndex();
+    if (content.readableBytes() < 6 || content.getByte(index + 4) != VERSION) {
+      return null;
+    }
+    int addressLength = content.getUnsignedByte(index + 5);
+    int headerLength = 8 + addressLength;
+    if (addressLength != 4 && addressLength != 16 || content.readableBytes() < headerLength + MAC_LENGTH) {
+      return null;
+    }
+    int payloadIndex = index + headerLength + MAC_LENGTH;
+    mac(content, index, headerLength, content, payloadIndex, content.writerIndex() - payloadIndex);
+    if (!equals(content, index + headerLength, digest)) {
+      log.debug("Ignored forwarded datagram from {} with an invalid MAC", packet.sender());
+      return null;
+    }
+    byte[] address = new byte[addressLength];
+    content.getBytes(index + 6, address);
+    int port = content.getUnsignedShort(index + 6 + addressLength);
+    InetSocketAddress sender;
+    try {
+      sender = new InetSocketAddress(InetAddress.getByAddress(address), port);
+    } catch (UnknownHostException e) {
+      // cannot happen for 4 or 16 bytes
+      return null;
+    }
+    content.skipBytes(headerLength + MAC_LENGTH);
+    return new DatagramPacket(content, packet.recipient(), sender);
+  }
+
+  /**
+   * Compare the MAC in constant time.
+   */
+  static boolean equals(ByteBuf content, int index, byte[] digest) {
+    int difference = 0;
+    for (int i = 0; i < MAC_LENGTH; i++) {
+      difference |= content.getByte(index + i) ^ digest[i];
+    }
+    return difference == 0;
+  }
+
+  @Override
+  public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+    if (flushNeeded) {
+      flushNeeded = false;
+      channel.flush();
+    }
+    ctx.fireChannelReadComplete();
+  }
+
+  /**
+   * @return datagrams of exporters owned by this node that were received directly
+   */
+  public long localCount() {
+    return local.sum();
+  }
+
+  /**
+   * @return datagrams forwarded to the owning node
+   */
+  public long forwardedCount() {
+    return forwarded.sum();
+  }
+
+  /**
+   * @return datagrams forwarded to this node by its peers
+   */
+  public long receivedCount() {
+    return received.sum();
+  }
+
+  /**
+   * @return datagrams dropped because the output channel was not writable, they were too large to forward or a
+   *     forwarded datagram was not valid
+   */
+  public long droppedCount() {
+    return dropped.sum();
+  }
+}
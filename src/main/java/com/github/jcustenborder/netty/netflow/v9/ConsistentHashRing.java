@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Immutable consistent hash ring of collector nodes with virtualNodes points per node. Exporters
+ * (address plus sourceID) are owned by the node of the first point at or after their hash, so adding or removing
+ * a node only moves about 1/n of the exporters. The hash only depends on the bytes of the addresses, so every
+ * node of the cluster computes the same owners from the same node list, in whatever order it is given.
+ */
+public final class ConsistentHashRing {
+  final List<InetSocketAddress> nodes;
+  final long[] points;
+  final InetSocketAddress[] owners;
+
+  public ConsistentHashRing(List<InetSocketAddress> nodes, int virtualNodes) {
+    if (nodes.isEmpty()) {
+      throw new IllegalArgumentException("nodes cannot be empty");
+    }
+    if (virtualNodes <= 0) {
+      throw new IllegalArgumentException("virtualNodes must be positive");
+    }
+    this.nodes = Collections.unmodifiableList(new ArrayList<>(new LinkedHashSet<>(nodes)));
+    int size = this.nodes.size() * virtualNodes;
+    long[][] entries = new long[size][];
+    int i = 0;
+    for (int n = 0; n < this.nodes.size(); n++) {
+      byte[] node = nodeBytes(this.nodes.get(n));
+      for (int v = 0; v < virtualNodes; v++) {
+        entries[i++] = new long[]{hash(node, v), n};
+      }
+    }
+    // ties are broken by the node's bytes so that the order of the list does not matter
+    Arrays.sort(entries, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0])
+        : compare(nodeBytes(this.nodes.get((int) a[1])), nodeBytes(this.nodes.get((int) b[1]))));
+    this.points = new long[size];
+    this.owners = new InetSocketAddress[size];
+    for (i = 0; i < size; i++) {
+      points[i] = entries[i][0];
+      owners[i] = this.nodes.get((int) entries[i][1]);
+    }
+  }
+
+  /**
+   * 160 points per node, which keeps the load of each node within a few percent of the mean.
+   */
+  public ConsistentHashRing(List<InetSocketAddress> nodes) {
+    this(nodes, 160);
+  }
+
+  public List<InetSocketAddress> nodes() {
+    return nodes;
+  }
+
+  public InetSocketAddress owner(InetAddress address, int sourceID) {
+    long hash = hash(address.getAddress(), sourceID);
+    int index = Arrays.binarySearch(points, hash);
+    if (index < 0) {
+      index = -index - 1;
+    }
+    return owners[index < points.length ? index : 0];
+  }
+
+  public InetSocketAddress owner(ExporterKey exporter) {
+    return owner(exporter.address, exporter.sourceID);
+  }
+
+  static byte[] nodeBytes(InetSocketAddress node) {
+    byte[] address = node.getAddress() != null ? node.getAddress().getAddress()
+        : node.getHostString().getBytes(StandardCharsets.UTF_8);
+    byte[] result = Arrays.copyOf(address, address.length + 2);
+    result[address.length] = (byte) (node.getPort() >>> 8);
+    result[address.length + 1] = (byte) node.getPort();
+    return result;
+  }
+
+  /**
+   * FNV-1a over the bytes and the salt, finished with the MurmurHash3 64 bit mix for a uniform spread.
+   */
+  static long hash(byte[] bytes, int salt) {
+    long h = 0xcbf29ce484222325L;
+    for (byte b : bytes) {
+      h = (h ^ (b & 0xff)) * 0x100000001b3L;
+    }
+    for (int shift = 24; shift >= 0; shift -= 8) {
+      h = (h ^ ((salt >>> shift) & 0xff)) * 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  static int compare(byte[] a, byte[] b) {
+    for (int i = 0; i < Math.min(a.length, b.length); i++) {
+      int c = Integer.compare(a[i] & 0xff, b[i] & 0xff);
+      if (c != 0) {
+        return c;
+      }
+    }
+    return Integer.compare(a.length, b.length);
+  }
+
+  @Override
+  public String toString() {
+    return "ConsistentHashRing" + nodes;
+  }
+}
@@ -0,0 +1,266 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.socket.DatagramPacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Memory-mapped ring journal of raw datagrams (payload, sender, recipient and arrival time).
+ *
+ * There is a single writer (usually the channel's event loop, see DatagramSpoolHandler) and a single reader, which
+ * may run on another thread.
+ * Positions are absolute byte counts; the write position is published after every append and the read position
+ * only on commit(), both to the file header, so entries that were appended but not committed are replayed after
+ * a restart. When the ring is full new datagrams are dropped rather than overwriting unconsumed ones.
+ *
+ * Entry layout: int size (-1 marks a wrap to the ring start), long arrival millis,
+ * sender and recipient as (byte address length, address, short port), int payload length, payload.
+ */
+public class DatagramJournal implements Closeable {
+  private static final Logger log = LoggerFactory.getLogger(DatagramJournal.class);
+
+  private static final int MAGIC = 0x4E464A4C; // 'NFJL'
+  private static final int FORMAT_VERSION = 1;
+  static final int HEADER_SIZE = 64;
+  private static final int WRITE_POSITION_OFFSET = 16;
+  private static final int READ_POSITION_OFFSET = 24;
+  private static final int WRAP = -1;
+  // size, arrival, 2 x (address length + IPv6 address + port), payload length
+  static final int MAX_ENTRY_OVERHEAD = 4 + 8 + 2 * (1 + 16 + 2) + 4;
+
+  final Path file;
+  final int capacity;
+  final MappedByteBuffer buffer;
+  final AtomicLong writePosition = new AtomicLong();
+  final AtomicLong readPosition = new AtomicLong();
+  final Reader reader = new Reader();
+
+  final LongAdder appended = new LongAdder();
+  final LongAdder dropped = new LongAdder();
+
+  /**
+   * Open (or create) the journal; capacity is only used when the file is created.
+   */
+  public DatagramJournal(Path file, int capacity) throws IOException {
+    this.file = file;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      boolean created = channel.size() == 0;
+      if (!created) {
+        capacity = (int) (channel.size() - HEADER_SIZE);
+      }
+      if (capacity < 2 * (MAX_ENTRY_OVERHEAD + 65535)) {
+        throw new IllegalArgumentException("capacity must hold at least two maximum sized datagrams: " + capacity);
+      }
+      this.capacity = capacity;
+      this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity);
+      if (created) {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, FORMAT_VERSION);
+        buffer.putInt(8, capacity);
+      } else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION || buffer.getInt(8) != capacity) {
+        throw new IOException("Not a datagram journal: " + file);
+      }
+    }
+    long write = buffer.getLong(WRITE_POSITION_OFFSET);
+    long read = buffer.getLong(READ_POSITION_OFFSET);
+    if (read > write || write - read > capacity) {
+      log.warn("Journal {} has inconsistent positions (read {} write {}), discarding its content", file, read, write);
+      read = write;
+    }
+    this.writePosition.set(write);
+    this.readPosition.set(read);
+    this.reader.position = read;
+    log.debug("Opened {} with {} byte(s) pending", file, write - read);
+  }
+
+  private static int addressSize(InetSocketAddress address) {
+    return 1 + (address != null && address.getAddress() != null ? address.getAddress().getAddress().length : 0) + 2;
+  }
+
+  /**
+   * Append the readable bytes of payload (the reader index is left untouched).
+   *
+   * @return false if the ring had no room and the datagram was dropped
+   */
+  public boolean append(ByteBuf payload, InetSocketAddress sender, InetSocketAddress recipient, long arrivalMillis) {
+    int length = payload.readableBytes();
+    int size = 4 + 8 + addressSize(sender) + addressSize(recipient) + 4 + length;
+    long write = writePosition.get();
+    int index = (int) (write % capacity);
+    int waste = index + size > capacity ? capacity - index : 0;
+    if (write + waste + size - readPosition.get() > capacity) {
+      dropped.increment();
+      return false;
+    }
+    if (waste > 0) {
+      if (waste >= 4) {
+        buffer.putInt(HEADER_SIZE + index, WRAP);
+      }
+      write += waste;
+      index = 0;
+    }
+
+    int at = HEADER_SIZE + index;
+    buffer.putInt(at, size);
+    buffer.putLong(at + 4, arrivalMillis);
+    at = putAddress(at + 12, sender);
+    at = putAddress(at, recipient);
+    buffer.putInt(at, length);
+    at += 4;
+    payload.getBytes(payload.readerIndex(), window(at, length));
+
+    write += size;
+    buffer.putLong(WRITE_POSITION_OFFSET, write);
+    writePosition.set(write);
+    appended.increment();
+    return true;
+  }
+
+  private int putAddress(int at, InetSocketAddress address) {
+    byte[] bytes = address != null && address.getAddress() != null ? address.getAddress().getAddress() : new byte[0];
+    buffer.put(at, (byte) bytes.length);
+    window(at + 1, bytes.length).put(bytes);
+    buffer.putShort(at + 1 + bytes.length, (short) (address != null ? address.getPort() : 0));
+    return at + 1 + bytes.length + 2;
+  }
+
+  /**
+   * @return a view of length bytes of the mapped file starting at index, for bulk copies (the writer and the
+   * reader may run on different threads, so neither moves the position of the shared buffer)
+   */
+  private ByteBuffer window(int index, int length) {
+    ByteBuffer window = buffer.duplicate();
+    window.limit(index + length).position(index);
+    return window;
+  }
+
+  /**
+   * @return the single reader of this journal
+   */
+  public Reader reader() {
+    return reader;
+  }
+
+  /**
+   * @return bytes appended but not yet committed by the reader
+   */
+  public long pendingBytes() {
+    return writePosition.get() - readPosition.get();
+  }
+
+  public long appendedCount() {
+    return appended.sum();
+  }
+
+  public long droppedCount() {
+    return dropped.sum();
+  }
+
+  /**
+   * Flush the mapped journal to the storage device (the OS does so lazily anyway).
+   */
+  public void force() {
+    buffer.force();
+  }
+
+  @Override
+  public void close() {
+    force();
+  }
+
+  /**
+   * Sequential reader; poll() advances a private cursor, commit() releases the consumed entries.
+   */
+  public final class Reader {
+    long position;
+    long arrivalMillis;
+
+    /**
+     * @return the next journaled datagram (a fresh buffer from alloc) or null when caught up
+     */
+    public DatagramPacket poll(ByteBufAllocator alloc) {
+      long write = writePosition.get();
+      if (position == write) {
+        return null;
+      }
+      int index = (int) (position % capacity);
+      if (capacity - index < 4 || buffer.getInt(HEADER_SIZE + index) == WRAP) {
+        position += capacity - index;
+        index = 0;
+      }
+
+      int at = HEADER_SIZE + index;
+      int size = buffer.getInt(at);
+      arrivalMillis = buffer.getLong(at + 4);
+      at += 12;
+      InetSocketAddress sender = getAddress(at);
+      at += 1 + buffer.get(at) + 2;
+      InetSocketAddress recipient = getAddress(at);
+      at += 1 + buffer.get(at) + 2;
+      int length = buffer.getInt(at);
+      at += 4;
+      ByteBuf payload = alloc.buffer(length);
+      payload.writeBytes(window(at, length));
+      position += size;
+      return new DatagramPacket(payload, recipient, sender);
+    }
+
+    private InetSocketAddress getAddress(int at) {
+      int length = buffer.get(at);
+      byte[] bytes = new byte[length];
+      window(at + 1, length).get(bytes);
+      int port = buffer.getShort(at + 1 + length) & 0xFFFF;
+      try {
+        return length == 0 ? null : new InetSocketAddress(InetAddress.getByAddress(bytes), port);
+      } catch (UnknownHostException e) {
+        // only thrown for illegal address lengths
+        throw new IllegalStateException(e);
+      }
+    }
+
+    /**
+     * @return arrival time (epoch millis) of the datagram returned by the last poll()
+     */
+    public long arrivalMillis() {
+      return arrivalMillis;
+    }
+
+    /**
+     * Mark everything polled so far as processed, making room for the writer.
+     */
+    public void commit() {
+      buffer.putLong(READ_POSITION_OFFSET, position);
+      readPosition.set(position);
+    }
+  }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.concurrent.EventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Spools every received DatagramPacket into a DatagramJournal instead of passing it on, and replays the journal
+ * to the next handler (usually the NetFlowV9Decoder) in batches of batchSize from a separate replay executor.
+ * Reading from the socket therefore only costs a sequential append, and datagrams that were spooled but not yet
+ * replayed when the process died are replayed once the handler is added again.
+ *
+ * Add the handlers after this one with the replay executor, so that they run on it and the replay goes at their
+ * pace: a slow or stalled handler holds up the replay (the journal absorbs the backlog, dropping datagrams once it
+ * is full) but not the socket reads on the event loop.
+ * <pre>
+ *   EventExecutor replay = new DefaultEventExecutor();
+ *   pipeline.addLast(new DatagramSpoolHandler(journal, replay));
+ *   pipeline.addLast(replay, new NetFlowV9Decoder(), handler);
+ * </pre>
+ * The replay also pauses while the channel is not writable, for handlers that write to it.
+ */
+public class DatagramSpoolHandler extends ChannelInboundHandlerAdapter {
+  private static final Logger log = LoggerFactory.getLogger(DatagramSpoolHandler.class);
+
+  final DatagramJournal journal;
+  final EventExecutor replayExecutor;
+  final int batchSize;
+  volatile ChannelHandlerContext ctx;
+  final AtomicBoolean drainScheduled = new AtomicBoolean();
+  final Runnable drain = this::drain;
+
+  public DatagramSpoolHandler(DatagramJournal journal, EventExecutor replayExecutor, int batchSize) {
+    if (batchSize <= 0) {
+      throw new IllegalArgumentException("batchSize must be positive");
+    }
+    this.journal = journal;
+    this.replayExecutor = replayExecutor;
+    this.batchSize = batchSize;
+  }
+
+  public DatagramSpoolHandler(DatagramJournal journal, EventExecutor replayExecutor) {
+    this(journal, replayExecutor, 64);
+  }
+
+  @Override
+  public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+    this.ctx = ctx;
+    if (journal.pendingBytes() > 0) {
+      log.info("Replaying {} byte(s) left in {}", journal.pendingBytes(), journal.file);
+      scheduleDrain();
+    }
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (!(msg instanceof DatagramPacket)) {
+      ctx.fireChannelRead(msg);
+      return;
+    }
+    DatagramPacket packet = (DatagramPacket) msg;
+    try {
+      if (!journal.append(packet.content(), packet.sender(), packet.recipient(), System.currentTimeMillis())) {
+        log.trace("Journal full, dropped datagram from {}", packet.sender());
+      }
+    } finally {
+      packet.release();
+    }
+    scheduleDrain();
+  }
+
+  void scheduleDrain() {
+    if (ctx.channel().isWritable() && drainScheduled.compareAndSet(false, true)) {
+      replayExecutor.execute(drain);
+    }
+  }
+
+  void drain() {
+    ChannelHandlerContext ctx = this.ctx;
+    if (ctx.isRemoved() || !ctx.channel().isWritable()) {
+      // resumed by channelWritabilityChanged or the next append
+      drainScheduled.set(false);
+      return;
+    }
+    DatagramJournal.Reader reader = journal.reader();
+    int count = 0;
+    DatagramPacket packet;
+    while (count < batchSize && (packet = reader.poll(ctx.alloc())) != null) {
+      ctx.fireChannelRead(packet);
+      count++;
+    }
+    if (count > 0) {
+      reader.commit();
+      ctx.fireChannelReadComplete();
+    }
+    if (count == batchSize) {
+      // more to do, but let other tasks of the replay executor run in between
+      replayExecutor.execute(drain);
+      return;
+    }
+    drainScheduled.set(false);
+    // an append between the last poll and the reset above did not schedule a drain
+    if (journal.pendingBytes() > 0) {
+      scheduleDrain();
+    }
+  }
+
+  @Override
+  public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+    if (ctx.channel().isWritable()) {
+      scheduleDrain();
+    }
+    ctx.fireChannelWritabilityChanged();
+  }
+
+  @Override
+  public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+    // the read completes when the spooled datagrams have been replayed
+  }
+
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+    journal.force();
+  }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.socket.DatagramPacket;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Re-sends every received DatagramPacket, unchanged, to a list of UDP destinations and then passes it on to the
+ * next handler (usually the NetFlowV9Decoder). The copies are retained duplicates of the received buffer, so
+ * the payload is neither copied nor touched by the tee; they are written without a flush and flushed once per
+ * read batch in channelReadComplete. A copy counts as sent once the output channel has written it.
+ *
+ * The copies go out through the output channel (by default the receiving channel itself, i.e. from the
+ * collector's port). A destination whose copy would have to be queued while the output channel is not writable
+ * loses it instead, so a slow consumer never holds on to the collector's memory.
+ */
+public class DatagramTeeHandler extends ChannelInboundHandlerAdapter {
+  /**
+   * A UDP destination and the exporters whose datagrams it receives.
+   */
+  public static final class Destination {
+    final InetSocketAddress address;
+    final Predicate<InetSocketAddress> exporters;
+    final LongAdder sent = new LongAdder();
+    final LongAdder failed = new LongAdder();
+    final LongAdder dropped = new LongAdder();
+    final ChannelFutureListener written = future -> {
+      if (future.isSuccess()) {
+        sent.increment();
+      } else {
+        failed.increment();
+      }
+    };
+
+    /**
+     * @param exporters tested with the sender of each datagram
+     */
+    public Destination(InetSocketAddress address, Predicate<InetSocketAddress> exporters) {
+      this.address = address;
+      this.exporters = exporters;
+    }
+
+    /**
+     * A destination that receives the datagrams of all exporters.
+     */
+    public Destination(InetSocketAddress address) {
+      this(address, sender -> true);
+    }
+
+    public InetSocketAddress address() {
+      return address;
+    }
+
+    /**
+     * @return datagrams the output channel wrote to the destination
+     */
+    public long sentCount() {
+      return sent.sum();
+    }
+
+    /**
+     * @return datagrams whose write to the destination failed
+     */
+    public long failedCount() {
+      return failed.sum();
+    }
+
+    /**
+     * @return datagrams not sent because the output channel was not writable
+     */
+    public long droppedCount() {
+      return dropped.sum();
+    }
+
+    @Override
+    public String toString() {
+      return "Destination(" + address + ")";
+    }
+  }
+
+  final Channel output;
+  final Destination[] destinations;
+  Channel channel;
+  boolean flushNeeded;
+
+  /**
+   * @param output the channel to send the copies through, null for the receiving channel
+   */
+  public DatagramTeeHandler(Channel output, List<Destination> destinations) {
+    this.output = output;
+    this.destinations = destinations.toArray(new Destination[0]);
+  }
+
+  public DatagramTeeHandler(List<Destination> destinations) {
+    this(null, destinations);
+  }
+
+  public List<Destination> destinations() {
+    List<Destination> result = new ArrayList<>(destinations.length);
+    Collections.addAll(result, destinations);
+    return Collections.unmodifiableList(result);
+  }
+
+  @Override
+  public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+    this.channel = output != null ? output : ctx.channel();
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (msg instanceof DatagramPacket) {
+      tee((DatagramPacket) msg);
+    }
+    ctx.fireChannelRead(msg);
+  }
+
+  void tee(DatagramPacket packet) {
+    ByteBuf content = packet.content();
+    InetSocketAddress sender = packet.sender();
+    for (Destination destination : destinations) {
+      if (!destination.exporters.test(sender)) {
+        continue;
+      }
+      if (!channel.isWritable()) {
+        destination.dropped.increment();
+        continue;
+      }
+      channel.write(new DatagramPacket(content.retainedDuplicate(), destination.address))
+          .addListener(destination.written);
+      flushNeeded = true;
+    }
+  }
+
+  @Override
+  public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+    if (flushNeeded) {
+      flushNeeded = false;
+      channel.flush();
+    }
+    ctx.fireChannelReadComplete();
+  }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+/**
+ * Outcome of decoding a single datagram. Malformed datagrams are counted and dropped instead of
+ * throwing, so junk traffic costs a few length comparisons rather than an exception with a stack trace.
+ */
+public enum DecodeResult {
+  /**
+   * Decoded, messages were emitted.
+   */
+  OK(false),
+  /**
+   * The datagram had no content.
+   */
+  EMPTY(false),
+  /**
+   * Dropped because the exporter is throttled or quarantined by its ExporterQuotas.
+   */
+  DROPPED_BY_QUOTA(false),
+  /**
+   * Shorter than the header of its version.
+   */
+  TRUNCATED_HEADER(true),
+  /**
+   * Not a NetFlow v5, v9 or IPFIX datagram.
+   */
+  UNSUPPORTED_VERSION(true),
+  /**
+   * A FlowSet header or body extends past the end of the datagram.
+   */
+  TRUNCATED_FLOWSET(true),
+  /**
+   * A FlowSet length smaller than the FlowSet header itself.
+   */
+  INVALID_FLOWSET_LENGTH(true),
+  /**
+   * A template whose field count does not match its FlowSet length.
+   */
+  MALFORMED_TEMPLATE(true),
+  /**
+   * A NetFlow v5 record count that is out of range or does not match the datagram length.
+   */
+  INVALID_RECORD_COUNT(true);
+
+  final boolean malformed;
+
+  DecodeResult(boolean malformed) {
+    this.malformed = malformed;
+  }
+
+  /**
+   * @return true if the datagram was rejected because of its content
+   */
+  public boolean malformed() {
+    return malformed;
+  }
+}
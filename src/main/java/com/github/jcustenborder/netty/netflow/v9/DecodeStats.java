@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Number of datagrams per DecodeResult.
+ */
+public class DecodeStats {
+  static final DecodeResult[] RESULTS = DecodeResult.values();
+
+  final LongAdder[] counters = new LongAdder[RESULTS.length];
+
+  public DecodeStats() {
+    for (int i = 0; i < counters.length; ++i) {
+      counters[i] = new LongAdder();
+    }
+  }
+
+  void record(DecodeResult result) {
+    counters[result.ordinal()].increment();
+  }
+
+  public long count(DecodeResult result) {
+    return counters[result.ordinal()].sum();
+  }
+
+  /**
+   * @return the number of datagrams rejected because of their content
+   */
+  public long malformed() {
+    long malformed = 0;
+    for (DecodeResult result : RESULTS) {
+      if (result.malformed) {
+        malformed += count(result);
+      }
+    }
+    return malformed;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder("DecodeStats(");
+    for (DecodeResult result : RESULTS) {
+      if (result.ordinal() > 0) {
+        builder.append(", ");
+      }
+      builder.append(result).append('=').append(count(result));
+    }
+    return builder.append(')').toString();
+  }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import java.net.InetAddress;
+import java.util.Objects;
+
+/**
+ * Scope of template IDs: the exporter's address plus the sourceID (v9) / observation domain ID (IPFIX).
+ * The source port is left out on purpose since exporters may change it, e.g. when they restart.
+ */
+public final class ExporterKey {
+  final InetAddress address;
+  final int sourceID;
+
+  public ExporterKey(InetAddress address, int sourceID) {
+    this.address = address;
+    this.sourceID = sourceID;
+  }
+
+  static ExporterKey of(NetFlow.Header header) {
+    return new ExporterKey(header.sender != null ? header.sender.getAddress() : null, header.sourceID);
+  }
+
+  public InetAddress address() {
+    return address;
+  }
+
+  public int sourceID() {
+    return sourceID;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof ExporterKey)) {
+      return false;
+    }
+    ExporterKey that = (ExporterKey) o;
+    return sourceID == that.sourceID && Objects.equals(address, that.address);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * Objects.hashCode(address) + sourceID;
+  }
+
+  @Override
+  public String toString() {
+    return (address != null ? address.getHostAddress() : "?") + "/" + sourceID;
+  }
+}
@@ -0,0 +1,424 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-exporter (per sender address, covering all of its sourceIDs) limits enforced by the NetFlowV9Decoder:
+ * a token bucket on packets per second, a maximum number of templates and a maximum of template plus pending
+ * FlowSet bytes. Packets over the rate are throttled (dropped). Rejected templates, rejected state and
+ * undecodable packets count as violations; an exporter collecting maxViolations within violationWindow is
+ * quarantined - all its packets are dropped and its state is released - for quarantineDuration.
+ *
+ * Stats are only kept for exporters that have sent a valid packet, and for at most maxExporters of them; when the
+ * table is full, exporters idle for IDLE_TIMEOUT without any templates make room. Everything else - spoofed or
+ * garbage sources, and new exporters while the table is full - shares the single unverified() bucket, so the
+ * state held here stays bounded whatever the sources of the traffic.
+ */
+public class ExporterQuotas {
+  private static final Logger log = LoggerFactory.getLogger(ExporterQuotas.class);
+
+  /**
+   * Counters and quota state of a single exporter.
+   */
+  public static final class Stats {
+    long packets;
+    long throttledPackets;
+    long quarantinedPackets;
+    long rejectedTemplates;
+    long rejectedStateBytes;
+    long decodeErrors;
+    long quarantines;
+
+    // bytes of every template accounted for, by sourceID and template ID (see templateKey)
+    final Map<Long, Long> templates = new HashMap<>();
+    long templateBytes;
+
+    double tokens;
+    long lastRefill;
+    int violations;
+    long windowStart;
+    long quarantinedUntil;
+
+    public synchronized long packets() {
+      return packets;
+    }
+
+    public synchronized long throttledPackets() {
+      return throttledPackets;
+    }
+
+    public synchronized long quarantinedPackets() {
+      return quarantinedPackets;
+    }
+
+    public synchronized long rejectedTemplates() {
+      return rejectedTemplates;
+    }
+
+    public synchronized long rejectedStateBytes() {
+      return rejectedStateBytes;
+    }
+
+    public synchronized long decodeErrors() {
+      return decodeErrors;
+    }
+
+    /**
+     * @return how often the exporter has been quarantined
+     */
+    public synchronized long quarantines() {
+      return quarantines;
+    }
+
+    public synchronized int templateCount() {
+      return templates.size();
+    }
+
+    public synchronized long templateBytes() {
+      return templateBytes;
+    }
+  }
+
+  final int maxTemplates;
+  final long maxStateBytes;
+  final double packetsPerSecond;
+  final double burst;
+  final int maxViolations;
+  final long violationWindowNanos;
+  final long quarantineNanos;
+  final int maxExporters;
+  final ConcurrentMap<InetAddress, Stats> exporters = new ConcurrentHashMap<>();
+  final Stats unverified;
+  // System.nanoTime() of the last sweep for idle exporters, guarded by exporters
+  long lastSweep;
+
+  static final long IDLE_TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(10);
+  static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  /**
+   * @param maxExporters exporters to keep stats for, the others share the unverified() bucket
+   */
+  public ExporterQuotas(int maxTemplates, long maxStateBytes, double packetsPerSecond, int burst,
+                        int maxViolations, long violationWindow, long quarantineDuration, TimeUnit unit,
+                        int maxExporters) {
+    this.maxTemplates = maxTemplates;
+    this.maxStateBytes = maxStateBytes;
+    this.packetsPerSecond = packetsPerSecond;
+    this.burst = burst;
+    this.maxViolations = maxViolations;
+    this.violationWindowNanos = unit.toNanos(violationWindow);
+    this.quarantineNanos = unit.toNanos(quarantineDuration);
+    this.maxExporters = maxExporters;
+    long now = System.nanoTime();
+    this.unverified = newStats(now);
+    this.lastSweep = now - SWEEP_INTERVAL_NANOS;
+  }
+
+  public ExporterQuotas(int maxTemplates, long maxStateBytes, double packetsPerSecond, int burst,
+                        int maxViolations, long violationWindow, long quarantineDuration, TimeUnit unit) {
+    this(maxTemplates, maxStateBytes, packetsPerSecond, burst, maxViolations, violationWindow, quarantineDuration,
+        unit, 65536);
+  }
+
+  /**
+   * 256 templates, 4 MiB of state, 10000 packets/s (bursts of 20000), quarantine for 5 minutes after
+   * 100 violations within 10 seconds, stats for up to 65536 exporters.
+   */
+  public ExporterQuotas() {
+    this(256, 4 << 20, 10000, 20000, 100, 10, 300, TimeUnit.SECONDS);
+  }
+
+  /**
+   * @return the time passed to the quotas by the decoders; tests override it to control the token buckets
+   */
+  long nanoTime() {
+    return System.nanoTime();
+  }
+
+  Stats newStats(long now) {
+    Stats stats = new Stats();
+    stats.tokens = burst;
+    stats.lastRefill = now;
+    stats.windowStart = now;
+    return stats;
+  }
+
+  /**
+   * Start tracking an exporter that has sent a valid packet. Its first packet has already been counted against the
+   * unverified bucket and is carried over.
+   *
+   * @return the exporter's stats, null if the table is full
+   */
+  Stats register(InetAddress address, long now) {
+    Stats stats = exporters.get(address);
+    if (stats != null) {
+      return stats;
+    }
+    synchronized (exporters) {
+      if (exporters.size() >= maxExporters && !sweep(now)) {
+        return null;
+      }
+      return exporters.computeIfAbsent(address, a -> {
+        Stats created = newStats(now);
+        created.packets = 1;
+        created.tokens = burst - 1;
+        return created;
+      });
+    }
+  }
+
+  /**
+   * Drop exporters idle for IDLE_TIMEOUT that neither hold templates nor are quarantined, at most once per
+   * SWEEP_INTERVAL.
+   *
+   * @return true if there is room for another exporter
+   */
+  private boolean sweep(long now) {
+    if (now - lastSweep < SWEEP_INTERVAL_NANOS) {
+      return false;
+    }
+    lastSweep = now;
+    exporters.values().removeIf(stats -> {
+      synchronized (stats) {
+        return now - stats.lastRefill > IDLE_TIMEOUT_NANOS && stats.templates.isEmpty()
+            && stats.quarantinedUntil == 0;
+      }
+    });
+    return exporters.size() < maxExporters;
+  }
+
+  /**
+   * Count the packet against the exporter's rate, or against the shared unverified bucket for an exporter
+   * without stats.
+   *
+   * @return false if the packet has to be dropped (rate exceeded or exporter quarantined)
+   */
+  boolean admitPacket(InetAddress address, long now) {
+    Stats tracked = exporters.get(address);
+    Stats stats = tracked != null ? tracked : unverified;
+    synchronized (stats) {
+      stats.packets++;
+      if (stats.quarantinedUntil != 0) {
+        if (now - stats.quarantinedUntil < 0) {
+          stats.quarantinedPackets++;
+          return false;
+        }
+        log.info("Lifting quarantine of exporter {}", address);
+        stats.quarantinedUntil = 0;
+      }
+      stats.tokens = Math.min(burst, stats.tokens + (now - stats.lastRefill) * packetsPerSecond / 1e9);
+      stats.lastRefill = now;
+      if (stats.tokens < 1) {
+        stats.throttledPackets++;
+        return false;
+      }
+      stats.tokens -= 1;
+      return true;
+    }
+  }
+
+  /**
+   * Take a token for a packet of a stream transport, which is paced rather than throttled: unlike admitPacket
+   * nothing is counted as throttled when the bucket is empty, the caller stops reading instead.
+   *
+   * @return 0 if the packet may be decoded now, the nanoseconds until the bucket holds a token again, or -1 if
+   *     the exporter is quarantined
+   */
+  long pace(InetAddress address, long now) {
+    Stats tracked = exporters.get(address);
+    Stats stats = tracked != null ? tracked : unverified;
+    synchronized (stats) {
+      if (stats.quarantinedUntil != 0) {
+        if (now - stats.quarantinedUntil < 0) {
+          stats.quarantinedPackets++;
+          return -1;
+        }
+        log.info("Lifting quarantine of exporter {}", address);
+        stats.quarantinedUntil = 0;
+      }
+      stats.tokens = Math.min(burst, stats.tokens + (now - stats.lastRefill) * packetsPerSecond / 1e9);
+      stats.lastRefill = now;
+      if (stats.tokens < 1) {
+        return Math.max(1, (long) Math.ceil((1 - stats.tokens) * 1e9 / packetsPerSecond));
+      }
+      stats.tokens -= 1;
+      stats.packets++;
+      return 0;
+    }
+  }
+
+  static long templateKey(int sourceID, short templateID) {
+    return (long) sourceID << 16 | templateID & 0xFFFF;
+  }
+
+  /**
+   * Account for a template, replacing the one with the same ID that was accounted for before. The quotas keep
+   * their own record of the templates rather than trusting the template cache, which may hold templates that
+   * were never admitted (restored from a TemplateSnapshots file, for one).
+   *
+   * @return false if the template would exceed the exporter's template or state quota
+   */
+  boolean admitTemplate(InetAddress address, int sourceID, NetFlow.TemplateFlowSet template, long pendingBytes,
+                        long now) {
+    Stats stats = register(address, now);
+    if (stats == null) {
+      synchronized (unverified) {
+        unverified.rejectedTemplates++;
+      }
+      return false;
+    }
+    synchronized (stats) {
+      Long key = templateKey(sourceID, template.templateID());
+      Long previous = stats.templates.get(key);
+      long bytes = templateBytes(template);
+      long delta = bytes - (previous != null ? previous : 0);
+      if (previous == null && stats.templates.size() >= maxTemplates
+          || stats.templateBytes + pendingBytes + delta > maxStateBytes) {
+        stats.rejectedTemplates++;
+        violation(address, stats, now);
+        return false;
+      }
+      stats.templates.put(key, bytes);
+      stats.templateBytes += delta;
+      return true;
+    }
+  }
+
+  /**
+   * Account for a template the exporter withdrew; nothing happens for a template that was never admitted.
+   */
+  void releaseTemplate(InetAddress address, int sourceID, short templateID) {
+    Stats stats = exporters.get(address);
+    if (stats == null) {
+      return;
+    }
+    synchronized (stats) {
+      Long bytes = stats.templates.remove(templateKey(sourceID, templateID));
+      if (bytes != null) {
+        stats.templateBytes -= bytes;
+      }
+    }
+  }
+
+  /**
+   * @param pendingBytes bytes the exporter would hold in the pending buffer including the new FlowSet
+   * @return false if buffering the FlowSet would exceed the exporter's state quota
+   */
+  boolean admitPending(InetAddress address, long pendingBytes, int length, long now) {
+    Stats stats = register(address, now);
+    if (stats == null) {
+      synchronized (unverified) {
+        unverified.rejectedStateBytes += length;
+      }
+      return false;
+    }
+    synchronized (stats) {
+      if (stats.templateBytes + pendingBytes > maxStateBytes) {
+        stats.rejectedStateBytes += length;
+        violation(address, stats, now);
+        return false;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * A packet from the exporter decoded fine: keep stats for it from now on.
+   */
+  void verified(InetAddress address, long now) {
+    register(address, now);
+  }
+
+  /**
+   * Count a malformed packet. Only exporters with stats collect violations: there is no state to release for the
+   * others, and quarantining the shared bucket would shut out every new exporter.
+   */
+  void decodeError(InetAddress address, long now) {
+    Stats stats = exporters.get(address);
+    if (stats == null) {
+      synchronized (unverified) {
+        unverified.decodeErrors++;
+      }
+      return;
+    }
+    synchronized (stats) {
+      stats.decodeErrors++;
+      violation(address, stats, now);
+    }
+  }
+
+  private void violation(InetAddress address, Stats stats, long now) {
+    if (now - stats.windowStart > violationWindowNanos) {
+      stats.windowStart = now;
+      stats.violations = 0;
+    }
+    if (++stats.violations >= maxViolations && stats.quarantinedUntil == 0) {
+      log.warn("Quarantining exporter {} after {} violations", address, stats.violations);
+      stats.quarantinedUntil = now + quarantineNanos;
+      stats.quarantines++;
+      stats.violations = 0;
+      // the decoder drops the exporter's templates along with the quarantine
+      stats.templates.clear();
+      stats.templateBytes = 0;
+    }
+  }
+
+  boolean isQuarantined(InetAddress address) {
+    Stats stats = exporters.get(address);
+    if (stats == null) {
+      return false;
+    }
+    synchronized (stats) {
+      return stats.quarantinedUntil != 0;
+    }
+  }
+
+  /**
+   * Approximate memory held by a template: its wire size (template ID, field count, type and length per field).
+   */
+  static long templateBytes(NetFlow.TemplateFlowSet template) {
+    return 4 + 4L * template.fields().size();
+  }
+
+  /**
+   * @return the stats of the exporter, null if none are kept for it (see unverified())
+   */
+  public Stats stats(InetAddress address) {
+    return exporters.get(address);
+  }
+
+  /**
+   * @return the shared stats of all packets from exporters without stats of their own
+   */
+  public Stats unverified() {
+    return unverified;
+  }
+
+  public Map<InetAddress, Stats> exporters() {
+    return Collections.unmodifiableMap(exporters);
+  }
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+/**
+ * Big endian reads of record fields. This is the Java 8 implementation; the jar is multi-release and has
+ * replacements of this class for Java 11 (VarHandle views) and Java 21 (Vector API column reads) under
+ * src/main/java11 and src/main/java21, which must keep the same methods.
+ */
+final class FieldReader {
+  static final String IMPLEMENTATION = "scalar";
+
+  private FieldReader() {
+  }
+
+  /**
+   * @param length 1 to 8 bytes
+   * @return the unsigned value of the field at offset
+   */
+  static long getUnsigned(byte[] data, int offset, int length) {
+    long value = 0;
+    for (int i = offset; i < offset + length; i++) {
+      value = value << 8 | data[i] & 0xFF;
+    }
+    return value;
+  }
+
+  /**
+   * Read the field at offset of count consecutive records of stride bytes into values.
+   *
+   * @param length 1 to 8 bytes
+   */
+  static void getUnsigned(byte[] data, int offset, int length, int stride, int count, long[] values) {
+    for (int record = 0; record < count; record++) {
+      values[record] = getUnsigned(data, offset + record * stride, length);
+    }
+  }
+}
@@ -0,0 +1,407 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A single column of a FlowSegment: a memory-mapped file holding one varint encoded entry per row.
+ * DELTA columns store zigzag(value - previous value), DICTIONARY columns store an id into a per-column
+ * dictionary kept in a side file. In both encodings a single 0 byte marks a row that lacks the field.
+ */
+final class FlowColumn {
+  enum Kind {
+    DELTA,
+    DICTIONARY
+  }
+
+  // worst case: a 65 bit varint (zigzag delta + 1)
+  static final int MAX_ENTRY_BYTES = 10;
+
+  final String name;
+  final Kind kind;
+  final Path file;
+  final Path dictionaryFile;
+  final Path indexFile;
+  final MappedByteBuffer buffer;
+  // bytes written so far (writer) or bytes valid (sealed reader)
+  int length;
+  long previous;
+
+  // dictionary state; values[] is only ever replaced (never mutated below valueCount) so readers can snapshot it
+  byte[][] values = new byte[16][];
+  int valueCount;
+  int persistedValues;
+  Map<ByteKey, Integer> ids;
+  final ByteKey probe;
+  // value (DELTA) or dictionary id (DICTIONARY) of the last appended entry
+  long last;
+
+  // (offset, previous) pairs, one per block
+  long[] checkpoints = new long[16];
+  int checkpointCount;
+
+  // null unless the column is indexed
+  Map<Long, RowBitmap> index;
+
+  private FlowColumn(Path directory, String name, Kind kind, MappedByteBuffer buffer, int length, boolean writable) {
+    this.name = name;
+    this.kind = kind;
+    this.file = directory.resolve(name + ".col");
+    this.dictionaryFile = directory.resolve(name + ".dict");
+    this.indexFile = directory.resolve(name + ".idx");
+    this.buffer = buffer;
+    this.length = length;
+    this.ids = writable && kind == Kind.DICTIONARY ? new HashMap<>() : null;
+    this.probe = writable && kind == Kind.DICTIONARY ? new ByteKey() : null;
+  }
+
+  /**
+   * Create a new, writable column backed by a (sparse) file of the given capacity.
+   * Rows already present in the segment read back as absent since the mapping is zero filled.
+   */
+  static FlowColumn create(Path directory, String name, Kind kind, int capacity, int existingRows, boolean indexed) throws IOException {
+    Path file = directory.resolve(name + ".col");
+    FlowColumn column;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+      column = new FlowColumn(directory, name, kind, buffer, existingRows, true);
+    }
+    // one (absent) byte per existing row
+    for (int row = 0; row < existingRows; row += FlowSegment.BLOCK_ROWS) {
+      column.addCheckpoint(row, 0);
+    }
+    if (indexed) {
+      column.index = new HashMap<>();
+    }
+    return column;
+  }
+
+  /**
+   * Open a column of a sealed segment for reading.
+   */
+  static FlowColumn open(Path directory, String name, Kind kind, int length, int dictionarySize, long[] checkpoints) throws IOException {
+    Path file = directory.resolve(name + ".col");
+    MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+    }
+    FlowColumn column = new FlowColumn(directory, name, kind, buffer, length, false);
+    column.checkpoints = checkpoints;
+    column.checkpointCount = checkpoints.length / 2;
+    if (kind == Kind.DICTIONARY) {
+      column.loadDictionary(dictionarySize);
+    }
+    if (Files.isRegularFile(column.indexFile)) {
+      column.loadIndex();
+    }
+    return column;
+  }
+
+  boolean hasRoom() {
+    return buffer.capacity() - length >= MAX_ENTRY_BYTES;
+  }
+
+  void appendAbsent() {
+    buffer.put(length++, (byte) 0);
+  }
+
+  void checkpoint() {
+    addCheckpoint(length, previous);
+  }
+
+  private void addCheckpoint(long offset, long previous) {
+    if (2 * checkpointCount == checkpoints.length) {
+      checkpoints = Arrays.copyOf(checkpoints, checkpoints.length * 2);
+    }
+    checkpoints[2 * checkpointCount] = offset;
+    checkpoints[2 * checkpointCount + 1] = previous;
+    checkpointCount++;
+  }
+
+  /**
+   * Record the row id under the value appended last.
+   */
+  void indexLast(int row) {
+    RowBitmap bitmap = index.get(last);
+    if (bitmap == null) {
+      bitmap = new RowBitmap();
+      index.put(last, bitmap);
+    }
+    bitmap.add(row);
+  }
+
+  /**
+   * @return the dictionary id of value or -1 when the column never saw it
+   */
+  long idOf(byte[] value) {
+    if (ids == null) {
+      ids = new HashMap<>();
+      for (int i = 0; i < valueCount; ++i) {
+        ids.put(new ByteKey().set(values[i], 0, values[i].length), i);
+      }
+    }
+    Integer id = ids.get(new ByteKey().set(value, 0, value.length));
+    return id == null ? -1 : id;
+  }
+
+  void appendLong(long value) {
+    long delta = value - previous;
+    previous = value;
+    last = value;
+    long zigzag = (delta << 1) ^ (delta >> 63);
+    if (zigzag == -1L) {
+      // zigzag + 1 == 2^64, spill the carry into the 10th byte
+      for (int i = 0; i < 9; ++i) {
+        buffer.put(length++, (byte) 0x80);
+      }
+      buffer.put(length++, (byte) 0x02);
+    } else {
+      length = putVarint(buffer, length, zigzag + 1);
+    }
+  }
+
+  void appendBytes(byte[] data, int off, int len) {
+    probe.set(data, off, len);
+    Integer id = ids.get(probe);
+    if (id == null) {
+      byte[] value = Arrays.copyOfRange(data, off, off + len);
+      id = valueCount;
+      if (valueCount == values.length) {
+        values = Arrays.copyOf(values, valueCount * 2);
+      }
+      values[valueCount++] = value;
+      ids.put(new ByteKey().set(value, 0, len), id);
+    }
+    last = id;
+    length = putVarint(buffer, length, id + 1);
+  }
+
+  /**
+   * Make the written bytes durable and append any new dictionary values to the side file.
+   */
+  void persist() throws IOException {
+    buffer.force();
+    if (kind == Kind.DICTIONARY && persistedValues < valueCount) {
+      try (OutputStream output = Files.newOutputStream(dictionaryFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+           DataOutputStream data = new DataOutputStream(new BufferedOutputStream(output))) {
+        for (int i = persistedValues; i < valueCount; ++i) {
+          data.writeShort(values[i].length);
+          data.write(values[i]);
+        }
+      }
+      persistedValues = valueCount;
+    }
+    if (index != null) {
+      Path tmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+      try (OutputStream output = Files.newOutputStream(tmp);
+           DataOutputStream data = new DataOutputStream(new BufferedOutputStream(output))) {
+        data.writeInt(index.size());
+        for (Map.Entry<Long, RowBitmap> entry : index.entrySet()) {
+          data.writeLong(entry.getKey());
+          entry.getValue().write(data);
+        }
+      }
+      Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+  }
+
+  private void loadIndex() throws IOException {
+    index = new HashMap<>();
+    try (InputStream input = Files.newInputStream(indexFile);
+         DataInputStream data = new DataInputStream(new BufferedInputStream(input))) {
+      int size = data.readInt();
+      for (int i = 0; i < size; ++i) {
+        long key = data.readLong();
+        index.put(key, RowBitmap.read(data));
+      }
+    }
+  }
+
+  private void loadDictionary(int size) throws IOException {
+    values = new byte[Math.max(size, 1)][];
+    try (InputStream input = Files.newInputStream(dictionaryFile);
+         DataInputStream data = new DataInputStream(new BufferedInputStream(input))) {
+      for (int i = 0; i < size; ++i) {
+        byte[] value = new byte[data.readUnsignedShort()];
+        data.readFully(value);
+        values[i] = value;
+      }
+    }
+    valueCount = persistedValues = size;
+  }
+
+  /**
+   * @return a reader over the first 'length' bytes; must be called while the writer is quiescent
+   */
+  Reader reader() {
+    return new Reader(buffer, length, values, valueCount, checkpoints);
+  }
+
+  static int putVarint(ByteBuffer buffer, int index, long value) {
+    while ((value & ~0x7FL) != 0) {
+      buffer.put(index++, (byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buffer.put(index++, (byte) value);
+    return index;
+  }
+
+  /**
+   * Sequential decoder over a snapshot of a column.
+   */
+  static final class Reader {
+    final ByteBuffer buffer;
+    final int limit;
+    final byte[][] values;
+    final int valueCount;
+    final long[] checkpoints;
+    int position;
+    long previous;
+
+    boolean present;
+    long value;
+
+    Reader(ByteBuffer buffer, int limit, byte[][] values, int valueCount, long[] checkpoints) {
+      this.buffer = buffer.duplicate();
+      this.limit = limit;
+      this.values = values;
+      this.valueCount = valueCount;
+      this.checkpoints = checkpoints;
+    }
+
+    /**
+     * Position the reader at the first row of the given block.
+     */
+    void seek(int block) {
+      position = (int) checkpoints[2 * block];
+      previous = checkpoints[2 * block + 1];
+    }
+
+    /**
+     * Decode the next DELTA entry into present/value.
+     */
+    void nextLong() {
+      long raw = 0;
+      boolean carry = false;
+      int shift = 0;
+      byte b;
+      do {
+        b = buffer.get(position++);
+        if (shift == 63) {
+          carry = (b & 0x02) != 0;
+        }
+        raw |= (long) (b & 0x7F) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+
+      present = raw != 0 || carry;
+      if (present) {
+        long zigzag = raw - 1;
+        previous += (zigzag >>> 1) ^ -(zigzag & 1);
+        value = previous;
+      }
+    }
+
+    /**
+     * Decode the next DICTIONARY entry; value holds the dictionary id.
+     */
+    void nextId() {
+      long raw = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = buffer.get(position++);
+        raw |= (long) (b & 0x7F) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      present = raw != 0;
+      value = raw - 1;
+    }
+
+    void next(Kind kind) {
+      if (kind == Kind.DELTA) {
+        nextLong();
+      } else {
+        nextId();
+      }
+    }
+
+    byte[] bytes() {
+      return present ? values[(int) value] : null;
+    }
+  }
+
+  /**
+   * HashMap key over a byte range; the probe instance is re-pointed for lookups to avoid copying.
+   */
+  static final class ByteKey {
+    byte[] data;
+    int off;
+    int len;
+    int hash;
+
+    ByteKey set(byte[] data, int off, int len) {
+      this.data = data;
+      this.off = off;
+      this.len = len;
+      int h = 1;
+      for (int i = off; i < off + len; ++i) {
+        h = 31 * h + data[i];
+      }
+      this.hash = h;
+      return this;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof ByteKey)) {
+        return false;
+      }
+      ByteKey that = (ByteKey) obj;
+      if (this.len != that.len || this.hash != that.hash) {
+        return false;
+      }
+      for (int i = 0; i < len; ++i) {
+        if (this.data[this.off + i] != that.data[that.off + i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
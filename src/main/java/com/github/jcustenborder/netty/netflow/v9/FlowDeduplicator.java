@@ -0,0 +1,337 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
+
+/**
+ * Removes (SUPPRESS) or marks (TAG) data records of a flow that another exporter already reported, e.g. when the
+ * edge, core and firewall routers all export the same traffic. Place it after the NetFlowV9Decoder.
+ *
+ * A record is keyed by its 5-tuple (source and destination address and port, protocol) plus the bucket of
+ * bucketMillis its flow started in, taken from flowStartMilliseconds/flowStartSeconds (IPFIX) or FIRST_SWITCHED
+ * (v9), and falls back to the export time. The neighbouring bucket nearer to the start is looked up as well, so
+ * starts reported up to half a bucket apart still match. Keys are remembered in a FlowFingerprintFilter of fixed
+ * size for one to two generations.
+ *
+ * The first exporter to report a flow wins, unless an exporter of higher priority (0-255) reports it later; that
+ * copy is passed on as well and from then on the flow belongs to it. Records of templates without both addresses
+ * are always passed on. Repeated reports of the same exporter (active timeouts) are not duplicates. Exporters are
+ * told apart by a 16 bit id from a table of the exporters seen; should more than 65535 exporters show up, the table
+ * starts over and reuses ids.
+ */
+@ChannelHandler.Sharable
+public class FlowDeduplicator extends ChannelInboundHandlerAdapter implements NetFlow {
+
+  public enum Mode {
+    /**
+     * Drop duplicate records; messages left without any FlowSet are dropped altogether.
+     */
+    SUPPRESS,
+    /**
+     * Pass every message on as a TaggedMessage that tells which records are duplicates.
+     */
+    TAG
+  }
+
+  /**
+   * A message along with which of its data records are duplicates.
+   */
+  public static final class TaggedMessage extends ForwardingMessage {
+    // indexed by FlowSet, then record; null for FlowSets without duplicates
+    final boolean[][] duplicates;
+
+    TaggedMessage(Message message, boolean[][] duplicates) {
+      super(message);
+      this.duplicates = duplicates;
+    }
+
+    /**
+     * @param flowSet index into flowsets()
+     * @param record  index of the record within the data FlowSet
+     */
+    public boolean duplicate(int flowSet, int record) {
+      boolean[] records = duplicates[flowSet];
+      return records != null && record < records.length && records[record];
+    }
+  }
+
+  static final int PROTOCOL = CiscoFieldScheme.Field.PROTOCOL.typeId;
+  static final int L4_SRC_PORT = CiscoFieldScheme.Field.L4_SRC_PORT.typeId;
+  static final int L4_DST_PORT = CiscoFieldScheme.Field.L4_DST_PORT.typeId;
+  static final int FIRST_SWITCHED = CiscoFieldScheme.Field.FIRST_SWITCHED.typeId;
+  static final int FLOW_START_SECONDS = 150;
+  static final int FLOW_START_MILLISECONDS = 152;
+  static final int[] PORTS_AND_PROTOCOL = {L4_SRC_PORT, L4_DST_PORT, PROTOCOL};
+
+  final Mode mode;
+  final ToIntFunction<InetAddress> priorities;
+  final long bucketMillis;
+  final NetFlow.Factory netflowFactory;
+  final FlowFingerprintFilter filter;
+  // guarded by filter
+  final Map<ExporterKey, Integer> exporterIds = new HashMap<>();
+
+  final LongAdder records = new LongAdder();
+  final LongAdder duplicates = new LongAdder();
+
+  /**
+   * @param priorities priority (0-255) of an exporter address
+   * @param capacity   records remembered per generation, each takes 16 bytes
+   * @param bucket     timing bucket of flow starts
+   * @param generation how long a record is remembered at least
+   * @param factory    has to match the factory of the decoder
+   */
+  public FlowDeduplicator(Mode mode, ToIntFunction<InetAddress> priorities, int capacity, long bucket,
+                          long generation, TimeUnit unit, NetFlow.Factory factory) {
+    if (unit.toMillis(bucket) <= 0) {
+      throw new IllegalArgumentException("bucket must be at least a millisecond");
+    }
+    this.mode = mode;
+    this.priorities = priorities;
+    this.bucketMillis = unit.toMillis(bucket);
+    this.netflowFactory = factory;
+    this.filter = new FlowFingerprintFilter(capacity, unit.toMillis(generation), System.currentTimeMillis());
+  }
+
+  /**
+   * 1M records per generation (16 MiB), 10 second timing buckets, remembered for at least a minute.
+   */
+  public FlowDeduplicator(Mode mode, ToIntFunction<InetAddress> priorities) {
+    this(mode, priorities, 1 << 20, 10, 60, TimeUnit.SECONDS, new NetFlowFactoryImpl());
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (msg instanceof Message) {
+      msg = deduplicate((Message) msg, System.currentTimeMillis());
+      if (msg == null) {
+        return;
+      }
+    }
+    ctx.fireChannelRead(msg);
+  }
+
+  /**
+   * @return the message to pass on, null if nothing is left of it
+   */
+  Message deduplicate(Message message, long now) {
+    List<FlowSet> flowSets = message.flowsets();
+    InetAddress address = message.sender() != null ? message.sender().getAddress() : null;
+    int priority = Math.max(0, Math.min(255, priorities.applyAsInt(address)));
+    ExporterKey exporterKey = new ExporterKey(address, message.sourceID());
+    boolean[][] tags = null;
+    int total = 0;
+    int found = 0;
+    synchronized (filter) {
+      int exporter = exporterId(exporterKey);
+      for (int i = 0; i < flowSets.size(); i++) {
+        if (!(flowSets.get(i) instanceof DataFlowSet)) {
+          continue;
+        }
+        DataFlowSet dataFlowSet = (DataFlowSet) flowSets.get(i);
+        if (dataFlowSet.template() == null) {
+          continue;
+        }
+        RecordLayout layout = RecordLayout.of(dataFlowSet.template());
+        int source = PrefixEnrichmentHandler.addressField(layout,
+            PrefixEnrichmentHandler.IPV4_SRC_ADDR, PrefixEnrichmentHandler.IPV6_SRC_ADDR);
+        int destination = PrefixEnrichmentHandler.addressField(layout,
+            PrefixEnrichmentHandler.IPV4_DST_ADDR, PrefixEnrichmentHandler.IPV6_DST_ADDR);
+        if (source < 0 || destination < 0) {
+          continue;
+        }
+        byte[] data = dataFlowSet.data();
+        int records = layout.recordCount(dataFlowSet);
+        total += records;
+        for (int record = 0; record < records; record++) {
+          long key = key(layout, data, record, source, destination);
+          long start = start(layout, data, record, message);
+          long bucket = Math.floorDiv(start, bucketMillis);
+          long neighbour = Math.floorMod(start, bucketMillis) < bucketMillis / 2 ? bucket - 1 : bucket + 1;
+          if (filter.duplicate(mix(key, bucket), mix(key, neighbour), exporter, priority, now)) {
+            if (tags == null) {
+              tags = new boolean[flowSets.size()][];
+            }
+            if (tags[i] == null) {
+              tags[i] = new boolean[records];
+            }
+            tags[i][record] = true;
+            found++;
+          }
+        }
+      }
+    }
+    this.records.add(total);
+    this.duplicates.add(found);
+    if (mode == Mode.TAG) {
+      return new TaggedMessage(message, tags != null ? tags : new boolean[flowSets.size()][]);
+    }
+    return tags == null ? message : suppress(message, tags);
+  }
+
+  /**
+   * @return the 16 bit id of the exporter, 0 is never handed out
+   */
+  int exporterId(ExporterKey exporter) {
+    Integer id = exporterIds.get(exporter);
+    if (id == null) {
+      if (exporterIds.size() == 0xFFFF) {
+        exporterIds.clear();
+      }
+      id = exporterIds.size() + 1;
+      exporterIds.put(exporter, id);
+    }
+    return id;
+  }
+
+  Message suppress(Message message, boolean[][] tags) {
+    List<FlowSet> flowSets = netflowFactory.flowSets();
+    List<FlowSet> original = message.flowsets();
+    for (int i = 0; i < original.size(); i++) {
+      FlowSet flowSet = original.get(i);
+      if (tags[i] == null) {
+        flowSets.add(detach(netflowFactory, flowSet));
+        continue;
+      }
+      DataFlowSet dataFlowSet = (DataFlowSet) flowSet;
+      int recordLength = RecordLayout.of(dataFlowSet.template()).recordLength();
+      int kept = 0;
+      for (boolean duplicate : tags[i]) {
+        kept += duplicate ? 0 : 1;
+      }
+      if (kept == 0) {
+        continue;
+      }
+      byte[] data = new byte[kept * recordLength];
+      int offset = 0;
+      for (int record = 0; record < tags[i].length; record++) {
+        if (!tags[i][record]) {
+          System.arraycopy(dataFlowSet.data(), record * recordLength, data, offset, recordLength);
+          offset += recordLength;
+        }
+      }
+      flowSets.add(netflowFactory.dataFlowSet(dataFlowSet.flowsetID(), data, dataFlowSet.template()));
+    }
+    if (flowSets.isEmpty()) {
+      message.release();
+      return null;
+    }
+    Header header = netflowFactory.header(message.version(), message.count(), message.uptime(), message.timestamp(),
+        message.flowSequence(), message.sourceID(), message.sender(), message.recipient());
+    Message suppressed = netflowFactory.netflowMessage(header, flowSets);
+    message.release();
+    return suppressed;
+  }
+
+  /**
+   * A data FlowSet that outlives the release of its message: releasing a message of a RecyclingNetFlowFactory
+   * recycles its data FlowSets, so the kept ones are rebuilt (sharing the data) through the factory.
+   */
+  static FlowSet detach(NetFlow.Factory netflowFactory, FlowSet flowSet) {
+    if (!(flowSet instanceof DataFlowSet)) {
+      return flowSet;
+    }
+    DataFlowSet dataFlowSet = (DataFlowSet) flowSet;
+    return netflowFactory.dataFlowSet(dataFlowSet.flowsetID(), dataFlowSet.data(), dataFlowSet.template());
+  }
+
+  /**
+   * FNV-1a over the 5-tuple bytes of the record.
+   */
+  static long key(RecordLayout layout, byte[] data, int record, int source, int destination) {
+    long h = 0xcbf29ce484222325L;
+    h = hash(h, data, layout.position(record, source), layout.length(source));
+    h = hash(h, data, layout.position(record, destination), layout.length(destination));
+    for (int type : PORTS_AND_PROTOCOL) {
+      if (layout.has(type)) {
+        h = hash(h, data, layout.position(record, type), layout.length(type));
+      }
+    }
+    return h;
+  }
+
+  static long hash(long h, byte[] data, int offset, int length) {
+    for (int i = offset; i < offset + length; i++) {
+      h = (h ^ (data[i] & 0xff)) * 0x100000001b3L;
+    }
+    return h;
+  }
+
+  /**
+   * Combine the key with the timing bucket, finished with the MurmurHash3 64 bit mix.
+   */
+  static long mix(long key, long bucket) {
+    long h = key ^ bucket * 0x9E3779B97F4A7C15L;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * @return start of the flow in milliseconds since the epoch
+   */
+  static long start(RecordLayout layout, byte[] data, int record, Message message) {
+    if (layout.has(FLOW_START_MILLISECONDS)) {
+      return layout.getUnsigned(data, record, FLOW_START_MILLISECONDS);
+    }
+    if (layout.has(FLOW_START_SECONDS)) {
+      return layout.getUnsigned(data, record, FLOW_START_SECONDS) * 1000;
+    }
+    long exported = (message.timestamp() & 0xFFFFFFFFL) * 1000;
+    if (layout.has(FIRST_SWITCHED) && message.version() == 9) {
+      // FIRST_SWITCHED is the exporter's uptime at the start of the flow
+      return exported - ((message.uptime() - layout.getUnsigned(data, record, FIRST_SWITCHED)) & 0xFFFFFFFFL);
+    }
+    return exported;
+  }
+
+  /**
+   * @return data records checked
+   */
+  public long recordCount() {
+    return records.sum();
+  }
+
+  /**
+   * @return data records found to be duplicates
+   */
+  public long duplicateCount() {
+    return duplicates.sum();
+  }
+
+  /**
+   * @return records the filter had to forget early because a generation ran full
+   */
+  public long overflowCount() {
+    synchronized (filter) {
+      return filter.overflows;
+    }
+  }
+}
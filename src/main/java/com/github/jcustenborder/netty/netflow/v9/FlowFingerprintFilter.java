@@ -0,0 +1,197 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import java.util.Arrays;
+
+/**
+ * Fixed size, time-decaying set of flow fingerprints for the FlowDeduplicator: two generations of a cuckoo filter
+ * (Fan et al., CoNEXT 2014) with buckets of 4 entries. New fingerprints go into the current generation, lookups
+ * check both, and every generationMillis the older generation is cleared and becomes the current one, so a
+ * fingerprint is remembered for one to two generations.
+ *
+ * An entry packs a 40 bit fingerprint with the 16 bit tag and the 8 bit priority of the exporter that reported the
+ * flow. Not thread-safe.
+ */
+final class FlowFingerprintFilter {
+  static final int SLOTS = 4;
+  static final int MAX_KICKS = 500;
+
+  final int mask;
+  final long generationMillis;
+  long[] current;
+  long[] previous;
+  long rotatedAt;
+  long overflows;
+  // xorshift state for picking eviction victims
+  long random = 0x9E3779B97F4A7C15L;
+
+  /**
+   * @param capacity fingerprints per generation, rounded up to a power of two
+   */
+  FlowFingerprintFilter(int capacity, long generationMillis, long now) {
+    if (capacity < SLOTS || capacity > 1 << 28) {
+      throw new IllegalArgumentException("capacity must be between 4 and 2^28");
+    }
+    if (generationMillis <= 0) {
+      throw new IllegalArgumentException("generationMillis must be positive");
+    }
+    int buckets = Integer.highestOneBit((capacity + SLOTS - 1) / SLOTS - 1) << 1;
+    buckets = Math.max(buckets, 1);
+    this.mask = buckets - 1;
+    this.generationMillis = generationMillis;
+    this.current = new long[buckets * SLOTS];
+    this.previous = new long[buckets * SLOTS];
+    this.rotatedAt = now;
+  }
+
+  static long fingerprint(long hash) {
+    long fingerprint = hash >>> 24;
+    return fingerprint == 0 ? 1 : fingerprint;
+  }
+
+  static long entry(long fingerprint, int exporter, int priority) {
+    return fingerprint << 24 | (exporter & 0xFFFFL) << 8 | priority & 0xFF;
+  }
+
+  static int exporter(long entry) {
+    return (int) (entry >>> 8) & 0xFFFF;
+  }
+
+  static int priority(long entry) {
+    return (int) entry & 0xFF;
+  }
+
+  int alternate(int bucket, long fingerprint) {
+    long h = fingerprint * 0xff51afd7ed558ccdL;
+    return (bucket ^ (int) (h ^ h >>> 32)) & mask;
+  }
+
+  /**
+   * Check the record against the filter and remember it.
+   *
+   * @param hash      hash of the flow key (5-tuple and timing bucket)
+   * @param neighbour hash of the flow key in the neighbouring timing bucket, which is only looked up
+   * @return true if another exporter of the same or higher priority already reported the flow
+   */
+  boolean duplicate(long hash, long neighbour, int exporter, int priority, long now) {
+    rotate(now);
+    exporter &= 0xFFFF;
+    long fingerprint = fingerprint(hash);
+    int bucket = (int) hash & mask;
+    long[] table = current;
+    int slot = find(current, bucket, fingerprint);
+    if (slot < 0) {
+      table = previous;
+      slot = find(previous, bucket, fingerprint);
+    }
+    if (slot < 0) {
+      long neighbourFingerprint = fingerprint(neighbour);
+      int neighbourBucket = (int) neighbour & mask;
+      table = current;
+      slot = find(current, neighbourBucket, neighbourFingerprint);
+      if (slot < 0) {
+        table = previous;
+        slot = find(previous, neighbourBucket, neighbourFingerprint);
+      }
+    }
+    if (slot < 0) {
+      insert(bucket, entry(fingerprint, exporter, priority));
+      return false;
+    }
+    long found = table[slot];
+    if (exporter(found) == exporter) {
+      // an exporter re-reporting its own flow (active timeout) is not a duplicate
+      return false;
+    }
+    if (priority <= priority(found)) {
+      return true;
+    }
+    // a higher priority exporter takes the flow over; the copy already passed on cannot be taken back
+    table[slot] = 0;
+    insert(bucket, entry(fingerprint, exporter, priority));
+    return false;
+  }
+
+  int find(long[] table, int bucket, long fingerprint) {
+    int slot = findInBucket(table, bucket * SLOTS, fingerprint);
+    return slot >= 0 ? slot : findInBucket(table, alternate(bucket, fingerprint) * SLOTS, fingerprint);
+  }
+
+  static int findInBucket(long[] table, int first, long fingerprint) {
+    for (int slot = first; slot < first + SLOTS; slot++) {
+      if (table[slot] >>> 24 == fingerprint) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  void insert(int bucket, long entry) {
+    long[] table = current;
+    long fingerprint = entry >>> 24;
+    if (place(table, bucket, entry) || place(table, alternate(bucket, fingerprint), entry)) {
+      return;
+    }
+    for (int kick = 0; kick < MAX_KICKS; kick++) {
+      random ^= random << 13;
+      random ^= random >>> 7;
+      random ^= random << 17;
+      int slot = bucket * SLOTS + (int) (random & (SLOTS - 1));
+      long victim = table[slot];
+      table[slot] = entry;
+      entry = victim;
+      bucket = alternate(bucket, entry >>> 24);
+      if (place(table, bucket, entry)) {
+        return;
+      }
+    }
+    // the generation is full, the last victim is forgotten
+    overflows++;
+  }
+
+  static boolean place(long[] table, int bucket, long entry) {
+    for (int slot = bucket * SLOTS; slot < bucket * SLOTS + SLOTS; slot++) {
+      if (table[slot] == 0) {
+        table[slot] = entry;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  void rotate(long now) {
+    long elapsed = now - rotatedAt;
+    if (elapsed < generationMillis) {
+      return;
+    }
+    long[] cleared = previous;
+    Arrays.fill(cleared, 0);
+    if (elapsed >= 2 * generationMillis) {
+      Arrays.fill(current, 0);
+    }
+    previous = current;
+    current = cleared;
+    rotatedAt = now;
+  }
+
+  /**
+   * @return memory held by the fingerprints
+   */
+  long bytes() {
+    return 16L * current.length;
+  }
+}
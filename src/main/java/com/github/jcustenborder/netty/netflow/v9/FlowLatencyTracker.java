@@ -0,0 +1,213 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * Per-exporter latency histograms filled by the NetFlowV9Decoder for every decoded packet:
+ * <ul>
+ *   <li>decodeNanos - from the arrival of the datagram (see stamper()) until its Message is decoded</li>
+ *   <li>exportDelayMillis - from the export time in the header until the arrival; exporters whose clock is ahead
+ *   show up in clockAheadMillis instead. The export time only has a resolution of a second.</li>
+ *   <li>flowAgeMillis - from the end of each flow (LAST_SWITCHED, NetFlow v9 only) until the arrival, i.e. how
+ *   stale the flows are when they reach the handlers</li>
+ * </ul>
+ *
+ * To bound the memory (4 histograms of 15 KiB per exporter) only the first maxExporters exporters get their own
+ * histograms; the rest are recorded together under others().
+ */
+public class FlowLatencyTracker {
+  static final AttributeKey<long[]> ARRIVAL = AttributeKey.valueOf(FlowLatencyTracker.class, "arrival");
+
+  /**
+   * The histograms of an exporter.
+   */
+  public static final class Latencies {
+    final LatencyHistogram decodeNanos = new LatencyHistogram();
+    final LatencyHistogram exportDelayMillis = new LatencyHistogram();
+    final LatencyHistogram clockAheadMillis = new LatencyHistogram();
+    final LatencyHistogram flowAgeMillis = new LatencyHistogram();
+
+    public LatencyHistogram decodeNanos() {
+      return decodeNanos;
+    }
+
+    public LatencyHistogram exportDelayMillis() {
+      return exportDelayMillis;
+    }
+
+    public LatencyHistogram clockAheadMillis() {
+      return clockAheadMillis;
+    }
+
+    public LatencyHistogram flowAgeMillis() {
+      return flowAgeMillis;
+    }
+  }
+
+  /**
+   * Records the arrival time of every DatagramPacket in a channel attribute, to be picked up by the decoder.
+   * Has to sit right in front of the decoder - with nothing in between that defers the packets to another
+   * thread or a later time - as close to the socket as possible.
+   */
+  @ChannelHandler.Sharable
+  static final class Stamper extends ChannelInboundHandlerAdapter {
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+      if (msg instanceof DatagramPacket) {
+        Attribute<long[]> attribute = ctx.channel().attr(ARRIVAL);
+        long[] arrival = attribute.get();
+        if (arrival == null) {
+          arrival = new long[2];
+          attribute.set(arrival);
+        }
+        arrival[0] = System.nanoTime();
+        arrival[1] = System.currentTimeMillis();
+      }
+      ctx.fireChannelRead(msg);
+    }
+  }
+
+  static final Stamper STAMPER = new Stamper();
+
+  final int maxExporters;
+  final ConcurrentMap<ExporterKey, Latencies> exporters = new ConcurrentHashMap<>();
+  final Latencies others = new Latencies();
+
+  public FlowLatencyTracker(int maxExporters) {
+    this.maxExporters = maxExporters;
+  }
+
+  public FlowLatencyTracker() {
+    this(1024);
+  }
+
+  /**
+   * @return the handler to add in front of the decoder to measure from the arrival of a datagram; without it
+   * decodeNanos only covers the decoding itself
+   */
+  public static ChannelHandler stamper() {
+    return STAMPER;
+  }
+
+  /**
+   * @param exporter the exporter of the message, the decoder's cached key so that recording does not allocate
+   * @param started System.nanoTime() when decoding the packet started
+   */
+  void record(ChannelHandlerContext ctx, ExporterKey exporter, NetFlow.Message message, long started) {
+    long now = System.nanoTime();
+    long arrivalNanos = started;
+    long arrivalMillis = System.currentTimeMillis() - (now - started) / 1000000;
+    long[] arrival = ctx != null && ctx.channel() != null ? ctx.channel().attr(ARRIVAL).get() : null;
+    if (arrival != null && arrival[0] != 0) {
+      arrivalNanos = arrival[0];
+      arrivalMillis = arrival[1];
+      arrival[0] = 0; // a stamp is only good for one packet
+    }
+    Latencies latencies = latenciesFor(exporter);
+
+    latencies.decodeNanos.record(now - arrivalNanos);
+    long exportMillis = (message.timestamp() & 0xFFFFFFFFL) * 1000;
+    long delay = arrivalMillis - exportMillis;
+    if (delay >= 0) {
+      latencies.exportDelayMillis.record(delay);
+    } else {
+      latencies.clockAheadMillis.record(-delay);
+    }
+    if (message.version() == 9) {
+      recordFlowAges(latencies, message, exportMillis, arrivalMillis);
+    }
+  }
+
+  /**
+   * LAST_SWITCHED is the exporter's uptime at the end of the flow, so the flow ended (uptime - LAST_SWITCHED)
+   * milliseconds before the export time.
+   */
+  static void recordFlowAges(Latencies latencies, NetFlow.Message message, long exportMillis, long arrivalMillis) {
+    int lastSwitched = CiscoFieldScheme.Field.LAST_SWITCHED.typeId;
+    List<NetFlow.FlowSet> flowSets = message.flowsets();
+    // indexed, an iterator is only scalar replaced while the list call site stays monomorphic
+    for (int i = 0; i < flowSets.size(); i++) {
+      NetFlow.FlowSet flowSet = flowSets.get(i);
+      if (!(flowSet instanceof NetFlow.DataFlowSet)) {
+        continue;
+      }
+      NetFlow.DataFlowSet data = (NetFlow.DataFlowSet) flowSet;
+      RecordLayout layout = RecordLayout.of(data.template());
+      if (!layout.has(lastSwitched) || layout.length(lastSwitched) != 4) {
+        continue;
+      }
+      for (int record = 0, count = layout.recordCount(data); record < count; record++) {
+        long sinceEnd = (message.uptime() - layout.getUnsigned(data.data(), record, lastSwitched)) & 0xFFFFFFFFL;
+        latencies.flowAgeMillis.record(arrivalMillis - (exportMillis - sinceEnd));
+      }
+    }
+  }
+
+  Latencies latenciesFor(ExporterKey exporter) {
+    Latencies latencies = exporters.get(exporter);
+    if (latencies != null) {
+      return latencies;
+    }
+    if (exporters.size() >= maxExporters) {
+      return others;
+    }
+    return exporters.computeIfAbsent(exporter, k -> new Latencies());
+  }
+
+  /**
+   * @return the histograms of the exporter, null if it has none of its own
+   */
+  public Latencies latencies(ExporterKey exporter) {
+    return exporters.get(exporter);
+  }
+
+  public Map<ExporterKey, Latencies> exporters() {
+    return Collections.unmodifiableMap(exporters);
+  }
+
+  /**
+   * @return the histograms shared by the exporters beyond maxExporters
+   */
+  public Latencies others() {
+    return others;
+  }
+
+  /**
+   * @param histogram picks the histogram, e.g. Latencies::decodeNanos
+   * @return the histogram merged over all exporters
+   */
+  public LatencyHistogram.Snapshot total(Function<Latencies, LatencyHistogram> histogram) {
+    LatencyHistogram.Snapshot total = histogram.apply(others).snapshot();
+    for (Latencies latencies : exporters.values()) {
+      total = total.merge(histogram.apply(latencies).snapshot());
+    }
+    return total;
+  }
+}
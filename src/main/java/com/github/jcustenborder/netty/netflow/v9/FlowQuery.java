@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+
+/**
+ * Row filter over the indexed columns of a FlowStore (see FlowSegment.INDEXED).
+ * It is evaluated per segment purely on the bitmap indexes, so row data is only read for matching rows.
+ */
+public abstract class FlowQuery {
+
+  abstract RowBitmap evaluate(FlowSegment segment);
+
+  /**
+   * Rows whose numeric field (port or protocol) equals value.
+   */
+  public static FlowQuery equal(CiscoFieldScheme.Field field, long value) {
+    checkIndexed(field, FlowColumn.Kind.DELTA);
+    return new FlowQuery() {
+      @Override
+      RowBitmap evaluate(FlowSegment segment) {
+        FlowColumn column = segment.columns.get(field);
+        RowBitmap bitmap = column != null ? column.index.get(value) : null;
+        return bitmap != null ? bitmap.copy() : new RowBitmap();
+      }
+
+      @Override
+      public String toString() {
+        return field + " = " + value;
+      }
+    };
+  }
+
+  /**
+   * Rows whose address field equals address.
+   */
+  public static FlowQuery equal(CiscoFieldScheme.Field field, InetAddress address) {
+    checkIndexed(field, FlowColumn.Kind.DICTIONARY);
+    byte[] value = address.getAddress();
+    return new FlowQuery() {
+      @Override
+      RowBitmap evaluate(FlowSegment segment) {
+        FlowColumn column = segment.columns.get(field);
+        if (column == null) {
+          return new RowBitmap();
+        }
+        long id = column.idOf(value);
+        RowBitmap bitmap = id >= 0 ? column.index.get(id) : null;
+        return bitmap != null ? bitmap.copy() : new RowBitmap();
+      }
+
+      @Override
+      public String toString() {
+        return field + " = " + address.getHostAddress();
+      }
+    };
+  }
+
+  /**
+   * Rows where address is either the source or the destination.
+   */
+  public static FlowQuery address(InetAddress address) {
+    if (address instanceof Inet4Address) {
+      return equal(CiscoFieldScheme.Field.IPV4_SRC_ADDR, address)
+          .or(equal(CiscoFieldScheme.Field.IPV4_DST_ADDR, address));
+    }
+    return equal(CiscoFieldScheme.Field.IPV6_SRC_ADDR, address)
+        .or(equal(CiscoFieldScheme.Field.IPV6_DST_ADDR, address));
+  }
+
+  /**
+   * Rows where port is either the source or the destination port.
+   */
+  public static FlowQuery port(int port) {
+    return equal(CiscoFieldScheme.Field.L4_SRC_PORT, port)
+        .or(equal(CiscoFieldScheme.Field.L4_DST_PORT, port));
+  }
+
+  public FlowQuery and(FlowQuery other) {
+    FlowQuery self = this;
+    return new FlowQuery() {
+      @Override
+      RowBitmap evaluate(FlowSegment segment) {
+        RowBitmap left = self.evaluate(segment);
+        return left.isEmpty() ? left : RowBitmap.and(left, other.evaluate(segment));
+      }
+
+      @Override
+      public String toString() {
+        return "(" + self + " AND " + other + ")";
+      }
+    };
+  }
+
+  public FlowQuery or(FlowQuery other) {
+    FlowQuery self = this;
+    return new FlowQuery() {
+      @Override
+      RowBitmap evaluate(FlowSegment segment) {
+        return RowBitmap.or(self.evaluate(segment), other.evaluate(segment));
+      }
+
+      @Override
+      public String toString() {
+        return "(" + self + " OR " + other + ")";
+      }
+    };
+  }
+
+  private static void checkIndexed(CiscoFieldScheme.Field field, FlowColumn.Kind kind) {
+    if (!FlowSegment.INDEXED.contains(field)) {
+      throw new IllegalArgumentException("Field " + field + " is not indexed");
+    }
+    if (FlowSegment.kindOf(field) != kind) {
+      throw new IllegalArgumentException("Field " + field + " can not be compared with a "
+          + (kind == FlowColumn.Kind.DELTA ? "number" : "address"));
+    }
+  }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import java.util.Arrays;
+
+/**
+ * Binary layout of the records of a template for BinaryFlowWriter and BinaryFlowReader: per field its type id,
+ * length and Field.DataType. Numbers of up to 8 bytes (BYTE, SHORT, INTEGER, BIG_INTEGER) are written as unsigned
+ * varints, every other field as its raw bytes. Schemas are assigned their id by a SchemaRegistry.
+ */
+public final class FlowSchema {
+  static final NetFlow.Field.DataType[] DATA_TYPES = NetFlow.Field.DataType.values();
+
+  final int id;
+  final short[] types;
+  final short[] lengths;
+  final NetFlow.Field.DataType[] dataTypes;
+  final boolean[] varints;
+  // field index by type id
+  final TypeIndex index;
+
+  FlowSchema(int id, short[] types, short[] lengths, NetFlow.Field.DataType[] dataTypes) {
+    this.id = id;
+    this.types = types;
+    this.lengths = lengths;
+    this.dataTypes = dataTypes;
+    this.varints = new boolean[types.length];
+    int[] typeIds = new int[types.length];
+    for (int i = 0; i < types.length; i++) {
+      varints[i] = isNumber(dataTypes[i]) && (lengths[i] & 0xFFFF) <= 8;
+      typeIds[i] = types[i] & 0xFFFF;
+    }
+    this.index = TypeIndex.of(typeIds);
+  }
+
+  static boolean isNumber(NetFlow.Field.DataType dataType) {
+    switch (dataType) {
+      case BYTE:
+      case SHORT:
+      case INTEGER:
+      case BIG_INTEGER:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Derive the layout of the template, taking the data types from the scheme (BYTE_ARRAY for unknown fields).
+   */
+  static FlowSchema of(int id, NetFlow.TemplateFlowSet template, NetFlow.FieldScheme scheme) {
+    int count = template.fields().size();
+    short[] types = new short[count];
+    short[] lengths = new short[count];
+    NetFlow.Field.DataType[] dataTypes = new NetFlow.Field.DataType[count];
+    for (int i = 0; i < count; i++) {
+      NetFlow.TemplateField templateField = template.fields().get(i);
+      NetFlow.Field field = scheme.getField(templateField.type());
+      types[i] = templateField.type();
+      lengths[i] = templateField.length();
+      dataTypes[i] = field != null ? field.dataType() : NetFlow.Field.DataType.BYTE_ARRAY;
+    }
+    return new FlowSchema(id, types, lengths, dataTypes);
+  }
+
+  FlowSchema withId(int id) {
+    return new FlowSchema(id, types, lengths, dataTypes);
+  }
+
+  public int id() {
+    return id;
+  }
+
+  public int fieldCount() {
+    return types.length;
+  }
+
+  public int type(int field) {
+    return types[field] & 0xFFFF;
+  }
+
+  /**
+   * @return length of the field in the NetFlow record
+   */
+  public int length(int field) {
+    return lengths[field] & 0xFFFF;
+  }
+
+  public NetFlow.Field.DataType dataType(int field) {
+    return dataTypes[field];
+  }
+
+  /**
+   * @return whether the field is written as a varint rather than its raw bytes
+   */
+  public boolean varint(int field) {
+    return varints[field];
+  }
+
+  /**
+   * @return index of the field with the type id, -1 if the schema has none
+   */
+  public int index(int type) {
+    return index.get(type);
+  }
+
+  /**
+   * @return whether both describe the same record layout (ids aside)
+   */
+  boolean sameLayout(FlowSchema other) {
+    return Arrays.equals(types, other.types) && Arrays.equals(lengths, other.lengths)
+        && Arrays.equals(dataTypes, other.dataTypes);
+  }
+
+  int layoutHash() {
+    return 31 * (31 * Arrays.hashCode(types) + Arrays.hashCode(lengths)) + Arrays.hashCode(dataTypes);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder("FlowSchema{id=").append(id);
+    for (int i = 0; i < types.length; i++) {
+      builder.append(i == 0 ? ", " : " ").append(type(i)).append(':').append(length(i)).append(':')
+          .append(dataTypes[i]);
+    }
+    return builder.append('}').toString();
+  }
+}
@@ -0,0 +1,283 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * A time partition's worth of flow records stored column by column (see FlowColumn).
+ * Every record of every DataFlowSet becomes one row; the export timestamp and the exporter address
+ * are always stored, the remaining columns are created on demand, one per CiscoFieldScheme.Field.
+ *
+ * Rows are grouped in blocks of BLOCK_ROWS for which every column keeps a checkpoint, and the address, port and
+ * protocol columns (INDEXED) are indexed with one RowBitmap per distinct value, so that queries can intersect
+ * bitmaps and jump straight to the blocks holding matching rows.
+ *
+ * The segment.meta file records row count, time range, valid column lengths and checkpoints. It is rewritten on every persist(),
+ * and a segment directory without it is ignored on load.
+ */
+final class FlowSegment {
+  private static final Logger log = LoggerFactory.getLogger(FlowSegment.class);
+
+  static final String META = "segment.meta";
+  static final String TIMESTAMP = "_timestamp";
+  static final String EXPORTER = "_exporter";
+  private static final int MAGIC = 0x4E465347; // 'NFSG'
+  private static final int FORMAT_VERSION = 2;
+
+  static final int BLOCK_ROWS = 1024;
+  static final Set<CiscoFieldScheme.Field> INDEXED = Collections.unmodifiableSet(EnumSet.of(
+      CiscoFieldScheme.Field.IPV4_SRC_ADDR,
+      CiscoFieldScheme.Field.IPV4_DST_ADDR,
+      CiscoFieldScheme.Field.IPV6_SRC_ADDR,
+      CiscoFieldScheme.Field.IPV6_DST_ADDR,
+      CiscoFieldScheme.Field.L4_SRC_PORT,
+      CiscoFieldScheme.Field.L4_DST_PORT,
+      CiscoFieldScheme.Field.PROTOCOL
+  ));
+
+  private static final CiscoFieldScheme FIELD_SCHEME = new CiscoFieldScheme();
+
+  final Path directory;
+  final long partition;
+  final int sequence;
+  final int columnCapacity;
+
+  FlowColumn timestamps;
+  FlowColumn exporters;
+  final Map<CiscoFieldScheme.Field, FlowColumn> columns = new EnumMap<>(CiscoFieldScheme.Field.class);
+  int rowCount;
+  long minTimestamp = Long.MAX_VALUE;
+  long maxTimestamp = Long.MIN_VALUE;
+  boolean sealed;
+
+  private FlowSegment(Path directory, long partition, int sequence, int columnCapacity) {
+    this.directory = directory;
+    this.partition = partition;
+    this.sequence = sequence;
+    this.columnCapacity = columnCapacity;
+  }
+
+  static String directoryName(long partition, int sequence) {
+    return String.format("%d-%d", partition, sequence);
+  }
+
+  static FlowSegment create(Path root, long partition, int sequence, int columnCapacity) throws IOException {
+    Path directory = Files.createDirectories(root.resolve(directoryName(partition, sequence)));
+    FlowSegment segment = new FlowSegment(directory, partition, sequence, columnCapacity);
+    segment.timestamps = FlowColumn.create(directory, TIMESTAMP, FlowColumn.Kind.DELTA, columnCapacity, 0, false);
+    segment.exporters = FlowColumn.create(directory, EXPORTER, FlowColumn.Kind.DICTIONARY, columnCapacity, 0, false);
+    return segment;
+  }
+
+  static FlowColumn.Kind kindOf(CiscoFieldScheme.Field field) {
+    switch (field.dataType()) {
+      case BYTE:
+      case HEX_BYTE:
+      case SHORT:
+      case INTEGER:
+      case BIG_INTEGER:
+        return FlowColumn.Kind.DELTA;
+      default:
+        return FlowColumn.Kind.DICTIONARY;
+    }
+  }
+
+  /**
+   * Append every record of the data FlowSet that still fits.
+   *
+   * @return index of the first record that was NOT appended (== record count when all fit)
+   */
+  int append(long timestamp, byte[] exporter, NetFlow.DataFlowSet dataFlowSet, int fromRecord) throws IOException {
+    RecordLayout layout = RecordLayout.of(dataFlowSet.template());
+    byte[] data = dataFlowSet.data();
+    int recordCount = layout.recordCount(dataFlowSet);
+
+    for (NetFlow.TemplateField templateField : layout.template().fields()) {
+      CiscoFieldScheme.Field field = FIELD_SCHEME.getField(templateField.type());
+      if (field != null && !columns.containsKey(field)) {
+        columns.put(field, FlowColumn.create(directory, field.name(), kindOf(field), columnCapacity, rowCount, INDEXED.contains(field)));
+      }
+    }
+
+    int record = fromRecord;
+    for (; record < recordCount; ++record) {
+      if (!hasRoom()) {
+        break;
+      }
+      if (rowCount % BLOCK_ROWS == 0) {
+        timestamps.checkpoint();
+        exporters.checkpoint();
+        for (FlowColumn column : columns.values()) {
+          column.checkpoint();
+        }
+      }
+      timestamps.appendLong(timestamp);
+      exporters.appendBytes(exporter, 0, exporter.length);
+      for (Map.Entry<CiscoFieldScheme.Field, FlowColumn> entry : columns.entrySet()) {
+        int type = entry.getKey().typeId;
+        FlowColumn column = entry.getValue();
+        if (!layout.has(type) || (column.kind == FlowColumn.Kind.DELTA && layout.length(type) > 8)) {
+          column.appendAbsent();
+          continue;
+        }
+        if (column.kind == FlowColumn.Kind.DELTA) {
+          column.appendLong(layout.getUnsigned(data, record, type));
+        } else {
+          column.appendBytes(data, layout.position(record, type), layout.length(type));
+        }
+        if (column.index != null) {
+          column.indexLast(rowCount);
+        }
+      }
+      rowCount++;
+      minTimestamp = Math.min(minTimestamp, timestamp);
+      maxTimestamp = Math.max(maxTimestamp, timestamp);
+    }
+    return record;
+  }
+
+  private boolean hasRoom() {
+    if (!timestamps.hasRoom() || !exporters.hasRoom()) {
+      return false;
+    }
+    for (FlowColumn column : columns.values()) {
+      if (!column.hasRoom()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  boolean overlaps(long fromTimestamp, long toTimestamp) {
+    return rowCount > 0 && minTimestamp <= toTimestamp && maxTimestamp >= fromTimestamp;
+  }
+
+  void persist() throws IOException {
+    timestamps.persist();
+    exporters.persist();
+    for (FlowColumn column : columns.values()) {
+      column.persist();
+    }
+
+    Path tmp = directory.resolve(META + ".tmp");
+    try (OutputStream output = Files.newOutputStream(tmp);
+         DataOutputStream data = new DataOutputStream(new BufferedOutputStream(output))) {
+      data.writeInt(MAGIC);
+      data.writeInt(FORMAT_VERSION);
+      data.writeLong(partition);
+      data.writeInt(sequence);
+      data.writeInt(rowCount);
+      data.writeLong(minTimestamp);
+      data.writeLong(maxTimestamp);
+      data.writeInt(columns.size() + 2);
+      writeColumn(data, timestamps);
+      writeColumn(data, exporters);
+      for (FlowColumn column : columns.values()) {
+        writeColumn(data, column);
+      }
+    }
+    Files.move(tmp, directory.resolve(META), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static void writeColumn(DataOutputStream data, FlowColumn column) throws IOException {
+    data.writeUTF(column.name);
+    data.writeByte(column.kind.ordinal());
+    data.writeInt(column.length);
+    data.writeInt(column.valueCount);
+    data.writeInt(column.checkpointCount);
+    for (int i = 0; i < 2 * column.checkpointCount; ++i) {
+      data.writeLong(column.checkpoints[i]);
+    }
+  }
+
+  void seal() throws IOException {
+    persist();
+    sealed = true;
+  }
+
+  /**
+   * Load a sealed segment from its directory.
+   *
+   * @return the segment or null if the directory holds no (valid) segment
+   */
+  static FlowSegment load(Path directory) throws IOException {
+    Path meta = directory.resolve(META);
+    if (!Files.isRegularFile(meta)) {
+      log.warn("Ignoring segment directory {} without {}", directory, META);
+      return null;
+    }
+    try (InputStream input = Files.newInputStream(meta);
+         DataInputStream data = new DataInputStream(new BufferedInputStream(input))) {
+      if (data.readInt() != MAGIC || data.readInt() != FORMAT_VERSION) {
+        log.warn("Ignoring segment directory {} with unexpected {} format", directory, META);
+        return null;
+      }
+      FlowSegment segment = new FlowSegment(directory, data.readLong(), data.readInt(), 0);
+      segment.rowCount = data.readInt();
+      segment.minTimestamp = data.readLong();
+      segment.maxTimestamp = data.readLong();
+      int columnCount = data.readInt();
+      for (int i = 0; i < columnCount; ++i) {
+        String name = data.readUTF();
+        FlowColumn.Kind kind = FlowColumn.Kind.values()[data.readByte()];
+        int length = data.readInt();
+        int dictionarySize = data.readInt();
+        long[] checkpoints = new long[2 * data.readInt()];
+        for (int c = 0; c < checkpoints.length; ++c) {
+          checkpoints[c] = data.readLong();
+        }
+        FlowColumn column = FlowColumn.open(directory, name, kind, length, dictionarySize, checkpoints);
+        if (TIMESTAMP.equals(name)) {
+          segment.timestamps = column;
+        } else if (EXPORTER.equals(name)) {
+          segment.exporters = column;
+        } else {
+          segment.columns.put(CiscoFieldScheme.Field.valueOf(name), column);
+        }
+      }
+      segment.sealed = true;
+      return segment;
+    }
+  }
+
+  void delete() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        Files.delete(file);
+      }
+    }
+    Files.delete(directory);
+  }
+}
@@ -0,0 +1,383 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Embedded, time-partitioned columnar store for decoded flow records.
+ *
+ * Records are appended to memory-mapped segment files (see FlowSegment), one segment per partition
+ * of partitionSeconds (by export timestamp) or more when a segment runs out of column capacity.
+ * A scan only maps and decodes the columns it asks for, and a query additionally consults the per-segment
+ * bitmap indexes first so that segments without matches are skipped and only blocks holding matches are decoded.
+ *
+ * Appends, flush() and the snapshot taken by scan() are serialized on the store; a Cursor itself is
+ * confined to the thread that uses it.
+ */
+public class FlowStore implements Closeable, NetFlow {
+  private static final Logger log = LoggerFactory.getLogger(FlowStore.class);
+
+  public static final long DEFAULT_PARTITION_SECONDS = 3600;
+  public static final int DEFAULT_COLUMN_CAPACITY = 8 * 1024 * 1024;
+
+  final Path directory;
+  final long partitionSeconds;
+  final int columnCapacity;
+  final List<FlowSegment> segments = new ArrayList<>();
+  FlowSegment active;
+  int nextSequence;
+
+  public FlowStore(Path directory, long partitionSeconds, int columnCapacity) throws IOException {
+    if (partitionSeconds <= 0) {
+      throw new IllegalArgumentException("partitionSeconds must be positive: " + partitionSeconds);
+    }
+    if (columnCapacity < 1024) {
+      throw new IllegalArgumentException("columnCapacity is too small: " + columnCapacity);
+    }
+    this.directory = Files.createDirectories(directory);
+    this.partitionSeconds = partitionSeconds;
+    this.columnCapacity = columnCapacity;
+
+    try (Stream<Path> children = Files.list(this.directory)) {
+      for (Path child : (Iterable<Path>) children::iterator) {
+        if (Files.isDirectory(child)) {
+          FlowSegment segment = FlowSegment.load(child);
+          if (segment != null) {
+            segments.add(segment);
+            nextSequence = Math.max(nextSequence, segment.sequence + 1);
+          }
+        }
+      }
+    }
+    segments.sort(Comparator.comparingLong((FlowSegment s) -> s.partition).thenComparingInt(s -> s.sequence));
+    log.debug("Opened {} with {} segment(s)", directory, segments.size());
+  }
+
+  public FlowStore(Path directory) throws IOException {
+    this(directory, DEFAULT_PARTITION_SECONDS, DEFAULT_COLUMN_CAPACITY);
+  }
+
+  long partitionOf(long timestamp) {
+    return Math.floorDiv(timestamp, partitionSeconds) * partitionSeconds;
+  }
+
+  /**
+   * Append all data records of the message.
+   */
+  public synchronized void append(Message message) {
+    long timestamp = message.timestamp() & 0xFFFFFFFFL;
+    byte[] exporter = message.sender() != null && message.sender().getAddress() != null
+        ? message.sender().getAddress().getAddress()
+        : new byte[0];
+    try {
+      for (FlowSet flowSet : message.flowsets()) {
+        if (!(flowSet instanceof DataFlowSet)) {
+          continue;
+        }
+        DataFlowSet dataFlowSet = (DataFlowSet) flowSet;
+        int recordCount = RecordLayout.of(dataFlowSet.template()).recordCount(dataFlowSet);
+        int record = 0;
+        while (record < recordCount) {
+          FlowSegment segment = segmentFor(timestamp);
+          int appended = segment.append(timestamp, exporter, dataFlowSet, record);
+          if (appended == record) {
+            // not even one row fitted, start over in a fresh segment
+            if (segment.rowCount == 0) {
+              throw new IllegalStateException("columnCapacity is too small to hold a single row");
+            }
+            roll();
+          }
+          record = appended;
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private FlowSegment segmentFor(long timestamp) throws IOException {
+    long partition = partitionOf(timestamp);
+    if (active != null && active.partition != partition) {
+      roll();
+    }
+    if (active == null) {
+      active = newSegment(partition);
+      segments.add(active);
+    }
+    return active;
+  }
+
+  FlowSegment newSegment(long partition) throws IOException {
+    return FlowSegment.create(directory, partition, nextSequence++, columnCapacity);
+  }
+
+  private void roll() throws IOException {
+    if (active != null) {
+      active.seal();
+      log.debug("Sealed segment {} with {} row(s)", active.directory, active.rowCount);
+      active = null;
+    }
+  }
+
+  /**
+   * Persist the active segment so that it survives a crash (it is reloaded read-only on the next open).
+   */
+  public synchronized void flush() throws IOException {
+    if (active != null) {
+      active.persist();
+    }
+  }
+
+  /**
+   * Drop every segment whose partition ends at or before the given export timestamp.
+   *
+   * @return number of segments deleted
+   */
+  public synchronized int deleteBefore(long timestamp) throws IOException {
+    int deleted = 0;
+    for (Iterator<FlowSegment> iterator = segments.iterator(); iterator.hasNext(); ) {
+      FlowSegment segment = iterator.next();
+      if (segment.partition + partitionSeconds <= timestamp) {
+        if (segment == active) {
+          active = null;
+        }
+        segment.delete();
+        iterator.remove();
+        deleted++;
+      }
+    }
+    return deleted;
+  }
+
+  /**
+   * Scan the rows exported within [fromTimestamp, toTimestamp] (inclusive, epoch seconds)
+   * reading only the timestamp, exporter and requested columns.
+   */
+  public Cursor scan(long fromTimestamp, long toTimestamp, CiscoFieldScheme.Field... columns) {
+    List<SegmentView> views = new ArrayList<>();
+    synchronized (this) {
+      for (FlowSegment segment : segments) {
+        if (segment.overlaps(fromTimestamp, toTimestamp)) {
+          views.add(new SegmentView(segment, columns));
+        }
+      }
+    }
+    return new Cursor(views, fromTimestamp, toTimestamp, columns);
+  }
+
+  /**
+   * Like scan() but only visiting the rows matched by the query, e.g.
+   * query(from, to, FlowQuery.address(InetAddress.getByName("10.1.2.3")), Field.IN_BYTES)
+   */
+  public Cursor query(long fromTimestamp, long toTimestamp, FlowQuery query, CiscoFieldScheme.Field... columns) {
+    List<SegmentView> views = new ArrayList<>();
+    synchronized (this) {
+      for (FlowSegment segment : segments) {
+        if (segment.overlaps(fromTimestamp, toTimestamp)) {
+          RowBitmap rows = query.evaluate(segment);
+          if (!rows.isEmpty()) {
+            views.add(new SegmentView(segment, columns).rows(rows));
+          }
+        }
+      }
+    }
+    return new Cursor(views, fromTimestamp, toTimestamp, columns);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    roll();
+  }
+
+  /**
+   * Point in time view over one segment: readers are created while the writer is excluded,
+   * so rows appended later are simply not visible.
+   * Without a row bitmap every row is visited, with one the readers skip to the block of each matching row.
+   */
+  static final class SegmentView {
+    final FlowSegment segment;
+    final int rowCount;
+    final FlowColumn.Reader timestamps;
+    final FlowColumn.Reader exporters;
+    final FlowColumn.Reader[] columns;
+    final FlowColumn.Kind[] kinds;
+    RowBitmap.Iterator rows;
+    // the row the readers will decode next
+    int row;
+
+    SegmentView(FlowSegment segment, CiscoFieldScheme.Field[] fields) {
+      this.segment = segment;
+      this.rowCount = segment.rowCount;
+      this.timestamps = segment.timestamps.reader();
+      this.exporters = segment.exporters.reader();
+      this.columns = new FlowColumn.Reader[fields.length];
+      this.kinds = new FlowColumn.Kind[fields.length];
+      for (int i = 0; i < fields.length; ++i) {
+        FlowColumn column = segment.columns.get(fields[i]);
+        if (column != null) {
+          this.columns[i] = column.reader();
+          this.kinds[i] = column.kind;
+        }
+      }
+    }
+
+    SegmentView rows(RowBitmap rows) {
+      this.rows = rows.iterator();
+      return this;
+    }
+
+    boolean hasNext() {
+      return rows != null ? rows.hasNext() : row < rowCount;
+    }
+
+    /**
+     * Position the readers on the next visited row and decode it.
+     */
+    void next() {
+      int target = rows != null ? rows.next() : row;
+      int block = target / FlowSegment.BLOCK_ROWS;
+      if (block != row / FlowSegment.BLOCK_ROWS) {
+        timestamps.seek(block);
+        exporters.seek(block);
+        for (FlowColumn.Reader column : columns) {
+          if (column != null) {
+            column.seek(block);
+          }
+        }
+        row = block * FlowSegment.BLOCK_ROWS;
+      }
+      while (row <= target) {
+        timestamps.nextLong();
+        exporters.nextId();
+        for (int i = 0; i < columns.length; ++i) {
+          if (columns[i] != null) {
+            columns[i].next(kinds[i]);
+          }
+        }
+        row++;
+      }
+    }
+  }
+
+  /**
+   * Forward-only iterator over the scanned rows.
+   * Values returned by getBytes() are shared dictionary entries and must not be modified.
+   */
+  public static final class Cursor {
+    final Iterator<SegmentView> views;
+    final long fromTimestamp;
+    final long toTimestamp;
+    // requested column index by Field.ordinal(), -1 when not requested
+    final int[] slots;
+    SegmentView view;
+
+    Cursor(List<SegmentView> views, long fromTimestamp, long toTimestamp, CiscoFieldScheme.Field[] fields) {
+      this.views = views.iterator();
+      this.fromTimestamp = fromTimestamp;
+      this.toTimestamp = toTimestamp;
+      this.slots = new int[CiscoFieldScheme.Field.values().length];
+      Arrays.fill(this.slots, -1);
+      for (int i = 0; i < fields.length; ++i) {
+        this.slots[fields[i].ordinal()] = i;
+      }
+    }
+
+    /**
+     * Advance to the next matching row.
+     *
+     * @return false when the scan is exhausted
+     */
+    public boolean next() {
+      while (true) {
+        while (view == null || !view.hasNext()) {
+          if (!views.hasNext()) {
+            view = null;
+            return false;
+          }
+          view = views.next();
+        }
+        view.next();
+        long timestamp = view.timestamps.value;
+        if (timestamp >= fromTimestamp && timestamp <= toTimestamp) {
+          return true;
+        }
+      }
+    }
+
+    /**
+     * @return export timestamp (epoch seconds) of the current row
+     */
+    public long timestamp() {
+      return view.timestamps.value;
+    }
+
+    /**
+     * @return raw address bytes of the exporter that sent the current row
+     */
+    public byte[] exporter() {
+      return view.exporters.bytes();
+    }
+
+    private FlowColumn.Reader reader(CiscoFieldScheme.Field field) {
+      int slot = slots[field.ordinal()];
+      if (slot < 0) {
+        throw new IllegalArgumentException("Column " + field + " was not requested by this scan");
+      }
+      return view.columns[slot];
+    }
+
+    public boolean isPresent(CiscoFieldScheme.Field field) {
+      FlowColumn.Reader reader = reader(field);
+      return reader != null && reader.present;
+    }
+
+    /**
+     * @return the unsigned value of a numeric column (only meaningful when isPresent())
+     */
+    public long getLong(CiscoFieldScheme.Field field) {
+      FlowColumn.Reader reader = reader(field);
+      if (reader != null && view.kinds[slots[field.ordinal()]] != FlowColumn.Kind.DELTA) {
+        throw new IllegalArgumentException("Column " + field + " is not numeric");
+      }
+      return reader != null && reader.present ? reader.value : 0;
+    }
+
+    /**
+     * @return the raw bytes of a non-numeric column or null when absent
+     */
+    public byte[] getBytes(CiscoFieldScheme.Field field) {
+      FlowColumn.Reader reader = reader(field);
+      if (reader != null && view.kinds[slots[field.ordinal()]] != FlowColumn.Kind.DICTIONARY) {
+        throw new IllegalArgumentException("Column " + field + " is not dictionary encoded");
+      }
+      return reader != null ? reader.bytes() : null;
+    }
+  }
+}
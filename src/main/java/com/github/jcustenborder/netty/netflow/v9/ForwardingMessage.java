@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+/**
+ * A NetFlow.Message that delegates to another one, for handlers that pass messages on with extra information
+ * attached.
+ */
+public abstract class ForwardingMessage implements NetFlow.Message {
+  final NetFlow.Message message;
+
+  protected ForwardingMessage(NetFlow.Message message) {
+    this.message = message;
+  }
+
+  /**
+   * @return the wrapped message
+   */
+  public NetFlow.Message message() {
+    return message;
+  }
+
+  @Override
+  public short version() {
+    return message.version();
+  }
+
+  @Override
+  public short count() {
+    return message.count();
+  }
+
+  @Override
+  public int uptime() {
+    return message.uptime();
+  }
+
+  @Override
+  public int timestamp() {
+    return message.timestamp();
+  }
+
+  @Override
+  public int flowSequence() {
+    return message.flowSequence();
+  }
+
+  @Override
+  public int sourceID() {
+    return message.sourceID();
+  }
+
+  @Override
+  public InetSocketAddress sender() {
+    return message.sender();
+  }
+
+  @Override
+  public InetSocketAddress recipient() {
+    return message.recipient();
+  }
+
+  @Override
+  public List<NetFlow.FlowSet> flowsets() {
+    return message.flowsets();
+  }
+
+  @Override
+  public void release() {
+    message.release();
+  }
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes IPFIX messages (RFC 7011) sent over TCP. Messages are framed by the length field of the IPFIX header
+ * and decoded by a NetFlowV9Decoder with a template cache of its own, since IPFIX scopes templates to the
+ * transport session. Every complete message in the read buffer is decoded from a slice of it, without copying.
+ *
+ * A message with another version or an impossible length means the stream is out of sync, which cannot be
+ * recovered from on TCP: the rest of the input is discarded and the connection is closed.
+ *
+ * The packet rate of ExporterQuotas is applied as backpressure rather than by dropping messages, which would lose
+ * templates the exporter never resends on a reliable transport: once the exporter's bucket is empty the decoder
+ * stops reading from the connection (auto-read off, and no read is requested when a read completes) until the
+ * bucket holds a token again. At most MAX_BUFFERED bytes are held while paused, an exporter that keeps sending
+ * more has its connection closed, as does an exporter that is quarantined; it starts over with a new session
+ * once it reconnects.
+ *
+ * Not sharable, add a new instance per connection.
+ */
+public class IpfixTcpDecoder extends ByteToMessageDecoder {
+  private static final Logger log = LoggerFactory.getLogger(IpfixTcpDecoder.class);
+
+  static final int HEADER_LENGTH = 16;
+  static final InetSocketAddress UNKNOWN = new InetSocketAddress(0);
+  // input held while reading is paused, a few messages of the largest size
+  static final int MAX_BUFFERED = 4 * 0xFFFF;
+
+  final NetFlowV9Decoder decoder;
+  final ExporterQuotas quotas;
+  boolean paused;
+  long pauses;
+
+  /**
+   * @param netflowFactory used to build the messages
+   * @param quotas per-exporter limits (may be shared with other connections and the UDP decoder), null for none
+   */
+  public IpfixTcpDecoder(NetFlow.Factory netflowFactory, ExporterQuotas quotas) {
+    // templates always precede their data on a reliable transport, so nothing is left pending
+    this.decoder = new NetFlowV9Decoder(netflowFactory, new TemplateCache(), null, null, quotas);
+    this.quotas = quotas;
+  }
+
+  public IpfixTcpDecoder() {
+    this(new NetFlowFactoryImpl(), null);
+  }
+
+  /**
+   * @return the templates of this connection
+   */
+  public TemplateCache templateCache() {
+    return decoder.templateCache();
+  }
+
+  public DecodeStats decodeStats() {
+    return decoder.decodeStats();
+  }
+
+  /**
+   * @return how often reading was paused because the exporter exceeded its packet rate
+   */
+  public long pauseCount() {
+    return pauses;
+  }
+
+  @Override
+  protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+    while (in.readableBytes() >= 4) {
+      int index = in.readerIndex();
+      int version = in.getUnsignedShort(index);
+      int length = in.getUnsignedShort(index + 2);
+      if (version != 10 || length < HEADER_LENGTH) {
+        DecodeResult result = version != 10 ? DecodeResult.UNSUPPORTED_VERSION : DecodeResult.TRUNCATED_HEADER;
+        log.warn("Closing IPFIX connection from {}: {} (version {}, length {})",
+            ctx.channel().remoteAddress(), result, version, length);
+        decoder.decodeStats.record(result);
+        in.skipBytes(in.readableBytes());
+        ctx.close();
+        return;
+      }
+      if (in.readableBytes() < length) {
+        return;
+      }
+      InetSocketAddress sender = sender(ctx);
+      if (quotas == null || sender == null) {
+        DatagramPacket message = new DatagramPacket(in.readSlice(length), recipient(ctx), sender);
+        decoder.decodeStats.record(decoder.decodeDatagram(message, out));
+        continue;
+      }
+      long now = quotas.nanoTime();
+      long wait = quotas.pace(sender.getAddress(), now);
+      if (wait < 0) {
+        log.warn("Closing IPFIX connection from quarantined exporter {}", sender);
+        decoder.decodeStats.record(DecodeResult.DROPPED_BY_QUOTA);
+        in.skipBytes(in.readableBytes());
+        ctx.close();
+        return;
+      }
+      if (wait > 0) {
+        if (in.readableBytes() > MAX_BUFFERED) {
+          log.warn("Closing IPFIX connection from {}: {} bytes buffered while paused", sender, in.readableBytes());
+          decoder.decodeStats.record(DecodeResult.DROPPED_BY_QUOTA);
+          in.skipBytes(in.readableBytes());
+          ctx.close();
+          return;
+        }
+        pause(ctx, wait);
+        return;
+      }
+      DatagramPacket message = new DatagramPacket(in.readSlice(length), recipient(ctx), sender);
+      decoder.decodeStats.record(decoder.decodeAdmitted(message, sender.getAddress(), now, out));
+    }
+  }
+
+  @Override
+  public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+    if (paused) {
+      // ByteToMessageDecoder would request another read since the last one decoded nothing
+      discardSomeReadBytes();
+      ctx.fireChannelReadComplete();
+      return;
+    }
+    super.channelReadComplete(ctx);
+  }
+
+  void pause(ChannelHandlerContext ctx, long nanos) {
+    if (paused) {
+      return;
+    }
+    paused = true;
+    pauses++;
+    ctx.channel().config().setAutoRead(false);
+    ctx.executor().schedule(() -> resume(ctx), nanos, TimeUnit.NANOSECONDS);
+  }
+
+  void resume(ChannelHandlerContext ctx) {
+    paused = false;
+    if (ctx.isRemoved()) {
+      return;
+    }
+    ctx.channel().config().setAutoRead(true);
+    try {
+      // decode the messages that are already buffered, the exporter may have nothing more to send
+      channelRead(ctx, Unpooled.EMPTY_BUFFER);
+      ctx.fireChannelReadComplete();
+    } catch (Exception e) {
+      ctx.fireExceptionCaught(e);
+    }
+  }
+
+  static InetSocketAddress sender(ChannelHandlerContext ctx) {
+    SocketAddress address = ctx.channel().remoteAddress();
+    return address instanceof InetSocketAddress ? (InetSocketAddress) address : null;
+  }
+
+  static InetSocketAddress recipient(ChannelHandlerContext ctx) {
+    SocketAddress address = ctx.channel().localAddress();
+    // an envelope needs at least one address
+    return address instanceof InetSocketAddress ? (InetSocketAddress) address : UNKNOWN;
+  }
+}
@@ -0,0 +1,384 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes the data records of messages as newline delimited JSON, one object per record, straight from the record
+ * bytes into a ByteBuf: {"exporter":"10.0.0.1","sourceID":1,"timestamp":1500000000,"templateID":256,
+ * "IPV4_SRC_ADDR":"10.1.2.3",...}. Field names come from the FieldScheme and are encoded once per template, and
+ * values are formatted like FieldScheme.parse() does, except that numbers are always unsigned.
+ *
+ * As a handler it turns every message written to the channel into one ByteBuf for a socket and releases the
+ * message; encode(message, out) appends to a buffer of the caller, e.g. for a file.
+ */
+@ChannelHandler.Sharable
+public class JsonFlowEncoder extends MessageToMessageEncoder<NetFlow.Message> implements NetFlow {
+  static final int CACHE_SIZE = 256;
+  static final byte[][] DECIMAL = new byte[256][];
+  static final byte[] HEX_UPPER = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+  static final byte[] HEX_LOWER = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+  static final byte[] EXPORTER = "{\"exporter\":\"".getBytes(StandardCharsets.US_ASCII);
+  static final byte[] SOURCE_ID = "\",\"sourceID\":".getBytes(StandardCharsets.US_ASCII);
+  static final byte[] TIMESTAMP = ",\"timestamp\":".getBytes(StandardCharsets.US_ASCII);
+  static final byte[] REPLACEMENT = "\\uFFFD".getBytes(StandardCharsets.US_ASCII);
+  static final byte[] CONTROL = "\\u00".getBytes(StandardCharsets.US_ASCII);
+  // {"exporter":"<IPv6>","sourceID":<uint32>,"timestamp":<uint32>
+  static final int MAX_HEADER = EXPORTER.length + 39 + SOURCE_ID.length + 10 + TIMESTAMP.length + 10;
+  // lines are put together in a buffer per thread and then written to the ByteBuf at once
+  static final FastThreadLocal<byte[]> LINES = new FastThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[4096];
+    }
+  };
+
+  static {
+    for (int i = 0; i < DECIMAL.length; i++) {
+      DECIMAL[i] = Integer.toString(i).getBytes(StandardCharsets.US_ASCII);
+    }
+  }
+
+  /**
+   * How the records of a template are written: per known field its name (with the separator) and data type.
+   */
+  static final class Encoding {
+    final TemplateFlowSet template;
+    final byte[] templateID;
+    final byte[][] names;
+    final Field.DataType[] types;
+    final int[] offsets;
+    final int[] lengths;
+    final int recordLength;
+    final int estimatedSize;
+    // longest possible line of a record after the header
+    final int maxSize;
+
+    Encoding(TemplateFlowSet template, FieldScheme scheme) {
+      this.template = template;
+      this.templateID = (",\"templateID\":" + (template.templateID() & 0xFFFF))
+          .getBytes(StandardCharsets.US_ASCII);
+      List<TemplateField> fields = template.fields();
+      byte[][] names = new byte[fields.size()][];
+      Field.DataType[] types = new Field.DataType[fields.size()];
+      int[] offsets = new int[fields.size()];
+      int[] lengths = new int[fields.size()];
+      int count = 0;
+      int estimatedSize = 64 + templateID.length;
+      int maxSize = templateID.length + 2;
+      for (TemplateField templateField : fields) {
+        Field field = scheme.getField(templateField.type());
+        if (field == null) {
+          continue;
+        }
+        names[count] = (",\"" + field.name() + "\":").getBytes(StandardCharsets.US_ASCII);
+        types[count] = field.dataType();
+        offsets[count] = templateField.offset();
+        lengths[count] = templateField.length() & 0xFFFF;
+        estimatedSize += names[count].length + 2 + 3 * lengths[count];
+        maxSize += names[count].length + maxValueSize(types[count], lengths[count]);
+        count++;
+      }
+      this.names = Arrays.copyOf(names, count);
+      this.types = Arrays.copyOf(types, count);
+      this.offsets = Arrays.copyOf(offsets, count);
+      this.lengths = Arrays.copyOf(lengths, count);
+      this.recordLength = RecordLayout.of(template).recordLength();
+      this.estimatedSize = estimatedSize;
+      this.maxSize = maxSize;
+    }
+
+    static int maxValueSize(Field.DataType type, int length) {
+      switch (type) {
+        case BYTE:
+        case SHORT:
+        case INTEGER:
+        case BIG_INTEGER:
+          // 20 digits for 8 bytes, less than 2.5 digits per byte beyond
+          return 20 + 3 * length;
+        case IPV4_ADDR:
+          return 2 + 15;
+        case IPV6_ADDR:
+          return 2 + 39;
+        case MAC_ADDR:
+          return 2 + 3 * length;
+        case HEX_BYTE:
+          return 6;
+        default:
+          return 2 + 6 * length;
+      }
+    }
+  }
+
+  final FieldScheme scheme;
+  // direct mapped by template identity; racy updates are harmless since an Encoding is immutable
+  final Encoding[] encodings = new Encoding[CACHE_SIZE];
+
+  public JsonFlowEncoder(FieldScheme scheme) {
+    this.scheme = scheme;
+  }
+
+  public JsonFlowEncoder() {
+    this(new CiscoFieldScheme());
+  }
+
+  @Override
+  protected void encode(ChannelHandlerContext ctx, Message message, List<Object> out) throws Exception {
+    ByteBuf buffer = ctx.alloc().ioBuffer(estimateSize(message));
+    try {
+      encode(message, buffer);
+      out.add(buffer);
+      buffer = null;
+    } finally {
+      if (buffer != null) {
+        buffer.release();
+      }
+      message.release();
+    }
+  }
+
+  Encoding encoding(TemplateFlowSet template) {
+    int index = System.identityHashCode(template) & (CACHE_SIZE - 1);
+    Encoding encoding = encodings[index];
+    if (encoding == null || encoding.template != template) {
+      encoding = encodings[index] = new Encoding(template, scheme);
+    }
+    return encoding;
+  }
+
+  int estimateSize(Message message) {
+    int size = 0;
+    for (FlowSet flowSet : message.flowsets()) {
+      if (flowSet instanceof DataFlowSet && ((DataFlowSet) flowSet).template() != null) {
+        DataFlowSet dataFlowSet = (DataFlowSet) flowSet;
+        Encoding encoding = encoding(dataFlowSet.template());
+        if (encoding.recordLength > 0) {
+          size += dataFlowSet.data().length / encoding.recordLength * encoding.estimatedSize;
+        }
+      }
+    }
+    return Math.max(size, 64);
+  }
+
+  /**
+   * Append a line per data record of the message to out.
+   *
+   * @return the number of records written
+   */
+  public int encode(Message message, ByteBuf out) {
+    byte[] line = LINES.get();
+    int header = -1;
+    int count = 0;
+    for (FlowSet flowSet : message.flowsets()) {
+      if (!(flowSet instanceof DataFlowSet) || ((DataFlowSet) flowSet).template() == null) {
+        continue;
+      }
+      DataFlowSet dataFlowSet = (DataFlowSet) flowSet;
+      Encoding encoding = encoding(dataFlowSet.template());
+      if (encoding.recordLength == 0) {
+        continue;
+      }
+      if (header < 0 || line.length < MAX_HEADER + encoding.maxSize) {
+        if (line.length < MAX_HEADER + encoding.maxSize) {
+          line = new byte[Math.max(2 * line.length, MAX_HEADER + encoding.maxSize)];
+          LINES.set(line);
+        }
+        // the header is the same for all records of the message
+        header = writeHeader(message, line);
+      }
+      byte[] data = dataFlowSet.data();
+      int records = data.length / encoding.recordLength;
+      for (int record = 0; record < records; record++) {
+        int end = writeRecord(encoding, data, record * encoding.recordLength, line, header);
+        out.writeBytes(line, 0, end);
+        count++;
+      }
+    }
+    return count;
+  }
+
+  static int writeHeader(Message message, byte[] line) {
+    int position = write(EXPORTER, line, 0);
+    InetSocketAddress sender = message.sender();
+    if (sender != null && sender.getAddress() != null) {
+      byte[] address = sender.getAddress().getAddress();
+      position = address.length == 4 ? writeIpv4(address, 0, line, position) : writeIpv6(address, 0, line, position);
+    }
+    position = write(SOURCE_ID, line, position);
+    position = writeUnsigned(message.sourceID() & 0xFFFFFFFFL, line, position);
+    position = write(TIMESTAMP, line, position);
+    return writeUnsigned(message.timestamp() & 0xFFFFFFFFL, line, position);
+  }
+
+  /**
+   * Write the record after the header in line.
+   *
+   * @return the end of the line
+   */
+  static int writeRecord(Encoding encoding, byte[] data, int start, byte[] line, int position) {
+    position = write(encoding.templateID, line, position);
+    for (int i = 0; i < encoding.names.length; i++) {
+      int offset = start + encoding.offsets[i];
+      int length = encoding.lengths[i];
+      position = write(encoding.names[i], line, position);
+      switch (encoding.types[i]) {
+        case BYTE:
+        case SHORT:
+        case INTEGER:
+        case BIG_INTEGER:
+          position = writeNumber(data, offset, length, line, position);
+          break;
+        case IPV4_ADDR:
+          line[position++] = '"';
+          if (length == 4) {
+            position = writeIpv4(data, offset, line, position);
+          }
+          line[position++] = '"';
+          break;
+        case IPV6_ADDR:
+          line[position++] = '"';
+          if (length == 16) {
+            position = writeIpv6(data, offset, line, position);
+          }
+          line[position++] = '"';
+          break;
+        case MAC_ADDR:
+          line[position++] = '"';
+          for (int b = 0; b < length; b++) {
+            if (b > 0) {
+              line[position++] = ':';
+            }
+            line[position++] = HEX_LOWER[(data[offset + b] >> 4) & 0xF];
+            line[position++] = HEX_LOWER[data[offset + b] & 0xF];
+          }
+          line[position++] = '"';
+          break;
+        case HEX_BYTE:
+          line[position++] = '"';
+          line[position++] = '0';
+          line[position++] = 'x';
+          line[position++] = HEX_UPPER[(data[offset] >> 4) & 0xF];
+          line[position++] = HEX_UPPER[data[offset] & 0xF];
+          line[position++] = '"';
+          break;
+        default:
+          position = writeString(data, offset, length, line, position);
+      }
+    }
+    line[position++] = '}';
+    line[position++] = '\n';
+    return position;
+  }
+
+  static int write(byte[] bytes, byte[] line, int position) {
+    System.arraycopy(bytes, 0, line, position, bytes.length);
+    return position + bytes.length;
+  }
+
+  static int writeIpv4(byte[] data, int offset, byte[] line, int position) {
+    for (int i = 0; i < 4; i++) {
+      if (i > 0) {
+        line[position++] = '.';
+      }
+      position = write(DECIMAL[data[offset + i] & 0xFF], line, position);
+    }
+    return position;
+  }
+
+  /**
+   * All 8 groups of 4 upper case hex digits, the format of FieldScheme.parse().
+   */
+  static int writeIpv6(byte[] data, int offset, byte[] line, int position) {
+    for (int i = 0; i < 16; i++) {
+      if (i > 0 && (i & 1) == 0) {
+        line[position++] = ':';
+      }
+      line[position++] = HEX_UPPER[(data[offset + i] >> 4) & 0xF];
+      line[position++] = HEX_UPPER[data[offset + i] & 0xF];
+    }
+    return position;
+  }
+
+  static int writeNumber(byte[] data, int offset, int length, byte[] line, int position) {
+    if (length > 8) {
+      return write(new BigInteger(1, Arrays.copyOfRange(data, offset, offset + length)).toString()
+          .getBytes(StandardCharsets.US_ASCII), line, position);
+    }
+    long value = 0;
+    for (int i = 0; i < length; i++) {
+      value = value << 8 | data[offset + i] & 0xFF;
+    }
+    return writeUnsigned(value, line, position);
+  }
+
+  /**
+   * Write the decimal digits of an unsigned long without going through a String.
+   */
+  static int writeUnsigned(long value, byte[] line, int position) {
+    if (value >= 0 && value < 256) {
+      return write(DECIMAL[(int) value], line, position);
+    }
+    // the highest digit of a negative (very large unsigned) value needs an unsigned division first
+    long high = value < 0 ? Long.divideUnsigned(value, 10) : value / 10;
+    int last = (int) (value - high * 10);
+    int digits = 1;
+    for (long v = high; v > 0; v /= 10) {
+      digits++;
+    }
+    int index = position + digits - 1;
+    line[index--] = (byte) ('0' + last);
+    for (long v = high; v > 0; v /= 10) {
+      line[index--] = (byte) ('0' + v % 10);
+    }
+    return position + digits;
+  }
+
+  /**
+   * A JSON string of the bytes as US-ASCII; quotes and control characters are escaped and bytes outside of
+   * US-ASCII become U+FFFD like the US-ASCII decoder makes them.
+   */
+  static int writeString(byte[] data, int offset, int length, byte[] line, int position) {
+    line[position++] = '"';
+    for (int i = offset; i < offset + length; i++) {
+      int c = data[i] & 0xFF;
+      if (c == '"' || c == '\\') {
+        line[position++] = '\\';
+        line[position++] = (byte) c;
+      } else if (c >= 0x80) {
+        position = write(REPLACEMENT, line, position);
+      } else if (c < 0x20) {
+        position = write(CONTROL, line, position);
+        line[position++] = HEX_UPPER[c >> 4];
+        line[position++] = HEX_UPPER[c & 0xF];
+      } else {
+        line[position++] = (byte) c;
+      }
+    }
+    line[position++] = '"';
+    return position;
+  }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative long values (latencies in whatever unit the caller picks) with
+ * log-linear buckets: values below 64 have a bucket each, above that every power of two is split into 32 buckets,
+ * so any recorded value is reported within about 3% over the whole long range in a fixed 15 KiB.
+ * Recording is a single atomic increment; negative values are counted as 0.
+ *
+ * Snapshots are plain copies that can be merged, e.g. to combine the histograms of several exporters.
+ */
+public final class LatencyHistogram {
+  static final int SUB_BUCKET_BITS = 5;
+  static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  static final int BUCKETS = bucket(Long.MAX_VALUE) + 1;
+
+  final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  final LongAdder sum = new LongAdder();
+
+  static int bucket(long value) {
+    if (value < 2 * SUB_BUCKETS) {
+      return (int) Math.max(value, 0);
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    return shift * SUB_BUCKETS + (int) (value >>> shift);
+  }
+
+  /**
+   * @return the smallest value that falls into the bucket
+   */
+  static long lowestValue(int bucket) {
+    if (bucket < 2 * SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    return (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+  }
+
+  /**
+   * @return the largest value that falls into the bucket
+   */
+  static long highestValue(int bucket) {
+    return bucket + 1 < BUCKETS ? lowestValue(bucket + 1) - 1 : Long.MAX_VALUE;
+  }
+
+  public void record(long value) {
+    counts.incrementAndGet(bucket(value));
+    sum.add(Math.max(value, 0));
+  }
+
+  public Snapshot snapshot() {
+    long[] copy = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      copy[i] = counts.get(i);
+    }
+    return new Snapshot(copy, sum.sum());
+  }
+
+  /**
+   * Point-in-time copy of a histogram. Counts of concurrently recorded values may be slightly off from the sum.
+   */
+  public static final class Snapshot {
+    final long[] counts;
+    final long sum;
+    final long count;
+
+    Snapshot(long[] counts, long sum) {
+      this.counts = counts;
+      this.sum = sum;
+      long count = 0;
+      for (long c : counts) {
+        count += c;
+      }
+      this.count = count;
+    }
+
+    public static Snapshot empty() {
+      return new Snapshot(new long[BUCKETS], 0);
+    }
+
+    /**
+     * @return a new snapshot holding the values of both
+     */
+    public Snapshot merge(Snapshot other) {
+      long[] merged = new long[BUCKETS];
+      for (int i = 0; i < BUCKETS; i++) {
+        merged[i] = counts[i] + other.counts[i];
+      }
+      return new Snapshot(merged, sum + other.sum);
+    }
+
+    public long count() {
+      return count;
+    }
+
+    public double mean() {
+      return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @return the upper bound of the bucket holding the value at the given percentile (0 - 100), 0 when empty
+     */
+    public long percentile(double percentile) {
+      if (percentile < 0 || percentile > 100) {
+        throw new IllegalArgumentException("percentile must be between 0 and 100");
+      }
+      if (count == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return highestValue(i);
+        }
+      }
+      return Long.MAX_VALUE;
+    }
+
+    public long min() {
+      for (int i = 0; i < BUCKETS; i++) {
+        if (counts[i] > 0) {
+          return lowestValue(i);
+        }
+      }
+      return 0;
+    }
+
+    public long max() {
+      for (int i = BUCKETS - 1; i >= 0; i--) {
+        if (counts[i] > 0) {
+          return highestValue(i);
+        }
+      }
+      return 0;
+    }
+
+    @Override
+    public String toString() {
+      return "count=" + count + " mean=" + (long) mean() + " p50=" + percentile(50) + " p99=" + percentile(99)
+          + " max=" + max();
+    }
+  }
+}
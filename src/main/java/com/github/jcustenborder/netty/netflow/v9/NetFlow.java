@@ -21,6 +21,7 @@ import org.slf4j.LoggerFactory;
 import java.math.BigInteger;
 import java.net.InetSocketAddress;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -29,17 +30,24 @@ import java.util.List;
  * This is a 'namespace' interface that contains all the interfaces (and a DTO class) related to NetFlow
  */
 public interface NetFlow {
+  /**
+   * Mutable (within the package) so that a pooling Factory can reuse instances, see Factory.header().
+   */
   final class Header {
-    final short version;
-    final short count;
-    final int uptime;
-    final int timestamp;
-    final int flowSequence;
-    final int sourceID;
-    final InetSocketAddress sender;
-    final InetSocketAddress recipient;
+    short version;
+    short count;
+    int uptime;
+    int timestamp;
+    int flowSequence;
+    int sourceID;
+    InetSocketAddress sender;
+    InetSocketAddress recipient;
 
     Header(short version, short count, int uptime, int timestamp, int flowSequence, int sourceID, InetSocketAddress sender, InetSocketAddress recipient) {
+      set(version, count, uptime, timestamp, flowSequence, sourceID, sender, recipient);
+    }
+
+    Header set(short version, short count, int uptime, int timestamp, int flowSequence, int sourceID, InetSocketAddress sender, InetSocketAddress recipient) {
       this.version = version;
       this.count = count;
       this.uptime = uptime;
@@ -48,6 +56,14 @@ public interface NetFlow {
       this.sourceID = sourceID;
       this.sender = sender;
       this.recipient = recipient;
+      return this;
+    }
+
+    /**
+     * @return a copy to hold on to beyond the decoding of the packet
+     */
+    Header copy() {
+      return new Header(version, count, uptime, timestamp, flowSequence, sourceID, sender, recipient);
     }
   }
 
@@ -69,6 +85,13 @@ public interface NetFlow {
     InetSocketAddress recipient();
 
     List<FlowSet> flowsets();
+
+    /**
+     * Hand the message (and its data FlowSets) back to the Factory that made it for reuse; the message must not be
+     * used afterwards. A no-op unless the decoder uses a pooling Factory such as RecyclingNetFlowFactory.
+     */
+    default void release() {
+    }
   }
 
   interface FlowSet {
@@ -99,6 +122,22 @@ public interface NetFlow {
   }
 
   interface Factory {
+    /**
+     * The header of the packet being decoded. It is only used until the packet's netflowMessage() is created,
+     * so a pooling factory may hand out the same instance again afterwards.
+     */
+    default Header header(short version, short count, int uptime, int timestamp, int flowSequence, int sourceID,
+                          InetSocketAddress sender, InetSocketAddress recipient) {
+      return new Header(version, count, uptime, timestamp, flowSequence, sourceID, sender, recipient);
+    }
+
+    /**
+     * The list the decoder collects the FlowSets of a packet into before passing it to netflowMessage().
+     */
+    default List<FlowSet> flowSets() {
+      return new ArrayList<>();
+    }
+
     Message netflowMessage(Header header, List<FlowSet> flowsets);
 
     TemplateField templateField(short type, short length, int offset);
@@ -232,11 +271,7 @@ public interface NetFlow {
       }
 
       // network is BIG ENDIAN!
-      long val = 0;
-      for (int i = 0; i < len; ++i) {
-        val <<= 8;
-        val |= data[off + i] & 0xFF;
-      }
+      long val = len > 0 ? FieldReader.getUnsigned(data, off, len) : 0;
 
       if (val >= Integer.MIN_VALUE && val <= Integer.MAX_VALUE) {
         if (val >= Short.MIN_VALUE && val <= Short.MAX_VALUE) {
@@ -0,0 +1,53 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.handler.codec.MessageToMessageDecoder;
+
+import java.util.List;
+
+/**
+ * Sniffs the version of every datagram and hands it to the NetFlowV5Decoder (version 5, producing
+ * NetFlowV5Message) or the NetFlowV9Decoder (version 9 and IPFIX, producing NetFlow.Message),
+ * so one port can serve every exporter. Anything else is counted as DecodeResult.UNSUPPORTED_VERSION by the
+ * NetFlowV9Decoder.
+ */
+public class NetFlowDecoder extends MessageToMessageDecoder<DatagramPacket> {
+  final NetFlowV5Decoder v5Decoder;
+  final NetFlowV9Decoder v9Decoder;
+
+  public NetFlowDecoder(NetFlowV5Decoder v5Decoder, NetFlowV9Decoder v9Decoder) {
+    this.v5Decoder = v5Decoder;
+    this.v9Decoder = v9Decoder;
+  }
+
+  public NetFlowDecoder() {
+    this(new NetFlowV5Decoder(), new NetFlowV9Decoder());
+  }
+
+  @Override
+  protected void decode(ChannelHandlerContext channelHandlerContext, DatagramPacket datagramPacket, List<Object> output) throws Exception {
+    ByteBuf input = datagramPacket.content();
+    if (null != input && input.readableBytes() >= 2 && input.getShort(input.readerIndex()) == 5) {
+      v5Decoder.decode(channelHandlerContext, datagramPacket, output);
+    } else {
+      v9Decoder.decode(channelHandlerContext, datagramPacket, output);
+    }
+  }
+}
@@ -126,6 +126,8 @@ class NetFlowFactoryImpl implements NetFlow.Factory, NetFlow {
     final short flowsetID;
     final short templateID;
     final List<TemplateField> fields;
+    // derived lazily, racy initialization is harmless since RecordLayout is immutable
+    RecordLayout layout;
 
     TemplateFlowSetImpl(short flowsetID, short templateID, List<TemplateField> fields) {
       this.flowsetID = flowsetID;
@@ -133,6 +135,14 @@ class NetFlowFactoryImpl implements NetFlow.Factory, NetFlow {
       this.fields = fields;
     }
 
+    RecordLayout layout() {
+      RecordLayout layout = this.layout;
+      if (layout == null) {
+        layout = this.layout = new RecordLayout(this);
+      }
+      return layout;
+    }
+
     @Override
     public short flowsetID() {
       return this.flowsetID;
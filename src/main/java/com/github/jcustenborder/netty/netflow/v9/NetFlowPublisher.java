@@ -0,0 +1,205 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reactive Streams Publisher of the NetFlow.Message objects decoded on a channel; place it right after the
+ * NetFlowV9Decoder. It switches the channel to autoRead = false and only asks the channel for another read while
+ * the subscriber has outstanding demand, so at most one read batch of messages is ever buffered.
+ *
+ * Messages buffered when the subscription is cancelled, or read afterwards, are released.
+ *
+ * The publisher is unicast: a second subscriber is rejected with an IllegalStateException.
+ * All signals are delivered on the channel's event loop and the stream completes when the channel becomes inactive.
+ * Decoding errors of single datagrams are not stream errors; they keep travelling down the pipeline.
+ */
+public class NetFlowPublisher extends ChannelInboundHandlerAdapter implements Publisher<NetFlow.Message> {
+  final AtomicReference<Subscriber<? super NetFlow.Message>> subscriber = new AtomicReference<>();
+  final AtomicLong demand = new AtomicLong();
+  final Runnable drain = this::drain;
+  volatile ChannelHandlerContext ctx;
+  volatile boolean cancelled;
+  volatile Throwable error;
+
+  // only touched on the event loop
+  final Queue<NetFlow.Message> buffer = new ArrayDeque<>();
+  boolean reading;
+  boolean completed;
+  boolean terminated;
+  boolean draining;
+  boolean missed;
+
+  @Override
+  public void subscribe(Subscriber<? super NetFlow.Message> s) {
+    if (s == null) {
+      throw new NullPointerException("subscriber");
+    }
+    if (!subscriber.compareAndSet(null, s)) {
+      s.onSubscribe(new Subscription() {
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+      });
+      s.onError(new IllegalStateException("NetFlowPublisher only supports a single subscriber"));
+      return;
+    }
+    s.onSubscribe(new Subscription() {
+      @Override
+      public void request(long n) {
+        if (n <= 0) {
+          error = new IllegalArgumentException("request must be positive (rule 3.9): " + n);
+          cancelled = true;
+        } else {
+          long current;
+          do {
+            current = demand.get();
+          } while (!demand.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+        }
+        scheduleDrain();
+      }
+
+      @Override
+      public void cancel() {
+        cancelled = true;
+        scheduleDrain();
+      }
+    });
+  }
+
+  void scheduleDrain() {
+    ChannelHandlerContext ctx = this.ctx;
+    if (ctx != null) {
+      if (ctx.executor().inEventLoop()) {
+        drain();
+      } else {
+        ctx.executor().execute(drain);
+      }
+    }
+  }
+
+  /**
+   * Deliver buffered messages as far as demand allows and request another read when there is demand left.
+   * Re-entrant calls (a subscriber requesting from within onNext) are folded into the running loop.
+   */
+  void drain() {
+    if (draining) {
+      missed = true;
+      return;
+    }
+    draining = true;
+    try {
+      do {
+        missed = false;
+        drainOnce();
+      } while (missed);
+    } finally {
+      draining = false;
+    }
+  }
+
+  private void drainOnce() {
+    Subscriber<? super NetFlow.Message> s = subscriber.get();
+    if (s == null || terminated) {
+      return;
+    }
+    if (cancelled) {
+      terminated = true;
+      for (NetFlow.Message message = buffer.poll(); message != null; message = buffer.poll()) {
+        message.release();
+      }
+      if (error != null) {
+        s.onError(error);
+      }
+      return;
+    }
+    while (demand.get() > 0 && !buffer.isEmpty()) {
+      demand.decrementAndGet();
+      s.onNext(buffer.poll());
+      if (cancelled) {
+        return;
+      }
+    }
+    if (buffer.isEmpty() && (completed || error != null)) {
+      terminated = true;
+      if (error != null) {
+        s.onError(error);
+      } else {
+        s.onComplete();
+      }
+      return;
+    }
+    // a read before the channel is active does nothing, and no channelReadComplete would follow it
+    if (demand.get() > buffer.size() && !reading && !completed && ctx.channel().isActive()) {
+      reading = true;
+      ctx.read();
+    }
+  }
+
+  @Override
+  public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+    this.ctx = ctx;
+    ctx.channel().config().setAutoRead(false);
+    drain();
+  }
+
+  @Override
+  public void channelActive(ChannelHandlerContext ctx) throws Exception {
+    ctx.fireChannelActive();
+    drain();
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (msg instanceof NetFlow.Message) {
+      if (terminated) {
+        ((NetFlow.Message) msg).release();
+        return;
+      }
+      buffer.add((NetFlow.Message) msg);
+    } else {
+      ctx.fireChannelRead(msg);
+    }
+  }
+
+  @Override
+  public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+    reading = false;
+    drain();
+    ctx.fireChannelReadComplete();
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    completed = true;
+    drain();
+    ctx.fireChannelInactive();
+  }
+}
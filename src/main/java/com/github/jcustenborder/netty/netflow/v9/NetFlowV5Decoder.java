@@ -0,0 +1,91 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.handler.codec.MessageToMessageDecoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * Decodes NetFlow v5 datagrams into NetFlowV5Message objects that share the datagram buffer.
+ * v5 has a fixed layout (24 byte header, up to 30 records of 48 bytes), so there is no template state.
+ */
+public class NetFlowV5Decoder extends MessageToMessageDecoder<DatagramPacket> {
+  private static final Logger log = LoggerFactory.getLogger(NetFlowV5Decoder.class);
+
+  final DecodeStats decodeStats = new DecodeStats();
+
+  /**
+   * @return how many datagrams were decoded or rejected as malformed
+   */
+  public DecodeStats decodeStats() {
+    return decodeStats;
+  }
+
+  @Override
+  protected void decode(ChannelHandlerContext channelHandlerContext, DatagramPacket datagramPacket, List<Object> output) throws Exception {
+    decodeStats.record(decodeDatagram(datagramPacket, output));
+  }
+
+  /**
+   * Decode the datagram into output. Malformed datagrams produce no output and are reported by the result
+   * rather than an exception.
+   */
+  DecodeResult decodeDatagram(DatagramPacket datagramPacket, List<Object> output) {
+    ByteBuf input = datagramPacket.content();
+
+    if (null == input || !input.isReadable()) {
+      log.trace("Message from {} was not usable.", datagramPacket.sender());
+      return DecodeResult.EMPTY;
+    }
+    if (input.readableBytes() < 2 || input.getShort(input.readerIndex()) != 5) {
+      return DecodeResult.UNSUPPORTED_VERSION;
+    }
+    if (input.readableBytes() < NetFlowV5Message.HEADER_LENGTH) {
+      return DecodeResult.TRUNCATED_HEADER;
+    }
+    int count = input.getUnsignedShort(input.readerIndex() + 2);
+    if (count > NetFlowV5Message.MAX_RECORDS
+        || input.readableBytes() - NetFlowV5Message.HEADER_LENGTH < count * NetFlowV5Message.RECORD_LENGTH) {
+      return DecodeResult.INVALID_RECORD_COUNT;
+    }
+
+    input.skipBytes(4);
+    int uptime = input.readInt();
+    int unixSeconds = input.readInt();
+    int unixNanos = input.readInt();
+    int flowSequence = input.readInt();
+    byte engineType = input.readByte();
+    byte engineID = input.readByte();
+    short samplingInterval = input.readShort();
+
+    if (log.isTraceEnabled()) {
+      log.trace("version = 5 count = {} uptime = {} unixSeconds = {} flowSequence = {} engine = {}/{}",
+          count, uptime, unixSeconds, flowSequence, engineType, engineID);
+    }
+
+    ByteBuf records = input.readRetainedSlice(count * NetFlowV5Message.RECORD_LENGTH);
+    input.skipBytes(input.readableBytes());
+    output.add(new NetFlowV5Message(records, count, uptime, unixSeconds, unixNanos, flowSequence,
+        engineType, engineID, samplingInterval, datagramPacket.sender(), datagramPacket.recipient()));
+    return DecodeResult.OK;
+  }
+}
@@ -0,0 +1,260 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.DefaultByteBufHolder;
+
+import java.net.InetSocketAddress;
+import java.util.NoSuchElementException;
+
+/**
+ * A NetFlow v5 export packet. The records stay in the (retained) datagram buffer and are read through a Record
+ * flyweight, so decoding allocates nothing per record. Like any ByteBufHolder the message has to be released
+ * by whoever consumes it.
+ *
+ * https://www.cisco.com/c/en/us/td/docs/net_mgmt/netflow_collection_engine/3-6/user/guide/format.html#wp1006108
+ */
+public final class NetFlowV5Message extends DefaultByteBufHolder {
+  public static final int HEADER_LENGTH = 24;
+  public static final int RECORD_LENGTH = 48;
+  public static final int MAX_RECORDS = 30;
+
+  final int count;
+  final int uptime;
+  final int unixSeconds;
+  final int unixNanos;
+  final int flowSequence;
+  final byte engineType;
+  final byte engineID;
+  final short samplingInterval;
+  final InetSocketAddress sender;
+  final InetSocketAddress recipient;
+
+  NetFlowV5Message(ByteBuf records, int count, int uptime, int unixSeconds, int unixNanos, int flowSequence,
+                   byte engineType, byte engineID, short samplingInterval,
+                   InetSocketAddress sender, InetSocketAddress recipient) {
+    super(records);
+    this.count = count;
+    this.uptime = uptime;
+    this.unixSeconds = unixSeconds;
+    this.unixNanos = unixNanos;
+    this.flowSequence = flowSequence;
+    this.engineType = engineType;
+    this.engineID = engineID;
+    this.samplingInterval = samplingInterval;
+    this.sender = sender;
+    this.recipient = recipient;
+  }
+
+  public short version() {
+    return 5;
+  }
+
+  public int count() {
+    return count;
+  }
+
+  public int uptime() {
+    return uptime;
+  }
+
+  public int unixSeconds() {
+    return unixSeconds;
+  }
+
+  public int unixNanos() {
+    return unixNanos;
+  }
+
+  public int flowSequence() {
+    return flowSequence;
+  }
+
+  public byte engineType() {
+    return engineType;
+  }
+
+  public byte engineID() {
+    return engineID;
+  }
+
+  /**
+   * @return sampling mode in the top 2 bits and the sampling interval in the low 14 bits
+   */
+  public short samplingInterval() {
+    return samplingInterval;
+  }
+
+  public InetSocketAddress sender() {
+    return sender;
+  }
+
+  public InetSocketAddress recipient() {
+    return recipient;
+  }
+
+  /**
+   * @return a new flyweight positioned before the first record; call next() to advance it
+   */
+  public Record records() {
+    return new Record(content(), count);
+  }
+
+  @Override
+  public NetFlowV5Message replace(ByteBuf content) {
+    return new NetFlowV5Message(content, count, uptime, unixSeconds, unixNanos, flowSequence,
+        engineType, engineID, samplingInterval, sender, recipient);
+  }
+
+  @Override
+  public NetFlowV5Message retain() {
+    super.retain();
+    return this;
+  }
+
+  @Override
+  public NetFlowV5Message retain(int increment) {
+    super.retain(increment);
+    return this;
+  }
+
+  @Override
+  public String toString() {
+    return "NetFlowV5Message(count=" + count + ", flowSequence=" + flowSequence + ", sender=" + sender + ")";
+  }
+
+  /**
+   * Cursor over the fixed 48 byte v5 records. Addresses are returned as big endian ints,
+   * unsigned values are widened to int/long.
+   */
+  public static final class Record {
+    final ByteBuf buffer;
+    final int count;
+    int index = -1;
+    int base;
+
+    Record(ByteBuf buffer, int count) {
+      this.buffer = buffer;
+      this.count = count;
+    }
+
+    public boolean hasNext() {
+      return index + 1 < count;
+    }
+
+    public Record next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return moveTo(index + 1);
+    }
+
+    /**
+     * Position the flyweight on the given record.
+     */
+    public Record moveTo(int index) {
+      if (index < 0 || index >= count) {
+        throw new IndexOutOfBoundsException("record " + index + " of " + count);
+      }
+      this.index = index;
+      this.base = buffer.readerIndex() + index * RECORD_LENGTH;
+      return this;
+    }
+
+    public int index() {
+      return index;
+    }
+
+    public int srcAddr() {
+      return buffer.getInt(base);
+    }
+
+    public int dstAddr() {
+      return buffer.getInt(base + 4);
+    }
+
+    public int nextHop() {
+      return buffer.getInt(base + 8);
+    }
+
+    public int input() {
+      return buffer.getUnsignedShort(base + 12);
+    }
+
+    public int output() {
+      return buffer.getUnsignedShort(base + 14);
+    }
+
+    public long packets() {
+      return buffer.getUnsignedInt(base + 16);
+    }
+
+    public long octets() {
+      return buffer.getUnsignedInt(base + 20);
+    }
+
+    /**
+     * @return sysUptime (ms) at the start of the flow
+     */
+    public long first() {
+      return buffer.getUnsignedInt(base + 24);
+    }
+
+    /**
+     * @return sysUptime (ms) when the last packet of the flow was received
+     */
+    public long last() {
+      return buffer.getUnsignedInt(base + 28);
+    }
+
+    public int srcPort() {
+      return buffer.getUnsignedShort(base + 32);
+    }
+
+    public int dstPort() {
+      return buffer.getUnsignedShort(base + 34);
+    }
+
+    public int tcpFlags() {
+      return buffer.getUnsignedByte(base + 37);
+    }
+
+    public int protocol() {
+      return buffer.getUnsignedByte(base + 38);
+    }
+
+    public int tos() {
+      return buffer.getUnsignedByte(base + 39);
+    }
+
+    public int srcAs() {
+      return buffer.getUnsignedShort(base + 40);
+    }
+
+    public int dstAs() {
+      return buffer.getUnsignedShort(base + 42);
+    }
+
+    public int srcMask() {
+      return buffer.getUnsignedByte(base + 44);
+    }
+
+    public int dstMask() {
+      return buffer.getUnsignedByte(base + 45);
+    }
+  }
+}
@@ -22,11 +22,15 @@ import io.netty.handler.codec.MessageToMessageDecoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 
 public class NetFlowV9Decoder extends MessageToMessageDecoder<DatagramPacket>
@@ -34,15 +38,172 @@ public class NetFlowV9Decoder extends MessageToMessageDecoder<DatagramPacket>
   private static final Logger log = LoggerFactory.getLogger(NetFlowV9Decoder.class);
 
   final NetFlow.Factory netflowFactory;
+  final TemplateCache templateCache;
+  final PendingFlowSetBuffer pendingBuffer;
+  final TemplateInterner templateInterner;
+  final ExporterQuotas quotas;
+  final FlowLatencyTracker latencyTracker;
+  final DecodeStats decodeStats = new DecodeStats();
+  // most channels see one exporter after the other, reusing its key saves an allocation per packet
+  ExporterKey lastExporter;
 
-  public NetFlowV9Decoder(NetFlow.Factory netflowFactory) {
+  /**
+   * @param pendingBuffer where data FlowSets with an unknown template wait for it, null to discard them
+   * @param templateInterner shares identical templates (also between decoders using the same interner), null to
+   *                         build every template
+   * @param quotas per-exporter limits, null for none
+   * @param latencyTracker records decode latency and export delay per exporter, null for none
+   */
+  public NetFlowV9Decoder(NetFlow.Factory netflowFactory, TemplateCache templateCache, PendingFlowSetBuffer pendingBuffer,
+                          TemplateInterner templateInterner, ExporterQuotas quotas, FlowLatencyTracker latencyTracker) {
     this.netflowFactory = netflowFactory;
+    this.templateCache = templateCache;
+    this.pendingBuffer = pendingBuffer;
+    this.templateInterner = templateInterner;
+    this.quotas = quotas;
+    this.latencyTracker = latencyTracker;
+  }
+
+  public NetFlowV9Decoder(NetFlow.Factory netflowFactory, TemplateCache templateCache, PendingFlowSetBuffer pendingBuffer,
+                          TemplateInterner templateInterner, ExporterQuotas quotas) {
+    this(netflowFactory, templateCache, pendingBuffer, templateInterner, quotas, null);
+  }
+
+  public NetFlowV9Decoder(NetFlow.Factory netflowFactory, TemplateCache templateCache, PendingFlowSetBuffer pendingBuffer,
+                          TemplateInterner templateInterner) {
+    this(netflowFactory, templateCache, pendingBuffer, templateInterner, null);
+  }
+
+  public NetFlowV9Decoder(NetFlow.Factory netflowFactory, TemplateCache templateCache, PendingFlowSetBuffer pendingBuffer) {
+    this(netflowFactory, templateCache, pendingBuffer, new TemplateInterner());
+  }
+
+  public NetFlowV9Decoder(NetFlow.Factory netflowFactory) {
+    this(netflowFactory, new TemplateCache(), new PendingFlowSetBuffer());
   }
 
   public NetFlowV9Decoder() {
     this(new NetFlowFactoryImpl());
   }
 
+  public TemplateCache templateCache() {
+    return templateCache;
+  }
+
+  /**
+   * @return the pending buffer (with its metrics) or null if FlowSets with an unknown template are discarded
+   */
+  public PendingFlowSetBuffer pendingBuffer() {
+    return pendingBuffer;
+  }
+
+  /**
+   * @return the per-exporter quotas (with their stats) or null if exporters are not limited
+   */
+  public ExporterQuotas quotas() {
+    return quotas;
+  }
+
+  /**
+   * @return the template interner or null if templates are not interned
+   */
+  public TemplateInterner templateInterner() {
+    return templateInterner;
+  }
+
+  /**
+   * @return the latency tracker or null if latencies are not recorded
+   */
+  public FlowLatencyTracker latencyTracker() {
+    return latencyTracker;
+  }
+
+  /**
+   * @return how many datagrams were decoded, dropped or rejected as malformed
+   */
+  public DecodeStats decodeStats() {
+    return decodeStats;
+  }
+
+  /**
+   * Walk the header and FlowSet headers of the datagram without consuming it and check that every length is
+   * consistent, so that decoding it afterwards cannot run out of bytes. Nothing is allocated and nothing is
+   * thrown; a hostile datagram costs a few comparisons.
+   */
+  static DecodeResult validate(ByteBuf input) {
+    int index = input.readerIndex();
+    final int end = input.writerIndex();
+    if (end - index < 2) {
+      return DecodeResult.TRUNCATED_HEADER;
+    }
+    short version = input.getShort(index);
+    if (version != 9 && version != 10) {
+      return DecodeResult.UNSUPPORTED_VERSION;
+    }
+    int headerLength = version == 9 ? 20 : 16;
+    if (end - index < headerLength) {
+      return DecodeResult.TRUNCATED_HEADER;
+    }
+    index += headerLength;
+    while (index < end) {
+      if (end - index < 4) {
+        return DecodeResult.TRUNCATED_FLOWSET;
+      }
+      int flowSetID = input.getUnsignedShort(index);
+      int length = input.getUnsignedShort(index + 2);
+      if (length < 4) {
+        return DecodeResult.INVALID_FLOWSET_LENGTH;
+      }
+      if (length > end - index) {
+        return DecodeResult.TRUNCATED_FLOWSET;
+      }
+      if (isTemplateSet(version, flowSetID)) {
+        DecodeResult result = validateTemplates(input, index + 4, index + length, version == 10);
+        if (result != DecodeResult.OK) {
+          return result;
+        }
+      }
+      index += length;
+    }
+    return DecodeResult.OK;
+  }
+
+  /**
+   * Template FlowSets have ID 0 in NetFlow v9, template Sets ID 2 in IPFIX.
+   */
+  static boolean isTemplateSet(int version, int flowSetID) {
+    return flowSetID == (version == 10 ? 2 : 0);
+  }
+
+  /**
+   * Check the template records between index and end: a template ID of 256 or more and fieldCount field
+   * specifiers of 4 bytes (8 for IPFIX enterprise-specific ones) each, followed by less than 4 bytes of padding.
+   * IPFIX also allows the record withdrawing all templates: the template Set ID 2 as template ID, without fields.
+   */
+  static DecodeResult validateTemplates(ByteBuf input, int index, int end, boolean ipfix) {
+    if (end - index < 4) {
+      return DecodeResult.MALFORMED_TEMPLATE;
+    }
+    while (end - index >= 4) {
+      int templateID = input.getUnsignedShort(index);
+      int fieldCount = input.getUnsignedShort(index + 2);
+      if (templateID < 256 && !(ipfix && templateID == 2 && fieldCount == 0)) {
+        return DecodeResult.MALFORMED_TEMPLATE;
+      }
+      index += 4;
+      for (int i = 0; i < fieldCount; i++) {
+        if (end - index < 4) {
+          return DecodeResult.MALFORMED_TEMPLATE;
+        }
+        index += ipfix && (input.getShort(index) & 0x8000) != 0 ? 8 : 4;
+      }
+      if (index > end) {
+        return DecodeResult.MALFORMED_TEMPLATE;
+      }
+    }
+    return DecodeResult.OK;
+  }
+
   /**
    *  Here we read the version first and then:
    *  version == 9 means NetFlow v9 (20 bytes header)
@@ -61,50 +222,75 @@ public class NetFlowV9Decoder extends MessageToMessageDecoder<DatagramPacket>
     int flowSequence = input.readInt();
     int sourceID = input.readInt();
 
-    log.trace("version = {} count = {} uptime = {} timestamp = {} flowSequence = {} sourceID = {}",
-            version, count, uptime, timestamp, flowSequence, sourceID
-    );
+    if (log.isTraceEnabled()) {
+      log.trace("version = {} count = {} uptime = {} timestamp = {} flowSequence = {} sourceID = {}",
+              version, count, uptime, timestamp, flowSequence, sourceID
+      );
+    }
 
-    return new Header(version, count, uptime, timestamp, flowSequence, sourceID, sender, recipient);
+    return this.netflowFactory.header(version, count, uptime, timestamp, flowSequence, sourceID, sender, recipient);
   }
 
-  private void checkReadFully(ByteBuf input) {
-    if (input.readableBytes() > 0) {
-      throw new IllegalStateException(
-          String.format("input has %s bytes remaining.", input.readableBytes())
-      );
+  /**
+   * Decode the template record at the reader index of the (validated) template FlowSet.
+   *
+   * @return the template or null for a record without fields (an IPFIX template withdrawal)
+   */
+  protected TemplateFlowSet decodeTemplate(ByteBuf set, short flowSetID, boolean ipfix) {
+    int start = set.readerIndex();
+    int fieldCount = set.getUnsignedShort(start + 2);
+    int end = start + 4;
+    for (int j = 0; j < fieldCount; j++) {
+      end += ipfix && (set.getShort(end) & 0x8000) != 0 ? 8 : 4;
+    }
+    if (fieldCount == 0) {
+      set.readerIndex(end);
+      return null;
     }
-  }
 
-  protected TemplateFlowSet decodeTemplate(ByteBuf b, short flowSetID) {
-    int length = b.readShort() - 4;
-    log.trace("readSlice({})", length);
-    ByteBuf input = b.readSlice(length);
+    TemplateInterner.Key key = null;
+    if (templateInterner != null) {
+      key = TemplateInterner.key(flowSetID, set.slice(start, end - start));
+      TemplateFlowSet interned = templateInterner.get(key);
+      if (interned != null) {
+        set.readerIndex(end);
+        return interned;
+      }
+    }
 
-    short templateID = input.readShort();
-    short fieldCount = input.readShort();
-    log.trace("templateID = {} fieldCount = {}", templateID, fieldCount);
+    short templateID = set.readShort();
+    set.skipBytes(2);
+    if (log.isTraceEnabled()) {
+      log.trace("templateID = {} fieldCount = {}", templateID, fieldCount);
+    }
     List<TemplateField> fields = new ArrayList<>(fieldCount);
     int fieldOffset = 0;
-    for (short j = 1; j <= fieldCount; j++) {
-      short fieldType = input.readShort();
-      short fieldLength = input.readShort();
-      log.trace("field({}/{}): type = {} length = {} offset = {}", j, fieldCount, fieldType, fieldLength, fieldOffset);
+    for (int j = 1; j <= fieldCount; j++) {
+      short fieldType = set.readShort();
+      short fieldLength = set.readShort();
+      if (ipfix && (fieldType & 0x8000) != 0) {
+        // the enterprise number is not kept, the type keeps the enterprise bit so it cannot clash with IANA types
+        set.skipBytes(4);
+      }
+      if (log.isTraceEnabled()) {
+        log.trace("field({}/{}): type = {} length = {} offset = {}", j, fieldCount, fieldType, fieldLength, fieldOffset);
+      }
 
       TemplateField templateField = this.netflowFactory.templateField(fieldType, fieldLength, fieldOffset);
       fields.add(templateField);
-      fieldOffset += fieldLength;
+      fieldOffset += fieldLength & 0xFFFF;
     }
-    checkReadFully(input);
-    return this.netflowFactory.templateFlowSet(flowSetID, templateID, fields);
+    TemplateFlowSet template = this.netflowFactory.templateFlowSet(flowSetID, templateID, Collections.unmodifiableList(fields));
+    return key != null ? templateInterner.intern(key, template) : template;
   }
 
   protected DataFlowSet decodeData(ByteBuf b, short flowSetID, TemplateFlowSet template) {
-    int length = b.readShort() - 4;
-    log.trace("readSlice({})", length);
-    ByteBuf input = b.readSlice(length);
+    int length = b.readUnsignedShort() - 4;
+    if (log.isTraceEnabled()) {
+      log.trace("readBytes({})", length);
+    }
     byte[] data = new byte[length];
-    input.readBytes(data);
+    b.readBytes(data);
 
     /*// <Dump -------------------------------->
     CiscoFieldScheme fieldScheme = new CiscoFieldScheme();
@@ -127,43 +313,239 @@ public class NetFlowV9Decoder extends MessageToMessageDecoder<DatagramPacket>
 
   @Override
   protected void decode(ChannelHandlerContext channelHandlerContext, DatagramPacket datagramPacket, List<Object> output) throws Exception {
+    if (latencyTracker == null) {
+      decodeStats.record(decodeDatagram(datagramPacket, output));
+      return;
+    }
+    long started = System.nanoTime();
+    DecodeResult result = decodeDatagram(datagramPacket, output);
+    decodeStats.record(result);
+    if (result == DecodeResult.OK) {
+      // the packet's own Message comes last, after any replayed ones, and lastExporter is its exporter
+      latencyTracker.record(channelHandlerContext, lastExporter, (Message) output.get(output.size() - 1), started);
+    }
+  }
+
+  /**
+   * Decode the datagram into output. Malformed datagrams produce no output and are reported by the result
+   * rather than an exception.
+   */
+  DecodeResult decodeDatagram(DatagramPacket datagramPacket, List<Object> output) {
     ByteBuf input = datagramPacket.content();
 
     if (null == input || !input.isReadable()) {
       log.trace("Message from {} was not usable.", datagramPacket.sender());
+      return DecodeResult.EMPTY;
+    }
+
+    InetAddress address = datagramPacket.sender() != null ? datagramPacket.sender().getAddress() : null;
+    if (quotas == null || address == null) {
+      return decodePacket(datagramPacket, output);
+    }
+    long now = quotas.nanoTime();
+    if (!quotas.admitPacket(address, now)) {
+      if (log.isTraceEnabled()) {
+        log.trace("Dropped packet from throttled or quarantined exporter {}", address);
+      }
+      return DecodeResult.DROPPED_BY_QUOTA;
+    }
+    return decodeAdmitted(datagramPacket, address, now, output);
+  }
+
+  /**
+   * Decode a packet that was already admitted by the quotas, accounting for the result.
+   */
+  DecodeResult decodeAdmitted(DatagramPacket datagramPacket, InetAddress address, long now, List<Object> output) {
+    DecodeResult result = decodePacket(datagramPacket, output);
+    if (result.malformed) {
+      quotas.decodeError(address, now);
+      evictIfQuarantined(address);
+    } else if (result == DecodeResult.OK) {
+      quotas.verified(address, now);
+    }
+    return result;
+  }
+
+  /**
+   * Release all template and pending state of an exporter that has just been quarantined.
+   */
+  private void evictIfQuarantined(InetAddress address) {
+    if (!quotas.isQuarantined(address)) {
       return;
     }
+    for (ExporterKey exporter : templateCache.exporters()) {
+      if (address.equals(exporter.address)) {
+        templateCache.remove(exporter);
+      }
+    }
+    if (pendingBuffer != null) {
+      pendingBuffer.remove(address);
+    }
+  }
 
+  DecodeResult decodePacket(DatagramPacket datagramPacket, List<Object> output) {
+    ByteBuf input = datagramPacket.content();
+    DecodeResult result = validate(input);
+    if (result != DecodeResult.OK) {
+      if (log.isDebugEnabled()) {
+        log.debug("Dropped {} byte(s) from {}: {}", input.readableBytes(), datagramPacket.sender(), result);
+      }
+      return result;
+    }
     Header header = decodeHeader(input, datagramPacket.sender(), datagramPacket.recipient());
 
-    log.trace("Read {} for header. {} remaining", input.readerIndex(), input.readableBytes());
+    if (log.isTraceEnabled()) {
+      log.trace("Read {} for header. {} remaining", input.readerIndex(), input.readableBytes());
+    }
 
-    List<FlowSet> flowSets = new ArrayList<>();
-    Map<Short, TemplateFlowSet> templateByIdMap = new HashMap<>();
+    ExporterKey exporter = exporterKey(header);
+    List<FlowSet> flowSets = this.netflowFactory.flowSets();
+    List<TemplateFlowSet> learned = null;
+    // the header may be reused once the message is created, buffered FlowSets get (and share) a copy
+    Header pendingHeader = null;
 
     while (input.readableBytes() > 0) {
       short flowsetID = input.readShort();
-      log.trace("Processing flowset {}", flowsetID);
+      if (log.isTraceEnabled()) {
+        log.trace("Processing flowset {}", flowsetID);
+      }
 
-      if (0 == flowsetID) {
-        TemplateFlowSet templateFlowSet = decodeTemplate(input, flowsetID);
-        flowSets.add(templateFlowSet);
-        templateByIdMap.put(templateFlowSet.templateID(), templateFlowSet);
+      if (isTemplateSet(header.version, flowsetID)) {
+        ByteBuf set = input.readSlice(input.readUnsignedShort() - 4);
+        // one FlowSet may carry several template records, followed by padding
+        while (set.readableBytes() >= 4) {
+          short templateID = set.getShort(set.readerIndex());
+          TemplateFlowSet templateFlowSet = decodeTemplate(set, flowsetID, header.version == 10);
+          if (templateFlowSet == null) {
+            if (header.version == 10) {
+              withdraw(exporter, templateID);
+            }
+            continue;
+          }
+          if (quotas != null && exporter.address != null && !quotas.admitTemplate(exporter.address,
+              exporter.sourceID, templateFlowSet, pendingBytes(exporter), quotas.nanoTime())) {
+            log.debug("Template {} from {} exceeds the exporter's quota", templateFlowSet.templateID(), exporter);
+            evictIfQuarantined(exporter.address);
+            continue;
+          }
+          flowSets.add(templateFlowSet);
+          templateCache.put(exporter, templateFlowSet);
+          if (learned == null) {
+            learned = new ArrayList<>();
+          }
+          learned.add(templateFlowSet);
+        }
+      } else if ((flowsetID & 0xFFFF) < 256) {
+        // options templates and reserved IDs: no data FlowSet can refer to them
+        int length = input.readUnsignedShort() - 4;
+        if (log.isTraceEnabled()) {
+          log.trace("Skipped {} byte(s) of FlowSet {} from {}", length, flowsetID, exporter);
+        }
+        input.skipBytes(length);
       } else {
-        TemplateFlowSet template = templateByIdMap.get(flowsetID);
+        TemplateFlowSet template = templateCache.get(exporter, flowsetID);
         if (template != null) {
           DataFlowSet dataFlowSet = decodeData(input, flowsetID, template);
           flowSets.add(dataFlowSet);
         } else {
-          // According to Cisco's doc template-less data flows should be discarded:
-          log.warn("Discarded data flow that refers to an undefined templateID: {}", flowsetID);
+          byte[] data = new byte[input.readUnsignedShort() - 4];
+          input.readBytes(data);
+          if (pendingBuffer != null && pendingHeader == null) {
+            pendingHeader = header.copy();
+          }
+          if (pendingBuffer != null && admitPending(exporter, data.length)
+              && pendingBuffer.add(exporter, pendingHeader, flowsetID, data, System.currentTimeMillis())) {
+            log.debug("Buffered data flow from {} that refers to an undefined templateID: {}", exporter, flowsetID);
+          } else {
+            // According to Cisco's doc template-less data flows should be discarded:
+            log.warn("Discarded data flow from {} that refers to an undefined templateID: {}", exporter, flowsetID);
+          }
         }
       }
 
-      log.trace("Read {}. Available {}", input.readerIndex(), input.readableBytes());
+      if (log.isTraceEnabled()) {
+        log.trace("Read {}. Available {}", input.readerIndex(), input.readableBytes());
+      }
     }
 
+    if (learned != null && pendingBuffer != null) {
+      replayPending(exporter, learned, output);
+    }
     Message message = this.netflowFactory.netflowMessage(header, flowSets);
     output.add(message);
+    return DecodeResult.OK;
+  }
+
+  /**
+   * Forget a template the exporter withdrew, or all of them for template ID 2 (RFC 7011, section 8.1).
+   */
+  private void withdraw(ExporterKey exporter, short templateID) {
+    if (templateID == 2) {
+      log.debug("{} withdrew all templates", exporter);
+      for (TemplateFlowSet template : templateCache.templates(exporter).values()) {
+        releaseQuota(exporter, template);
+      }
+      templateCache.remove(exporter);
+    } else {
+      log.debug("{} withdrew template {}", exporter, templateID);
+      releaseQuota(exporter, templateCache.remove(exporter, templateID));
+    }
+  }
+
+  private void releaseQuota(ExporterKey exporter, TemplateFlowSet template) {
+    if (quotas != null && exporter.address != null && template != null) {
+      quotas.releaseTemplate(exporter.address, exporter.sourceID, template.templateID());
+    }
+  }
+
+  private ExporterKey exporterKey(Header header) {
+    ExporterKey last = this.lastExporter;
+    InetAddress address = header.sender != null ? header.sender.getAddress() : null;
+    if (last != null && last.sourceID == header.sourceID && Objects.equals(last.address, address)) {
+      return last;
+    }
+    return this.lastExporter = ExporterKey.of(header);
+  }
+
+  private long pendingBytes(ExporterKey exporter) {
+    return pendingBuffer != null ? pendingBuffer.pendingBytes(exporter.address) : 0;
+  }
+
+  private boolean admitPending(ExporterKey exporter, int length) {
+    if (quotas == null || exporter.address == null) {
+      return true;
+    }
+    if (quotas.admitPending(exporter.address, pendingBytes(exporter) + length, length, quotas.nanoTime())) {
+      return true;
+    }
+    evictIfQuarantined(exporter.address);
+    return false;
+  }
+
+  /**
+   * Emit the buffered data FlowSets that the templates just learned describe, one Message per original packet
+   * (carrying that packet's header) and ahead of the current packet's Message to keep the export order.
+   */
+  void replayPending(ExporterKey exporter, List<TemplateFlowSet> templates, List<Object> output) {
+    long now = System.currentTimeMillis();
+    List<PendingFlowSetBuffer.Entry> entries = new ArrayList<>();
+    for (TemplateFlowSet template : templates) {
+      entries.addAll(pendingBuffer.take(exporter, template.templateID(), now));
+    }
+    if (entries.isEmpty()) {
+      return;
+    }
+    // FlowSets of different templates from the same packet go back into the same Message
+    Map<Header, List<FlowSet>> byPacket = new LinkedHashMap<>();
+    entries.sort(Comparator.comparingLong(e -> e.expiresAt));
+    for (PendingFlowSetBuffer.Entry entry : entries) {
+      TemplateFlowSet template = templateCache.get(exporter, entry.flowSetID);
+      byPacket.computeIfAbsent(entry.header, h -> this.netflowFactory.flowSets())
+          .add(this.netflowFactory.dataFlowSet(entry.flowSetID, entry.data, template));
+    }
+    log.debug("Replaying {} buffered data flow(s) from {}", entries.size(), exporter);
+    for (Map.Entry<Header, List<FlowSet>> e : byPacket.entrySet()) {
+      output.add(this.netflowFactory.netflowMessage(e.getKey(), e.getValue()));
+    }
   }
 }
@@ -0,0 +1,353 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.socket.DatagramPacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Replaces the NetFlowV9Decoder in the pipeline: datagrams are handed off through a bounded queue to a worker
+ * executor that decodes them with the wrapped decoder. The worker hands the messages back to the channel's event
+ * loop in batches of up to BATCH_SIZE datagrams, one batch at a time: it only decodes the next batch once the event
+ * loop has passed the previous one on, so decoded messages never pile up in the event loop's task queue.
+ *
+ * The depth is the number of queued datagrams plus those of the batch on its way to the event loop. Once it
+ * reaches highWatermark the handler sheds load according to its Policy until the depth falls back to
+ * lowWatermark. A full queue always drops the incoming datagram.
+ */
+public class OverloadProtectionHandler extends ChannelInboundHandlerAdapter implements NetFlow {
+  private static final Logger log = LoggerFactory.getLogger(OverloadProtectionHandler.class);
+
+  public enum Policy {
+    /**
+     * Drop incoming datagrams.
+     */
+    DROP_PACKETS,
+    /**
+     * Drop incoming datagrams unless they carry a template (or options template) FlowSet,
+     * so decoding can resume without waiting for the next template refresh.
+     */
+    DROP_DATA,
+    /**
+     * Keep decoding but only pass on every sampleRate-th data record, with its counters multiplied by sampleRate.
+     */
+    SAMPLE
+  }
+
+  static final Set<CiscoFieldScheme.Field> COUNTERS = EnumSet.of(
+      CiscoFieldScheme.Field.IN_BYTES,
+      CiscoFieldScheme.Field.IN_PKTS,
+      CiscoFieldScheme.Field.FLOWS,
+      CiscoFieldScheme.Field.MUL_DST_PKTS,
+      CiscoFieldScheme.Field.MUL_DST_BYTES,
+      CiscoFieldScheme.Field.OUT_BYTES,
+      CiscoFieldScheme.Field.OUT_PKTS,
+      CiscoFieldScheme.Field.IN_PERMANENT_BYTES,
+      CiscoFieldScheme.Field.IN_PERMANENT_PKTS
+  );
+
+  final NetFlowV9Decoder decoder;
+  final NetFlow.Factory netflowFactory;
+  final Executor executor;
+  final BlockingQueue<DatagramPacket> queue;
+  final int highWatermark;
+  final int lowWatermark;
+  final Policy policy;
+  final int sampleRate;
+
+  static final int BATCH_SIZE = 64;
+
+  final AtomicBoolean drainScheduled = new AtomicBoolean();
+  final Runnable drain = this::drain;
+  // datagrams taken off the queue whose messages were not passed on yet
+  final AtomicInteger inFlight = new AtomicInteger();
+  volatile boolean shedding;
+  volatile ChannelHandlerContext ctx;
+  // only touched by the draining worker
+  long sampleCounter;
+
+  final LongAdder received = new LongAdder();
+  final LongAdder droppedPackets = new LongAdder();
+  final LongAdder droppedDataPackets = new LongAdder();
+  final LongAdder sampledOutRecords = new LongAdder();
+  final LongAdder decodeErrors = new LongAdder();
+
+  public OverloadProtectionHandler(NetFlowV9Decoder decoder, NetFlow.Factory netflowFactory, Executor executor,
+                                   int capacity, int highWatermark, int lowWatermark, Policy policy, int sampleRate) {
+    if (lowWatermark < 0 || lowWatermark > highWatermark || highWatermark > capacity) {
+      throw new IllegalArgumentException("Expected 0 <= lowWatermark <= highWatermark <= capacity");
+    }
+    if (sampleRate < 1) {
+      throw new IllegalArgumentException("sampleRate must be positive");
+    }
+    this.decoder = decoder;
+    this.netflowFactory = netflowFactory;
+    this.executor = executor;
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    this.highWatermark = highWatermark;
+    this.lowWatermark = lowWatermark;
+    this.policy = policy;
+    this.sampleRate = sampleRate;
+  }
+
+  public OverloadProtectionHandler(Executor executor, int capacity, Policy policy) {
+    this(new NetFlowV9Decoder(), new NetFlowFactoryImpl(), executor,
+        capacity, capacity * 3 / 4, capacity / 4, policy, 10);
+  }
+
+  @Override
+  public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+    this.ctx = ctx;
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (!(msg instanceof DatagramPacket)) {
+      ctx.fireChannelRead(msg);
+      return;
+    }
+    DatagramPacket packet = (DatagramPacket) msg;
+    received.increment();
+
+    int depth = queueDepth();
+    if (!shedding && depth >= highWatermark) {
+      log.warn("Hand-off queue reached {} datagrams, shedding load ({})", depth, policy);
+      shedding = true;
+    } else if (shedding && depth <= lowWatermark) {
+      log.info("Hand-off queue drained to {} datagrams, stopped shedding load", depth);
+      shedding = false;
+    }
+    if (shedding) {
+      if (policy == Policy.DROP_PACKETS) {
+        drop(packet, droppedPackets);
+        return;
+      }
+      if (policy == Policy.DROP_DATA && !hasTemplate(packet.content())) {
+        drop(packet, droppedDataPackets);
+        return;
+      }
+    }
+    if (!queue.offer(packet)) {
+      drop(packet, droppedPackets);
+      return;
+    }
+    if (drainScheduled.compareAndSet(false, true)) {
+      executor.execute(drain);
+    }
+  }
+
+  private static void drop(DatagramPacket packet, LongAdder counter) {
+    counter.increment();
+    packet.release();
+  }
+
+  /**
+   * Walk the FlowSet headers (without decoding them) looking for a template or options template FlowSet.
+   */
+  static boolean hasTemplate(ByteBuf input) {
+    int index = input.readerIndex();
+    int end = input.writerIndex();
+    if (end - index < 4) {
+      return false;
+    }
+    index += input.getShort(index) == 9 ? 20 : 16;
+    while (index + 4 <= end) {
+      int flowSetID = input.getUnsignedShort(index);
+      int length = input.getUnsignedShort(index + 2);
+      if (flowSetID < 256) {
+        return true;
+      }
+      if (length < 4) {
+        return false;
+      }
+      index += length;
+    }
+    return false;
+  }
+
+  /**
+   * Decode a batch on the worker and hand it to the event loop, which schedules the next batch once it has passed
+   * this one on.
+   */
+  void drain() {
+    ChannelHandlerContext ctx = this.ctx;
+    List<Object> batch = new ArrayList<>();
+    int taken = 0;
+    DatagramPacket packet;
+    while (taken < BATCH_SIZE && (packet = queue.poll()) != null) {
+      inFlight.incrementAndGet();
+      taken++;
+      int first = batch.size();
+      try {
+        decoder.decode(ctx, packet, batch);
+      } catch (Exception e) {
+        decodeErrors.increment();
+        ctx.fireExceptionCaught(e);
+      } finally {
+        packet.release();
+      }
+      if (policy == Policy.SAMPLE && shedding) {
+        for (int i = first; i < batch.size(); i++) {
+          batch.set(i, sample((Message) batch.get(i)));
+        }
+      }
+    }
+    if (taken == 0) {
+      drainScheduled.set(false);
+      // a packet offered after the last poll but before the flag was cleared would otherwise be stranded
+      if (!queue.isEmpty() && drainScheduled.compareAndSet(false, true)) {
+        executor.execute(drain);
+      }
+      return;
+    }
+    int count = taken;
+    ctx.executor().execute(() -> deliver(ctx, batch, count));
+  }
+
+  void deliver(ChannelHandlerContext ctx, List<Object> batch, int count) {
+    if (ctx.isRemoved()) {
+      for (Object message : batch) {
+        ((Message) message).release();
+      }
+    } else {
+      for (Object message : batch) {
+        ctx.fireChannelRead(message);
+      }
+      ctx.fireChannelReadComplete();
+    }
+    inFlight.addAndGet(-count);
+    executor.execute(drain);
+  }
+
+  Message sample(Message message) {
+    List<FlowSet> flowSets = netflowFactory.flowSets();
+    for (FlowSet flowSet : message.flowsets()) {
+      flowSets.add(flowSet instanceof DataFlowSet ? sample((DataFlowSet) flowSet) : flowSet);
+    }
+    Header header = netflowFactory.header(message.version(), message.count(), message.uptime(), message.timestamp(),
+        message.flowSequence(), message.sourceID(), message.sender(), message.recipient());
+    Message sampled = netflowFactory.netflowMessage(header, flowSets);
+    message.release();
+    return sampled;
+  }
+
+  DataFlowSet sample(DataFlowSet dataFlowSet) {
+    RecordLayout layout = RecordLayout.of(dataFlowSet.template());
+    byte[] data = dataFlowSet.data();
+    int records = layout.recordCount(dataFlowSet);
+    int recordLength = layout.recordLength();
+
+    // any run of records counter values holds at most records / sampleRate + 1 multiples of sampleRate
+    int[] kept = new int[records / sampleRate + 1];
+    int keptCount = 0;
+    for (int record = 0; record < records; ++record) {
+      if (sampleCounter++ % sampleRate == 0) {
+        kept[keptCount++] = record;
+      }
+    }
+    sampledOutRecords.add(records - keptCount);
+
+    byte[] sampled = new byte[keptCount * recordLength];
+    for (int i = 0; i < keptCount; ++i) {
+      System.arraycopy(data, kept[i] * recordLength, sampled, i * recordLength, recordLength);
+      for (CiscoFieldScheme.Field counter : COUNTERS) {
+        int type = counter.typeId;
+        if (layout.has(type) && layout.length(type) <= 8) {
+          scale(sampled, layout.position(i, type), layout.length(type), layout.getUnsigned(sampled, i, type));
+        }
+      }
+    }
+    return netflowFactory.dataFlowSet(dataFlowSet.flowsetID(), sampled, dataFlowSet.template());
+  }
+
+  /**
+   * Write value * sampleRate back into the field, saturating at the largest value the field can hold.
+   */
+  private void scale(byte[] data, int offset, int length, long value) {
+    long max = length == 8 ? -1L : (1L << (8 * length)) - 1;
+    long scaled = Long.compareUnsigned(value, Long.divideUnsigned(max, sampleRate)) > 0 ? max : value * sampleRate;
+    for (int i = length - 1; i >= 0; --i) {
+      data[offset + i] = (byte) scaled;
+      scaled >>>= 8;
+    }
+  }
+
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+    DatagramPacket packet;
+    while ((packet = queue.poll()) != null) {
+      packet.release();
+    }
+  }
+
+  /**
+   * @return true while the handler is shedding load
+   */
+  public boolean isShedding() {
+    return shedding;
+  }
+
+  /**
+   * @return datagrams queued or decoded but not yet passed on
+   */
+  public int queueDepth() {
+    return queue.size() + inFlight.get();
+  }
+
+  public long receivedCount() {
+    return received.sum();
+  }
+
+  /**
+   * @return datagrams dropped because of the DROP_PACKETS policy or a full queue
+   */
+  public long droppedPacketCount() {
+    return droppedPackets.sum();
+  }
+
+  /**
+   * @return template-less datagrams dropped because of the DROP_DATA policy
+   */
+  public long droppedDataPacketCount() {
+    return droppedDataPackets.sum();
+  }
+
+  /**
+   * @return data records left out because of the SAMPLE policy
+   */
+  public long sampledOutRecordCount() {
+    return sampledOutRecords.sum();
+  }
+
+  public long decodeErrorCount() {
+    return decodeErrors.sum();
+  }
+}
@@ -0,0 +1,241 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Decodes archived datagrams (backfills) on all cores while producing the same messages, in the same order, as a
+ * single NetFlowV9Decoder reading the archive from start to end.
+ *
+ * Template state is what makes decoding sequential: a data FlowSet can only be decoded with the template its
+ * exporter sent last. So a quick pre-pass first reads only the template FlowSets of every datagram and records
+ * when each template was (re)defined. The archive is then cut into chunks of consecutive datagrams; every chunk
+ * starts with a TemplateCache holding the templates defined before it and is decoded on the ForkJoinPool by its
+ * own decoder. The messages of the chunks are handed to the consumer in archive order, on the calling thread,
+ * with a bounded number of chunks in flight.
+ *
+ * Unlike a live decoder there is no pending buffer: a data FlowSet that precedes the first definition of its
+ * template is discarded.
+ */
+public class ParallelArchiveDecoder {
+  private static final Logger log = LoggerFactory.getLogger(ParallelArchiveDecoder.class);
+
+  /**
+   * A template and the datagram that defined it.
+   */
+  static final class Definition {
+    final int datagram;
+    final long learnedAt;
+    final ExporterKey exporter;
+    final NetFlow.TemplateFlowSet template;
+
+    Definition(int datagram, long learnedAt, ExporterKey exporter, NetFlow.TemplateFlowSet template) {
+      this.datagram = datagram;
+      this.learnedAt = learnedAt;
+      this.exporter = exporter;
+      this.template = template;
+    }
+  }
+
+  final NetFlow.Factory netflowFactory;
+  final ForkJoinPool pool;
+  final int chunkSize;
+  final TemplateInterner templateInterner = new TemplateInterner();
+
+  final LongAdder datagrams = new LongAdder();
+  final LongAdder messages = new LongAdder();
+  final LongAdder chunks = new LongAdder();
+
+  /**
+   * @param chunkSize datagrams per chunk; every chunk costs a copy of the template state, so chunks should be
+   *                  large compared to the number of templates
+   */
+  public ParallelArchiveDecoder(NetFlow.Factory netflowFactory, ForkJoinPool pool, int chunkSize) {
+    if (chunkSize < 1) {
+      throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+    }
+    this.netflowFactory = netflowFactory;
+    this.pool = pool;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Chunks of 4096 datagrams on the common pool.
+   */
+  public ParallelArchiveDecoder() {
+    this(new NetFlowFactoryImpl(), ForkJoinPool.commonPool(), 4096);
+  }
+
+  /**
+   * Decode the archive, starting without templates.
+   *
+   * @return the number of messages passed to consumer
+   */
+  public long decode(PcapDatagramArchive archive, Consumer<? super NetFlow.Message> consumer) {
+    return decode(archive, new TemplateCache(), consumer);
+  }
+
+  /**
+   * Decode the archive starting with the templates in the cache, e.g. those of the previous archive of a series.
+   * Afterwards the cache holds the templates known at the end of the archive.
+   *
+   * @return the number of messages passed to consumer
+   */
+  public long decode(PcapDatagramArchive archive, TemplateCache templates, Consumer<? super NetFlow.Message> consumer) {
+    List<Definition> timeline = timeline(archive);
+    Map<ExporterKey, Map<Short, Definition>> state = new HashMap<>();
+    for (Map.Entry<ExporterKey, ? extends Map<Short, TemplateCache.Entry>> e : templates.templates.entrySet()) {
+      for (TemplateCache.Entry entry : e.getValue().values()) {
+        state.computeIfAbsent(e.getKey(), k -> new HashMap<>())
+            .put(entry.template.templateID(), new Definition(-1, entry.learnedAt, e.getKey(), entry.template));
+      }
+    }
+
+    int window = Math.max(2, 2 * pool.getParallelism());
+    ArrayDeque<ForkJoinTask<List<Object>>> inFlight = new ArrayDeque<>(window);
+    long count = 0;
+    int next = 0;
+    for (int start = 0; start < archive.size(); start += chunkSize) {
+      while (next < timeline.size() && timeline.get(next).datagram < start) {
+        Definition definition = timeline.get(next++);
+        state.computeIfAbsent(definition.exporter, k -> new HashMap<>()).put(definition.template.templateID(), definition);
+      }
+      TemplateCache cache = snapshot(state);
+      int from = start;
+      int to = Math.min(archive.size(), start + chunkSize);
+      if (inFlight.size() == window) {
+        count += deliver(inFlight.poll().join(), consumer);
+      }
+      inFlight.add(pool.submit(() -> decodeChunk(archive, cache, from, to)));
+      chunks.increment();
+    }
+    while (!inFlight.isEmpty()) {
+      count += deliver(inFlight.poll().join(), consumer);
+    }
+    while (next < timeline.size()) {
+      Definition definition = timeline.get(next++);
+      state.computeIfAbsent(definition.exporter, k -> new HashMap<>()).put(definition.template.templateID(), definition);
+    }
+    for (Map<Short, Definition> byId : state.values()) {
+      for (Definition definition : byId.values()) {
+        if (definition.datagram >= 0) {
+          templates.put(definition.exporter, definition.template, definition.learnedAt);
+        }
+      }
+    }
+    log.debug("Decoded {} datagram(s) into {} message(s), {} template definition(s)", archive.size(), count, timeline.size());
+    return count;
+  }
+
+  private long deliver(List<Object> decoded, Consumer<? super NetFlow.Message> consumer) {
+    for (Object message : decoded) {
+      consumer.accept((NetFlow.Message) message);
+    }
+    messages.add(decoded.size());
+    return decoded.size();
+  }
+
+  static TemplateCache snapshot(Map<ExporterKey, Map<Short, Definition>> state) {
+    TemplateCache cache = new TemplateCache();
+    for (Map<Short, Definition> byId : state.values()) {
+      for (Definition definition : byId.values()) {
+        cache.put(definition.exporter, definition.template, definition.learnedAt);
+      }
+    }
+    return cache;
+  }
+
+  List<Object> decodeChunk(PcapDatagramArchive archive, TemplateCache cache, int from, int to) {
+    NetFlowV9Decoder decoder = new NetFlowV9Decoder(netflowFactory, cache, null, templateInterner);
+    List<Object> output = new ArrayList<>(to - from);
+    for (int i = from; i < to; i++) {
+      decoder.decodeDatagram(archive.datagram(i), output);
+    }
+    datagrams.add(to - from);
+    return output;
+  }
+
+  /**
+   * The pre-pass: every template definition in the archive, in archive order.
+   */
+  List<Definition> timeline(PcapDatagramArchive archive) {
+    NetFlowV9Decoder scanner = new NetFlowV9Decoder(netflowFactory, new TemplateCache(), null, templateInterner);
+    List<Definition> timeline = new ArrayList<>();
+    for (int i = 0; i < archive.size(); i++) {
+      ByteBuf input = archive.content(i);
+      if (NetFlowV9Decoder.validate(input) != DecodeResult.OK) {
+        continue;
+      }
+      int version = input.getUnsignedShort(input.readerIndex());
+      int sourceID = input.getInt(input.readerIndex() + (version == 9 ? 16 : 12));
+      input.skipBytes(version == 9 ? 20 : 16);
+      ExporterKey exporter = null;
+      while (input.isReadable()) {
+        int flowSetID = input.readUnsignedShort();
+        int length = input.readUnsignedShort() - 4;
+        if (!NetFlowV9Decoder.isTemplateSet(version, flowSetID)) {
+          input.skipBytes(length);
+          continue;
+        }
+        if (exporter == null) {
+          exporter = new ExporterKey(archive.sender(i).getAddress(), sourceID);
+        }
+        ByteBuf set = input.readSlice(length);
+        while (set.readableBytes() >= 4) {
+          NetFlow.TemplateFlowSet template = scanner.decodeTemplate(set, (short) flowSetID, version == 10);
+          if (template != null) {
+            timeline.add(new Definition(i, archive.timestampMillis(i), exporter, template));
+          }
+        }
+      }
+    }
+    return timeline;
+  }
+
+  /**
+   * @return datagrams decoded so far, over all archives
+   */
+  public long datagramCount() {
+    return datagrams.sum();
+  }
+
+  /**
+   * @return messages passed to consumers so far
+   */
+  public long messageCount() {
+    return messages.sum();
+  }
+
+  /**
+   * @return chunks decoded so far
+   */
+  public long chunkCount() {
+    return chunks.sum();
+  }
+}
@@ -0,0 +1,287 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.socket.DatagramPacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The UDP datagrams of a pcap capture file (as written by tcpdump -w), indexed when the file is opened.
+ *
+ * The file is memory-mapped and the datagrams are slices of it, so they are only valid until the archive is
+ * closed. Per datagram only the position, length, arrival time and an index into the (few) distinct address
+ * pairs are kept. Supported link types are Ethernet (with 802.1Q tags), Linux cooked capture and raw IP; frames
+ * that are not UDP over IPv4/IPv6, IP fragments and truncated captures are skipped.
+ */
+public class PcapDatagramArchive implements Closeable {
+  private static final Logger log = LoggerFactory.getLogger(PcapDatagramArchive.class);
+
+  static final int MAGIC_MICROS = 0xA1B2C3D4;
+  static final int MAGIC_NANOS = 0xA1B23C4D;
+  static final int LINKTYPE_ETHERNET = 1;
+  static final int LINKTYPE_RAW = 101;
+  static final int LINKTYPE_LINUX_SLL = 113;
+  static final int LINKTYPE_IPV4 = 228;
+  static final int LINKTYPE_IPV6 = 229;
+  static final int GLOBAL_HEADER_SIZE = 24;
+  static final int RECORD_HEADER_SIZE = 16;
+
+  final ByteBuf buffer;
+  // byte order of the pcap headers, the packets themselves are in network order
+  final boolean littleEndian;
+  final boolean nanos;
+  final int linkType;
+
+  int size;
+  int[] offsets = new int[1024];
+  int[] lengths = new int[1024];
+  long[] timestamps = new long[1024];
+  int[] endpoints = new int[1024];
+  final List<InetSocketAddress[]> endpointPairs = new ArrayList<>();
+  long skipped;
+
+  /**
+   * Index the capture in buffer, which the archive releases on close.
+   *
+   * @throws IllegalArgumentException if buffer is not a pcap capture of a supported link type
+   */
+  PcapDatagramArchive(ByteBuf buffer) {
+    this.buffer = buffer;
+    if (buffer.readableBytes() < GLOBAL_HEADER_SIZE) {
+      throw new IllegalArgumentException("Not a pcap file: " + buffer.readableBytes() + " byte(s)");
+    }
+    int magic = buffer.getInt(0);
+    this.littleEndian = magic == Integer.reverseBytes(MAGIC_MICROS) || magic == Integer.reverseBytes(MAGIC_NANOS);
+    if (littleEndian) {
+      magic = Integer.reverseBytes(magic);
+    }
+    if (magic != MAGIC_MICROS && magic != MAGIC_NANOS) {
+      throw new IllegalArgumentException(String.format("Not a pcap file: magic %08x", magic));
+    }
+    this.nanos = magic == MAGIC_NANOS;
+    this.linkType = headerInt(20) & 0x0FFFFFFF;
+    if (linkType != LINKTYPE_ETHERNET && linkType != LINKTYPE_RAW && linkType != LINKTYPE_LINUX_SLL
+        && linkType != LINKTYPE_IPV4 && linkType != LINKTYPE_IPV6) {
+      throw new IllegalArgumentException("Unsupported pcap link type " + linkType);
+    }
+    index();
+  }
+
+  /**
+   * Map and index a capture file; files are limited to 2 GB.
+   */
+  public static PcapDatagramArchive open(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Capture files of more than 2 GB are not supported, split " + file);
+      }
+      try {
+        return new PcapDatagramArchive(Unpooled.wrappedBuffer(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())));
+      } catch (IllegalArgumentException e) {
+        throw new IOException(e.getMessage() + ": " + file, e);
+      }
+    }
+  }
+
+  private void index() {
+    Map<List<InetSocketAddress>, Integer> pairs = new HashMap<>();
+    int position = GLOBAL_HEADER_SIZE;
+    int end = buffer.writerIndex();
+    while (end - position >= RECORD_HEADER_SIZE) {
+      long seconds = headerUnsignedInt(position);
+      long fraction = headerUnsignedInt(position + 4);
+      int captured = headerInt(position + 8);
+      int frame = position + RECORD_HEADER_SIZE;
+      if (captured < 0 || captured > end - frame) {
+        log.warn("Capture ends with a truncated record at {}", position);
+        break;
+      }
+      position = frame + captured;
+      if (!datagram(frame, captured, seconds * 1000 + (nanos ? fraction / 1000000 : fraction / 1000), pairs)) {
+        skipped++;
+      }
+    }
+    log.debug("Indexed {} datagram(s), skipped {} frame(s)", size, skipped);
+  }
+
+  private int headerInt(int index) {
+    return littleEndian ? buffer.getIntLE(index) : buffer.getInt(index);
+  }
+
+  private long headerUnsignedInt(int index) {
+    return littleEndian ? buffer.getUnsignedIntLE(index) : buffer.getUnsignedInt(index);
+  }
+
+  private boolean datagram(int frame, int captured, long millis, Map<List<InetSocketAddress>, Integer> pairs) {
+    int ip = frame;
+    int etherType;
+    switch (linkType) {
+      case LINKTYPE_ETHERNET:
+        if (captured < 14) {
+          return false;
+        }
+        ip += 12;
+        etherType = buffer.getUnsignedShort(ip);
+        ip += 2;
+        while ((etherType == 0x8100 || etherType == 0x88A8) && ip + 4 <= frame + captured) {
+          etherType = buffer.getUnsignedShort(ip + 2);
+          ip += 4;
+        }
+        break;
+      case LINKTYPE_LINUX_SLL:
+        if (captured < 16) {
+          return false;
+        }
+        etherType = buffer.getUnsignedShort(frame + 14);
+        ip += 16;
+        break;
+      default:
+        if (captured < 1) {
+          return false;
+        }
+        etherType = (buffer.getByte(frame) & 0xF0) == 0x60 ? 0x86DD : 0x0800;
+        break;
+    }
+    int end = frame + captured;
+    int udp;
+    byte[] source;
+    byte[] destination;
+    if (etherType == 0x0800) {
+      if (end - ip < 20 || (buffer.getByte(ip) & 0xF0) != 0x40 || buffer.getUnsignedByte(ip + 9) != 17
+          || (buffer.getUnsignedShort(ip + 6) & 0x3FFF) != 0) {
+        return false;
+      }
+      udp = ip + (buffer.getByte(ip) & 0x0F) * 4;
+      source = new byte[4];
+      destination = new byte[4];
+      buffer.getBytes(ip + 12, source);
+      buffer.getBytes(ip + 16, destination);
+    } else if (etherType == 0x86DD) {
+      if (end - ip < 40 || buffer.getUnsignedByte(ip + 6) != 17) {
+        return false;
+      }
+      udp = ip + 40;
+      source = new byte[16];
+      destination = new byte[16];
+      buffer.getBytes(ip + 8, source);
+      buffer.getBytes(ip + 24, destination);
+    } else {
+      return false;
+    }
+    if (end - udp < 8) {
+      return false;
+    }
+    int length = buffer.getUnsignedShort(udp + 4) - 8;
+    if (length < 0 || length > end - udp - 8) {
+      return false;
+    }
+    InetSocketAddress sender;
+    InetSocketAddress recipient;
+    try {
+      sender = new InetSocketAddress(InetAddress.getByAddress(source), buffer.getUnsignedShort(udp));
+      recipient = new InetSocketAddress(InetAddress.getByAddress(destination), buffer.getUnsignedShort(udp + 2));
+    } catch (UnknownHostException e) {
+      return false;
+    }
+    Integer pair = pairs.get(Arrays.asList(sender, recipient));
+    if (pair == null) {
+      pair = endpointPairs.size();
+      endpointPairs.add(new InetSocketAddress[]{sender, recipient});
+      pairs.put(Arrays.asList(sender, recipient), pair);
+    }
+    if (size == offsets.length) {
+      offsets = Arrays.copyOf(offsets, size * 2);
+      lengths = Arrays.copyOf(lengths, size * 2);
+      timestamps = Arrays.copyOf(timestamps, size * 2);
+      endpoints = Arrays.copyOf(endpoints, size * 2);
+    }
+    offsets[size] = udp + 8;
+    lengths[size] = length;
+    timestamps[size] = millis;
+    endpoints[size] = pair;
+    size++;
+    return true;
+  }
+
+  /**
+   * @return the number of UDP datagrams in the capture
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return the number of frames that were not (complete, unfragmented) UDP datagrams
+   */
+  public long skipped() {
+    return skipped;
+  }
+
+  /**
+   * @return the datagram at index in capture order; its content is a slice of the archive (not retained)
+   */
+  public DatagramPacket datagram(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("datagram " + index + " of " + size);
+    }
+    InetSocketAddress[] pair = endpointPairs.get(endpoints[index]);
+    return new DatagramPacket(buffer.slice(offsets[index], lengths[index]), pair[1], pair[0]);
+  }
+
+  ByteBuf content(int index) {
+    return buffer.slice(offsets[index], lengths[index]);
+  }
+
+  InetSocketAddress sender(int index) {
+    return endpointPairs.get(endpoints[index])[0];
+  }
+
+  /**
+   * @return when the datagram was captured, in epoch millis
+   */
+  public long timestampMillis(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("datagram " + index + " of " + size);
+    }
+    return timestamps[index];
+  }
+
+  /**
+   * Release the buffer. A mapped file stays mapped until the garbage collector reclaims the MappedByteBuffer, as
+   * Java 8 has no supported way to unmap it; only then can the file be deleted or replaced on Windows.
+   */
+  @Override
+  public void close() {
+    buffer.release();
+  }
+}
@@ -0,0 +1,238 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Holds data FlowSets whose template is not known yet (after a collector restart or a lost template packet)
+ * until the exporter sends the template, at which point the NetFlowV9Decoder replays them.
+ *
+ * Memory is bounded per exporter (the oldest entries of the exporter make room for new ones) and globally
+ * (new entries are dropped once the budget is used up); entries older than the TTL are expired.
+ */
+public class PendingFlowSetBuffer {
+  private static final Logger log = LoggerFactory.getLogger(PendingFlowSetBuffer.class);
+
+  /**
+   * A buffered raw data FlowSet (without its 4 byte FlowSet header) and the header of the packet it came in.
+   */
+  static final class Entry {
+    final NetFlow.Header header;
+    final short flowSetID;
+    final byte[] data;
+    final long expiresAt;
+
+    Entry(NetFlow.Header header, short flowSetID, byte[] data, long expiresAt) {
+      this.header = header;
+      this.flowSetID = flowSetID;
+      this.data = data;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  final long maxBytesPerExporter;
+  final long maxBytes;
+  final long ttlMillis;
+
+  final Map<ExporterKey, ArrayDeque<Entry>> pending = new HashMap<>();
+  final Map<ExporterKey, Long> bytesByExporter = new HashMap<>();
+  long bytes;
+  long nextSweep;
+
+  final LongAdder bufferedBytes = new LongAdder();
+  final LongAdder replayedBytes = new LongAdder();
+  final LongAdder expiredBytes = new LongAdder();
+  final LongAdder droppedBytes = new LongAdder();
+
+  public PendingFlowSetBuffer(long maxBytesPerExporter, long maxBytes, long ttlMillis) {
+    this.maxBytesPerExporter = maxBytesPerExporter;
+    this.maxBytes = maxBytes;
+    this.ttlMillis = ttlMillis;
+  }
+
+  /**
+   * 1 MiB per exporter, 64 MiB in total, entries live for 5 minutes (well beyond the usual template refresh).
+   */
+  public PendingFlowSetBuffer() {
+    this(1 << 20, 64 << 20, 5 * 60 * 1000L);
+  }
+
+  /**
+   * @return false if the FlowSet did not fit into the budget and was dropped
+   */
+  synchronized boolean add(ExporterKey exporter, NetFlow.Header header, short flowSetID, byte[] data, long now) {
+    sweep(now);
+    if (data.length > maxBytesPerExporter || bytes + data.length > maxBytes) {
+      droppedBytes.add(data.length);
+      return false;
+    }
+    ArrayDeque<Entry> entries = pending.computeIfAbsent(exporter, k -> new ArrayDeque<>());
+    long exporterBytes = bytesByExporter.getOrDefault(exporter, 0L);
+    while (exporterBytes + data.length > maxBytesPerExporter) {
+      Entry oldest = entries.poll();
+      exporterBytes -= oldest.data.length;
+      bytes -= oldest.data.length;
+      droppedBytes.add(oldest.data.length);
+    }
+    entries.add(new Entry(header, flowSetID, data, now + ttlMillis));
+    bytesByExporter.put(exporter, exporterBytes + data.length);
+    bytes += data.length;
+    bufferedBytes.add(data.length);
+    return true;
+  }
+
+  /**
+   * Remove and return, oldest first, the live entries of the exporter that refer to templateID.
+   */
+  synchronized List<Entry> take(ExporterKey exporter, short templateID, long now) {
+    ArrayDeque<Entry> entries = pending.get(exporter);
+    if (entries == null) {
+      return Collections.emptyList();
+    }
+    List<Entry> result = new ArrayList<>();
+    long released = 0;
+    for (Iterator<Entry> iterator = entries.iterator(); iterator.hasNext(); ) {
+      Entry entry = iterator.next();
+      if (entry.expiresAt <= now) {
+        iterator.remove();
+        released += entry.data.length;
+        expiredBytes.add(entry.data.length);
+      } else if (entry.flowSetID == templateID) {
+        iterator.remove();
+        released += entry.data.length;
+        replayedBytes.add(entry.data.length);
+        result.add(entry);
+      }
+    }
+    release(exporter, entries, released);
+    return result;
+  }
+
+  private void release(ExporterKey exporter, ArrayDeque<Entry> entries, long released) {
+    bytes -= released;
+    if (entries.isEmpty()) {
+      pending.remove(exporter);
+      bytesByExporter.remove(exporter);
+    } else {
+      bytesByExporter.put(exporter, bytesByExporter.get(exporter) - released);
+    }
+  }
+
+  /**
+   * Expire entries past their TTL; runs at most once per second.
+   */
+  private void sweep(long now) {
+    if (now < nextSweep) {
+      return;
+    }
+    nextSweep = now + 1000;
+    for (Iterator<Map.Entry<ExporterKey, ArrayDeque<Entry>>> exporters = pending.entrySet().iterator(); exporters.hasNext(); ) {
+      Map.Entry<ExporterKey, ArrayDeque<Entry>> e = exporters.next();
+      ArrayDeque<Entry> entries = e.getValue();
+      long released = 0;
+      // entries are appended in arrival order, so the expired ones are at the head
+      while (!entries.isEmpty() && entries.peek().expiresAt <= now) {
+        released += entries.poll().data.length;
+      }
+      if (released > 0) {
+        log.debug("Expired {} byte(s) of data FlowSets from {} that never got a template", released, e.getKey());
+        expiredBytes.add(released);
+        bytes -= released;
+        if (entries.isEmpty()) {
+          exporters.remove();
+          bytesByExporter.remove(e.getKey());
+        } else {
+          bytesByExporter.put(e.getKey(), bytesByExporter.get(e.getKey()) - released);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return bytes currently held for all sourceIDs of the exporter address
+   */
+  synchronized long pendingBytes(InetAddress address) {
+    long result = 0;
+    for (Map.Entry<ExporterKey, Long> e : bytesByExporter.entrySet()) {
+      if (Objects.equals(address, e.getKey().address)) {
+        result += e.getValue();
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Drop every entry of the exporter address (without counting them as dropped).
+   */
+  synchronized void remove(InetAddress address) {
+    for (Iterator<Map.Entry<ExporterKey, Long>> iterator = bytesByExporter.entrySet().iterator(); iterator.hasNext(); ) {
+      Map.Entry<ExporterKey, Long> e = iterator.next();
+      if (Objects.equals(address, e.getKey().address)) {
+        bytes -= e.getValue();
+        pending.remove(e.getKey());
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * @return bytes currently held
+   */
+  public synchronized long pendingBytes() {
+    return bytes;
+  }
+
+  /**
+   * @return total bytes of FlowSets ever buffered
+   */
+  public long bufferedBytes() {
+    return bufferedBytes.sum();
+  }
+
+  /**
+   * @return total bytes of FlowSets replayed once their template arrived
+   */
+  public long replayedBytes() {
+    return replayedBytes.sum();
+  }
+
+  /**
+   * @return total bytes of FlowSets whose template did not arrive within the TTL
+   */
+  public long expiredBytes() {
+    return expiredBytes.sum();
+  }
+
+  /**
+   * @return total bytes of FlowSets dropped or evicted to stay within the memory budget
+   */
+  public long droppedBytes() {
+    return droppedBytes.sum();
+  }
+}
@@ -0,0 +1,383 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Looks up the source and destination address (IPV4_SRC_ADDR/IPV6_SRC_ADDR and IPV4_DST_ADDR/IPV6_DST_ADDR) of
+ * every data record in a PrefixMap and passes each NetFlow.Message on as an EnrichedMessage carrying the
+ * PrefixInfo of the longest matching prefixes. Addresses are read straight from the record bytes.
+ *
+ * The table is swapped atomically (swap() or load()); a message is always enriched against a single table.
+ * Place it after the NetFlowV9Decoder.
+ */
+@ChannelHandler.Sharable
+public class PrefixEnrichmentHandler extends ChannelInboundHandlerAdapter {
+  private static final Logger log = LoggerFactory.getLogger(PrefixEnrichmentHandler.class);
+
+  static final int IPV4_SRC_ADDR = CiscoFieldScheme.Field.IPV4_SRC_ADDR.typeId;
+  static final int IPV4_DST_ADDR = CiscoFieldScheme.Field.IPV4_DST_ADDR.typeId;
+  static final int IPV6_SRC_ADDR = CiscoFieldScheme.Field.IPV6_SRC_ADDR.typeId;
+  static final int IPV6_DST_ADDR = CiscoFieldScheme.Field.IPV6_DST_ADDR.typeId;
+
+  /**
+   * A decoded message along with the PrefixInfo of the source and destination address of each data record
+   * (null where no prefix matched or the record has no such address).
+   */
+  public static final class EnrichedMessage extends ForwardingMessage {
+    // indexed by FlowSet, then record; null for FlowSets without data or addresses
+    final PrefixInfo[][] sources;
+    final PrefixInfo[][] destinations;
+
+    EnrichedMessage(NetFlow.Message message, PrefixInfo[][] sources, PrefixInfo[][] destinations) {
+      super(message);
+      this.sources = sources;
+      this.destinations = destinations;
+    }
+
+    /**
+     * @param flowSet index into flowsets()
+     * @param record  index of the record within the data FlowSet
+     * @return what is known about the record's source address, null if it matched no prefix
+     */
+    public PrefixInfo source(int flowSet, int record) {
+      return get(sources, flowSet, record);
+    }
+
+    public PrefixInfo destination(int flowSet, int record) {
+      return get(destinations, flowSet, record);
+    }
+
+    static PrefixInfo get(PrefixInfo[][] infos, int flowSet, int record) {
+      PrefixInfo[] records = infos[flowSet];
+      return records != null && record < records.length ? records[record] : null;
+    }
+  }
+
+  final AtomicReference<PrefixMap<PrefixInfo>> prefixes;
+  final LongAdder lookups = new LongAdder();
+  final LongAdder matches = new LongAdder();
+
+  public PrefixEnrichmentHandler(PrefixMap<PrefixInfo> prefixes) {
+    this.prefixes = new AtomicReference<>(prefixes);
+  }
+
+  public PrefixEnrichmentHandler() {
+    this(PrefixMap.empty());
+  }
+
+  public PrefixMap<PrefixInfo> prefixes() {
+    return prefixes.get();
+  }
+
+  /**
+   * Replace the table; messages being enriched concurrently finish against the previous one.
+   *
+   * @param prefixes the new table
+   * @return the previous table
+   */
+  public PrefixMap<PrefixInfo> swap(PrefixMap<PrefixInfo> prefixes) {
+    return this.prefixes.getAndSet(prefixes);
+  }
+
+  /**
+   * Read the table from a file (see read()) and swap it in. The current table stays in place if reading fails.
+   *
+   * @param file CSV or MRT file, optionally gzipped
+   * @throws IOException if the file cannot be read
+   */
+  public void load(Path file) throws IOException {
+    PrefixMap<PrefixInfo> loaded = read(file);
+    swap(loaded);
+    log.info("Loaded {} prefix(es) from {}", loaded.size(), file);
+  }
+
+  /**
+   * @return addresses looked up
+   */
+  public long lookups() {
+    return lookups.sum();
+  }
+
+  /**
+   * @return addresses that matched a prefix
+   */
+  public long matches() {
+    return matches.sum();
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (msg instanceof NetFlow.Message && !(msg instanceof EnrichedMessage)) {
+      msg = enrich((NetFlow.Message) msg);
+    }
+    ctx.fireChannelRead(msg);
+  }
+
+  EnrichedMessage enrich(NetFlow.Message message) {
+    PrefixMap<PrefixInfo> prefixes = this.prefixes.get();
+    List<NetFlow.FlowSet> flowSets = message.flowsets();
+    PrefixInfo[][] sources = new PrefixInfo[flowSets.size()][];
+    PrefixInfo[][] destinations = new PrefixInfo[flowSets.size()][];
+    long lookups = 0;
+    long matches = 0;
+    for (int i = 0; i < flowSets.size(); i++) {
+      NetFlow.FlowSet flowSet = flowSets.get(i);
+      if (!(flowSet instanceof NetFlow.DataFlowSet) || ((NetFlow.DataFlowSet) flowSet).template() == null) {
+        continue;
+      }
+      NetFlow.DataFlowSet dataFlowSet = (NetFlow.DataFlowSet) flowSet;
+      RecordLayout layout = RecordLayout.of(dataFlowSet.template());
+      int records = layout.recordCount(dataFlowSet);
+      int source = addressField(layout, IPV4_SRC_ADDR, IPV6_SRC_ADDR);
+      int destination = addressField(layout, IPV4_DST_ADDR, IPV6_DST_ADDR);
+      if (source >= 0) {
+        sources[i] = lookup(prefixes, layout, dataFlowSet.data(), records, source);
+        lookups += records;
+        matches += matched(sources[i]);
+      }
+      if (destination >= 0) {
+        destinations[i] = lookup(prefixes, layout, dataFlowSet.data(), records, destination);
+        lookups += records;
+        matches += matched(destinations[i]);
+      }
+    }
+    this.lookups.add(lookups);
+    this.matches.add(matches);
+    return new EnrichedMessage(message, sources, destinations);
+  }
+
+  static int addressField(RecordLayout layout, int ipv4, int ipv6) {
+    if (layout.length(ipv4) == 4) {
+      return ipv4;
+    }
+    return layout.length(ipv6) == 16 ? ipv6 : -1;
+  }
+
+  static PrefixInfo[] lookup(PrefixMap<PrefixInfo> prefixes, RecordLayout layout, byte[] data, int records, int type) {
+    PrefixInfo[] result = new PrefixInfo[records];
+    int length = layout.length(type);
+    for (int record = 0; record < records; record++) {
+      result[record] = prefixes.get(data, layout.position(record, type), length);
+    }
+    return result;
+  }
+
+  static int matched(PrefixInfo[] infos) {
+    int result = 0;
+    for (PrefixInfo info : infos) {
+      if (info != null) {
+        result++;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Read a table from a CSV file (name ending in .csv) or else an MRT TABLE_DUMP_V2 RIB dump; either may be
+   * gzipped (name ending in .gz).
+   *
+   * @param file CSV or MRT file, optionally gzipped
+   * @return the table
+   * @throws IOException if the file cannot be read
+   */
+  public static PrefixMap<PrefixInfo> read(Path file) throws IOException {
+    String name = file.getFileName().toString();
+    try (InputStream input = open(file)) {
+      if (name.endsWith(".csv") || name.endsWith(".csv.gz")) {
+        return readCsv(new InputStreamReader(input, StandardCharsets.UTF_8));
+      }
+      return readMrt(input);
+    }
+  }
+
+  static InputStream open(Path file) throws IOException {
+    InputStream input = Files.newInputStream(file);
+    return file.getFileName().toString().endsWith(".gz") ? new GZIPInputStream(input, 1 << 16) : input;
+  }
+
+  /**
+   * Read lines of prefix,customer,site,asn (e.g. 10.1.0.0/16,acme,fra1,64500). Trailing columns may be left out
+   * or empty; blank lines, lines starting with # and a header line starting with "prefix" are skipped.
+   *
+   * @param reader the CSV lines
+   * @return the table
+   * @throws IOException if reading fails
+   */
+  public static PrefixMap<PrefixInfo> readCsv(Reader reader) throws IOException {
+    PrefixMap.Builder<PrefixInfo> builder = PrefixMap.builder();
+    BufferedReader lines = new BufferedReader(reader);
+    int number = 0;
+    String line;
+    while ((line = lines.readLine()) != null) {
+      number++;
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#") || line.startsWith("prefix")) {
+        continue;
+      }
+      String[] columns = line.split(",", -1);
+      try {
+        String customer = column(columns, 1);
+        String site = column(columns, 2);
+        String asn = column(columns, 3);
+        builder.add(columns[0].trim(), new PrefixInfo(customer, site, asn == null ? 0 : Long.parseLong(asn)));
+      } catch (IllegalArgumentException e) {
+        throw new IOException("Invalid prefix on line " + number + ": " + line, e);
+      }
+    }
+    return builder.build();
+  }
+
+  static String column(String[] columns, int index) {
+    if (index >= columns.length) {
+      return null;
+    }
+    String value = columns[index].trim();
+    return value.isEmpty() ? null : value;
+  }
+
+  static final int TABLE_DUMP_V2 = 13;
+  static final int RIB_IPV4_UNICAST = 2;
+  static final int RIB_IPV6_UNICAST = 4;
+  static final int AS_PATH = 2;
+  static final int AS_SEQUENCE = 2;
+
+  /**
+   * Read the RIB_IPV4_UNICAST and RIB_IPV6_UNICAST entries of an MRT TABLE_DUMP_V2 dump (RFC 6396), mapping every
+   * prefix to the origin AS (the last AS of the AS_PATH) of its first RIB entry. Other records are skipped.
+   *
+   * @param input the uncompressed dump
+   * @return the table
+   * @throws IOException if reading fails or the dump is truncated
+   */
+  public static PrefixMap<PrefixInfo> readMrt(InputStream input) throws IOException {
+    PrefixMap.Builder<PrefixInfo> builder = PrefixMap.builder();
+    DataInputStream records = new DataInputStream(input);
+    byte[] header = new byte[12];
+    while (readHeader(records, header)) {
+      ByteBuffer buffer = ByteBuffer.wrap(header);
+      buffer.getInt(); // timestamp
+      int type = buffer.getShort() & 0xFFFF;
+      int subtype = buffer.getShort() & 0xFFFF;
+      long length = buffer.getInt() & 0xFFFFFFFFL;
+      if (type != TABLE_DUMP_V2 || (subtype != RIB_IPV4_UNICAST && subtype != RIB_IPV6_UNICAST)) {
+        skip(records, length);
+        continue;
+      }
+      if (length > Integer.MAX_VALUE) {
+        throw new IOException("MRT record of " + length + " bytes");
+      }
+      byte[] body = new byte[(int) length];
+      records.readFully(body);
+      try {
+        readRib(ByteBuffer.wrap(body), subtype == RIB_IPV4_UNICAST ? 4 : 16, builder);
+      } catch (RuntimeException e) {
+        throw new IOException("Invalid MRT RIB record", e);
+      }
+    }
+    return builder.build();
+  }
+
+  static boolean readHeader(DataInputStream input, byte[] header) throws IOException {
+    int first = input.read();
+    if (first < 0) {
+      return false;
+    }
+    header[0] = (byte) first;
+    input.readFully(header, 1, header.length - 1);
+    return true;
+  }
+
+  static void skip(DataInputStream input, long length) throws IOException {
+    while (length > 0) {
+      long skipped = input.skip(length);
+      if (skipped <= 0) {
+        if (input.read() < 0) {
+          throw new EOFException("Truncated MRT record");
+        }
+        skipped = 1;
+      }
+      length -= skipped;
+    }
+  }
+
+  static void readRib(ByteBuffer rib, int addressLength, PrefixMap.Builder<PrefixInfo> builder) {
+    rib.getInt(); // sequence number
+    int prefixLength = rib.get() & 0xFF;
+    byte[] address = new byte[addressLength];
+    rib.get(address, 0, (prefixLength + 7) / 8);
+    int entries = rib.getShort() & 0xFFFF;
+    if (entries == 0) {
+      return;
+    }
+    rib.getShort(); // peer index
+    rib.getInt(); // originated time
+    int attributesLength = rib.getShort() & 0xFFFF;
+    ByteBuffer attributes = (ByteBuffer) rib.slice().limit(attributesLength);
+    builder.add(address, prefixLength, new PrefixInfo(null, null, originAs(attributes)));
+  }
+
+  /**
+   * @return the last AS of the last AS_SEQUENCE segment of the AS_PATH attribute, 0 if there is none
+   */
+  static long originAs(ByteBuffer attributes) {
+    while (attributes.remaining() >= 3) {
+      int flags = attributes.get() & 0xFF;
+      int type = attributes.get() & 0xFF;
+      int length = (flags & 0x10) != 0 ? attributes.getShort() & 0xFFFF : attributes.get() & 0xFF;
+      if (type != AS_PATH) {
+        attributes.position(attributes.position() + length);
+        continue;
+      }
+      long origin = 0;
+      int end = attributes.position() + length;
+      while (attributes.position() + 2 <= end) {
+        int segmentType = attributes.get() & 0xFF;
+        int count = attributes.get() & 0xFF;
+        // TABLE_DUMP_V2 always carries 4 byte AS numbers
+        for (int i = 0; i < count; i++) {
+          long as = attributes.getInt() & 0xFFFFFFFFL;
+          if (segmentType == AS_SEQUENCE) {
+            origin = as;
+          }
+        }
+      }
+      return origin;
+    }
+    return 0;
+  }
+}
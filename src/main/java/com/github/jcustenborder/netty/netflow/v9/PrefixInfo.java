@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import java.util.Objects;
+
+/**
+ * What the PrefixEnrichmentHandler attaches to an address: the customer and site owning the prefix and the
+ * origin AS announcing it. Any of them may be unknown (null, or 0 for the ASN).
+ */
+public final class PrefixInfo {
+  final String customer;
+  final String site;
+  final long asn;
+
+  public PrefixInfo(String customer, String site, long asn) {
+    this.customer = customer;
+    this.site = site;
+    this.asn = asn;
+  }
+
+  public String customer() {
+    return customer;
+  }
+
+  public String site() {
+    return site;
+  }
+
+  public long asn() {
+    return asn;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof PrefixInfo)) {
+      return false;
+    }
+    PrefixInfo other = (PrefixInfo) o;
+    return asn == other.asn && Objects.equals(customer, other.customer) && Objects.equals(site, other.site);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(customer, site, asn);
+  }
+
+  @Override
+  public String toString() {
+    return "PrefixInfo{customer=" + customer + ", site=" + site + ", asn=" + asn + "}";
+  }
+}
@@ -0,0 +1,363 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.util.NetUtil;
+
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable longest-prefix-match table for IPv4 and IPv6 in the style of a poptrie (Asai and Ohara, SIGCOMM 2015):
+ * a multiway trie with 6 bit strides in which every node is two 64 bit vectors - which of its 64 slots lead to a
+ * child and where a run of equal leaves starts - plus base indexes into flat arrays of nodes and leaves, so a lookup
+ * is a popcount per stride and no pointer chasing. Lookups read the address straight from a byte array, e.g. the
+ * data of a DataFlowSet.
+ *
+ * Build it with a Builder; to change the table build a new one and swap it in.
+ *
+ * @param <V> type of the values of the prefixes
+ */
+public final class PrefixMap<V> {
+  static final int STRIDE = 6;
+
+  /**
+   * A compiled trie for one address family.
+   */
+  static final class Trie {
+    static final Trie EMPTY = new Trie(new long[1], new long[]{1L}, new int[1], new int[1], new int[1]);
+
+    final long[] vectors;
+    final long[] leafVectors;
+    final int[] childBases;
+    final int[] leafBases;
+    // index into values, 0 for no value
+    final int[] leaves;
+
+    Trie(long[] vectors, long[] leafVectors, int[] childBases, int[] leafBases, int[] leaves) {
+      this.vectors = vectors;
+      this.leafVectors = leafVectors;
+      this.childBases = childBases;
+      this.leafBases = leafBases;
+      this.leaves = leaves;
+    }
+
+    int lookup(byte[] data, int offset, int length) {
+      int node = 0;
+      int position = 0;
+      while (true) {
+        int slot = slot(data, offset, length, position);
+        long mask = 2L << slot;
+        long vector = vectors[node];
+        if ((vector >>> slot & 1) == 0) {
+          return leaves[leafBases[node] + Long.bitCount(leafVectors[node] & (mask - 1)) - 1];
+        }
+        node = childBases[node] + Long.bitCount(vector & (mask - 1)) - 1;
+        position += STRIDE;
+      }
+    }
+
+    /**
+     * The 6 bits of the address starting at bit position, padded with zeros past its end.
+     */
+    static int slot(byte[] data, int offset, int length, int position) {
+      int index = position >>> 3;
+      int high = index < length ? data[offset + index] & 0xFF : 0;
+      int low = index + 1 < length ? data[offset + index + 1] & 0xFF : 0;
+      return ((high << 8 | low) >>> (10 - (position & 7))) & 0x3F;
+    }
+  }
+
+  final Trie ipv4;
+  final Trie ipv6;
+  final Object[] values;
+  final int size;
+
+  PrefixMap(Trie ipv4, Trie ipv6, Object[] values, int size) {
+    this.ipv4 = ipv4;
+    this.ipv6 = ipv6;
+    this.values = values;
+    this.size = size;
+  }
+
+  /**
+   * Start a new table.
+   *
+   * @param <V> type of the values of the prefixes
+   * @return an empty builder
+   */
+  public static <V> Builder<V> builder() {
+    return new Builder<>();
+  }
+
+  /**
+   * A table without prefixes.
+   *
+   * @param <V> type of the values of the prefixes
+   * @return a table in which every lookup returns null
+   */
+  public static <V> PrefixMap<V> empty() {
+    return new Builder<V>().build();
+  }
+
+  /**
+   * Look up the address at an offset of a byte array, without copying it.
+   *
+   * @param data   bytes holding the address, e.g. the data of a DataFlowSet
+   * @param offset index of the address in data
+   * @param length 4 for an IPv4, 16 for an IPv6 address
+   * @return the value of the longest prefix containing the address at data[offset], null if there is none
+   */
+  @SuppressWarnings("unchecked")
+  public V get(byte[] data, int offset, int length) {
+    Trie trie;
+    if (length == 4) {
+      trie = ipv4;
+    } else if (length == 16) {
+      trie = ipv6;
+    } else {
+      return null;
+    }
+    return (V) values[trie.lookup(data, offset, length)];
+  }
+
+  /**
+   * Look up an address.
+   *
+   * @param address 4 or 16 bytes
+   * @return the value of the longest prefix containing the address, null if there is none
+   */
+  public V get(byte[] address) {
+    return get(address, 0, address.length);
+  }
+
+  /**
+   * Look up an address.
+   *
+   * @param address an IPv4 or IPv6 address
+   * @return the value of the longest prefix containing the address, null if there is none
+   */
+  public V get(InetAddress address) {
+    return get(address.getAddress());
+  }
+
+  /**
+   * Count the distinct prefixes of the table.
+   *
+   * @return the number of prefixes
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Collects prefixes; a later prefix replaces an earlier one of the same address and length.
+   *
+   * @param <V> type of the values of the prefixes
+   */
+  public static final class Builder<V> {
+    /**
+     * Trie node while building: the value and prefix length assigned to each slot plus the children.
+     */
+    static final class Node {
+      final int[] values = new int[64];
+      final short[] lengths = new short[64];
+      final Node[] children = new Node[64];
+
+      Node() {
+        Arrays.fill(lengths, (short) -1);
+      }
+    }
+
+    final Node ipv4 = new Node();
+    final Node ipv6 = new Node();
+    final List<Object> values = new ArrayList<>();
+    final Map<Object, Integer> indexes = new HashMap<>();
+    final Map<String, Boolean> prefixes = new HashMap<>();
+
+    Builder() {
+      values.add(null);
+    }
+
+    /**
+     * Add a prefix given in CIDR notation.
+     *
+     * @param prefix "10.1.0.0/16" or "2001:db8::/32"; an address without a length is a host prefix
+     * @param value  value of the prefix
+     * @return this builder
+     * @throws IllegalArgumentException if prefix is not an IP address literal with an optional valid length
+     */
+    public Builder<V> add(String prefix, V value) {
+      int slash = prefix.indexOf('/');
+      String address = slash < 0 ? prefix : prefix.substring(0, slash);
+      byte[] bytes = parseAddress(address.trim());
+      int length = slash < 0 ? bytes.length * 8 : Integer.parseInt(prefix.substring(slash + 1).trim());
+      return add(bytes, length, value);
+    }
+
+    /**
+     * Add the prefix of the given length of an address.
+     *
+     * @param address IPv4 or IPv6 address, bits past length are ignored
+     * @param length  prefix length in bits
+     * @param value   value of the prefix
+     * @return this builder
+     * @throws IllegalArgumentException if length is not a valid prefix length for the address
+     */
+    public Builder<V> add(InetAddress address, int length, V value) {
+      return add(address.getAddress(), length, value);
+    }
+
+    /**
+     * Add the prefix of the given length of an address.
+     *
+     * @param address 4 or 16 bytes, bits past length are ignored
+     * @param length  prefix length in bits
+     * @param value   value of the prefix
+     * @return this builder
+     * @throws IllegalArgumentException if address does not have 4 or 16 bytes or length is out of range
+     */
+    public Builder<V> add(byte[] address, int length, V value) {
+      if (address.length != 4 && address.length != 16) {
+        throw new IllegalArgumentException("address must have 4 or 16 bytes");
+      }
+      if (length < 0 || length > address.length * 8) {
+        throw new IllegalArgumentException("invalid prefix length " + length);
+      }
+      Integer index = indexes.get(value);
+      if (index == null) {
+        index = values.size();
+        values.add(value);
+        indexes.put(value, index);
+      }
+      byte[] masked = mask(address, length);
+      prefixes.put(Arrays.toString(masked) + "/" + length, Boolean.TRUE);
+
+      Node node = address.length == 4 ? ipv4 : ipv6;
+      int position = 0;
+      // the node at depth d holds prefixes of 6d to 6d + 6 bits
+      while (length > position + STRIDE) {
+        int slot = Trie.slot(masked, 0, masked.length, position);
+        if (node.children[slot] == null) {
+          node.children[slot] = new Node();
+        }
+        node = node.children[slot];
+        position += STRIDE;
+      }
+      int first = Trie.slot(masked, 0, masked.length, position);
+      int count = 1 << (position + STRIDE - length);
+      for (int slot = first; slot < first + count; slot++) {
+        if (node.lengths[slot] <= length) {
+          node.values[slot] = index;
+          node.lengths[slot] = (short) length;
+        }
+      }
+      return this;
+    }
+
+    static byte[] mask(byte[] address, int length) {
+      byte[] masked = Arrays.copyOf(address, address.length);
+      for (int i = 0; i < masked.length; i++) {
+        int bits = Math.max(0, Math.min(8, length - 8 * i));
+        masked[i] &= (byte) (0xFF00 >>> bits);
+      }
+      return masked;
+    }
+
+    /**
+     * Parse an IPv4 or IPv6 literal; anything else is rejected rather than handed to a resolver.
+     */
+    static byte[] parseAddress(String address) {
+      byte[] bytes = NetUtil.createByteArrayFromIpAddressString(address);
+      if (bytes == null) {
+        throw new IllegalArgumentException("not an IP address: " + address);
+      }
+      return bytes;
+    }
+
+    /**
+     * Compile the prefixes added so far; the builder can still be used afterwards.
+     *
+     * @return the table
+     */
+    public PrefixMap<V> build() {
+      return new PrefixMap<>(compile(ipv4), compile(ipv6), values.toArray(), prefixes.size());
+    }
+
+    /**
+     * Lay the nodes out breadth first so that the children of a node are adjacent, pushing the value of every
+     * slot down into its child as the default of the slots the child has no longer prefix for.
+     */
+    static Trie compile(Node root) {
+      List<Node> nodes = new ArrayList<>();
+      List<Integer> inherited = new ArrayList<>();
+      nodes.add(root);
+      inherited.add(0);
+      long[] vectors = new long[16];
+      long[] leafVectors = new long[16];
+      int[] childBases = new int[16];
+      int[] leafBases = new int[16];
+      int[] leaves = new int[64];
+      int leafCount = 0;
+
+      ArrayDeque<Integer> queue = new ArrayDeque<>();
+      queue.add(0);
+      while (!queue.isEmpty()) {
+        int index = queue.poll();
+        Node node = nodes.get(index);
+        int defaultValue = inherited.get(index);
+        if (index >= vectors.length) {
+          int capacity = Math.max(index + 1, vectors.length * 2);
+          vectors = Arrays.copyOf(vectors, capacity);
+          leafVectors = Arrays.copyOf(leafVectors, capacity);
+          childBases = Arrays.copyOf(childBases, capacity);
+          leafBases = Arrays.copyOf(leafBases, capacity);
+        }
+        long vector = 0;
+        long leafVector = 0;
+        childBases[index] = nodes.size();
+        leafBases[index] = leafCount;
+        int previous = -1;
+        for (int slot = 0; slot < 64; slot++) {
+          int value = node.lengths[slot] >= 0 ? node.values[slot] : defaultValue;
+          if (node.children[slot] != null) {
+            vector |= 1L << slot;
+            queue.add(nodes.size());
+            nodes.add(node.children[slot]);
+            inherited.add(value);
+          } else if (value != previous) {
+            leafVector |= 1L << slot;
+            if (leafCount == leaves.length) {
+              leaves = Arrays.copyOf(leaves, leaves.length * 2);
+            }
+            leaves[leafCount++] = value;
+            previous = value;
+          }
+        }
+        vectors[index] = vector;
+        leafVectors[index] = leafVector;
+      }
+      int count = nodes.size();
+      return new Trie(Arrays.copyOf(vectors, count), Arrays.copyOf(leafVectors, count),
+          Arrays.copyOf(childBases, count), Arrays.copyOf(leafBases, count), Arrays.copyOf(leaves, leafCount));
+    }
+  }
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Flat, per-template view of where every field lives inside a data record.
+ * A DataFlowSet's data() holds back-to-back records (plus optional padding) of recordLength() bytes each,
+ * so a value is found at record * recordLength() + offset(type).
+ */
+public final class RecordLayout implements NetFlow {
+  static final int ABSENT = -1;
+
+  final TemplateFlowSet template;
+  final int recordLength;
+  // offset and length of every field, found through index by type id
+  final int[] offsets;
+  final short[] lengths;
+  final TypeIndex index;
+
+  RecordLayout(TemplateFlowSet template) {
+    this.template = template;
+
+    List<TemplateField> fields = template.fields();
+    int[] types = new int[fields.size()];
+    this.offsets = new int[fields.size()];
+    this.lengths = new short[fields.size()];
+    int recordLength = 0;
+    for (int i = 0; i < types.length; i++) {
+      TemplateField field = fields.get(i);
+      types[i] = field.type() & 0xFFFF;
+      offsets[i] = field.offset();
+      lengths[i] = field.length();
+      recordLength += field.length() & 0xFFFF;
+    }
+    this.recordLength = recordLength;
+    this.index = TypeIndex.of(types);
+  }
+
+  /**
+   * @return the (possibly cached) layout of the given template
+   */
+  public static RecordLayout of(TemplateFlowSet template) {
+    if (template instanceof NetFlowFactoryImpl.TemplateFlowSetImpl) {
+      return ((NetFlowFactoryImpl.TemplateFlowSetImpl) template).layout();
+    }
+    return new RecordLayout(template);
+  }
+
+  public TemplateFlowSet template() {
+    return template;
+  }
+
+  public int recordLength() {
+    return recordLength;
+  }
+
+  /**
+   * @return the number of complete records in the data FlowSet (trailing padding is ignored)
+   */
+  public int recordCount(DataFlowSet dataFlowSet) {
+    return recordLength == 0 ? 0 : dataFlowSet.data().length / recordLength;
+  }
+
+  public boolean has(int type) {
+    return index.get(type) != ABSENT;
+  }
+
+  /**
+   * @return field offset relative to the record beginning or -1 if the template has no such field
+   */
+  public int offset(int type) {
+    int field = index.get(type);
+    return field != ABSENT ? offsets[field] : ABSENT;
+  }
+
+  /**
+   * @return field length in bytes or 0 if the template has no such field
+   */
+  public int length(int type) {
+    int field = index.get(type);
+    return field != ABSENT ? lengths[field] & 0xFFFF : 0;
+  }
+
+  /**
+   * @return position of the field within data() for the given record index
+   */
+  public int position(int record, int type) {
+    return record * recordLength + offsets[index.get(type)];
+  }
+
+  /**
+   * Read a big endian unsigned field of up to 8 bytes (longer fields are truncated to their low 8 bytes).
+   * The caller is expected to check has(type) beforehand.
+   */
+  public long getUnsigned(byte[] data, int record, int type) {
+    int field = index.get(type);
+    int off = record * recordLength + offsets[field];
+    int len = lengths[field] & 0xFFFF;
+    if (len > 8) {
+      off += len - 8;
+      len = 8;
+    }
+    return len > 0 ? FieldReader.getUnsigned(data, off, len) : 0;
+  }
+
+  /**
+   * Read the field of every record of data like getUnsigned(data, record, type), in one pass.
+   *
+   * @param values receives the field of record i at index i, must hold all records
+   * @return the number of records
+   */
+  public int getUnsigned(byte[] data, int type, long[] values) {
+    int count = recordLength > 0 ? data.length / recordLength : 0;
+    if (values.length < count) {
+      throw new IllegalArgumentException("values holds " + values.length + " of " + count + " records");
+    }
+    int field = index.get(type);
+    int off = offsets[field];
+    int len = lengths[field] & 0xFFFF;
+    if (len > 8) {
+      off += len - 8;
+      len = 8;
+    }
+    if (len == 0) {
+      Arrays.fill(values, 0, count, 0);
+    } else {
+      FieldReader.getUnsigned(data, off, len, recordLength, count, values);
+    }
+    return count;
+  }
+
+  /**
+   * Copy the raw field bytes out of the record.
+   */
+  public byte[] getBytes(byte[] data, int record, int type) {
+    int field = index.get(type);
+    int off = record * recordLength + offsets[field];
+    return Arrays.copyOfRange(data, off, off + (lengths[field] & 0xFFFF));
+  }
+}
@@ -0,0 +1,218 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.util.Recycler;
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Factory that reuses the per-packet objects - the Header, the Message with its FlowSet list and the
+ * DataFlowSets - through Netty's Recycler, so steady-state decoding allocates little more than the data arrays.
+ * Templates and their fields are long-lived and built as usual.
+ *
+ * The price is an explicit Message.release() once a message has been processed (on any thread); a message
+ * that is never released is simply garbage collected. Neither the message nor its data FlowSets may be used
+ * after the release, copy what has to be kept.
+ */
+public class RecyclingNetFlowFactory extends NetFlowFactoryImpl {
+  static final Recycler<PooledMessage> MESSAGES = new Recycler<PooledMessage>() {
+    @Override
+    protected PooledMessage newObject(Handle<PooledMessage> handle) {
+      return new PooledMessage(handle);
+    }
+  };
+
+  static final Recycler<PooledDataFlowSet> DATA_FLOW_SETS = new Recycler<PooledDataFlowSet>() {
+    @Override
+    protected PooledDataFlowSet newObject(Handle<PooledDataFlowSet> handle) {
+      return new PooledDataFlowSet(handle);
+    }
+  };
+
+  // a header only lives until netflowMessage() copies it, so one per decoding thread is enough
+  static final FastThreadLocal<Header> HEADERS = new FastThreadLocal<Header>() {
+    @Override
+    protected Header initialValue() {
+      return new Header((short) 0, (short) 0, 0, 0, 0, 0, null, null);
+    }
+  };
+
+  @Override
+  public Header header(short version, short count, int uptime, int timestamp, int flowSequence, int sourceID,
+                       InetSocketAddress sender, InetSocketAddress recipient) {
+    return HEADERS.get().set(version, count, uptime, timestamp, flowSequence, sourceID, sender, recipient);
+  }
+
+  /**
+   * @return the FlowSet list of a message taken from the pool, which netflowMessage() then fills in
+   */
+  @Override
+  public List<FlowSet> flowSets() {
+    return MESSAGES.get().flowsets;
+  }
+
+  @Override
+  public Message netflowMessage(Header header, List<FlowSet> flowsets) {
+    PooledMessage message;
+    if (flowsets instanceof FlowSetList) {
+      message = ((FlowSetList) flowsets).message;
+    } else {
+      message = MESSAGES.get();
+      message.flowsets.addAll(flowsets);
+    }
+    message.version = header.version;
+    message.count = header.count;
+    message.uptime = header.uptime;
+    message.timestamp = header.timestamp;
+    message.flowSequence = header.flowSequence;
+    message.sourceID = header.sourceID;
+    message.sender = header.sender;
+    message.recipient = header.recipient;
+    return message;
+  }
+
+  @Override
+  public DataFlowSet dataFlowSet(short flowsetID, byte[] data, TemplateFlowSet template) {
+    PooledDataFlowSet dataFlowSet = DATA_FLOW_SETS.get();
+    dataFlowSet.flowsetID = flowsetID;
+    dataFlowSet.data = data;
+    dataFlowSet.template = template;
+    return dataFlowSet;
+  }
+
+  /**
+   * The FlowSet list of a PooledMessage, knows its message so that netflowMessage() can find it.
+   */
+  static final class FlowSetList extends ArrayList<FlowSet> {
+    final PooledMessage message;
+
+    FlowSetList(PooledMessage message) {
+      this.message = message;
+    }
+  }
+
+  static final class PooledMessage implements Message {
+    final Recycler.Handle<PooledMessage> handle;
+    final FlowSetList flowsets = new FlowSetList(this);
+    short version;
+    short count;
+    int uptime;
+    int timestamp;
+    int flowSequence;
+    int sourceID;
+    InetSocketAddress sender;
+    InetSocketAddress recipient;
+
+    PooledMessage(Recycler.Handle<PooledMessage> handle) {
+      this.handle = handle;
+    }
+
+    @Override
+    public short version() {
+      return version;
+    }
+
+    @Override
+    public short count() {
+      return count;
+    }
+
+    @Override
+    public int uptime() {
+      return uptime;
+    }
+
+    @Override
+    public int timestamp() {
+      return timestamp;
+    }
+
+    @Override
+    public int flowSequence() {
+      return flowSequence;
+    }
+
+    @Override
+    public int sourceID() {
+      return sourceID;
+    }
+
+    @Override
+    public InetSocketAddress sender() {
+      return sender;
+    }
+
+    @Override
+    public InetSocketAddress recipient() {
+      return recipient;
+    }
+
+    @Override
+    public List<FlowSet> flowsets() {
+      return flowsets;
+    }
+
+    @Override
+    public void release() {
+      for (int i = 0; i < flowsets.size(); i++) {
+        FlowSet flowSet = flowsets.get(i);
+        if (flowSet instanceof PooledDataFlowSet) {
+          ((PooledDataFlowSet) flowSet).recycle();
+        }
+      }
+      flowsets.clear();
+      sender = null;
+      recipient = null;
+      handle.recycle(this);
+    }
+  }
+
+  static final class PooledDataFlowSet implements DataFlowSet {
+    final Recycler.Handle<PooledDataFlowSet> handle;
+    short flowsetID;
+    byte[] data;
+    TemplateFlowSet template;
+
+    PooledDataFlowSet(Recycler.Handle<PooledDataFlowSet> handle) {
+      this.handle = handle;
+    }
+
+    @Override
+    public short flowsetID() {
+      return flowsetID;
+    }
+
+    @Override
+    public byte[] data() {
+      return data;
+    }
+
+    @Override
+    public TemplateFlowSet template() {
+      return template;
+    }
+
+    void recycle() {
+      data = null;
+      template = null;
+      handle.recycle(this);
+    }
+  }
+}
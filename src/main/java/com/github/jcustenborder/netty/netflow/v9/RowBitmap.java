@@ -0,0 +1,342 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Compressed set of (non-negative) row ids, organized like a Roaring bitmap:
+ * ids are bucketed by their high 16 bits and each bucket is either a sorted array of low 16 bit values
+ * (sparse, up to 4096 entries) or a 65536 bit bitmap (dense).
+ */
+final class RowBitmap {
+  static final int ARRAY_MAX = 4096;
+  private static final int WORDS = 1024;
+
+  char[] keys = new char[4];
+  // either char[] (sorted array container) or long[] (bitmap container)
+  Object[] containers = new Object[4];
+  // cardinality of every container
+  int[] cardinalities = new int[4];
+  int size;
+
+  void add(int id) {
+    char key = (char) (id >>> 16);
+    char low = (char) id;
+    int index = size > 0 && keys[size - 1] == key ? size - 1 : Arrays.binarySearch(keys, 0, size, key);
+    if (index < 0) {
+      index = -index - 1;
+      insertContainer(index, key, new char[4]);
+    }
+    Object container = containers[index];
+    int cardinality = cardinalities[index];
+    if (container instanceof long[]) {
+      long[] words = (long[]) container;
+      long bit = 1L << low;
+      if ((words[low >>> 6] & bit) == 0) {
+        words[low >>> 6] |= bit;
+        cardinalities[index]++;
+      }
+      return;
+    }
+
+    char[] values = (char[]) container;
+    int position;
+    if (cardinality == 0 || values[cardinality - 1] < low) {
+      position = cardinality; // appending row ids in order is the common case
+    } else {
+      position = Arrays.binarySearch(values, 0, cardinality, low);
+      if (position >= 0) {
+        return;
+      }
+      position = -position - 1;
+    }
+    if (cardinality == ARRAY_MAX) {
+      long[] words = toWords(values, cardinality);
+      words[low >>> 6] |= 1L << low;
+      containers[index] = words;
+      cardinalities[index]++;
+      return;
+    }
+    if (cardinality == values.length) {
+      values = Arrays.copyOf(values, Math.min(ARRAY_MAX, cardinality * 2));
+      containers[index] = values;
+    }
+    System.arraycopy(values, position, values, position + 1, cardinality - position);
+    values[position] = low;
+    cardinalities[index]++;
+  }
+
+  boolean contains(int id) {
+    int index = Arrays.binarySearch(keys, 0, size, (char) (id >>> 16));
+    if (index < 0) {
+      return false;
+    }
+    char low = (char) id;
+    Object container = containers[index];
+    if (container instanceof long[]) {
+      return (((long[]) container)[low >>> 6] & (1L << low)) != 0;
+    }
+    return Arrays.binarySearch((char[]) container, 0, cardinalities[index], low) >= 0;
+  }
+
+  int cardinality() {
+    int cardinality = 0;
+    for (int i = 0; i < size; ++i) {
+      cardinality += cardinalities[i];
+    }
+    return cardinality;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  private void insertContainer(int index, char key, Object container) {
+    if (size == keys.length) {
+      keys = Arrays.copyOf(keys, size * 2);
+      containers = Arrays.copyOf(containers, size * 2);
+      cardinalities = Arrays.copyOf(cardinalities, size * 2);
+    }
+    System.arraycopy(keys, index, keys, index + 1, size - index);
+    System.arraycopy(containers, index, containers, index + 1, size - index);
+    System.arraycopy(cardinalities, index, cardinalities, index + 1, size - index);
+    keys[index] = key;
+    containers[index] = container;
+    cardinalities[index] = 0;
+    size++;
+  }
+
+  private void appendContainer(char key, Object container, int cardinality) {
+    if (cardinality == 0) {
+      return;
+    }
+    insertContainer(size, key, container);
+    cardinalities[size - 1] = cardinality;
+  }
+
+  private static long[] toWords(char[] values, int cardinality) {
+    long[] words = new long[WORDS];
+    for (int i = 0; i < cardinality; ++i) {
+      words[values[i] >>> 6] |= 1L << values[i];
+    }
+    return words;
+  }
+
+  private static char[] toValues(long[] words, int cardinality) {
+    char[] values = new char[cardinality];
+    int n = 0;
+    for (int w = 0; w < WORDS; ++w) {
+      long word = words[w];
+      while (word != 0) {
+        values[n++] = (char) ((w << 6) + Long.numberOfTrailingZeros(word));
+        word &= word - 1;
+      }
+    }
+    return values;
+  }
+
+  private static long[] words(Object container, int cardinality) {
+    return container instanceof long[] ? (long[]) container : toWords((char[]) container, cardinality);
+  }
+
+  static RowBitmap and(RowBitmap a, RowBitmap b) {
+    RowBitmap result = new RowBitmap();
+    int i = 0;
+    int j = 0;
+    while (i < a.size && j < b.size) {
+      if (a.keys[i] < b.keys[j]) {
+        i++;
+      } else if (a.keys[i] > b.keys[j]) {
+        j++;
+      } else {
+        Object x = a.containers[i];
+        Object y = b.containers[j];
+        if (x instanceof char[] || y instanceof char[]) {
+          // probe the sparse side against the other one
+          boolean xSparse = x instanceof char[] && (!(y instanceof char[]) || a.cardinalities[i] <= b.cardinalities[j]);
+          char[] sparse = (char[]) (xSparse ? x : y);
+          int sparseCardinality = xSparse ? a.cardinalities[i] : b.cardinalities[j];
+          RowBitmap other = xSparse ? b : a;
+          int otherIndex = xSparse ? j : i;
+          char[] values = new char[sparseCardinality];
+          int n = 0;
+          for (int k = 0; k < sparseCardinality; ++k) {
+            if (other.containsLow(otherIndex, sparse[k])) {
+              values[n++] = sparse[k];
+            }
+          }
+          result.appendContainer(a.keys[i], values, n);
+        } else {
+          long[] words = new long[WORDS];
+          int cardinality = 0;
+          for (int w = 0; w < WORDS; ++w) {
+            words[w] = ((long[]) x)[w] & ((long[]) y)[w];
+            cardinality += Long.bitCount(words[w]);
+          }
+          result.appendContainer(a.keys[i], cardinality <= ARRAY_MAX ? toValues(words, cardinality) : words, cardinality);
+        }
+        i++;
+        j++;
+      }
+    }
+    return result;
+  }
+
+  static RowBitmap or(RowBitmap a, RowBitmap b) {
+    RowBitmap result = new RowBitmap();
+    int i = 0;
+    int j = 0;
+    while (i < a.size || j < b.size) {
+      if (j >= b.size || (i < a.size && a.keys[i] < b.keys[j])) {
+        result.appendContainer(a.keys[i], copy(a.containers[i]), a.cardinalities[i]);
+        i++;
+      } else if (i >= a.size || a.keys[i] > b.keys[j]) {
+        result.appendContainer(b.keys[j], copy(b.containers[j]), b.cardinalities[j]);
+        j++;
+      } else {
+        long[] x = words(a.containers[i], a.cardinalities[i]);
+        long[] y = words(b.containers[j], b.cardinalities[j]);
+        long[] words = new long[WORDS];
+        int cardinality = 0;
+        for (int w = 0; w < WORDS; ++w) {
+          words[w] = x[w] | y[w];
+          cardinality += Long.bitCount(words[w]);
+        }
+        result.appendContainer(a.keys[i], cardinality <= ARRAY_MAX ? toValues(words, cardinality) : words, cardinality);
+        i++;
+        j++;
+      }
+    }
+    return result;
+  }
+
+  private static Object copy(Object container) {
+    return container instanceof long[] ? ((long[]) container).clone() : ((char[]) container).clone();
+  }
+
+  private boolean containsLow(int index, char low) {
+    Object container = containers[index];
+    if (container instanceof long[]) {
+      return (((long[]) container)[low >>> 6] & (1L << low)) != 0;
+    }
+    return Arrays.binarySearch((char[]) container, 0, cardinalities[index], low) >= 0;
+  }
+
+  RowBitmap copy() {
+    return or(this, new RowBitmap());
+  }
+
+  /**
+   * @return iterator over the row ids in ascending order
+   */
+  Iterator iterator() {
+    return new Iterator();
+  }
+
+  final class Iterator {
+    int index;
+    int position;
+    long word;
+    int wordIndex = -1;
+
+    boolean hasNext() {
+      while (index < size) {
+        Object container = containers[index];
+        if (container instanceof char[]) {
+          if (position < cardinalities[index]) {
+            return true;
+          }
+        } else {
+          long[] words = (long[]) container;
+          while (word == 0 && wordIndex < WORDS - 1) {
+            word = words[++wordIndex];
+          }
+          if (word != 0) {
+            return true;
+          }
+        }
+        index++;
+        position = 0;
+        word = 0;
+        wordIndex = -1;
+      }
+      return false;
+    }
+
+    int next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      int high = keys[index] << 16;
+      Object container = containers[index];
+      if (container instanceof char[]) {
+        return high | ((char[]) container)[position++];
+      }
+      int low = (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+      word &= word - 1;
+      return high | low;
+    }
+  }
+
+  void write(DataOutput output) throws IOException {
+    output.writeInt(size);
+    for (int i = 0; i < size; ++i) {
+      output.writeChar(keys[i]);
+      output.writeInt(cardinalities[i]);
+      Object container = containers[i];
+      if (container instanceof long[]) {
+        for (long word : (long[]) container) {
+          output.writeLong(word);
+        }
+      } else {
+        char[] values = (char[]) container;
+        for (int k = 0; k < cardinalities[i]; ++k) {
+          output.writeChar(values[k]);
+        }
+      }
+    }
+  }
+
+  static RowBitmap read(DataInput input) throws IOException {
+    RowBitmap bitmap = new RowBitmap();
+    int size = input.readInt();
+    for (int i = 0; i < size; ++i) {
+      char key = input.readChar();
+      int cardinality = input.readInt();
+      Object container;
+      if (cardinality > ARRAY_MAX) {
+        long[] words = new long[WORDS];
+        for (int w = 0; w < WORDS; ++w) {
+          words[w] = input.readLong();
+        }
+        container = words;
+      } else {
+        char[] values = new char[cardinality];
+        for (int k = 0; k < cardinality; ++k) {
+          values[k] = input.readChar();
+        }
+        container = values;
+      }
+      bitmap.appendContainer(key, container, cardinality);
+    }
+    return bitmap;
+  }
+}
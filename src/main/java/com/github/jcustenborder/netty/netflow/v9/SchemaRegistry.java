@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns ids (0, 1, 2, ...) to the distinct record layouts of templates and hands out their FlowSchema, so that
+ * writer and reader agree on them. Templates of the same layout share a schema whatever their exporter or template
+ * ID. The registry can be saved to and loaded from a file; ids never change once assigned.
+ */
+public class SchemaRegistry {
+  static final int MAGIC = 0x4e465352; // NFSR
+  static final int VERSION = 1;
+
+  final NetFlow.FieldScheme scheme;
+  final List<FlowSchema> schemas = new ArrayList<>();
+  final Map<Integer, List<FlowSchema>> byLayout = new HashMap<>();
+
+  public SchemaRegistry(NetFlow.FieldScheme scheme) {
+    this.scheme = scheme;
+  }
+
+  public SchemaRegistry() {
+    this(new CiscoFieldScheme());
+  }
+
+  /**
+   * @return the schema of the template's layout, registering it if it is new
+   */
+  public synchronized FlowSchema schema(NetFlow.TemplateFlowSet template) {
+    return register(FlowSchema.of(schemas.size(), template, scheme));
+  }
+
+  synchronized FlowSchema register(FlowSchema candidate) {
+    List<FlowSchema> sameHash = byLayout.computeIfAbsent(candidate.layoutHash(), h -> new ArrayList<>(1));
+    for (FlowSchema schema : sameHash) {
+      if (schema.sameLayout(candidate)) {
+        return schema;
+      }
+    }
+    FlowSchema schema = candidate.id == schemas.size() ? candidate : candidate.withId(schemas.size());
+    schemas.add(schema);
+    sameHash.add(schema);
+    return schema;
+  }
+
+  /**
+   * @return the schema with the id, null if there is none
+   */
+  public synchronized FlowSchema schema(int id) {
+    return id >= 0 && id < schemas.size() ? schemas.get(id) : null;
+  }
+
+  public synchronized int size() {
+    return schemas.size();
+  }
+
+  /**
+   * Write all schemas to the file, replacing it atomically.
+   */
+  public synchronized void save(Path file) throws IOException {
+    Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+      out.writeInt(MAGIC);
+      out.writeShort(VERSION);
+      out.writeInt(schemas.size());
+      for (FlowSchema schema : schemas) {
+        out.writeShort(schema.fieldCount());
+        for (int i = 0; i < schema.fieldCount(); i++) {
+          out.writeShort(schema.type(i));
+          out.writeShort(schema.length(i));
+          out.writeByte(schema.dataType(i).ordinal());
+        }
+      }
+    }
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Read a registry written by save().
+   */
+  public static SchemaRegistry load(Path file, NetFlow.FieldScheme scheme) throws IOException {
+    SchemaRegistry registry = new SchemaRegistry(scheme);
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+        throw new IOException(file + " is not a schema registry");
+      }
+      int count = in.readInt();
+      for (int id = 0; id < count; id++) {
+        int fields = in.readUnsignedShort();
+        short[] types = new short[fields];
+        short[] lengths = new short[fields];
+        NetFlow.Field.DataType[] dataTypes = new NetFlow.Field.DataType[fields];
+        for (int i = 0; i < fields; i++) {
+          types[i] = in.readShort();
+          lengths[i] = in.readShort();
+          int dataType = in.readUnsignedByte();
+          if (dataType >= FlowSchema.DATA_TYPES.length) {
+            throw new IOException("Unknown data type " + dataType + " in " + file);
+          }
+          dataTypes[i] = FlowSchema.DATA_TYPES[dataType];
+        }
+        registry.register(new FlowSchema(id, types, lengths, dataTypes));
+      }
+    }
+    return registry;
+  }
+
+  public static SchemaRegistry load(Path file) throws IOException {
+    return load(file, new CiscoFieldScheme());
+  }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Templates learned from previous packets, per exporter. Exporters only refresh their templates periodically,
+ * so data FlowSets usually refer to a template that arrived in an earlier packet.
+ * Safe to share between decoders running on several threads.
+ */
+public class TemplateCache {
+  static final class Entry {
+    final NetFlow.TemplateFlowSet template;
+    final long learnedAt;
+
+    Entry(NetFlow.TemplateFlowSet template, long learnedAt) {
+      this.template = template;
+      this.learnedAt = learnedAt;
+    }
+  }
+
+  // boxes of the template IDs exporters commonly use, so that lookups do not allocate
+  static final Short[] IDS = new Short[4096];
+
+  static {
+    for (int i = 0; i < IDS.length; i++) {
+      IDS[i] = (short) i;
+    }
+  }
+
+  static Short id(short templateID) {
+    return templateID >= 0 && templateID < IDS.length ? IDS[templateID] : Short.valueOf(templateID);
+  }
+
+  final ConcurrentMap<ExporterKey, ConcurrentMap<Short, Entry>> templates = new ConcurrentHashMap<>();
+  // bumped on every change, lets snapshotting skip unchanged caches
+  final AtomicLong modifications = new AtomicLong();
+
+  public NetFlow.TemplateFlowSet get(ExporterKey exporter, short templateID) {
+    Map<Short, Entry> byId = templates.get(exporter);
+    Entry entry = byId != null ? byId.get(id(templateID)) : null;
+    return entry != null ? entry.template : null;
+  }
+
+  /**
+   * @return when (epoch millis) the template was last (re)learned or -1 if it is unknown
+   */
+  public long learnedAt(ExporterKey exporter, short templateID) {
+    Map<Short, Entry> byId = templates.get(exporter);
+    Entry entry = byId != null ? byId.get(id(templateID)) : null;
+    return entry != null ? entry.learnedAt : -1;
+  }
+
+  /**
+   * Add or replace (template IDs may be redefined by the exporter) a template.
+   */
+  public void put(ExporterKey exporter, NetFlow.TemplateFlowSet template) {
+    put(exporter, template, System.currentTimeMillis());
+  }
+
+  void put(ExporterKey exporter, NetFlow.TemplateFlowSet template, long learnedAt) {
+    templates.computeIfAbsent(exporter, k -> new ConcurrentHashMap<>()).put(id(template.templateID()), new Entry(template, learnedAt));
+    modifications.incrementAndGet();
+  }
+
+  /**
+   * Add a template unless the exporter already has one with the same ID.
+   *
+   * @return true if the template was added
+   */
+  boolean putIfAbsent(ExporterKey exporter, NetFlow.TemplateFlowSet template, long learnedAt) {
+    Entry previous = templates.computeIfAbsent(exporter, k -> new ConcurrentHashMap<>())
+        .putIfAbsent(id(template.templateID()), new Entry(template, learnedAt));
+    if (previous == null) {
+      modifications.incrementAndGet();
+    }
+    return previous == null;
+  }
+
+  /**
+   * @return the templates currently known for the exporter
+   */
+  public Map<Short, NetFlow.TemplateFlowSet> templates(ExporterKey exporter) {
+    Map<Short, Entry> byId = templates.get(exporter);
+    if (byId == null) {
+      return Collections.emptyMap();
+    }
+    Map<Short, NetFlow.TemplateFlowSet> result = new LinkedHashMap<>();
+    for (Map.Entry<Short, Entry> e : byId.entrySet()) {
+      result.put(e.getKey(), e.getValue().template);
+    }
+    return Collections.unmodifiableMap(result);
+  }
+
+  public Set<ExporterKey> exporters() {
+    return Collections.unmodifiableSet(templates.keySet());
+  }
+
+  /**
+   * Forget every template of the exporter.
+   */
+  public void remove(ExporterKey exporter) {
+    if (templates.remove(exporter) != null) {
+      modifications.incrementAndGet();
+    }
+  }
+
+  /**
+   * Forget a single template of the exporter.
+   *
+   * @return the removed template or null if it was unknown
+   */
+  public NetFlow.TemplateFlowSet remove(ExporterKey exporter, short templateID) {
+    Map<Short, Entry> byId = templates.get(exporter);
+    Entry entry = byId != null ? byId.remove(id(templateID)) : null;
+    if (entry == null) {
+      return null;
+    }
+    modifications.incrementAndGet();
+    return entry.template;
+  }
+
+  /**
+   * @return the number of templates over all exporters
+   */
+  public int size() {
+    int size = 0;
+    for (Map<Short, Entry> byId : templates.values()) {
+      size += byId.size();
+    }
+    return size;
+  }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shares one immutable TemplateFlowSet between all structurally identical templates, keyed by the raw bytes
+ * of the template record (templateID, field count, field types and lengths). Fleets of same-model exporters
+ * send the same few templates over and over, so the decoder can skip building the field list - and
+ * derived state such as the RecordLayout is built once - for all but the first of them.
+ *
+ * The number of distinct templates is bounded; once full, new templates are simply not interned.
+ */
+public class TemplateInterner {
+  static final class Key {
+    final short flowsetID;
+    final byte[] content;
+    final int hash;
+
+    Key(short flowsetID, byte[] content) {
+      this.flowsetID = flowsetID;
+      this.content = content;
+      this.hash = 31 * flowsetID + Arrays.hashCode(content);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key that = (Key) o;
+      return hash == that.hash && flowsetID == that.flowsetID && Arrays.equals(content, that.content);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  final ConcurrentMap<Key, NetFlow.TemplateFlowSet> templates = new ConcurrentHashMap<>();
+  final int maxSize;
+  final LongAdder hits = new LongAdder();
+  final LongAdder misses = new LongAdder();
+
+  public TemplateInterner(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  public TemplateInterner() {
+    this(4096);
+  }
+
+  /**
+   * @param record the readable bytes of the template record, not consumed
+   */
+  static Key key(short flowsetID, ByteBuf record) {
+    byte[] content = new byte[record.readableBytes()];
+    record.getBytes(record.readerIndex(), content);
+    return new Key(flowsetID, content);
+  }
+
+  NetFlow.TemplateFlowSet get(Key key) {
+    NetFlow.TemplateFlowSet template = templates.get(key);
+    if (template != null) {
+      hits.increment();
+    } else {
+      misses.increment();
+    }
+    return template;
+  }
+
+  /**
+   * @return the instance interned for key, which is template unless another thread got there first
+   */
+  NetFlow.TemplateFlowSet intern(Key key, NetFlow.TemplateFlowSet template) {
+    if (templates.size() >= maxSize) {
+      return template;
+    }
+    NetFlow.TemplateFlowSet existing = templates.putIfAbsent(key, template);
+    return existing != null ? existing : template;
+  }
+
+  public int size() {
+    return templates.size();
+  }
+
+  public long hitCount() {
+    return hits.sum();
+  }
+
+  public long missCount() {
+    return misses.sum();
+  }
+}
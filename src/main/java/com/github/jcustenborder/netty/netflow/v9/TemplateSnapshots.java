@@ -0,0 +1,186 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persists the templates of a TemplateCache to a small binary file so that a restarted collector can decode
+ * data right away instead of waiting for every exporter's next template refresh.
+ *
+ * File layout: int magic, int version, int entry count, then per template: byte address length, address,
+ * int sourceID, short flowsetID, short templateID, long learnedAt, short field count and (short type,
+ * short length) per field. The file is replaced atomically.
+ */
+public class TemplateSnapshots {
+  private static final Logger log = LoggerFactory.getLogger(TemplateSnapshots.class);
+
+  static final int MAGIC = 0x4E465453; // 'NFTS'
+  static final int FORMAT_VERSION = 1;
+
+  final TemplateCache cache;
+  final NetFlow.Factory netflowFactory;
+  final Path file;
+  final long maxAgeMillis;
+  long savedModifications = -1;
+
+  /**
+   * @param maxAgeMillis templates learned longer ago than this are not restored (exporters may have redefined them)
+   */
+  public TemplateSnapshots(TemplateCache cache, NetFlow.Factory netflowFactory, Path file, long maxAgeMillis) {
+    this.cache = cache;
+    this.netflowFactory = netflowFactory;
+    this.file = file;
+    this.maxAgeMillis = maxAgeMillis;
+  }
+
+  /**
+   * Snapshots of the decoder's template cache; templates older than a day are not restored.
+   */
+  public TemplateSnapshots(NetFlowV9Decoder decoder, Path file) {
+    this(decoder.templateCache, decoder.netflowFactory, file, TimeUnit.DAYS.toMillis(1));
+  }
+
+  /**
+   * Write the cache to the file unless nothing changed since the previous save.
+   *
+   * @return the number of templates written, -1 if the cache did not change
+   */
+  public synchronized int save() throws IOException {
+    long modifications = cache.modifications.get();
+    if (modifications == savedModifications) {
+      return -1;
+    }
+    List<ExporterKey> exporters = new ArrayList<>();
+    List<TemplateCache.Entry> entries = new ArrayList<>();
+    for (Map.Entry<ExporterKey, ? extends Map<Short, TemplateCache.Entry>> e : cache.templates.entrySet()) {
+      for (TemplateCache.Entry entry : e.getValue().values()) {
+        exporters.add(e.getKey());
+        entries.add(entry);
+      }
+    }
+
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (OutputStream output = Files.newOutputStream(tmp);
+         DataOutputStream data = new DataOutputStream(new BufferedOutputStream(output))) {
+      data.writeInt(MAGIC);
+      data.writeInt(FORMAT_VERSION);
+      data.writeInt(entries.size());
+      for (int i = 0; i < entries.size(); ++i) {
+        writeEntry(data, exporters.get(i), entries.get(i));
+      }
+    }
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    savedModifications = modifications;
+    log.debug("Saved {} template(s) to {}", entries.size(), file);
+    return entries.size();
+  }
+
+  private static void writeEntry(DataOutputStream data, ExporterKey exporter, TemplateCache.Entry entry) throws IOException {
+    byte[] address = exporter.address != null ? exporter.address.getAddress() : new byte[0];
+    data.writeByte(address.length);
+    data.write(address);
+    data.writeInt(exporter.sourceID);
+    data.writeShort(entry.template.flowsetID());
+    data.writeShort(entry.template.templateID());
+    data.writeLong(entry.learnedAt);
+    List<NetFlow.TemplateField> fields = entry.template.fields();
+    data.writeShort(fields.size());
+    for (NetFlow.TemplateField field : fields) {
+      data.writeShort(field.type());
+      data.writeShort(field.length());
+    }
+  }
+
+  /**
+   * Load the snapshot into the cache. Templates the cache already knows (learned live) are kept.
+   *
+   * @return the number of templates restored
+   */
+  public synchronized int restore() throws IOException {
+    if (!Files.isRegularFile(file)) {
+      return 0;
+    }
+    long oldest = System.currentTimeMillis() - maxAgeMillis;
+    int restored = 0;
+    try (InputStream input = Files.newInputStream(file);
+         DataInputStream data = new DataInputStream(new BufferedInputStream(input))) {
+      if (data.readInt() != MAGIC || data.readInt() != FORMAT_VERSION) {
+        log.warn("Ignoring template snapshot {} with unexpected format", file);
+        return 0;
+      }
+      int count = data.readInt();
+      for (int i = 0; i < count; ++i) {
+        byte[] address = new byte[data.readUnsignedByte()];
+        data.readFully(address);
+        int sourceID = data.readInt();
+        short flowsetID = data.readShort();
+        short templateID = data.readShort();
+        long learnedAt = data.readLong();
+        int fieldCount = data.readUnsignedShort();
+        List<NetFlow.TemplateField> fields = new ArrayList<>(fieldCount);
+        int fieldOffset = 0;
+        for (int f = 0; f < fieldCount; ++f) {
+          short type = data.readShort();
+          short length = data.readShort();
+          fields.add(netflowFactory.templateField(type, length, fieldOffset));
+          fieldOffset += length & 0xFFFF;
+        }
+        if (learnedAt < oldest) {
+          continue;
+        }
+        ExporterKey exporter = new ExporterKey(address.length > 0 ? InetAddress.getByAddress(address) : null, sourceID);
+        if (cache.putIfAbsent(exporter, netflowFactory.templateFlowSet(flowsetID, templateID, fields), learnedAt)) {
+          restored++;
+        }
+      }
+    }
+    log.info("Restored {} template(s) from {}", restored, file);
+    return restored;
+  }
+
+  /**
+   * Save the cache every period (skipping unchanged caches) on the executor, e.g. the channel's event loop group.
+   */
+  public ScheduledFuture<?> schedule(ScheduledExecutorService executor, long period, TimeUnit unit) {
+    return executor.scheduleWithFixedDelay(() -> {
+      try {
+        save();
+      } catch (IOException e) {
+        log.warn("Could not save template snapshot {}", file, e);
+      }
+    }, period, period, unit);
+  }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import java.util.Arrays;
+
+/**
+ * Maps the type ids of a template's fields to the index of the (first) field with that type.
+ *
+ * Templates usually only use IANA / Cisco type ids below a few hundred, which a dense array indexed by type id
+ * serves with a single load. IPFIX enterprise-specific types keep bit 0x8000 though, and a dense array for those
+ * would take up to 64k entries per template, so templates with large type ids use the sorted types and a binary
+ * search instead.
+ */
+final class TypeIndex {
+  static final int ABSENT = -1;
+  // largest type id still served by a dense array (1 KB of ints per template at most)
+  static final int DENSE_MAX_TYPE = 255;
+
+  // indexed by type id, null for sparse indexes
+  final int[] dense;
+  // sorted type ids and the index of each, for sparse indexes
+  final int[] types;
+  final int[] indexes;
+
+  private TypeIndex(int[] dense, int[] types, int[] indexes) {
+    this.dense = dense;
+    this.types = types;
+    this.indexes = indexes;
+  }
+
+  /**
+   * @param types the type id of every field, as unsigned shorts
+   */
+  static TypeIndex of(int[] types) {
+    int maxType = -1;
+    for (int type : types) {
+      maxType = Math.max(maxType, type);
+    }
+    if (maxType <= DENSE_MAX_TYPE) {
+      int[] dense = new int[maxType + 1];
+      Arrays.fill(dense, ABSENT);
+      for (int i = types.length - 1; i >= 0; i--) { // first occurrence wins
+        dense[types[i]] = i;
+      }
+      return new TypeIndex(dense, null, null);
+    }
+    // sort (type, index) pairs packed into longs, then keep the first index of every type
+    long[] pairs = new long[types.length];
+    for (int i = 0; i < types.length; i++) {
+      pairs[i] = (long) types[i] << 32 | i;
+    }
+    Arrays.sort(pairs);
+    int[] sortedTypes = new int[pairs.length];
+    int[] indexes = new int[pairs.length];
+    int count = 0;
+    for (long pair : pairs) {
+      int type = (int) (pair >>> 32);
+      if (count == 0 || sortedTypes[count - 1] != type) {
+        sortedTypes[count] = type;
+        indexes[count++] = (int) pair;
+      }
+    }
+    return new TypeIndex(null, Arrays.copyOf(sortedTypes, count), Arrays.copyOf(indexes, count));
+  }
+
+  /**
+   * @return index of the first field with the type id, ABSENT if there is none
+   */
+  int get(int type) {
+    if (dense != null) {
+      return type >= 0 && type < dense.length ? dense[type] : ABSENT;
+    }
+    int found = Arrays.binarySearch(types, type);
+    return found >= 0 ? indexes[found] : ABSENT;
+  }
+}
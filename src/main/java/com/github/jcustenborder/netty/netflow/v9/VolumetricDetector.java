@@ -0,0 +1,587 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.concurrent.FastThreadLocal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Watches the data records passing by for SYN floods, UDP amplification and port scans and reports them to an
+ * AlertListener within seconds. Messages are passed on unchanged. Place it after the NetFlowV9Decoder.
+ *
+ * Per destination address it keeps exponentially decaying rates (time constant Thresholds.decay) of packets and
+ * bytes, of packets in SYN-only TCP flows and of bytes from UDP amplification ports (DNS, NTP, SSDP, memcached,
+ * ...), plus linear counting sketches of the distinct sources and destination ports seen within a window. The
+ * state lives in fixed size primitive tables, one per event loop thread so updates need no locking. When a table
+ * is full the least busy of the probed destinations makes room. Every record costs a bounded amount of work.
+ *
+ * A destination reported through several threads is tracked by each of them, so each only sees its share of an
+ * attack. Once a thread's share reaches a threshold divided by the number of threads, the destination's rates and
+ * sketches of all threads are merged before checking the threshold itself. Reading the other threads' tables
+ * takes no lock, so the merged values are approximate.
+ *
+ * A SYN flood also needs SYNs from at least Thresholds.synSources distinct sources. An alert is raised at most
+ * once per cooldown per destination and Alert.Type.
+ */
+@ChannelHandler.Sharable
+public class VolumetricDetector extends ChannelInboundHandlerAdapter implements NetFlow {
+  private static final Logger log = LoggerFactory.getLogger(VolumetricDetector.class);
+
+  public interface AlertListener {
+    /**
+     * Called on the event loop thread that saw the record, so it must not block.
+     */
+    void alert(Alert alert);
+  }
+
+  public static final class Alert {
+    public enum Type {
+      SYN_FLOOD,
+      UDP_AMPLIFICATION,
+      PORT_SCAN
+    }
+
+    final Type type;
+    final InetAddress destination;
+    final long time;
+    final double packetsPerSecond;
+    final double bytesPerSecond;
+    final double synPacketsPerSecond;
+    final double amplificationBytesPerSecond;
+    final int distinctSources;
+    final int distinctPorts;
+    final InetSocketAddress exporter;
+
+    Alert(Type type, InetAddress destination, long time, double packetsPerSecond, double bytesPerSecond,
+          double synPacketsPerSecond, double amplificationBytesPerSecond, int distinctSources, int distinctPorts,
+          InetSocketAddress exporter) {
+      this.type = type;
+      this.destination = destination;
+      this.time = time;
+      this.packetsPerSecond = packetsPerSecond;
+      this.bytesPerSecond = bytesPerSecond;
+      this.synPacketsPerSecond = synPacketsPerSecond;
+      this.amplificationBytesPerSecond = amplificationBytesPerSecond;
+      this.distinctSources = distinctSources;
+      this.distinctPorts = distinctPorts;
+      this.exporter = exporter;
+    }
+
+    public Type type() {
+      return type;
+    }
+
+    public InetAddress destination() {
+      return destination;
+    }
+
+    /**
+     * @return when the alert was raised, in milliseconds since the epoch
+     */
+    public long time() {
+      return time;
+    }
+
+    public double packetsPerSecond() {
+      return packetsPerSecond;
+    }
+
+    public double bytesPerSecond() {
+      return bytesPerSecond;
+    }
+
+    public double synPacketsPerSecond() {
+      return synPacketsPerSecond;
+    }
+
+    public double amplificationBytesPerSecond() {
+      return amplificationBytesPerSecond;
+    }
+
+    /**
+     * @return estimated distinct source addresses within the current window
+     */
+    public int distinctSources() {
+      return distinctSources;
+    }
+
+    /**
+     * @return estimated distinct destination ports within the current window
+     */
+    public int distinctPorts() {
+      return distinctPorts;
+    }
+
+    /**
+     * @return the exporter of the record that raised the alert
+     */
+    public InetSocketAddress exporter() {
+      return exporter;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s on %s: %.0f pps, %.0f B/s, %.0f SYN pps, %.0f amplification B/s, "
+              + "%d sources, %d ports", type, destination.getHostAddress(), packetsPerSecond, bytesPerSecond,
+          synPacketsPerSecond, amplificationBytesPerSecond, distinctSources, distinctPorts);
+    }
+  }
+
+  public static final class Thresholds {
+    final long decayMillis;
+    final double synPacketsPerSecond;
+    final double synRatio;
+    final int synSources;
+    final double amplificationBytesPerSecond;
+    final int distinctPorts;
+    final long windowMillis;
+    final long cooldownMillis;
+
+    /**
+     * @param decay                       time constant of the rates
+     * @param synPacketsPerSecond         rate of packets in SYN-only flows that is a SYN flood...
+     * @param synRatio                    ...if they make up at least this share of all packets...
+     * @param synSources                  ...and come from at least this many sources within a window
+     * @param amplificationBytesPerSecond rate of bytes from UDP amplification ports that is an attack
+     * @param distinctPorts               destination ports within a window that make a port scan
+     * @param window                      period of the distinct source and port counts
+     * @param cooldown                    minimum time between two alerts of a type for a destination
+     */
+    public Thresholds(long decay, double synPacketsPerSecond, double synRatio, int synSources,
+                      double amplificationBytesPerSecond, int distinctPorts, long window, long cooldown,
+                      TimeUnit unit) {
+      if (unit.toMillis(decay) <= 0 || unit.toMillis(window) <= 0) {
+        throw new IllegalArgumentException("decay and window must be at least a millisecond");
+      }
+      this.decayMillis = unit.toMillis(decay);
+      this.synPacketsPerSecond = synPacketsPerSecond;
+      this.synRatio = synRatio;
+      this.synSources = synSources;
+      this.amplificationBytesPerSecond = amplificationBytesPerSecond;
+      this.distinctPorts = distinctPorts;
+      this.windowMillis = unit.toMillis(window);
+      this.cooldownMillis = unit.toMillis(cooldown);
+    }
+
+    /**
+     * Rates over 5 seconds; 10k SYN pps from 50 sources making up half of the packets, 100 Mbit/s of
+     * amplification traffic, or 500 ports within 10 seconds; an alert per minute at most.
+     */
+    public Thresholds() {
+      this(5, 10000, 0.5, 50, 12.5e6, 500, 10, 60, TimeUnit.SECONDS);
+    }
+  }
+
+  static final int IN_BYTES = CiscoFieldScheme.Field.IN_BYTES.typeId;
+  static final int IN_PKTS = CiscoFieldScheme.Field.IN_PKTS.typeId;
+  static final int TCP_FLAGS = CiscoFieldScheme.Field.TCP_FLAGS.typeId;
+  static final int TCP = 6;
+  static final int UDP = 17;
+  static final int FIN = 0x01;
+  static final int SYN = 0x02;
+  static final int RST = 0x04;
+  static final int ACK = 0x10;
+  static final int PROBES = 8;
+  // linear counting sketches of 512 bits, good for estimates up to a few thousand
+  static final int SKETCH_WORDS = 8;
+  static final int SKETCH_BITS = SKETCH_WORDS * 64;
+  // chargen, QOTD, DNS, NTP, SNMP, LDAP, SSDP, WS-Discovery, memcached
+  static final int[] AMPLIFICATION_PORTS = {19, 17, 53, 123, 161, 389, 1900, 3702, 11211};
+  static final boolean[] AMPLIFICATION = new boolean[65536];
+
+  static {
+    for (int port : AMPLIFICATION_PORTS) {
+      AMPLIFICATION[port] = true;
+    }
+  }
+
+  /**
+   * Detector state of one thread.
+   */
+  static final class Shard {
+    final int mask;
+    // 0 for a free slot, see key()
+    final long[] keys;
+    final long[] updated;
+    final long[] windowStarts;
+    // exponentially decaying sums, divided by the decay time constant they are rates per second
+    final double[] packets;
+    final double[] bytes;
+    final double[] synPackets;
+    final double[] amplificationBytes;
+    final long[] sources;
+    final long[] ports;
+    // time of the last alert per type
+    final long[] alerted;
+    // values of the destination being checked, merged over all shards if need be
+    final Totals totals = new Totals();
+    int size;
+
+    Shard(int capacity) {
+      int slots = Integer.highestOneBit(Math.max(PROBES, capacity) - 1) << 1;
+      this.mask = slots - 1;
+      this.keys = new long[slots];
+      this.updated = new long[slots];
+      this.windowStarts = new long[slots];
+      this.packets = new double[slots];
+      this.bytes = new double[slots];
+      this.synPackets = new double[slots];
+      this.amplificationBytes = new double[slots];
+      this.sources = new long[slots * SKETCH_WORDS];
+      this.ports = new long[slots * SKETCH_WORDS];
+      this.alerted = new long[slots * Alert.Type.values().length];
+    }
+
+    /**
+     * @return the slot of the destination or -1 if it is not tracked, without claiming one
+     */
+    int find(long key) {
+      int start = (int) mix(key) & mask;
+      for (int i = 0; i < PROBES; i++) {
+        int slot = (start + i) & mask;
+        if (keys[slot] == key) {
+          return slot;
+        }
+        if (keys[slot] == 0) {
+          return -1;
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * @return the slot of the destination, claiming a free one or the least busy of the probed ones
+     */
+    int slot(long key, long now) {
+      int start = (int) mix(key) & mask;
+      int victim = start;
+      for (int i = 0; i < PROBES; i++) {
+        int slot = (start + i) & mask;
+        if (keys[slot] == key) {
+          return slot;
+        }
+        if (keys[slot] == 0) {
+          victim = slot;
+          size++;
+          break;
+        }
+        if (packets[slot] < packets[victim]) {
+          victim = slot;
+        }
+      }
+      keys[victim] = key;
+      updated[victim] = now;
+      windowStarts[victim] = now;
+      packets[victim] = 0;
+      bytes[victim] = 0;
+      synPackets[victim] = 0;
+      amplificationBytes[victim] = 0;
+      Arrays.fill(sources, victim * SKETCH_WORDS, (victim + 1) * SKETCH_WORDS, 0);
+      Arrays.fill(ports, victim * SKETCH_WORDS, (victim + 1) * SKETCH_WORDS, 0);
+      Arrays.fill(alerted, victim * Alert.Type.values().length, (victim + 1) * Alert.Type.values().length, 0);
+      return victim;
+    }
+  }
+
+  /**
+   * Rates, sketches and last alerts of one destination.
+   */
+  static final class Totals {
+    double packets;
+    double bytes;
+    double synPackets;
+    double amplificationBytes;
+    final long[] sources = new long[SKETCH_WORDS];
+    final long[] ports = new long[SKETCH_WORDS];
+    final long[] alerted = new long[Alert.Type.values().length];
+
+    void load(Shard shard, int slot) {
+      packets = shard.packets[slot];
+      bytes = shard.bytes[slot];
+      synPackets = shard.synPackets[slot];
+      amplificationBytes = shard.amplificationBytes[slot];
+      System.arraycopy(shard.sources, slot * SKETCH_WORDS, sources, 0, SKETCH_WORDS);
+      System.arraycopy(shard.ports, slot * SKETCH_WORDS, ports, 0, SKETCH_WORDS);
+      System.arraycopy(shard.alerted, slot * alerted.length, alerted, 0, alerted.length);
+    }
+
+    /**
+     * Add the values of another shard, decayed to now.
+     */
+    void add(Shard shard, int slot, long now, Thresholds thresholds) {
+      double decay = Math.exp(-(double) Math.max(0, now - shard.updated[slot]) / thresholds.decayMillis);
+      packets += shard.packets[slot] * decay;
+      bytes += shard.bytes[slot] * decay;
+      synPackets += shard.synPackets[slot] * decay;
+      amplificationBytes += shard.amplificationBytes[slot] * decay;
+      if (now - shard.windowStarts[slot] < thresholds.windowMillis) {
+        for (int i = 0; i < SKETCH_WORDS; i++) {
+          sources[i] |= shard.sources[slot * SKETCH_WORDS + i];
+          ports[i] |= shard.ports[slot * SKETCH_WORDS + i];
+        }
+      }
+      for (int i = 0; i < alerted.length; i++) {
+        alerted[i] = Math.max(alerted[i], shard.alerted[slot * alerted.length + i]);
+      }
+    }
+  }
+
+  final AlertListener listener;
+  final Thresholds thresholds;
+  final int capacity;
+  final List<Shard> shards = new CopyOnWriteArrayList<>();
+  final FastThreadLocal<Shard> shard = new FastThreadLocal<Shard>() {
+    @Override
+    protected Shard initialValue() {
+      Shard shard = new Shard(capacity);
+      shards.add(shard);
+      return shard;
+    }
+  };
+  final LongAdder records = new LongAdder();
+  final LongAdder alerts = new LongAdder();
+
+  /**
+   * @param capacity destinations tracked per thread, each takes about 200 bytes
+   */
+  public VolumetricDetector(AlertListener listener, Thresholds thresholds, int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive");
+    }
+    this.listener = listener;
+    this.thresholds = thresholds;
+    this.capacity = capacity;
+  }
+
+  /**
+   * Default thresholds, 64k destinations per thread.
+   */
+  public VolumetricDetector(AlertListener listener) {
+    this(listener, new Thresholds(), 1 << 16);
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (msg instanceof Message) {
+      inspect((Message) msg, System.currentTimeMillis());
+    }
+    ctx.fireChannelRead(msg);
+  }
+
+  void inspect(Message message, long now) {
+    Shard shard = this.shard.get();
+    int count = 0;
+    for (FlowSet flowSet : message.flowsets()) {
+      if (!(flowSet instanceof DataFlowSet) || ((DataFlowSet) flowSet).template() == null) {
+        continue;
+      }
+      DataFlowSet dataFlowSet = (DataFlowSet) flowSet;
+      RecordLayout layout = RecordLayout.of(dataFlowSet.template());
+      int destination = PrefixEnrichmentHandler.addressField(layout,
+          PrefixEnrichmentHandler.IPV4_DST_ADDR, PrefixEnrichmentHandler.IPV6_DST_ADDR);
+      if (destination < 0) {
+        continue;
+      }
+      int source = PrefixEnrichmentHandler.addressField(layout,
+          PrefixEnrichmentHandler.IPV4_SRC_ADDR, PrefixEnrichmentHandler.IPV6_SRC_ADDR);
+      int records = layout.recordCount(dataFlowSet);
+      for (int record = 0; record < records; record++) {
+        inspect(shard, layout, dataFlowSet.data(), record, source, destination, message, now);
+      }
+      count += records;
+    }
+    records.add(count);
+  }
+
+  void inspect(Shard shard, RecordLayout layout, byte[] data, int record, int source, int destination,
+               Message message, long now) {
+    int position = layout.position(record, destination);
+    int length = layout.length(destination);
+    int slot = shard.slot(key(data, position, length), now);
+
+    long elapsed = now - shard.updated[slot];
+    if (elapsed > 0) {
+      double decay = Math.exp(-(double) elapsed / thresholds.decayMillis);
+      shard.packets[slot] *= decay;
+      shard.bytes[slot] *= decay;
+      shard.synPackets[slot] *= decay;
+      shard.amplificationBytes[slot] *= decay;
+      shard.updated[slot] = now;
+    }
+    if (now - shard.windowStarts[slot] >= thresholds.windowMillis) {
+      Arrays.fill(shard.sources, slot * SKETCH_WORDS, (slot + 1) * SKETCH_WORDS, 0);
+      Arrays.fill(shard.ports, slot * SKETCH_WORDS, (slot + 1) * SKETCH_WORDS, 0);
+      shard.windowStarts[slot] = now;
+    }
+
+    long packets = layout.has(IN_PKTS) ? layout.getUnsigned(data, record, IN_PKTS) : 1;
+    long bytes = layout.has(IN_BYTES) ? layout.getUnsigned(data, record, IN_BYTES) : 0;
+    int protocol = layout.has(FlowDeduplicator.PROTOCOL)
+        ? (int) layout.getUnsigned(data, record, FlowDeduplicator.PROTOCOL) : 0;
+    shard.packets[slot] += packets;
+    shard.bytes[slot] += bytes;
+    if (protocol == TCP && layout.has(TCP_FLAGS)) {
+      int flags = (int) layout.getUnsigned(data, record, TCP_FLAGS);
+      if ((flags & (FIN | SYN | RST | ACK)) == SYN) {
+        shard.synPackets[slot] += packets;
+      }
+    }
+    if (protocol == UDP && layout.has(FlowDeduplicator.L4_SRC_PORT)
+        && AMPLIFICATION[(int) layout.getUnsigned(data, record, FlowDeduplicator.L4_SRC_PORT) & 0xFFFF]) {
+      shard.amplificationBytes[slot] += bytes;
+    }
+    if (source >= 0) {
+      long hash = mix(key(data, layout.position(record, source), layout.length(source)));
+      shard.sources[slot * SKETCH_WORDS + (int) ((hash >>> 6) & (SKETCH_WORDS - 1))] |= 1L << hash;
+    }
+    if (layout.has(FlowDeduplicator.L4_DST_PORT)) {
+      long hash = mix(layout.getUnsigned(data, record, FlowDeduplicator.L4_DST_PORT) + 1);
+      shard.ports[slot * SKETCH_WORDS + (int) ((hash >>> 6) & (SKETCH_WORDS - 1))] |= 1L << hash;
+    }
+    check(shard, slot, data, position, length, message, now);
+  }
+
+  void check(Shard shard, int slot, byte[] data, int position, int length, Message message, long now) {
+    double seconds = thresholds.decayMillis / 1000.0;
+    Totals totals = shard.totals;
+    totals.load(shard, slot);
+    int shards = this.shards.size();
+    if (shards > 1 && (totals.synPackets / seconds >= thresholds.synPacketsPerSecond / shards
+        || totals.amplificationBytes / seconds >= thresholds.amplificationBytesPerSecond / shards
+        || totals.packets >= (double) thresholds.distinctPorts / shards)) {
+      // this shard may only see part of an attack
+      long key = shard.keys[slot];
+      for (Shard other : this.shards) {
+        int otherSlot = other != shard ? other.find(key) : -1;
+        if (otherSlot >= 0) {
+          totals.add(other, otherSlot, now, thresholds);
+        }
+      }
+    }
+    if (totals.synPackets / seconds >= thresholds.synPacketsPerSecond
+        && totals.synPackets >= thresholds.synRatio * totals.packets
+        && estimate(totals.sources, 0) >= thresholds.synSources) {
+      raise(Alert.Type.SYN_FLOOD, shard, slot, data, position, length, message, now);
+    }
+    if (totals.amplificationBytes / seconds >= thresholds.amplificationBytesPerSecond) {
+      raise(Alert.Type.UDP_AMPLIFICATION, shard, slot, data, position, length, message, now);
+    }
+    // only count the ports once a scan is possible at all
+    if (totals.packets >= thresholds.distinctPorts
+        && estimate(totals.ports, 0) >= thresholds.distinctPorts) {
+      raise(Alert.Type.PORT_SCAN, shard, slot, data, position, length, message, now);
+    }
+  }
+
+  void raise(Alert.Type type, Shard shard, int slot, byte[] data, int position, int length, Message message,
+             long now) {
+    Totals totals = shard.totals;
+    long alerted = totals.alerted[type.ordinal()];
+    if (alerted != 0 && now - alerted < thresholds.cooldownMillis) {
+      return;
+    }
+    totals.alerted[type.ordinal()] = now;
+    shard.alerted[slot * Alert.Type.values().length + type.ordinal()] = now;
+    double seconds = thresholds.decayMillis / 1000.0;
+    InetAddress destination;
+    try {
+      destination = InetAddress.getByAddress(Arrays.copyOfRange(data, position, position + length));
+    } catch (UnknownHostException e) {
+      throw new IllegalStateException(e);
+    }
+    Alert alert = new Alert(type, destination, now, totals.packets / seconds, totals.bytes / seconds,
+        totals.synPackets / seconds, totals.amplificationBytes / seconds, estimate(totals.sources, 0),
+        estimate(totals.ports, 0), message.sender());
+    alerts.increment();
+    log.warn("{}", alert);
+    try {
+      listener.alert(alert);
+    } catch (RuntimeException e) {
+      log.error("AlertListener failed on {}", alert, e);
+    }
+  }
+
+  /**
+   * Linear counting: n = -m ln(empty bits / m).
+   */
+  static int estimate(long[] sketch, int slot) {
+    int set = 0;
+    for (int i = slot * SKETCH_WORDS; i < (slot + 1) * SKETCH_WORDS; i++) {
+      set += Long.bitCount(sketch[i]);
+    }
+    int empty = Math.max(1, SKETCH_BITS - set);
+    return (int) Math.round(-SKETCH_BITS * Math.log((double) empty / SKETCH_BITS));
+  }
+
+  /**
+   * @return the destination as a non-zero key: the IPv4 address, or a hash of the IPv6 address
+   */
+  static long key(byte[] data, int position, int length) {
+    if (length == 4) {
+      return 1L << 32 | (data[position] & 0xFFL) << 24 | (data[position + 1] & 0xFF) << 16
+          | (data[position + 2] & 0xFF) << 8 | data[position + 3] & 0xFF;
+    }
+    long h = FlowDeduplicator.hash(0xcbf29ce484222325L, data, position, length);
+    return h == 0 ? 1 : h;
+  }
+
+  static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * @return data records inspected
+   */
+  public long recordCount() {
+    return records.sum();
+  }
+
+  /**
+   * @return alerts raised
+   */
+  public long alertCount() {
+    return alerts.sum();
+  }
+
+  /**
+   * @return destinations tracked over all threads (a snapshot that may be slightly off)
+   */
+  public int destinationCount() {
+    int result = 0;
+    for (Shard shard : shards) {
+      result += shard.size;
+    }
+    return result;
+  }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Java 11 version of FieldReader: fields of 2, 4 and 8 bytes are read with one big endian VarHandle view of the
+ * byte array instead of assembling them byte by byte.
+ */
+final class FieldReader {
+  static final String IMPLEMENTATION = "varhandle";
+
+  static final VarHandle SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+  static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+  static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+  private FieldReader() {
+  }
+
+  static long getUnsigned(byte[] data, int offset, int length) {
+    switch (length) {
+      case 1:
+        return data[offset] & 0xFF;
+      case 2:
+        return (short) SHORT.get(data, offset) & 0xFFFF;
+      case 4:
+        return (int) INT.get(data, offset) & 0xFFFFFFFFL;
+      case 8:
+        return (long) LONG.get(data, offset);
+      default:
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+          value = value << 8 | data[i] & 0xFF;
+        }
+        return value;
+    }
+  }
+
+  static void getUnsigned(byte[] data, int offset, int length, int stride, int count, long[] values) {
+    switch (length) {
+      case 2:
+        for (int record = 0; record < count; record++) {
+          values[record] = (short) SHORT.get(data, offset + record * stride) & 0xFFFF;
+        }
+        break;
+      case 4:
+        for (int record = 0; record < count; record++) {
+          values[record] = (int) INT.get(data, offset + record * stride) & 0xFFFFFFFFL;
+        }
+        break;
+      case 8:
+        for (int record = 0; record < count; record++) {
+          values[record] = (long) LONG.get(data, offset + record * stride);
+        }
+        break;
+      default:
+        for (int record = 0; record < count; record++) {
+          values[record] = getUnsigned(data, offset + record * stride, length);
+        }
+    }
+  }
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.ByteOrder;
+
+/**
+ * Column reads with the (incubating) Vector API: one gather collects the big endian bytes of the field of several
+ * records into a 128 bit vector, in the order that makes reinterpreting them as ints or longs yield the values.
+ * Only loaded by FieldReader when the jdk.incubator.vector module is present.
+ */
+final class VectorColumns {
+  static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_128;
+  static final VectorSpecies<Long> LONGS = LongVector.SPECIES_256;
+  static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+  private VectorColumns() {
+  }
+
+  /**
+   * Read the 4 or 8 byte field of the records that fill whole vectors.
+   *
+   * @return the number of records read, the caller reads the rest
+   */
+  static int getUnsigned(byte[] data, int offset, int length, int stride, int count, long[] values) {
+    int lanes = BYTES.length() / length;
+    int[] indexMap = new int[BYTES.length()];
+    for (int lane = 0; lane < lanes; lane++) {
+      for (int i = 0; i < length; i++) {
+        indexMap[lane * length + i] = lane * stride + (LITTLE_ENDIAN ? length - 1 - i : i);
+      }
+    }
+    int record = 0;
+    int step = lanes * stride;
+    int position = offset;
+    if (length == 4) {
+      for (; record + lanes <= count; record += lanes, position += step) {
+        ((LongVector) ByteVector.fromArray(BYTES, data, position, indexMap, 0)
+            .reinterpretAsInts()
+            .convertShape(VectorOperators.ZERO_EXTEND_I2L, LONGS, 0))
+            .intoArray(values, record);
+      }
+    } else {
+      for (; record + lanes <= count; record += lanes, position += step) {
+        ByteVector.fromArray(BYTES, data, position, indexMap, 0)
+            .reinterpretAsLongs()
+            .intoArray(values, record);
+      }
+    }
+    return record;
+  }
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.socket.DatagramPacket;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Guards the allocation rate of the steady-state decode path: decodes the captured packets of the test corpus
+ * (after their templates are known) over and over and checks the bytes allocated per packet and per record,
+ * as counted by the JVM for the current thread, against a budget. The data arrays of the DataFlowSets are part
+ * of the decoded result and are accounted for separately; everything else the decoder allocates counts against
+ * the budget.
+ */
+public class AllocationBudgetTest {
+  static final int WARMUP = 20000;
+  static final int ITERATIONS = 20000;
+  // a data array costs its length plus the array header, rounded up to 8 bytes
+  static final int ARRAY_HEADER = 16;
+
+  final ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+  final Logger logger = (Logger) LoggerFactory.getLogger("com.github.jcustenborder.netty.netflow");
+  Level level;
+
+  @BeforeEach
+  public void before() {
+    // the test logback.xml traces every field
+    level = logger.getLevel();
+    logger.setLevel(Level.INFO);
+  }
+
+  @AfterEach
+  public void after() {
+    logger.setLevel(level);
+  }
+
+  static long allocatedBytes() {
+    return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  static boolean supported() {
+    return ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean
+        && ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).isThreadAllocatedMemoryEnabled();
+  }
+
+  interface Iteration {
+    void run() throws Exception;
+  }
+
+  /**
+   * @return the bytes allocated per iteration once warmed up
+   */
+  static double measure(Iteration iteration) throws Exception {
+    for (int i = 0; i < WARMUP; i++) {
+      iteration.run();
+    }
+    // the counter itself allocates a little, take the best of a few rounds
+    double best = Double.MAX_VALUE;
+    for (int round = 0; round < 3; round++) {
+      long before = allocatedBytes();
+      for (int i = 0; i < ITERATIONS; i++) {
+        iteration.run();
+      }
+      best = Math.min(best, (double) (allocatedBytes() - before) / ITERATIONS);
+    }
+    return best;
+  }
+
+  static byte[] corpusPacket() throws Exception {
+    try (InputStream inputStream = AllocationBudgetTest.class.getResourceAsStream("testcase001.json")) {
+      return com.github.jcustenborder.netty.netflow.v9.json.ObjectMapperSingleton.instance
+          .readValue(inputStream, NetFlowV9DecoderTest.TestCase.class).input;
+    }
+  }
+
+  /**
+   * The packet without its template FlowSets, as sent between template refreshes.
+   */
+  static ByteBuf dataOnly(byte[] packet) {
+    ByteBuf input = Unpooled.wrappedBuffer(packet);
+    ByteBuf result = Unpooled.buffer();
+    int headerLength = input.getShort(0) == 9 ? 20 : 16;
+    result.writeBytes(input, 0, headerLength);
+    int index = headerLength;
+    while (index < input.writerIndex()) {
+      int length = input.getUnsignedShort(index + 2);
+      if (input.getUnsignedShort(index) >= 256) {
+        result.writeBytes(input, index, length);
+      }
+      index += length;
+    }
+    return result;
+  }
+
+  static final class Corpus {
+    final NetFlowV9Decoder decoder;
+    final DatagramPacket packet;
+    final List<Object> output = new ArrayList<>();
+    final int records;
+    final int dataBytes;
+
+    Corpus(NetFlowV9Decoder decoder, byte[] captured) throws Exception {
+      this.decoder = decoder;
+      InetSocketAddress sender = new InetSocketAddress("8.8.8.8", 64321);
+      InetSocketAddress recipient = new InetSocketAddress("8.8.4.4", 2055);
+      decoder.decode(mock(ChannelHandlerContext.class), new DatagramPacket(Unpooled.wrappedBuffer(captured), recipient, sender), output);
+      packet = new DatagramPacket(dataOnly(captured), recipient, sender);
+
+      int records = 0;
+      int dataBytes = 0;
+      for (NetFlow.FlowSet flowSet : decode().flowsets()) {
+        NetFlow.DataFlowSet data = (NetFlow.DataFlowSet) flowSet;
+        records += RecordLayout.of(data.template()).recordCount(data);
+        dataBytes += (data.data().length + ARRAY_HEADER + 7) / 8 * 8;
+      }
+      this.records = records;
+      this.dataBytes = dataBytes;
+    }
+
+    NetFlow.Message decode() throws Exception {
+      output.clear();
+      packet.content().readerIndex(0);
+      decoder.decode(null, packet, output);
+      return (NetFlow.Message) output.get(0);
+    }
+  }
+
+  void assertBudget(String name, double allocated, int packetBudget, int recordBudget, Corpus corpus) {
+    double overhead = allocated - corpus.dataBytes;
+    LoggerFactory.getLogger(AllocationBudgetTest.class).info("{}: {} bytes per packet ({} data), {} per record",
+        name, allocated, corpus.dataBytes, overhead / corpus.records);
+    assertTrue(overhead <= packetBudget, name + " allocates " + overhead + " bytes per packet besides the data, budget is " + packetBudget);
+    assertTrue(overhead / corpus.records <= recordBudget, name + " allocates " + overhead / corpus.records
+        + " bytes per record besides the data, budget is " + recordBudget);
+  }
+
+  @Test
+  public void recyclingDecoder() throws Exception {
+    assumeTrue(supported());
+    Corpus corpus = new Corpus(new NetFlowV9Decoder(new RecyclingNetFlowFactory()), corpusPacket());
+    double allocated = measure(() -> corpus.decode().release());
+    // nothing but the data arrays, the slack is for the measurement
+    assertBudget("recycling decoder", allocated, 16, 2, corpus);
+  }
+
+  @Test
+  public void recyclingDecoderWithLatencyTracker() throws Exception {
+    assumeTrue(supported());
+    Corpus corpus = new Corpus(new NetFlowV9Decoder(new RecyclingNetFlowFactory(), new TemplateCache(),
+        new PendingFlowSetBuffer(), new TemplateInterner(), null, new FlowLatencyTracker()), corpusPacket());
+    double allocated = measure(() -> corpus.decode().release());
+    assertBudget("recycling decoder with latency tracker", allocated, 16, 2, corpus);
+  }
+
+  @Test
+  public void defaultDecoder() throws Exception {
+    assumeTrue(supported());
+    Corpus corpus = new Corpus(new NetFlowV9Decoder(), corpusPacket());
+    double allocated = measure(corpus::decode);
+    // Header, Message, FlowSet list and a DataFlowSet per FlowSet: 168 bytes for the corpus
+    assertBudget("decoder", allocated, 192, 16, corpus);
+  }
+
+  @Test
+  public void fieldSchemeParsing() throws Exception {
+    assumeTrue(supported());
+    Corpus corpus = new Corpus(new NetFlowV9Decoder(), corpusPacket());
+    CiscoFieldScheme fieldScheme = new CiscoFieldScheme();
+    NetFlow.Message message = corpus.decode();
+    double allocated = measure(() -> {
+      for (NetFlow.FlowSet flowSet : message.flowsets()) {
+        fieldScheme.parse((NetFlow.DataFlowSet) flowSet);
+      }
+    });
+    // a LinkedHashMap with boxed and formatted values per FlowSet: about 6100 bytes for the corpus
+    assertBudget("field scheme", allocated + corpus.dataBytes, 7000, 600, corpus);
+  }
+}
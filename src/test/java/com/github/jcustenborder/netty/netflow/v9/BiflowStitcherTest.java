@@ -0,0 +1,229 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BiflowStitcherTest {
+  static final long NOW = 1500000000000L;
+
+  final NetFlowFactoryImpl factory = new NetFlowFactoryImpl();
+  final NetFlow.TemplateFlowSet ipv4;
+  final NetFlow.TemplateFlowSet ipv6;
+  final NetFlow.TemplateFlowSet counters;
+
+  public BiflowStitcherTest() {
+    List<NetFlow.TemplateField> fields = new ArrayList<>();
+    int[][] types = {{8, 4}, {12, 4}, {7, 2}, {11, 2}, {4, 1}, {1, 8}, {2, 8}, {152, 8}, {153, 8}};
+    int offset = 0;
+    for (int[] type : types) {
+      fields.add(factory.templateField((short) type[0], (short) type[1], offset));
+      offset += type[1];
+    }
+    ipv4 = factory.templateFlowSet((short) 2, (short) 256, fields);
+    List<NetFlow.TemplateField> v6 = new ArrayList<>();
+    v6.add(factory.templateField((short) 27, (short) 16, 0));
+    v6.add(factory.templateField((short) 28, (short) 16, 16));
+    v6.add(factory.templateField((short) 7, (short) 2, 32));
+    v6.add(factory.templateField((short) 11, (short) 2, 34));
+    v6.add(factory.templateField((short) 1, (short) 8, 36));
+    ipv6 = factory.templateFlowSet((short) 2, (short) 257, v6);
+    counters = factory.templateFlowSet((short) 2, (short) 258,
+        Collections.singletonList(factory.templateField((short) 1, (short) 8, 0)));
+  }
+
+  static byte[] record(String source, int sourcePort, String destination, int destinationPort, long octets,
+                       long start) throws Exception {
+    return ByteBuffer.allocate(45)
+        .put(InetAddress.getByName(source).getAddress())
+        .put(InetAddress.getByName(destination).getAddress())
+        .putShort((short) sourcePort).putShort((short) destinationPort).put((byte) 6)
+        .putLong(octets).putLong(octets / 100).putLong(start).putLong(start + 1000)
+        .array();
+  }
+
+  NetFlow.Message message(String exporter, byte[]... records) throws Exception {
+    ByteBuffer data = ByteBuffer.allocate(45 * records.length);
+    for (byte[] record : records) {
+      data.put(record);
+    }
+    List<NetFlow.FlowSet> flowSets = new ArrayList<>();
+    flowSets.add(factory.dataFlowSet((short) 256, data.array(), ipv4));
+    InetSocketAddress sender = new InetSocketAddress(InetAddress.getByName(exporter), 4739);
+    return factory.netflowMessage(new NetFlow.Header((short) 10, (short) 0, 0, (int) (NOW / 1000), 1, 0, sender,
+        new InetSocketAddress(4739)), flowSets);
+  }
+
+  @Test
+  public void pairsReverseDirections() throws Exception {
+    BiflowStitcher stitcher = new BiflowStitcher(10, TimeUnit.SECONDS, 16, factory);
+    List<Object> output = new ArrayList<>();
+    stitcher.stitch(message("192.168.0.1",
+        record("10.0.0.1", 50000, "10.0.0.2", 443, 1000, NOW),
+        record("10.0.0.1", 50000, "10.0.0.2", 443, 500, NOW + 2000),
+        record("10.0.0.1", 50001, "10.0.0.2", 443, 100, NOW)), NOW, output);
+    assertTrue(output.isEmpty(), "records wait for their reverse direction");
+    assertEquals(2, stitcher.size());
+
+    stitcher.stitch(message("192.168.0.2", record("10.0.0.2", 443, "10.0.0.1", 50000, 20000, NOW + 100)),
+        NOW + 100, output);
+    assertEquals(1, output.size());
+    BiflowStitcher.Biflow biflow = (BiflowStitcher.Biflow) output.get(0);
+    assertTrue(biflow.paired());
+    assertEquals("10.0.0.1", biflow.sourceAddress().getHostAddress());
+    assertEquals(50000, biflow.sourcePort());
+    assertEquals(443, biflow.destinationPort());
+    assertEquals(6, biflow.protocol());
+    assertEquals(1500, biflow.forwardOctets());
+    assertEquals(15, biflow.forwardPackets());
+    assertEquals(20000, biflow.reverseOctets());
+    assertEquals(NOW, biflow.start());
+    assertEquals(NOW + 3000, biflow.end());
+    assertEquals("192.168.0.1", biflow.exporter().getAddress().getHostAddress());
+
+    output.clear();
+    stitcher.stitch(message("192.168.0.1"), NOW + 9999, output);
+    assertTrue(output.isEmpty());
+    stitcher.expire(NOW + 10000 + stitcher.tickMillis, output);
+    assertEquals(1, output.size());
+    BiflowStitcher.Biflow expired = (BiflowStitcher.Biflow) output.get(0);
+    assertFalse(expired.paired());
+    assertEquals(50001, expired.sourcePort());
+    assertEquals(0, stitcher.size());
+    assertEquals(1, stitcher.pairedCount());
+    assertEquals(1, stitcher.unpairedCount());
+  }
+
+  @Test
+  public void boundedTable() throws Exception {
+    BiflowStitcher stitcher = new BiflowStitcher(10, TimeUnit.SECONDS, 1, factory);
+    List<Object> output = new ArrayList<>();
+    stitcher.stitch(message("192.168.0.1",
+        record("10.0.0.1", 1, "10.0.0.2", 443, 1000, NOW),
+        record("10.0.0.1", 2, "10.0.0.2", 443, 1000, NOW)), NOW, output);
+    assertEquals(1, output.size());
+    assertFalse(((BiflowStitcher.Biflow) output.get(0)).paired());
+    assertEquals(2, ((BiflowStitcher.Biflow) output.get(0)).sourcePort());
+    assertEquals(1, stitcher.overflowCount());
+
+    // entries are reused once expired, even after a long pause
+    output.clear();
+    stitcher.stitch(message("192.168.0.1", record("10.0.0.1", 3, "10.0.0.2", 443, 1000, NOW)), NOW + 3600000,
+        output);
+    assertEquals(1, output.size());
+    assertEquals(1, ((BiflowStitcher.Biflow) output.get(0)).sourcePort());
+    assertEquals(1, stitcher.size());
+  }
+
+  @Test
+  public void passesOnOtherFlowSets() throws Exception {
+    List<NetFlow.FlowSet> flowSets = new ArrayList<>();
+    flowSets.add(factory.dataFlowSet((short) 258, new byte[8], counters));
+    flowSets.add(factory.dataFlowSet((short) 256, record("10.0.0.1", 1, "10.0.0.2", 443, 1000, NOW), ipv4));
+    NetFlow.Message mixed = factory.netflowMessage(new NetFlow.Header((short) 10, (short) 0, 0, 0, 1, 0,
+        new InetSocketAddress(4739), new InetSocketAddress(4739)), flowSets);
+
+    EmbeddedChannel channel = new EmbeddedChannel(new BiflowStitcher(10, TimeUnit.SECONDS, 16, factory));
+    channel.writeInbound(mixed);
+    NetFlow.Message remaining = channel.readInbound();
+    assertEquals(1, remaining.flowsets().size());
+    assertEquals(258, remaining.flowsets().get(0).flowsetID());
+    assertNull(channel.readInbound());
+    channel.close();
+    BiflowStitcher.Biflow biflow = channel.readInbound();
+    assertEquals(1, biflow.sourcePort(), "waiting records are passed on when the channel closes");
+  }
+
+  static byte[] ipv6Record(String source, int sourcePort, String destination, int destinationPort, long octets)
+      throws Exception {
+    return ByteBuffer.allocate(44)
+        .put(InetAddress.getByName(source).getAddress())
+        .put(InetAddress.getByName(destination).getAddress())
+        .putShort((short) sourcePort).putShort((short) destinationPort).putLong(octets)
+        .array();
+  }
+
+  NetFlow.Message message(NetFlow.Factory factory, NetFlow.TemplateFlowSet template, byte[]... records)
+      throws Exception {
+    ByteBuffer data = ByteBuffer.allocate(records[0].length * records.length);
+    for (byte[] record : records) {
+      data.put(record);
+    }
+    List<NetFlow.FlowSet> flowSets = factory.flowSets();
+    flowSets.add(factory.dataFlowSet((short) 258, new byte[8], counters));
+    flowSets.add(factory.dataFlowSet(template.templateID(), data.array(), template));
+    InetSocketAddress sender = new InetSocketAddress(InetAddress.getByName("192.168.0.1"), 4739);
+    return factory.netflowMessage(factory.header((short) 10, (short) 0, 0, (int) (NOW / 1000), 1, 0, sender,
+        new InetSocketAddress(4739)), flowSets);
+  }
+
+  @Test
+  public void pairsIpv6() throws Exception {
+    BiflowStitcher stitcher = new BiflowStitcher(10, TimeUnit.SECONDS, 16, factory);
+    List<Object> output = new ArrayList<>();
+    stitcher.stitch(message(factory, ipv6,
+        ipv6Record("2001:db8::1", 50000, "2001:db8::2", 443, 1000),
+        ipv6Record("2001:db8::1", 50000, "2001:db8::3", 443, 100)), NOW, output);
+    assertEquals(1, output.size(), "the FlowSet without addresses");
+    assertEquals(2, stitcher.size());
+
+    output.clear();
+    stitcher.stitch(message(factory, ipv6,
+        ipv6Record("2001:db8::2", 443, "2001:db8::1", 50000, 20000),
+        ipv6Record("2001:db8::3", 443, "2001:db8::9", 50000, 7)), NOW + 100, output);
+    BiflowStitcher.Biflow biflow = (BiflowStitcher.Biflow) output.get(0);
+    assertTrue(biflow.paired());
+    assertEquals(InetAddress.getByName("2001:db8::1"), biflow.sourceAddress());
+    assertEquals(InetAddress.getByName("2001:db8::2"), biflow.destinationAddress());
+    assertEquals(50000, biflow.sourcePort());
+    assertEquals(1000, biflow.forwardOctets());
+    assertEquals(20000, biflow.reverseOctets());
+    assertEquals(2, stitcher.size(), "a different peer address is no reverse direction");
+
+    output.clear();
+    stitcher.expire(NOW + 10100 + stitcher.tickMillis, output);
+    assertEquals(2, output.size());
+    for (Object expired : output) {
+      assertFalse(((BiflowStitcher.Biflow) expired).paired());
+      assertEquals(16, ((BiflowStitcher.Biflow) expired).sourceAddress().getAddress().length);
+    }
+  }
+
+  @Test
+  public void remainingFlowSetsSurviveRecycling() throws Exception {
+    RecyclingNetFlowFactory recycling = new RecyclingNetFlowFactory();
+    BiflowStitcher stitcher = new BiflowStitcher(10, TimeUnit.SECONDS, 16, recycling);
+    List<Object> output = new ArrayList<>();
+    stitcher.stitch(message(recycling, ipv4, record("10.0.0.1", 1, "10.0.0.2", 443, 1000, NOW)), NOW, output);
+    assertEquals(1, output.size());
+    NetFlow.Message remaining = (NetFlow.Message) output.get(0);
+    NetFlow.DataFlowSet data = (NetFlow.DataFlowSet) remaining.flowsets().get(0);
+    assertSame(counters, data.template(), "the original message was released");
+    assertEquals(8, data.data().length);
+    remaining.release();
+  }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BinaryFlowTest {
+  final NetFlowFactoryImpl factory = new NetFlowFactoryImpl();
+  static final int[][] TYPES = {{8, 4}, {12, 4}, {7, 2}, {11, 2}, {4, 1}, {1, 4}, {2, 4}, {22, 4}, {56, 6}};
+  static final int RECORD_LENGTH = 31;
+
+  NetFlow.TemplateFlowSet template(short templateID) {
+    List<NetFlow.TemplateField> fields = new ArrayList<>();
+    int offset = 0;
+    for (int[] type : TYPES) {
+      fields.add(factory.templateField((short) type[0], (short) type[1], offset));
+      offset += type[1];
+    }
+    return factory.templateFlowSet((short) 0, templateID, fields);
+  }
+
+  NetFlow.Message message(NetFlow.TemplateFlowSet template, int records) throws Exception {
+    ByteBuffer data = ByteBuffer.allocate(RECORD_LENGTH * records);
+    for (int i = 0; i < records; i++) {
+      data.put(new byte[]{10, 0, 0, (byte) i})
+          .put(new byte[]{10, 1, 0, 1})
+          .putShort((short) (40000 + i))
+          .putShort((short) 443)
+          .put((byte) 6)
+          .putInt(i == 0 ? -1 : 1500 * i)
+          .putInt(i + 1)
+          .putInt(1000 * i)
+          .put(new byte[]{0, 0x1b, 0x21, (byte) 0xab, (byte) 0xcd, (byte) i});
+    }
+    List<NetFlow.FlowSet> flowSets = new ArrayList<>();
+    flowSets.add(template);
+    flowSets.add(factory.dataFlowSet(template.templateID(), data.array(), template));
+    return factory.netflowMessage(new NetFlow.Header((short) 9, (short) 2, 0, 1500000000, 7, 42,
+        new InetSocketAddress(InetAddress.getByName("192.168.0.1"), 2055), new InetSocketAddress(2055)), flowSets);
+  }
+
+  void assertRecords(BinaryFlowReader reader, int records) {
+    assertTrue(reader.nextBatch());
+    assertEquals("192.168.0.1", reader.exporter().getHostAddress());
+    assertEquals(42, reader.sourceID());
+    assertEquals(1500000000L, reader.timestamp());
+    assertEquals(records, reader.recordCount());
+    FlowSchema schema = reader.schema();
+    assertEquals(TYPES.length, schema.fieldCount());
+    for (int i = 0; i < records; i++) {
+      assertTrue(reader.nextRecord());
+      assertEquals(0x0A000000L | i, reader.getLong(schema.index(8)));
+      assertEquals(40000 + i, reader.getLong(schema.index(7)));
+      assertEquals(443, reader.getLong(schema.index(11)));
+      assertEquals(6, reader.getLong(schema.index(4)));
+      assertEquals(i == 0 ? 0xFFFFFFFFL : 1500 * i, reader.getLong(schema.index(1)));
+      assertEquals(i + 1, reader.getLong(schema.index(2)));
+      assertEquals(1000 * i, reader.getLong(schema.index(22)));
+      assertFalse(schema.varint(schema.index(56)));
+      assertArrayEquals(new byte[]{0, 0x1b, 0x21, (byte) 0xab, (byte) 0xcd, (byte) i},
+          ByteBufUtil.getBytes(reader.getBytes(schema.index(56))));
+    }
+    assertFalse(reader.nextRecord());
+  }
+
+  @Test
+  public void roundtrip() throws Exception {
+    SchemaRegistry registry = new SchemaRegistry();
+    BinaryFlowWriter writer = new BinaryFlowWriter(registry);
+    ByteBuf out = Unpooled.buffer();
+    assertEquals(100, writer.write(message(template((short) 256), 100), out));
+    assertEquals(3, writer.write(message(template((short) 257), 3), out));
+    assertEquals(1, registry.size(), "templates with the same layout share a schema");
+
+    BinaryFlowReader reader = new BinaryFlowReader(registry, out);
+    assertRecords(reader, 100);
+    assertRecords(reader, 3);
+    assertFalse(reader.nextBatch());
+  }
+
+  @Test
+  public void skipsUnreadRecords() throws Exception {
+    SchemaRegistry registry = new SchemaRegistry();
+    BinaryFlowWriter writer = new BinaryFlowWriter(registry);
+    ByteBuf out = Unpooled.buffer();
+    writer.write(message(template((short) 256), 10), out);
+    writer.write(message(template((short) 256), 5), out);
+    BinaryFlowReader reader = new BinaryFlowReader(registry, out);
+    assertTrue(reader.nextBatch());
+    assertTrue(reader.nextRecord());
+    assertRecords(reader, 5);
+    assertFalse(reader.nextBatch());
+  }
+
+  @Test
+  public void registryFile() throws Exception {
+    SchemaRegistry registry = new SchemaRegistry();
+    BinaryFlowWriter writer = new BinaryFlowWriter(registry);
+    ByteBuf out = Unpooled.buffer();
+    writer.write(message(template((short) 256), 20), out);
+
+    Path file = Files.createTempDirectory("schemas").resolve("registry.bin");
+    registry.save(file);
+    SchemaRegistry loaded = SchemaRegistry.load(file);
+    assertEquals(1, loaded.size());
+    assertRecords(new BinaryFlowReader(loaded, out), 20);
+    assertEquals(registry.schema(template((short) 300)).id(), loaded.schema(template((short) 301)).id(),
+        "a loaded registry hands out the same ids");
+
+    try {
+      new BinaryFlowReader(new SchemaRegistry(), out.readerIndex(0)).nextBatch();
+      fail("unknown schema");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void smallerThanJsonAndRaw() throws Exception {
+    NetFlow.Message message = message(template((short) 256), 100);
+    ByteBuf binary = Unpooled.buffer();
+    new BinaryFlowWriter(new SchemaRegistry()).write(message, binary);
+    ByteBuf json = Unpooled.buffer();
+    new JsonFlowEncoder().encode(message, json);
+    assertTrue(binary.readableBytes() < RECORD_LENGTH * 100, "binary " + binary.readableBytes());
+    assertTrue(binary.readableBytes() * 5 < json.readableBytes(), "binary " + binary.readableBytes() + " json " + json.readableBytes());
+  }
+
+  @Test
+  public void enterpriseTypes() {
+    FlowSchema schema = new FlowSchema(1, new short[]{8, (short) 0x8001, 8},
+        new short[]{4, 4, 4}, new NetFlow.Field.DataType[]{NetFlow.Field.DataType.INTEGER,
+        NetFlow.Field.DataType.BYTE_ARRAY, NetFlow.Field.DataType.INTEGER});
+    assertNull(schema.index.dense, "no dense array for enterprise type ids");
+    assertEquals(0, schema.index(8));
+    assertEquals(1, schema.index(0x8001));
+    assertEquals(-1, schema.index(12));
+    assertEquals(-1, schema.index(-1));
+  }
+
+  @Test
+  public void pipeline() throws Exception {
+    SchemaRegistry registry = new SchemaRegistry();
+    EmbeddedChannel channel = new EmbeddedChannel(new BinaryFlowWriter(registry));
+    assertTrue(channel.writeOutbound(message(template((short) 256), 4)));
+    ByteBuf out = channel.readOutbound();
+    assertRecords(new BinaryFlowReader(registry, out), 4);
+    out.release();
+    assertFalse(channel.finish());
+  }
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ClusterForwardingHandlerTest {
+  final InetSocketAddress a = new InetSocketAddress("127.0.0.1", 9001);
+  final InetSocketAddress b = new InetSocketAddress("127.0.0.1", 9002);
+  final InetSocketAddress c = new InetSocketAddress("127.0.0.1", 9003);
+  final ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList(a, b, c));
+  final byte[] key = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+  @Test
+  public void ringIsBalancedAndStable() throws Exception {
+    ConsistentHashRing reordered = new ConsistentHashRing(Arrays.asList(c, a, b));
+    ConsistentHashRing grown = new ConsistentHashRing(Arrays.asList(a, b, c, new InetSocketAddress("127.0.0.1", 9004)));
+    Map<InetSocketAddress, Integer> load = new HashMap<>();
+    int moved = 0;
+    int exporters = 30000;
+    for (int i = 0; i < exporters; i++) {
+      InetAddress address = InetAddress.getByAddress(new byte[]{10, (byte) (i >> 8), (byte) i, 1});
+      InetSocketAddress owner = ring.owner(address, i % 3);
+      assertEquals(owner, reordered.owner(address, i % 3), "owners do not depend on the order of the nodes");
+      load.merge(owner, 1, Integer::sum);
+      InetSocketAddress newOwner = grown.owner(address, i % 3);
+      if (!newOwner.equals(owner)) {
+        assertEquals(9004, newOwner.getPort(), "exporters only move to the new node");
+        moved++;
+      }
+    }
+    for (int count : load.values()) {
+      assertTrue(Math.abs(count - exporters / 3) < exporters / 3 / 5, "load " + load);
+    }
+    assertTrue(moved > exporters / 4 * 0.8 && moved < exporters / 4 * 1.2, moved + " exporters moved");
+  }
+
+  DatagramPacket v9(InetSocketAddress sender, InetSocketAddress recipient, int sourceID) {
+    return new DatagramPacket(Unpooled.buffer()
+        .writeShort(9).writeShort(0).writeInt(0).writeInt(0).writeInt(1).writeInt(sourceID), recipient, sender);
+  }
+
+  @Test
+  public void forwardsToOwner() throws Exception {
+    InetSocketAddress exporter = new InetSocketAddress("10.0.0.1", 40000);
+    int sourceID = 0;
+    while (!ring.owner(exporter.getAddress(), sourceID).equals(b)) {
+      sourceID++;
+    }
+    ClusterForwardingHandler nodeA = new ClusterForwardingHandler(a, ring, key);
+    ClusterForwardingHandler nodeB = new ClusterForwardingHandler(b, ring, key);
+    NetFlowV9Decoder decoderB = new NetFlowV9Decoder();
+    EmbeddedChannel channelA = new EmbeddedChannel(nodeA, new NetFlowV9Decoder());
+    EmbeddedChannel channelB = new EmbeddedChannel(nodeB, decoderB);
+
+    // the load balancer sends the datagram to node a
+    channelA.writeInbound(v9(exporter, a, sourceID));
+    assertNull(channelA.readInbound(), "not decoded by a non-owner");
+    DatagramPacket forwarded = channelA.readOutbound();
+    assertEquals(b, forwarded.recipient());
+    assertEquals(1, nodeA.forwardedCount());
+
+    // ... which sends it from its own address to node b
+    channelB.writeInbound(new DatagramPacket(forwarded.content(), b, a));
+    NetFlow.Message message = channelB.readInbound();
+    assertEquals(exporter, message.sender(), "the original sender is preserved");
+    assertEquals(sourceID, message.sourceID());
+    assertEquals(1, nodeB.receivedCount());
+
+    // datagrams of its own exporters go straight to the decoder
+    channelB.writeInbound(v9(exporter, b, sourceID));
+    assertNotNull(channelB.readInbound());
+    assertNull(channelB.readOutbound());
+    assertEquals(1, nodeB.localCount());
+  }
+
+  @Test
+  public void rejectsForwardsFromOutsiders() throws Exception {
+    ClusterForwardingHandler node = new ClusterForwardingHandler(a, ring, key);
+    EmbeddedChannel channel = new EmbeddedChannel(node);
+    InetSocketAddress exporter = new InetSocketAddress("10.0.0.1", 40000);
+    DatagramPacket forged = node.wrap(v9(exporter, b, 1), a);
+    DatagramPacket fromOutsider = new DatagramPacket(forged.content(), a, new InetSocketAddress("10.6.6.6", 9002));
+    channel.writeInbound(fromOutsider);
+    assertNull(channel.readInbound());
+    assertEquals(0, fromOutsider.refCnt());
+    assertEquals(1, node.droppedCount());
+
+    List<InetSocketAddress> nodes = new ArrayList<>(Arrays.asList(b, c));
+    try {
+      node.ring(new ConsistentHashRing(nodes));
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void rejectsForwardsWithoutValidMac() throws Exception {
+    ClusterForwardingHandler node = new ClusterForwardingHandler(a, ring, key);
+    ClusterForwardingHandler impostor = new ClusterForwardingHandler(b, ring,
+        "fedcba9876543210".getBytes(StandardCharsets.US_ASCII));
+    ClusterForwardingHandler peer = new ClusterForwardingHandler(b, ring, key);
+    EmbeddedChannel channel = new EmbeddedChannel(node);
+    InetSocketAddress exporter = new InetSocketAddress("10.0.0.1", 40000);
+
+    DatagramPacket forged = impostor.wrap(v9(exporter, b, 1), a);
+    channel.writeInbound(new DatagramPacket(forged.content(), a, b));
+    assertNull(channel.readInbound(), "spoofed peer address, wrong key");
+
+    DatagramPacket tampered = peer.wrap(v9(exporter, b, 1), a);
+    tampered.content().setInt(tampered.content().writerIndex() - 4, 42);
+    channel.writeInbound(new DatagramPacket(tampered.content(), a, b));
+    assertNull(channel.readInbound(), "payload changed after wrapping");
+    assertEquals(2, node.droppedCount());
+
+    DatagramPacket genuine = peer.wrap(v9(exporter, b, 1), a);
+    channel.writeInbound(new DatagramPacket(genuine.content(), a, b));
+    DatagramPacket unwrapped = channel.readInbound();
+    assertEquals(exporter, unwrapped.sender());
+    assertEquals(1, node.receivedCount());
+  }
+
+  @Test
+  public void dropsDatagramsTooLargeToForward() throws Exception {
+    InetSocketAddress exporter = new InetSocketAddress("10.0.0.1", 40000);
+    int sourceID = 0;
+    while (!ring.owner(exporter.getAddress(), sourceID).equals(b)) {
+      sourceID++;
+    }
+    ClusterForwardingHandler node = new ClusterForwardingHandler(a, ring, key);
+    EmbeddedChannel channel = new EmbeddedChannel(node);
+    DatagramPacket large = v9(exporter, a, sourceID);
+    large.content().writeZero(ClusterForwardingHandler.MAX_DATAGRAM - large.content().readableBytes());
+    channel.writeInbound(large);
+    assertNull(channel.readOutbound());
+    assertEquals(0, large.refCnt());
+    assertEquals(1, node.droppedCount());
+    assertEquals(0, node.forwardedCount());
+  }
+}
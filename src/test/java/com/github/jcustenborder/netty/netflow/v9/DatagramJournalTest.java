@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.concurrent.DefaultEventExecutor;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DatagramJournalTest {
+  static final int CAPACITY = 2 * (DatagramJournal.MAX_ENTRY_OVERHEAD + 65535);
+  final InetSocketAddress sender = new InetSocketAddress("10.0.0.1", 2055);
+  final InetSocketAddress recipient = new InetSocketAddress("10.0.0.2", 2056);
+
+  ByteBuf payload(int value, int length) {
+    ByteBuf buffer = Unpooled.buffer(length);
+    buffer.writeInt(value);
+    buffer.writeZero(length - 4);
+    return buffer;
+  }
+
+  @Test
+  public void replayAfterReopen() throws IOException {
+    Path file = Files.createTempDirectory("journal").resolve("datagrams.journal");
+    try (DatagramJournal journal = new DatagramJournal(file, CAPACITY)) {
+      for (int i = 0; i < 3; i++) {
+        assertTrue(journal.append(payload(i, 100), sender, recipient, 1000L + i));
+      }
+      DatagramPacket packet = journal.reader().poll(ByteBufAllocator.DEFAULT);
+      assertEquals(0, packet.content().readInt());
+      assertEquals(sender, packet.sender());
+      assertEquals(recipient, packet.recipient());
+      assertEquals(1000L, journal.reader().arrivalMillis());
+      packet.release();
+      journal.reader().commit();
+    }
+
+    try (DatagramJournal journal = new DatagramJournal(file, 0)) {
+      for (int i = 1; i < 3; i++) {
+        DatagramPacket packet = journal.reader().poll(ByteBufAllocator.DEFAULT);
+        assertEquals(i, packet.content().readInt());
+        assertEquals(96, packet.content().readableBytes());
+        packet.release();
+      }
+      assertNull(journal.reader().poll(ByteBufAllocator.DEFAULT));
+    }
+  }
+
+  @Test
+  public void wrapsAndDropsWhenFull() throws IOException {
+    Path file = Files.createTempDirectory("journal").resolve("datagrams.journal");
+    try (DatagramJournal journal = new DatagramJournal(file, CAPACITY)) {
+      int written = 0;
+      int read = 0;
+      for (int round = 0; round < 10; round++) {
+        while (journal.append(payload(written, 30000), sender, recipient, 0)) {
+          written++;
+        }
+        DatagramPacket packet;
+        while ((packet = journal.reader().poll(ByteBufAllocator.DEFAULT)) != null) {
+          assertEquals(read++, packet.content().readInt());
+          packet.release();
+        }
+        journal.reader().commit();
+      }
+      assertEquals(written, read);
+      assertEquals(10, journal.droppedCount());
+      assertEquals(0, journal.pendingBytes());
+    }
+  }
+
+  @Test
+  public void spoolHandler() throws Exception {
+    Path file = Files.createTempDirectory("journal").resolve("datagrams.journal");
+    DefaultEventExecutor replay = new DefaultEventExecutor();
+    CountDownLatch stalled = new CountDownLatch(1);
+    BlockingQueue<DatagramPacket> received = new LinkedBlockingQueue<>();
+    try (DatagramJournal journal = new DatagramJournal(file, CAPACITY)) {
+      EmbeddedChannel channel = new EmbeddedChannel(new DatagramSpoolHandler(journal, replay, 2));
+      channel.pipeline().addLast(replay, new ChannelInboundHandlerAdapter() {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+          assertTrue(replay.inEventLoop());
+          stalled.await();
+          received.add((DatagramPacket) msg);
+        }
+      });
+      for (int i = 0; i < 5; i++) {
+        channel.writeInbound(new DatagramPacket(payload(i, 8), recipient, sender));
+      }
+      assertEquals(5, journal.appendedCount(), "the stalled handler does not hold up the socket side");
+      assertTrue(received.isEmpty());
+
+      stalled.countDown();
+      for (int i = 0; i < 5; i++) {
+        DatagramPacket packet = received.poll(10, TimeUnit.SECONDS);
+        assertEquals(i, packet.content().readInt());
+        packet.release();
+      }
+      replay.submit(() -> { }).sync();
+      assertEquals(0, journal.pendingBytes());
+      assertNull(channel.readInbound());
+      channel.finish();
+    } finally {
+      replay.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DatagramTeeHandlerTest {
+  final InetSocketAddress recipient = new InetSocketAddress("127.0.0.1", 2055);
+  final InetSocketAddress security = new InetSocketAddress("127.0.0.1", 9001);
+  final InetSocketAddress billing = new InetSocketAddress("127.0.0.1", 9002);
+
+  @Test
+  public void fanOut() {
+    InetSocketAddress router = new InetSocketAddress("10.0.0.1", 2055);
+    InetSocketAddress other = new InetSocketAddress("10.0.0.2", 2055);
+    DatagramTeeHandler.Destination toSecurity = new DatagramTeeHandler.Destination(security);
+    DatagramTeeHandler.Destination toBilling = new DatagramTeeHandler.Destination(billing, router::equals);
+    EmbeddedChannel channel = new EmbeddedChannel(new DatagramTeeHandler(Arrays.asList(toSecurity, toBilling)));
+
+    DatagramPacket first = new DatagramPacket(Unpooled.copiedBuffer(new byte[]{1, 2, 3}), recipient, router);
+    DatagramPacket second = new DatagramPacket(Unpooled.copiedBuffer(new byte[]{4, 5}), recipient, other);
+    channel.writeInbound(first, second);
+
+    assertSame(first, channel.readInbound(), "the original is passed on");
+    assertSame(second, channel.readInbound());
+    assertEquals(3, first.refCnt(), "one retained duplicate per destination");
+
+    DatagramPacket copy = channel.readOutbound();
+    assertEquals(security, copy.recipient());
+    assertSame(first.content(), copy.content().unwrap(), "copies share the received buffer");
+    copy.release();
+    copy = channel.readOutbound();
+    assertEquals(billing, copy.recipient());
+    copy.release();
+    copy = channel.readOutbound();
+    assertEquals(security, copy.recipient());
+    assertEquals(2, copy.content().readableBytes());
+    copy.release();
+    assertNull(channel.readOutbound(), "the billing destination only gets the router's datagrams");
+
+    assertEquals(2, toSecurity.sentCount());
+    assertEquals(1, toBilling.sentCount());
+    assertEquals(0, toBilling.droppedCount());
+    assertEquals(1, first.refCnt());
+    first.release();
+    second.release();
+  }
+
+  @Test
+  public void failedWritesAreNotSent() {
+    EmbeddedChannel output = new EmbeddedChannel(new ChannelOutboundHandlerAdapter() {
+      @Override
+      public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        ReferenceCountUtil.release(msg);
+        promise.setFailure(new IOException("network unreachable"));
+      }
+    });
+    DatagramTeeHandler.Destination toSecurity = new DatagramTeeHandler.Destination(security);
+    EmbeddedChannel channel = new EmbeddedChannel(new DatagramTeeHandler(output, Arrays.asList(toSecurity)));
+    DatagramPacket packet = new DatagramPacket(Unpooled.copiedBuffer(new byte[]{1, 2, 3}), recipient,
+        new InetSocketAddress("10.0.0.1", 2055));
+    channel.writeInbound(packet);
+    assertSame(packet, channel.readInbound());
+    assertEquals(0, toSecurity.sentCount());
+    assertEquals(1, toSecurity.failedCount());
+    assertEquals(1, packet.refCnt());
+    packet.release();
+  }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.socket.DatagramPacket;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+public class ExporterQuotasTest {
+  final ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+  final InetSocketAddress sender = new InetSocketAddress("10.0.0.1", 2055);
+
+  NetFlowV9Decoder decoder(ExporterQuotas quotas) {
+    return new NetFlowV9Decoder(new NetFlowFactoryImpl(), new TemplateCache(), new PendingFlowSetBuffer(),
+        new TemplateInterner(), quotas);
+  }
+
+  DatagramPacket template(int templateID) {
+    ByteBuf buffer = Unpooled.buffer();
+    buffer.writeShort(9).writeShort(1).writeInt(0).writeInt(0).writeInt(0).writeInt(0);
+    buffer.writeShort(0).writeShort(12).writeShort(templateID).writeShort(1).writeShort(1).writeShort(4);
+    return new DatagramPacket(buffer, new InetSocketAddress(2055), sender);
+  }
+
+  List<Object> decode(NetFlowV9Decoder decoder, DatagramPacket packet) throws Exception {
+    List<Object> output = new ArrayList<>();
+    decoder.decode(ctx, packet, output);
+    return output;
+  }
+
+  @Test
+  public void throttlesPacketRate() throws Exception {
+    ExporterQuotas quotas = new ExporterQuotas(10, 1 << 20, 0.001, 2, 100, 10, 10, TimeUnit.SECONDS);
+    NetFlowV9Decoder decoder = decoder(quotas);
+    assertEquals(1, decode(decoder, template(256)).size());
+    assertEquals(1, decode(decoder, template(256)).size());
+    assertTrue(decode(decoder, template(256)).isEmpty());
+    ExporterQuotas.Stats stats = quotas.stats(sender.getAddress());
+    assertEquals(3, stats.packets());
+    assertEquals(1, stats.throttledPackets());
+  }
+
+  @Test
+  public void limitsTemplates() throws Exception {
+    ExporterQuotas quotas = new ExporterQuotas(2, 1 << 20, 1000, 1000, 100, 10, 10, TimeUnit.SECONDS);
+    NetFlowV9Decoder decoder = decoder(quotas);
+    for (int id = 256; id < 260; id++) {
+      decode(decoder, template(id));
+    }
+    decode(decoder, template(256)); // refreshing a known template is fine
+    assertEquals(2, decoder.templateCache().size());
+    assertEquals(2, quotas.stats(sender.getAddress()).rejectedTemplates());
+    assertEquals(2, quotas.stats(sender.getAddress()).templateCount());
+  }
+
+  @Test
+  public void quarantinesGarbage() throws Exception {
+    ExporterQuotas quotas = new ExporterQuotas(10, 1 << 20, 1000, 1000, 3, 10, 10, TimeUnit.SECONDS);
+    NetFlowV9Decoder decoder = decoder(quotas);
+    decode(decoder, template(256));
+    assertEquals(1, decoder.templateCache().size());
+    for (int i = 0; i < 3; i++) {
+      ByteBuf garbage = Unpooled.buffer().writeShort(42).writeZero(20);
+      assertTrue(decode(decoder, new DatagramPacket(garbage, new InetSocketAddress(2055), sender)).isEmpty());
+    }
+    ExporterQuotas.Stats stats = quotas.stats(sender.getAddress());
+    assertEquals(3, stats.decodeErrors());
+    assertEquals(1, stats.quarantines());
+    assertEquals(0, decoder.templateCache().size(), "state of a quarantined exporter is released");
+
+    assertTrue(decode(decoder, template(256)).isEmpty());
+    assertEquals(1, stats.quarantinedPackets());
+    assertEquals(3, decoder.decodeStats().count(DecodeResult.UNSUPPORTED_VERSION));
+    assertEquals(1, decoder.decodeStats().count(DecodeResult.DROPPED_BY_QUOTA));
+
+    InetSocketAddress other = new InetSocketAddress(InetAddress.getByName("10.0.0.2"), 2055);
+    DatagramPacket packet = template(256);
+    assertEquals(1, decode(decoder, new DatagramPacket(packet.content(), packet.recipient(), other)).size(),
+        "other exporters are unaffected");
+  }
+
+  @Test
+  public void untrackedSourcesShareABucket() throws Exception {
+    ExporterQuotas quotas = new ExporterQuotas(10, 1 << 20, 1000, 1000, 3, 10, 10, TimeUnit.SECONDS, 1);
+    NetFlowV9Decoder decoder = decoder(quotas);
+    for (int i = 0; i < 5; i++) {
+      InetSocketAddress spoofed = new InetSocketAddress(InetAddress.getByName("10.1.0." + i), 2055);
+      ByteBuf garbage = Unpooled.buffer().writeShort(42).writeZero(20);
+      decode(decoder, new DatagramPacket(garbage, new InetSocketAddress(2055), spoofed));
+    }
+    assertTrue(quotas.exporters().isEmpty(), "invalid packets do not create stats");
+    assertEquals(5, quotas.unverified().packets());
+    assertEquals(5, quotas.unverified().decodeErrors());
+    assertEquals(0, quotas.unverified().quarantines());
+
+    assertEquals(1, decode(decoder, template(256)).size());
+    assertEquals(1, quotas.stats(sender.getAddress()).packets());
+
+    InetSocketAddress other = new InetSocketAddress(InetAddress.getByName("10.0.0.2"), 2055);
+    DatagramPacket packet = template(256);
+    decode(decoder, new DatagramPacket(packet.content(), packet.recipient(), other));
+    assertNull(quotas.stats(other.getAddress()), "the table is full");
+    assertEquals(1, quotas.exporters().size());
+    assertEquals(1, quotas.unverified().rejectedTemplates());
+    assertEquals(1, decoder.templateCache().size());
+  }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Reads of one field of 2, 4 or 8 bytes from every record of a data FlowSet of 1000 records of 38 bytes:
+ * byte by byte as the Java 8 code did (bytewise), one field at a time (single) and as a column (column).
+ * FieldReader is picked by the JVM from the multi-release jar, so compare the paths by running the benchmark on
+ * Java 8, 11 and 21 with the jar instead of target/classes on the classpath, on 21 also with
+ * {@code -jvmArgsAppend "-Dnetflow.vectorColumns=true --add-modules jdk.incubator.vector"}.
+ * Run main() from the IDE, or {@code java -cp <test classpath> org.openjdk.jmh.Main FieldReaderBenchmark} after
+ * {@code mvn test-compile}.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FieldReaderBenchmark {
+  static final int RECORDS = 1000;
+  static final int[] LENGTHS = {4, 4, 2, 2, 1, 1, 8, 8, 4, 4};
+
+  @Param({"2", "4", "8"})
+  public int length;
+
+  RecordLayout layout;
+  byte[] data;
+  long[] values = new long[RECORDS];
+  int type;
+
+  @Setup
+  public void setup() {
+    NetFlowFactoryImpl factory = new NetFlowFactoryImpl();
+    List<NetFlow.TemplateField> fields = new ArrayList<>();
+    int offset = 0;
+    for (int i = 0; i < LENGTHS.length; i++) {
+      fields.add(factory.templateField((short) (i + 1), (short) LENGTHS[i], offset));
+      offset += LENGTHS[i];
+      if (LENGTHS[i] == length) {
+        type = i + 1;
+      }
+    }
+    layout = RecordLayout.of(factory.templateFlowSet((short) 0, (short) 256, fields));
+    data = new byte[RECORDS * layout.recordLength()];
+    new Random(42).nextBytes(data);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(RECORDS)
+  public long bytewise() {
+    long sum = 0;
+    int offset = layout.offset(type);
+    int recordLength = layout.recordLength();
+    for (int record = 0; record < RECORDS; record++) {
+      long value = 0;
+      for (int i = offset + record * recordLength; i < offset + record * recordLength + length; i++) {
+        value = value << 8 | data[i] & 0xFF;
+      }
+      sum += value;
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(RECORDS)
+  public long single() {
+    long sum = 0;
+    for (int record = 0; record < RECORDS; record++) {
+      sum += layout.getUnsigned(data, record, type);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(RECORDS)
+  public long[] column() {
+    layout.getUnsigned(data, type, values);
+    return values;
+  }
+
+  public static void main(String... args) throws Exception {
+    new Runner(new OptionsBuilder().include(FieldReaderBenchmark.class.getSimpleName()).build()).run();
+  }
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FlowDeduplicatorTest {
+  static final long START = 1500000000000L;
+
+  final NetFlowFactoryImpl factory = new NetFlowFactoryImpl();
+  final NetFlow.TemplateFlowSet template;
+
+  public FlowDeduplicatorTest() {
+    List<NetFlow.TemplateField> fields = new ArrayList<>();
+    fields.add(factory.templateField((short) 8, (short) 4, 0));
+    fields.add(factory.templateField((short) 12, (short) 4, 4));
+    fields.add(factory.templateField((short) 7, (short) 2, 8));
+    fields.add(factory.templateField((short) 11, (short) 2, 10));
+    fields.add(factory.templateField((short) 4, (short) 1, 12));
+    fields.add(factory.templateField((short) 152, (short) 8, 13));
+    template = factory.templateFlowSet((short) 2, (short) 256, fields);
+  }
+
+  /**
+   * One record per port, all from 10.0.0.1 to 10.0.0.2 over TCP.
+   */
+  NetFlow.Message message(String exporter, long start, int... ports) throws Exception {
+    List<NetFlow.FlowSet> flowSets = new ArrayList<>();
+    flowSets.add(factory.dataFlowSet((short) 256, records(start, ports), template));
+    InetSocketAddress sender = new InetSocketAddress(InetAddress.getByName(exporter), 4739);
+    return factory.netflowMessage(new NetFlow.Header((short) 10, (short) 0, 0, (int) (START / 1000), 1, 0, sender,
+        new InetSocketAddress(4739)), flowSets);
+  }
+
+  /**
+   * One record per port, all from 10.0.0.1 to 10.0.0.2 over TCP.
+   */
+  static byte[] records(long start, int... ports) {
+    ByteBuffer data = ByteBuffer.allocate(21 * ports.length);
+    for (int port : ports) {
+      data.put(new byte[]{10, 0, 0, 1, 10, 0, 0, 2}).putShort((short) port).putShort((short) 80).put((byte) 6);
+      data.putLong(start);
+    }
+    return data.array();
+  }
+
+  FlowDeduplicator deduplicator(FlowDeduplicator.Mode mode) {
+    return deduplicator(mode, factory);
+  }
+
+  FlowDeduplicator deduplicator(FlowDeduplicator.Mode mode, NetFlow.Factory factory) {
+    // the core router is preferred over the edge routers
+    return new FlowDeduplicator(mode, address -> address.getHostAddress().equals("192.168.0.1") ? 10 : 0,
+        1024, 10, 60, TimeUnit.SECONDS, factory);
+  }
+
+  static int records(NetFlow.Message message) {
+    NetFlow.DataFlowSet dataFlowSet = (NetFlow.DataFlowSet) message.flowsets().get(0);
+    return RecordLayout.of(dataFlowSet.template()).recordCount(dataFlowSet);
+  }
+
+  @Test
+  public void suppressesCopiesOfOtherExporters() throws Exception {
+    FlowDeduplicator deduplicator = deduplicator(FlowDeduplicator.Mode.SUPPRESS);
+    NetFlow.Message first = message("192.168.0.1", START, 1000, 1001);
+    assertSame(first, deduplicator.deduplicate(first, START));
+    assertNull(deduplicator.deduplicate(message("192.168.0.2", START + 3000, 1000, 1001), START),
+        "a copy starting within half a bucket is dropped");
+
+    NetFlow.Message partial = deduplicator.deduplicate(message("192.168.0.2", START, 1000, 1002), START);
+    assertEquals(1, records(partial));
+    assertEquals(1002, RecordLayout.of(template).getUnsigned(
+        ((NetFlow.DataFlowSet) partial.flowsets().get(0)).data(), 0, 7));
+
+    NetFlow.Message again = message("192.168.0.1", START, 1000);
+    assertSame(again, deduplicator.deduplicate(again, START), "an exporter repeating its own flow is no duplicate");
+    NetFlow.Message later = message("192.168.0.2", START + 60000, 1000);
+    assertSame(later, deduplicator.deduplicate(later, START), "a flow starting later is a different flow");
+
+    assertEquals(8, deduplicator.recordCount());
+    assertEquals(3, deduplicator.duplicateCount());
+  }
+
+  @Test
+  public void keptFlowSetsSurviveRecycling() throws Exception {
+    RecyclingNetFlowFactory recycling = new RecyclingNetFlowFactory();
+    FlowDeduplicator deduplicator = deduplicator(FlowDeduplicator.Mode.SUPPRESS, recycling);
+    deduplicator.deduplicate(message("192.168.0.1", START, 1000), START);
+
+    List<NetFlow.FlowSet> flowSets = recycling.flowSets();
+    flowSets.add(recycling.dataFlowSet((short) 256, records(START, 2000, 2001), template));
+    flowSets.add(recycling.dataFlowSet((short) 256, records(START, 1000, 2002), template));
+    InetSocketAddress sender = new InetSocketAddress(InetAddress.getByName("192.168.0.2"), 4739);
+    NetFlow.Message message = recycling.netflowMessage(recycling.header((short) 10, (short) 0, 0,
+        (int) (START / 1000), 1, 0, sender, new InetSocketAddress(4739)), flowSets);
+
+    NetFlow.Message suppressed = deduplicator.deduplicate(message, START);
+    assertNotSame(message, suppressed);
+    assertEquals(2, suppressed.flowsets().size());
+    for (NetFlow.FlowSet flowSet : suppressed.flowsets()) {
+      NetFlow.DataFlowSet data = (NetFlow.DataFlowSet) flowSet;
+      assertSame(template, data.template(), "the original message was released");
+      assertNotNull(data.data());
+    }
+    RecordLayout layout = RecordLayout.of(template);
+    assertEquals(2001, layout.getUnsigned(((NetFlow.DataFlowSet) suppressed.flowsets().get(0)).data(), 1, 7));
+    assertEquals(2002, layout.getUnsigned(((NetFlow.DataFlowSet) suppressed.flowsets().get(1)).data(), 0, 7));
+    suppressed.release();
+  }
+
+  @Test
+  public void exportersGetDistinctIds() throws Exception {
+    FlowDeduplicator deduplicator = deduplicator(FlowDeduplicator.Mode.SUPPRESS);
+    Set<Integer> ids = new HashSet<>();
+    for (int i = 0; i < 1000; i++) {
+      ids.add(deduplicator.exporterId(new ExporterKey(InetAddress.getByName("10.0.0.1"), i)));
+    }
+    assertEquals(1000, ids.size());
+    assertEquals(1, deduplicator.exporterId(new ExporterKey(InetAddress.getByName("10.0.0.1"), 0)));
+  }
+
+  @Test
+  public void higherPriorityTakesOver() throws Exception {
+    FlowDeduplicator deduplicator = deduplicator(FlowDeduplicator.Mode.TAG);
+    FlowDeduplicator.TaggedMessage edge =
+        (FlowDeduplicator.TaggedMessage) deduplicator.deduplicate(message("192.168.0.2", START, 1000), START);
+    assertFalse(edge.duplicate(0, 0));
+    FlowDeduplicator.TaggedMessage core =
+        (FlowDeduplicator.TaggedMessage) deduplicator.deduplicate(message("192.168.0.1", START, 1000), START);
+    assertFalse(core.duplicate(0, 0), "the core router's copy is passed on as well");
+    FlowDeduplicator.TaggedMessage edge2 =
+        (FlowDeduplicator.TaggedMessage) deduplicator.deduplicate(message("192.168.0.3", START, 1000), START);
+    assertTrue(edge2.duplicate(0, 0));
+    FlowDeduplicator.TaggedMessage edge1 =
+        (FlowDeduplicator.TaggedMessage) deduplicator.deduplicate(message("192.168.0.2", START, 1000), START);
+    assertTrue(edge1.duplicate(0, 0), "the flow now belongs to the core router");
+    assertEquals(1, edge1.flowsets().size());
+  }
+
+  @Test
+  public void filterForgetsOldGenerations() {
+    FlowFingerprintFilter filter = new FlowFingerprintFilter(1024, 1000, 0);
+    assertEquals(16 * 1024, filter.bytes());
+    assertFalse(filter.duplicate(42, 43, 1, 0, 0));
+    assertTrue(filter.duplicate(42, 43, 2, 0, 500));
+    assertTrue(filter.duplicate(42, 43, 2, 0, 1500), "still known one generation later");
+    assertFalse(filter.duplicate(42, 43, 2, 0, 2600), "forgotten after two generations");
+    assertTrue(filter.duplicate(43, 42, 3, 0, 2600), "the neighbouring bucket is looked up too");
+
+    // beyond its capacity the filter forgets some keys but never loses its fixed size
+    for (long key = 0; key < 4096; key++) {
+      filter.duplicate(FlowDeduplicator.mix(key, 0), FlowDeduplicator.mix(key, 1), 1, 0, 2600);
+    }
+    assertTrue(filter.overflows > 0);
+    assertEquals(16 * 1024, filter.bytes());
+  }
+}
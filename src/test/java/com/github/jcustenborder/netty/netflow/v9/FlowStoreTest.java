@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FlowStoreTest {
+  final NetFlowFactoryImpl factory = new NetFlowFactoryImpl();
+
+  final NetFlow.TemplateFlowSet template = factory.templateFlowSet((short) 0, (short) 256, Arrays.asList(
+      factory.templateField((short) 8, (short) 4, 0),   // IPV4_SRC_ADDR
+      factory.templateField((short) 1, (short) 4, 4),   // IN_BYTES
+      factory.templateField((short) 11, (short) 2, 8)   // L4_DST_PORT
+  ));
+
+  NetFlow.Message message(int timestamp, int... addressBytesPort) {
+    ByteBuf data = Unpooled.buffer();
+    for (int i = 0; i < addressBytesPort.length; i += 3) {
+      data.writeInt(addressBytesPort[i]);
+      data.writeInt(addressBytesPort[i + 1]);
+      data.writeShort(addressBytesPort[i + 2]);
+    }
+    data.writeZero(2); // padding
+    byte[] bytes = new byte[data.readableBytes()];
+    data.readBytes(bytes);
+
+    List<NetFlow.FlowSet> flowSets = new ArrayList<>();
+    flowSets.add(template);
+    flowSets.add(factory.dataFlowSet((short) 256, bytes, template));
+    NetFlow.Header header = new NetFlow.Header((short) 9, (short) 2, 0, timestamp, 0, 0,
+        new InetSocketAddress("127.0.0.1", 2055), new InetSocketAddress("127.0.0.1", 2056));
+    return factory.netflowMessage(header, flowSets);
+  }
+
+  @Test
+  public void appendAndScan() throws IOException {
+    Path directory = Files.createTempDirectory("flowstore");
+    try (FlowStore store = new FlowStore(directory, 60, 4096)) {
+      store.append(message(960, 0x0A010203, 1500, 443, 0x0A010204, 40, 53));
+      store.append(message(1000, 0x0A010203, 900, 80));
+      store.append(message(1090, 0x0A010205, 1, 22)); // next partition
+
+      List<Long> bytes = new ArrayList<>();
+      FlowStore.Cursor cursor = store.scan(960, 1019, CiscoFieldScheme.Field.IN_BYTES, CiscoFieldScheme.Field.IPV4_SRC_ADDR);
+      while (cursor.next()) {
+        assertTrue(cursor.isPresent(CiscoFieldScheme.Field.IN_BYTES));
+        bytes.add(cursor.getLong(CiscoFieldScheme.Field.IN_BYTES));
+        assertEquals(4, cursor.getBytes(CiscoFieldScheme.Field.IPV4_SRC_ADDR).length);
+        assertArrayEquals(new byte[]{127, 0, 0, 1}, cursor.exporter());
+      }
+      assertEquals(Arrays.asList(1500L, 40L, 900L), bytes);
+      assertEquals(2, store.segments.size(), "one segment per partition");
+    }
+
+    try (FlowStore reopened = new FlowStore(directory, 60, 4096)) {
+      List<Long> ports = new ArrayList<>();
+      FlowStore.Cursor cursor = reopened.scan(0, Long.MAX_VALUE, CiscoFieldScheme.Field.L4_DST_PORT);
+      while (cursor.next()) {
+        ports.add(cursor.getLong(CiscoFieldScheme.Field.L4_DST_PORT));
+      }
+      assertEquals(Arrays.asList(443L, 53L, 80L, 22L), ports);
+
+      assertEquals(1, reopened.deleteBefore(1020));
+      cursor = reopened.scan(0, Long.MAX_VALUE);
+      int rows = 0;
+      while (cursor.next()) {
+        rows++;
+      }
+      assertEquals(1, rows);
+    }
+  }
+
+  @Test
+  public void query() throws IOException {
+    Path directory = Files.createTempDirectory("flowstore");
+    try (FlowStore store = new FlowStore(directory, 3600, 1 << 20)) {
+      // spans several blocks so that the cursor has to seek
+      for (int i = 0; i < 5000; i++) {
+        store.append(message(3600, 0x0A000000 + (i % 100), i, i % 7 == 0 ? 443 : 80));
+      }
+      store.flush();
+
+      InetAddress address = InetAddress.getByName("10.0.0.42");
+      List<Long> bytes = new ArrayList<>();
+      FlowStore.Cursor cursor = store.query(3600, 3600,
+          FlowQuery.address(address).and(FlowQuery.equal(CiscoFieldScheme.Field.L4_DST_PORT, 443)),
+          CiscoFieldScheme.Field.IN_BYTES, CiscoFieldScheme.Field.IPV4_SRC_ADDR);
+      while (cursor.next()) {
+        assertArrayEquals(address.getAddress(), cursor.getBytes(CiscoFieldScheme.Field.IPV4_SRC_ADDR));
+        bytes.add(cursor.getLong(CiscoFieldScheme.Field.IN_BYTES));
+      }
+      List<Long> expected = new ArrayList<>();
+      for (long i = 42; i < 5000; i += 100) {
+        if (i % 7 == 0) {
+          expected.add(i);
+        }
+      }
+      assertEquals(expected, bytes);
+
+      assertFalse(store.query(3600, 3600, FlowQuery.address(InetAddress.getByName("10.9.9.9"))).next());
+    }
+  }
+
+  @Test
+  public void rollsWhenColumnIsFull() throws IOException {
+    Path directory = Files.createTempDirectory("flowstore");
+    try (FlowStore store = new FlowStore(directory, 3600, 1024)) {
+      for (int i = 0; i < 1000; i++) {
+        store.append(message(7200, 0x0A000000 + i, i * 1000, i));
+      }
+      assertTrue(store.segments.size() > 1, "expected the partition to span several segments");
+
+      long expected = 0;
+      FlowStore.Cursor cursor = store.scan(7200, 7200, CiscoFieldScheme.Field.IN_BYTES);
+      while (cursor.next()) {
+        assertEquals(expected, cursor.getLong(CiscoFieldScheme.Field.IN_BYTES));
+        expected += 1000;
+      }
+      assertEquals(1000 * 1000L, expected);
+    }
+  }
+}
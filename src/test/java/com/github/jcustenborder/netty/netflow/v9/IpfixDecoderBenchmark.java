@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Compares decoding the same IPFIX messages (30 records each) received as datagrams and as a TCP stream
+ * carrying MESSAGES of them per read. Run main() from the IDE, or
+ * {@code java -cp <test classpath> org.openjdk.jmh.Main IpfixDecoderBenchmark} after {@code mvn test-compile}.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IpfixDecoderBenchmark {
+  static final int MESSAGES = 16;
+
+  final InetSocketAddress sender = new InetSocketAddress("10.0.0.1", 4739);
+  final InetSocketAddress recipient = new InetSocketAddress("10.0.0.2", 4739);
+  final ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+  final List<Object> output = new ArrayList<>();
+  NetFlowV9Decoder udpDecoder;
+  ByteBuf datagram;
+  EmbeddedChannel tcpChannel;
+  ByteBuf stream;
+
+  @Setup
+  public void setup() throws Exception {
+    // the test logback.xml traces every field
+    ((Logger) LoggerFactory.getLogger("com.github.jcustenborder.netty.netflow")).setLevel(Level.INFO);
+    long[] octets = new long[30];
+    for (int i = 0; i < octets.length; i++) {
+      octets[i] = 1000 + i;
+    }
+    udpDecoder = new NetFlowV9Decoder();
+    udpDecoder.decode(ctx, new DatagramPacket(IpfixTcpDecoderTest.message(0, true), recipient, sender), output);
+    datagram = Unpooled.unreleasableBuffer(IpfixTcpDecoderTest.message(1, false, octets));
+
+    tcpChannel = new EmbeddedChannel(new IpfixTcpDecoder());
+    tcpChannel.writeInbound(IpfixTcpDecoderTest.message(0, true));
+    tcpChannel.readInbound();
+    ByteBuf messages = Unpooled.buffer();
+    for (int i = 0; i < MESSAGES; i++) {
+      messages.writeBytes(IpfixTcpDecoderTest.message(i, false, octets));
+    }
+    stream = Unpooled.unreleasableBuffer(messages);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(MESSAGES)
+  public void udp(Blackhole blackhole) throws Exception {
+    for (int i = 0; i < MESSAGES; i++) {
+      output.clear();
+      udpDecoder.decode(ctx, new DatagramPacket(datagram.duplicate(), recipient, sender), output);
+      blackhole.consume(output.get(0));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(MESSAGES)
+  public void tcp(Blackhole blackhole) {
+    tcpChannel.writeInbound(stream.duplicate());
+    Object message;
+    while ((message = tcpChannel.readInbound()) != null) {
+      blackhole.consume(message);
+    }
+  }
+
+  public static void main(String... args) throws Exception {
+    new Runner(new OptionsBuilder().include(IpfixDecoderBenchmark.class.getSimpleName()).build()).run();
+  }
+}
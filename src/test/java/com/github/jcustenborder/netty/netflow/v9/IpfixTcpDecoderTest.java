@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IpfixTcpDecoderTest {
+
+  /**
+   * An IPFIX message with a template Set (templates 256 and 257, the latter with an enterprise-specific field)
+   * followed by a data Set of template 256 with the given octetDeltaCount values.
+   */
+  static ByteBuf message(int sequence, boolean templates, long... octets) {
+    ByteBuf body = Unpooled.buffer();
+    if (templates) {
+      body.writeShort(2).writeShort(4 + 12 + 16);
+      body.writeShort(256).writeShort(2).writeShort(1).writeShort(8).writeShort(11).writeShort(2);
+      body.writeShort(257).writeShort(2).writeShort(7).writeShort(2).writeShort(0x8000 | 100).writeShort(4).writeInt(9);
+    }
+    body.writeShort(256).writeShort(4 + 10 * octets.length);
+    for (long o : octets) {
+      body.writeLong(o).writeShort(443);
+    }
+    ByteBuf message = Unpooled.buffer();
+    message.writeShort(10).writeShort(16 + body.readableBytes()).writeInt(1500000000).writeInt(sequence).writeInt(5);
+    return message.writeBytes(body);
+  }
+
+  @Test
+  public void framesMessagesFromTheStream() {
+    IpfixTcpDecoder decoder = new IpfixTcpDecoder();
+    EmbeddedChannel channel = new EmbeddedChannel(decoder);
+    ByteBuf stream = Unpooled.wrappedBuffer(message(1, true, 100), message(2, false, 200, 300), message(3, false, 400));
+    // split in the middle of the second message
+    channel.writeInbound(stream.readRetainedSlice(message(1, true, 100).readableBytes() + 10));
+    channel.writeInbound(stream);
+
+    NetFlow.Message first = channel.readInbound();
+    assertEquals(10, first.version());
+    assertEquals(5, first.sourceID());
+    assertEquals(3, first.flowsets().size(), "two templates and one data Set");
+    NetFlow.TemplateFlowSet withEnterprise = (NetFlow.TemplateFlowSet) first.flowsets().get(1);
+    assertEquals(257, withEnterprise.templateID());
+    assertEquals(2, withEnterprise.fields().get(1).offset());
+    assertEquals(2, decoder.templateCache().size());
+
+    NetFlow.Message second = channel.readInbound();
+    assertEquals(2, second.flowSequence());
+    NetFlow.DataFlowSet data = (NetFlow.DataFlowSet) second.flowsets().get(0);
+    RecordLayout layout = RecordLayout.of(data.template());
+    assertEquals(2, layout.recordCount(data));
+    assertEquals(300, layout.getUnsigned(data.data(), 1, 1));
+    NetFlow.Message third = channel.readInbound();
+    assertEquals(3, third.flowSequence());
+    assertNull(channel.readInbound());
+    assertEquals(3, decoder.decodeStats().count(DecodeResult.OK));
+  }
+
+  @Test
+  public void closesOutOfSyncStreams() {
+    IpfixTcpDecoder decoder = new IpfixTcpDecoder();
+    EmbeddedChannel channel = new EmbeddedChannel(decoder);
+    channel.writeInbound(Unpooled.buffer().writeShort(9).writeShort(20).writeZero(16));
+    assertFalse(channel.isOpen());
+    assertEquals(1, decoder.decodeStats().count(DecodeResult.UNSUPPORTED_VERSION));
+  }
+
+  /**
+   * Counts the reads requested from the channel.
+   */
+  static final class ReadCounter extends ChannelOutboundHandlerAdapter {
+    int reads;
+
+    @Override
+    public void read(ChannelHandlerContext ctx) throws Exception {
+      reads++;
+      super.read(ctx);
+    }
+  }
+
+  /**
+   * A decoder on a channel from exporter, with a clock that only moves when the test says so.
+   */
+  static final class PacedChannel {
+    final InetSocketAddress exporter = new InetSocketAddress("10.0.0.1", 40000);
+    final ExporterQuotas quotas = new ExporterQuotas(10, 1 << 20, 100, 2, 100, 10, 10, TimeUnit.SECONDS) {
+      @Override
+      long nanoTime() {
+        return now;
+      }
+    };
+    // not before the quotas were created
+    long now = System.nanoTime();
+    final ReadCounter reads = new ReadCounter();
+    final IpfixTcpDecoder decoder = new IpfixTcpDecoder(new NetFlowFactoryImpl(), quotas);
+    final EmbeddedChannel channel = new EmbeddedChannel(reads, decoder) {
+      @Override
+      protected SocketAddress remoteAddress0() {
+        return exporter;
+      }
+    };
+  }
+
+  @Test
+  public void pacesExportersOverTheirRate() throws Exception {
+    PacedChannel paced = new PacedChannel();
+    EmbeddedChannel channel = paced.channel;
+    channel.writeInbound(Unpooled.wrappedBuffer(message(1, true, 100), message(2, false, 200),
+        message(3, false, 300), message(4, false, 400)));
+    assertNotNull(channel.readInbound());
+    assertNotNull(channel.readInbound());
+    assertNull(channel.readInbound(), "the bucket only holds two tokens");
+    assertFalse(channel.config().isAutoRead());
+    assertEquals(1, paced.decoder.pauseCount());
+    // a read that was already under way when reading was paused, it decodes nothing
+    int reads = paced.reads.reads;
+    channel.writeInbound(message(5, false, 500).readSlice(20));
+    assertNull(channel.readInbound());
+    assertEquals(reads, paced.reads.reads, "no reads requested while paused");
+
+    // the resume is scheduled 10ms out on the channel's real clock, the bucket refills on the quotas'
+    paced.now += TimeUnit.MILLISECONDS.toNanos(20);
+    Thread.sleep(30);
+    channel.runScheduledPendingTasks();
+    assertTrue(channel.config().isAutoRead());
+    assertTrue(paced.reads.reads > reads, "reading again");
+    NetFlow.Message third = channel.readInbound();
+    assertEquals(3, third.flowSequence());
+    NetFlow.Message fourth = channel.readInbound();
+    assertEquals(4, fourth.flowSequence());
+    assertEquals(4, paced.decoder.decodeStats().count(DecodeResult.OK));
+    assertEquals(0, paced.decoder.decodeStats().count(DecodeResult.DROPPED_BY_QUOTA), "nothing is dropped");
+    assertEquals(0, paced.quotas.stats(paced.exporter.getAddress()).throttledPackets());
+  }
+
+  @Test
+  public void closesExportersSendingWhilePaused() {
+    PacedChannel paced = new PacedChannel();
+    EmbeddedChannel channel = paced.channel;
+    channel.writeInbound(Unpooled.wrappedBuffer(message(1, true, 100), message(2, false, 200),
+        message(3, false, 300)));
+    assertEquals(1, paced.decoder.pauseCount());
+    ByteBuf more = Unpooled.buffer();
+    while (more.readableBytes() <= IpfixTcpDecoder.MAX_BUFFERED) {
+      more.writeBytes(message(4, false, new long[100]));
+    }
+    channel.writeInbound(more);
+    assertFalse(channel.isOpen());
+    assertEquals(1, paced.decoder.decodeStats().count(DecodeResult.DROPPED_BY_QUOTA));
+  }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * NDJSON of the 30 records of an IPFIX message: JsonFlowEncoder against Jackson writing the FieldScheme.parse()
+ * map of every record. Run main() from the IDE, or
+ * {@code java -cp <test classpath> org.openjdk.jmh.Main JsonFlowEncoderBenchmark} after {@code mvn test-compile}.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class JsonFlowEncoderBenchmark {
+  static final int RECORDS = 30;
+
+  final JsonFlowEncoder encoder = new JsonFlowEncoder();
+  final CiscoFieldScheme scheme = new CiscoFieldScheme();
+  final ObjectMapper mapper = new ObjectMapper();
+  final NetFlowFactoryImpl factory = new NetFlowFactoryImpl();
+  NetFlow.Message message;
+  NetFlow.DataFlowSet dataFlowSet;
+  ByteBuf buffer;
+
+  @Setup
+  public void setup() throws Exception {
+    ((Logger) LoggerFactory.getLogger("com.github.jcustenborder.netty.netflow")).setLevel(Level.INFO);
+    long[] octets = new long[RECORDS];
+    for (int i = 0; i < octets.length; i++) {
+      octets[i] = 1000 + i;
+    }
+    InetSocketAddress sender = new InetSocketAddress("10.0.0.1", 4739);
+    NetFlowV9Decoder decoder = new NetFlowV9Decoder();
+    List<Object> output = new ArrayList<>();
+    ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+    decoder.decode(ctx, new io.netty.channel.socket.DatagramPacket(IpfixTcpDecoderTest.message(0, true),
+        new InetSocketAddress(4739), sender), output);
+    output.clear();
+    decoder.decode(ctx, new io.netty.channel.socket.DatagramPacket(IpfixTcpDecoderTest.message(1, false, octets),
+        new InetSocketAddress(4739), sender), output);
+    message = (NetFlow.Message) output.get(0);
+    dataFlowSet = (NetFlow.DataFlowSet) message.flowsets().get(0);
+    buffer = PooledByteBufAllocator.DEFAULT.buffer(1 << 16);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(RECORDS)
+  public void encoder(Blackhole blackhole) {
+    buffer.clear();
+    blackhole.consume(encoder.encode(message, buffer));
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(RECORDS)
+  public void jackson(Blackhole blackhole) throws Exception {
+    buffer.clear();
+    int recordLength = RecordLayout.of(dataFlowSet.template()).recordLength();
+    byte[] data = dataFlowSet.data();
+    for (int record = 0; record < RECORDS; record++) {
+      // parse() reads the first record of a FlowSet
+      NetFlow.DataFlowSet single = factory.dataFlowSet(dataFlowSet.flowsetID(),
+          Arrays.copyOfRange(data, record * recordLength, (record + 1) * recordLength), dataFlowSet.template());
+      buffer.writeBytes(mapper.writeValueAsBytes(scheme.parse(single)));
+      buffer.writeByte('\n');
+    }
+    blackhole.consume(buffer);
+  }
+
+  public static void main(String... args) throws Exception {
+    new Runner(new OptionsBuilder().include(JsonFlowEncoderBenchmark.class.getSimpleName()).build()).run();
+  }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JsonFlowEncoderTest {
+  final NetFlowFactoryImpl factory = new NetFlowFactoryImpl();
+  final ObjectMapper mapper = new ObjectMapper();
+
+  NetFlow.Message message() throws Exception {
+    List<NetFlow.TemplateField> fields = new ArrayList<>();
+    int[][] types = {{8, 4}, {28, 16}, {1, 8}, {7, 2}, {6, 1}, {56, 6}, {82, 8}, {300, 2}};
+    int offset = 0;
+    for (int[] type : types) {
+      fields.add(factory.templateField((short) type[0], (short) type[1], offset));
+      offset += type[1];
+    }
+    NetFlow.TemplateFlowSet template = factory.templateFlowSet((short) 0, (short) 256, fields);
+    ByteBuffer data = ByteBuffer.allocate(47 * 2);
+    for (int i = 0; i < 2; i++) {
+      data.put(new byte[]{10, 1, 2, (byte) (200 + i)})
+          .put(InetAddress.getByName("2001:db8::1").getAddress())
+          .putLong(i == 0 ? 1234567 : -1L)
+          .putShort((short) 65535)
+          .put((byte) 0x1B)
+          .put(new byte[]{0, 0x1b, 0x21, (byte) 0xab, (byte) 0xcd, (byte) 0xef})
+          .put(i == 0 ? "eth0\0\0\0\0".getBytes(StandardCharsets.US_ASCII) : new byte[]{'"', '\\', 1, (byte) 0xff, 'x', 0, 0, 0})
+          .putShort((short) 7);
+    }
+    List<NetFlow.FlowSet> flowSets = new ArrayList<>();
+    flowSets.add(template);
+    flowSets.add(factory.dataFlowSet((short) 256, data.array(), template));
+    return factory.netflowMessage(new NetFlow.Header((short) 9, (short) 3, 0, 1500000000, 7, 42,
+        new InetSocketAddress(InetAddress.getByName("192.168.0.1"), 2055), new InetSocketAddress(2055)), flowSets);
+  }
+
+  @Test
+  public void writesLikeParse() throws Exception {
+    NetFlow.Message message = message();
+    ByteBuf out = Unpooled.buffer();
+    assertEquals(2, new JsonFlowEncoder().encode(message, out));
+    String[] lines = out.toString(StandardCharsets.UTF_8).split("\n", -1);
+    assertEquals(3, lines.length);
+    assertEquals("", lines[2], "every line ends with a newline");
+
+    JsonNode first = mapper.readTree(lines[0]);
+    assertEquals("192.168.0.1", first.get("exporter").asText());
+    assertEquals(42, first.get("sourceID").asInt());
+    assertEquals(1500000000, first.get("timestamp").asLong());
+    assertEquals(256, first.get("templateID").asInt());
+    NetFlow.DataFlowSet dataFlowSet = (NetFlow.DataFlowSet) message.flowsets().get(1);
+    Map<NetFlow.Field, Object> parsed = new CiscoFieldScheme().parse(dataFlowSet);
+    assertEquals(parsed.size() + 4, first.size(), "unknown fields are left out like parse() does");
+    for (Map.Entry<NetFlow.Field, Object> e : parsed.entrySet()) {
+      assertEquals(e.getValue().toString(), first.get(e.getKey().name()).asText(), e.getKey().name());
+    }
+
+    JsonNode second = mapper.readTree(lines[1]);
+    assertEquals("10.1.2.201", second.get("IPV4_SRC_ADDR").asText());
+    assertEquals("18446744073709551615", second.get("IN_BYTES").asText(), "numbers are unsigned");
+    assertEquals(65535, second.get("L4_SRC_PORT").asInt());
+    assertEquals("\"\\\u0001\uFFFDx\u0000\u0000\u0000", second.get("IF_NAME").asText());
+  }
+
+  @Test
+  public void numbers() {
+    byte[] line = new byte[32];
+    long[] values = {0, 9, 10, 255, 256, 65535, 1234567890123L, Long.MAX_VALUE, Long.MIN_VALUE, -1};
+    for (long value : values) {
+      int end = JsonFlowEncoder.writeUnsigned(value, line, 3);
+      assertEquals(Long.toUnsignedString(value), new String(line, 3, end - 3, StandardCharsets.US_ASCII));
+    }
+  }
+
+  @Test
+  public void encodesWrittenMessages() throws Exception {
+    EmbeddedChannel channel = new EmbeddedChannel(new JsonFlowEncoder());
+    channel.writeOutbound(message());
+    ByteBuf out = channel.readOutbound();
+    assertEquals(2, out.toString(StandardCharsets.UTF_8).split("\n").length);
+    out.release();
+  }
+}
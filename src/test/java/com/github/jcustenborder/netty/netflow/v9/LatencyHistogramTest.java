@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void buckets() {
+    for (long value : new long[]{0, 1, 63, 64, 65, 1000, 123456789, Long.MAX_VALUE / 3, Long.MAX_VALUE}) {
+      int bucket = LatencyHistogram.bucket(value);
+      assertTrue(LatencyHistogram.lowestValue(bucket) <= value && value <= LatencyHistogram.highestValue(bucket),
+          value + " in bucket " + bucket);
+      assertTrue(LatencyHistogram.highestValue(bucket) - value <= value / 32, "relative error of " + value);
+    }
+    assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void percentilesAndMerge() {
+    LatencyHistogram even = new LatencyHistogram();
+    LatencyHistogram odd = new LatencyHistogram();
+    for (int i = 1; i <= 100000; i++) {
+      (i % 2 == 0 ? even : odd).record(i);
+    }
+    odd.record(-5);
+    LatencyHistogram.Snapshot merged = even.snapshot().merge(odd.snapshot());
+    assertEquals(100001, merged.count());
+    assertEquals(0, merged.min());
+    assertEquals(50000, merged.percentile(50), 50000 / 32.0);
+    assertEquals(99000, merged.percentile(99), 99000 / 32.0);
+    assertEquals(100000, merged.max(), 100000 / 32.0);
+    assertEquals(50000, merged.mean(), 1);
+    assertEquals(0, LatencyHistogram.Snapshot.empty().percentile(99));
+  }
+
+  static DatagramPacket packet(long exportSeconds, int uptime, int lastSwitched) {
+    ByteBuf buffer = Unpooled.buffer();
+    buffer.writeShort(9).writeShort(2).writeInt(uptime).writeInt((int) exportSeconds).writeInt(1).writeInt(7);
+    buffer.writeShort(0).writeShort(16).writeShort(256).writeShort(2);
+    buffer.writeShort(21).writeShort(4).writeShort(1).writeShort(4);
+    buffer.writeShort(256).writeShort(4 + 16);
+    buffer.writeInt(lastSwitched).writeInt(100).writeInt(lastSwitched - 5000).writeInt(200);
+    return new DatagramPacket(buffer, new InetSocketAddress("127.0.0.1", 2055), new InetSocketAddress("10.0.0.1", 2055));
+  }
+
+  @Test
+  public void tracksExporters() throws Exception {
+    FlowLatencyTracker tracker = new FlowLatencyTracker(1);
+    NetFlowV9Decoder decoder = new NetFlowV9Decoder(new NetFlowFactoryImpl(), new TemplateCache(),
+        new PendingFlowSetBuffer(), new TemplateInterner(), null, tracker);
+    EmbeddedChannel channel = new EmbeddedChannel(FlowLatencyTracker.stamper(), decoder);
+
+    long now = System.currentTimeMillis() / 1000;
+    channel.writeInbound(packet(now, 100000, 100000 - 30000));
+    FlowLatencyTracker.Latencies latencies = tracker.latencies(new ExporterKey(InetAddress.getByName("10.0.0.1"), 7));
+    assertEquals(1, latencies.decodeNanos().snapshot().count());
+    assertTrue(latencies.decodeNanos().snapshot().max() > 0);
+    assertEquals(1, latencies.exportDelayMillis().snapshot().count());
+    assertTrue(latencies.exportDelayMillis().snapshot().max() < 5000);
+    LatencyHistogram.Snapshot ages = latencies.flowAgeMillis().snapshot();
+    assertEquals(2, ages.count());
+    assertTrue(ages.min() >= 30000 * 31 / 32 && ages.max() <= 37000 * 33 / 32, ages.toString());
+
+    // exporter with a clock one minute ahead, beyond maxExporters
+    DatagramPacket ahead = packet(now + 60, 5000, 4000);
+    channel.writeInbound(new DatagramPacket(ahead.content(), ahead.recipient(), new InetSocketAddress("10.0.0.2", 2055)));
+    assertNull(tracker.latencies(new ExporterKey(InetAddress.getByName("10.0.0.2"), 7)));
+    assertEquals(60000, tracker.others().clockAheadMillis().snapshot().max(), 3000);
+    assertEquals(2, tracker.total(FlowLatencyTracker.Latencies::decodeNanos).count());
+
+    Object message;
+    while ((message = channel.readInbound()) != null) {
+      assertTrue(message instanceof NetFlow.Message);
+    }
+  }
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NetFlowPublisherTest {
+  final NetFlowFactoryImpl factory = new NetFlowFactoryImpl();
+
+  NetFlow.Message message(int sequence) {
+    NetFlow.Header header = new NetFlow.Header((short) 9, (short) 0, 0, 0, sequence, 0,
+        new InetSocketAddress("127.0.0.1", 2055), new InetSocketAddress("127.0.0.1", 2056));
+    return factory.netflowMessage(header, Collections.emptyList());
+  }
+
+  static class RecordingSubscriber implements Subscriber<NetFlow.Message> {
+    Subscription subscription;
+    final List<Integer> sequences = new ArrayList<>();
+    Throwable error;
+    boolean complete;
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+      this.subscription = subscription;
+    }
+
+    @Override
+    public void onNext(NetFlow.Message message) {
+      sequences.add(message.flowSequence());
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      error = throwable;
+    }
+
+    @Override
+    public void onComplete() {
+      complete = true;
+    }
+  }
+
+  @Test
+  public void deliversOnDemand() {
+    NetFlowPublisher publisher = new NetFlowPublisher();
+    EmbeddedChannel channel = new EmbeddedChannel(publisher);
+    assertFalse(channel.config().isAutoRead());
+
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    publisher.subscribe(subscriber);
+    subscriber.subscription.request(1);
+    assertTrue(publisher.reading, "demand should trigger a read");
+
+    channel.writeInbound(message(1), message(2), message(3));
+    assertEquals(Collections.singletonList(1), subscriber.sequences);
+    assertFalse(publisher.reading, "no read while the buffer covers the demand");
+
+    subscriber.subscription.request(5);
+    assertEquals(3, subscriber.sequences.size());
+    assertTrue(publisher.reading);
+
+    channel.close();
+    assertTrue(subscriber.complete);
+    assertNull(subscriber.error);
+  }
+
+  @Test
+  public void requestBeforeActive() {
+    NetFlowPublisher publisher = new NetFlowPublisher();
+    int[] reads = new int[1];
+    ChannelOutboundHandlerAdapter counter = new ChannelOutboundHandlerAdapter() {
+      @Override
+      public void read(ChannelHandlerContext ctx) throws Exception {
+        reads[0]++;
+        super.read(ctx);
+      }
+    };
+    boolean[] active = new boolean[1];
+    // as added by a ChannelInitializer, before the channel is connected
+    EmbeddedChannel channel = new EmbeddedChannel(counter, publisher) {
+      @Override
+      public boolean isActive() {
+        return active[0] && super.isActive();
+      }
+    };
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    publisher.subscribe(subscriber);
+    subscriber.subscription.request(2);
+    assertFalse(publisher.reading, "reading an inactive channel does nothing");
+
+    active[0] = true;
+    channel.pipeline().fireChannelActive();
+    assertTrue(publisher.reading);
+    assertEquals(1, reads[0]);
+    channel.writeInbound(message(1), message(2));
+    assertEquals(Arrays.asList(1, 2), subscriber.sequences);
+  }
+
+  @Test
+  public void cancelReleasesBufferedMessages() {
+    RecyclingNetFlowFactory recycling = new RecyclingNetFlowFactory();
+    NetFlowPublisher publisher = new NetFlowPublisher();
+    EmbeddedChannel channel = new EmbeddedChannel(publisher);
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    publisher.subscribe(subscriber);
+    subscriber.subscription.request(1);
+
+    NetFlow.Header header = new NetFlow.Header((short) 9, (short) 0, 0, 0, 1, 0,
+        new InetSocketAddress("127.0.0.1", 2055), new InetSocketAddress("127.0.0.1", 2056));
+    NetFlow.Message[] messages = new NetFlow.Message[3];
+    for (int i = 0; i < messages.length; i++) {
+      messages[i] = recycling.netflowMessage(header, Collections.emptyList());
+    }
+    channel.writeInbound(messages[0], messages[1]);
+    assertEquals(1, subscriber.sequences.size());
+    subscriber.subscription.cancel();
+    channel.writeInbound(messages[2]);
+    assertNotNull(messages[0].sender(), "delivered, the subscriber releases it");
+    // release() clears a pooled message
+    assertNull(messages[1].sender(), "buffered when cancelled");
+    assertNull(messages[2].sender(), "read after the cancel");
+  }
+
+  @Test
+  public void singleSubscriber() {
+    NetFlowPublisher publisher = new NetFlowPublisher();
+    new EmbeddedChannel(publisher);
+    publisher.subscribe(new RecordingSubscriber());
+    RecordingSubscriber second = new RecordingSubscriber();
+    publisher.subscribe(second);
+    assertTrue(second.error instanceof IllegalStateException);
+  }
+
+  @Test
+  public void nonPositiveRequestIsAnError() {
+    NetFlowPublisher publisher = new NetFlowPublisher();
+    new EmbeddedChannel(publisher);
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    publisher.subscribe(subscriber);
+    subscriber.subscription.request(0);
+    assertTrue(subscriber.error instanceof IllegalArgumentException);
+  }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NetFlowV5DecoderTest {
+  final InetSocketAddress sender = new InetSocketAddress("10.0.0.1", 2055);
+  final InetSocketAddress recipient = new InetSocketAddress("10.0.0.2", 2055);
+
+  DatagramPacket v5(int count) {
+    ByteBuf buffer = Unpooled.buffer();
+    buffer.writeShort(5).writeShort(count).writeInt(123456).writeInt(1500000000).writeInt(0).writeInt(42);
+    buffer.writeByte(1).writeByte(2).writeShort(0);
+    for (int i = 0; i < count; i++) {
+      buffer.writeInt(0x0A000001 + i)     // srcaddr
+          .writeInt(0xC0A80001)           // dstaddr
+          .writeInt(0)                    // nexthop
+          .writeShort(1).writeShort(2)    // input, output
+          .writeInt(10 + i)               // dPkts
+          .writeInt(0xF0000000)           // dOctets
+          .writeInt(1000).writeInt(2000)  // first, last
+          .writeShort(40000 + i).writeShort(443)
+          .writeByte(0).writeByte(0x12).writeByte(6).writeByte(0)
+          .writeShort(64512).writeShort(15169)
+          .writeByte(24).writeByte(16).writeShort(0);
+    }
+    return new DatagramPacket(buffer, recipient, sender);
+  }
+
+  @Test
+  public void decode() {
+    EmbeddedChannel channel = new EmbeddedChannel(new NetFlowV5Decoder());
+    channel.writeInbound(v5(3));
+    NetFlowV5Message message = channel.readInbound();
+    assertEquals(3, message.count());
+    assertEquals(42, message.flowSequence());
+    assertEquals(1500000000, message.unixSeconds());
+    assertEquals(2, message.engineID());
+    assertEquals(sender, message.sender());
+
+    NetFlowV5Message.Record record = message.records();
+    int i = 0;
+    while (record.hasNext()) {
+      record.next();
+      assertEquals(0x0A000001 + i, record.srcAddr());
+      assertEquals(10 + i, record.packets());
+      assertEquals(0xF0000000L, record.octets());
+      assertEquals(40000 + i, record.srcPort());
+      assertEquals(443, record.dstPort());
+      assertEquals(6, record.protocol());
+      assertEquals(0x12, record.tcpFlags());
+      assertEquals(15169, record.dstAs());
+      assertEquals(16, record.dstMask());
+      i++;
+    }
+    assertEquals(3, i);
+    assertTrue(message.release());
+    assertFalse(channel.finish());
+  }
+
+  @Test
+  public void truncated() {
+    NetFlowV5Decoder decoder = new NetFlowV5Decoder();
+    EmbeddedChannel channel = new EmbeddedChannel(decoder);
+    DatagramPacket packet = v5(2);
+    packet.content().writerIndex(packet.content().writerIndex() - 10);
+    assertFalse(channel.writeInbound(packet));
+    assertEquals(0, packet.refCnt(), "the rejected datagram is released");
+    DatagramPacket header = v5(0);
+    header.content().writerIndex(20);
+    assertFalse(channel.writeInbound(header));
+    assertEquals(1, decoder.decodeStats().count(DecodeResult.INVALID_RECORD_COUNT));
+    assertEquals(1, decoder.decodeStats().count(DecodeResult.TRUNCATED_HEADER));
+    assertEquals(2, decoder.decodeStats().malformed());
+  }
+
+  @Test
+  public void dispatchByVersion() throws Exception {
+    EmbeddedChannel channel = new EmbeddedChannel(new NetFlowDecoder());
+    channel.writeInbound(v5(1));
+    ByteBuf v9 = Unpooled.buffer();
+    v9.writeShort(9).writeShort(0).writeInt(0).writeInt(0).writeInt(7).writeInt(0);
+    channel.writeInbound(new DatagramPacket(v9, recipient, sender));
+
+    NetFlowV5Message first = channel.readInbound();
+    assertEquals(1, first.count());
+    first.release();
+    NetFlow.Message second = channel.readInbound();
+    assertEquals(9, second.version());
+    assertEquals(7, second.flowSequence());
+  }
+}
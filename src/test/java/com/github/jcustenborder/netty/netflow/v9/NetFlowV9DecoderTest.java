@@ -21,16 +21,19 @@ import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.socket.DatagramPacket;
 import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -128,6 +131,189 @@ public class NetFlowV9DecoderTest {
   }
 
 
+  /**
+   * v9 packet with an optional template 256 (IN_BYTES, L4_DST_PORT) and a data FlowSet of one (bytes, port) record.
+   */
+  static DatagramPacket packet(int flowSequence, boolean template, int bytes, int port) {
+    ByteBuf buffer = Unpooled.buffer();
+    buffer.writeShort(9).writeShort(template ? 2 : 1).writeInt(0).writeInt(0).writeInt(flowSequence).writeInt(1);
+    if (template) {
+      buffer.writeShort(0).writeShort(16).writeShort(256).writeShort(2);
+      buffer.writeShort(1).writeShort(4).writeShort(11).writeShort(2);
+    }
+    buffer.writeShort(256).writeShort(4 + 6).writeInt(bytes).writeShort(port);
+    return new DatagramPacket(buffer, new InetSocketAddress("8.8.4.4", 2055), new InetSocketAddress("8.8.8.8", 64321));
+  }
+
+  List<NetFlow.Message> decode(DatagramPacket packet) throws Exception {
+    List<Object> list = new ArrayList<>();
+    this.decoder.decode(mock(ChannelHandlerContext.class), packet, list);
+    List<NetFlow.Message> messages = new ArrayList<>();
+    for (Object o : list) {
+      messages.add((NetFlow.Message) o);
+    }
+    return messages;
+  }
+
+  @Test
+  public void templateFromEarlierPacket() throws Exception {
+    decode(packet(1, true, 100, 80));
+    List<NetFlow.Message> messages = decode(packet(2, false, 200, 443));
+    assertEquals(1, messages.size());
+    assertEquals(1, messages.get(0).flowsets().size(), "data FlowSet should be decoded with the cached template");
+    NetFlow.DataFlowSet data = (NetFlow.DataFlowSet) messages.get(0).flowsets().get(0);
+    assertEquals(443, RecordLayout.of(data.template()).getUnsigned(data.data(), 0, 11));
+  }
+
+  @Test
+  public void replaysPendingFlowSets() throws Exception {
+    List<NetFlow.Message> messages = decode(packet(1, false, 100, 80));
+    assertEquals(1, messages.size());
+    assertTrue(messages.get(0).flowsets().isEmpty());
+    decode(packet(2, false, 200, 443));
+    assertEquals(12, decoder.pendingBuffer().pendingBytes());
+
+    messages = decode(packet(3, true, 300, 22));
+    assertEquals(3, messages.size(), "two replayed packets followed by the current one");
+    int[] ports = {80, 443, 22};
+    for (int i = 0; i < 3; i++) {
+      NetFlow.Message message = messages.get(i);
+      assertEquals(i + 1, message.flowSequence(), "replayed messages carry their original header");
+      NetFlow.DataFlowSet data = (NetFlow.DataFlowSet) message.flowsets().get(message.flowsets().size() - 1);
+      assertEquals(ports[i], RecordLayout.of(data.template()).getUnsigned(data.data(), 0, 11));
+    }
+    assertEquals(0, decoder.pendingBuffer().pendingBytes());
+    assertEquals(12, decoder.pendingBuffer().replayedBytes());
+  }
+
+  @Test
+  public void identicalTemplatesAreInterned() throws Exception {
+    NetFlow.Message first = decode(packet(1, true, 100, 80)).get(0);
+    DatagramPacket other = packet(1, true, 100, 80);
+    NetFlow.Message second = decode(new DatagramPacket(other.content(), other.recipient(), new InetSocketAddress("10.1.1.1", 2055))).get(0);
+
+    NetFlow.TemplateFlowSet template = (NetFlow.TemplateFlowSet) first.flowsets().get(0);
+    assertSame(template, second.flowsets().get(0), "same template from another exporter should be shared");
+    assertSame(RecordLayout.of(template), RecordLayout.of((NetFlow.TemplateFlowSet) second.flowsets().get(0)));
+    assertEquals(1, decoder.templateInterner().size());
+    assertEquals(1, decoder.templateInterner().hitCount());
+    try {
+      template.fields().clear();
+      fail("interned templates must be immutable");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+  }
+
+  static DatagramPacket datagram(ByteBuf buffer) {
+    return new DatagramPacket(buffer, new InetSocketAddress("8.8.4.4", 2055), new InetSocketAddress("8.8.8.8", 64321));
+  }
+
+  @Test
+  public void malformedPacketsAreCountedNotThrown() throws Exception {
+    DatagramPacket good = packet(1, true, 100, 80);
+    ByteBuf truncatedHeader = good.content().copy(0, 12);
+    ByteBuf truncatedFlowSet = good.content().copy(0, good.content().readableBytes() - 1);
+    ByteBuf lyingLength = good.content().copy();
+    lyingLength.setShort(22, 2);
+    ByteBuf badTemplate = good.content().copy();
+    badTemplate.setShort(26, 7);
+    ByteBuf unknownVersion = good.content().copy();
+    unknownVersion.setShort(0, 42);
+
+    List<Object> output = new ArrayList<>();
+    assertEquals(DecodeResult.TRUNCATED_HEADER, this.decoder.decodeDatagram(datagram(truncatedHeader), output));
+    assertEquals(DecodeResult.TRUNCATED_FLOWSET, this.decoder.decodeDatagram(datagram(truncatedFlowSet), output));
+    assertEquals(DecodeResult.INVALID_FLOWSET_LENGTH, this.decoder.decodeDatagram(datagram(lyingLength), output));
+    assertEquals(DecodeResult.MALFORMED_TEMPLATE, this.decoder.decodeDatagram(datagram(badTemplate), output));
+    assertEquals(DecodeResult.UNSUPPORTED_VERSION, this.decoder.decodeDatagram(datagram(unknownVersion), output));
+    assertTrue(output.isEmpty());
+    assertEquals(0, this.decoder.templateCache().size(), "nothing is learned from a rejected packet");
+
+    assertTrue(decode(datagram(unknownVersion.copy(0, 22))).isEmpty());
+    assertEquals(1, this.decoder.decodeStats().count(DecodeResult.UNSUPPORTED_VERSION));
+    assertEquals(1, this.decoder.decodeStats().malformed());
+  }
+
+  @Test
+  public void paddedTemplate() throws Exception {
+    ByteBuf buffer = Unpooled.buffer();
+    buffer.writeShort(9).writeShort(1).writeInt(0).writeInt(0).writeInt(1).writeInt(1);
+    buffer.writeShort(0).writeShort(14).writeShort(300).writeShort(1).writeShort(1).writeShort(4).writeZero(2);
+    List<NetFlow.Message> messages = decode(datagram(buffer));
+    assertEquals(1, messages.size());
+    assertEquals(1, ((NetFlow.TemplateFlowSet) messages.get(0).flowsets().get(0)).fields().size());
+    assertEquals(1, this.decoder.decodeStats().count(DecodeResult.OK));
+  }
+
+  /**
+   * IPFIX message with a template Set holding the given (templateID, fieldCount) records, each field IN_BYTES.
+   */
+  static DatagramPacket ipfixTemplates(int... idCount) {
+    ByteBuf set = Unpooled.buffer();
+    for (int i = 0; i < idCount.length; i += 2) {
+      set.writeShort(idCount[i]).writeShort(idCount[i + 1]);
+      for (int f = 0; f < idCount[i + 1]; f++) {
+        set.writeShort(1).writeShort(4);
+      }
+    }
+    ByteBuf buffer = Unpooled.buffer();
+    buffer.writeShort(10).writeShort(20 + set.readableBytes()).writeInt(0).writeInt(1).writeInt(1);
+    buffer.writeShort(2).writeShort(4 + set.readableBytes()).writeBytes(set);
+    return datagram(buffer);
+  }
+
+  @Test
+  public void ipfixTemplateWithdrawal() throws Exception {
+    ExporterQuotas quotas = new ExporterQuotas();
+    NetFlowV9Decoder decoder = new NetFlowV9Decoder(new NetFlowFactoryImpl(), new TemplateCache(),
+        new PendingFlowSetBuffer(), new TemplateInterner(), quotas);
+    List<Object> output = new ArrayList<>();
+    assertEquals(DecodeResult.OK, decoder.decodeDatagram(ipfixTemplates(256, 1, 257, 2, 258, 1), output));
+    assertEquals(3, decoder.templateCache().size());
+    InetAddress sender = InetAddress.getByName("8.8.8.8");
+    assertEquals(3, quotas.stats(sender).templateCount());
+
+    assertEquals(DecodeResult.OK, decoder.decodeDatagram(ipfixTemplates(257, 0), output));
+    assertEquals(2, decoder.templateCache().size());
+    assertEquals(2, quotas.stats(sender).templateCount());
+    assertEquals(16, quotas.stats(sender).templateBytes());
+
+    assertEquals(DecodeResult.OK, decoder.decodeDatagram(ipfixTemplates(2, 0), output), "withdraw all");
+    assertEquals(0, decoder.templateCache().size());
+    assertEquals(0, quotas.stats(sender).templateCount());
+    assertEquals(0, quotas.stats(sender).templateBytes());
+
+    assertEquals(DecodeResult.MALFORMED_TEMPLATE, decoder.decodeDatagram(ipfixTemplates(3, 0), output));
+    assertEquals(DecodeResult.MALFORMED_TEMPLATE, decoder.decodeDatagram(ipfixTemplates(2, 1), output));
+  }
+
+  @Test
+  public void restoredTemplatesCountOnceRefreshed() throws Exception {
+    NetFlowFactoryImpl factory = new NetFlowFactoryImpl();
+    InetAddress sender = InetAddress.getByName("8.8.8.8");
+    ExporterKey exporter = new ExporterKey(sender, 1);
+    // as restored from a TemplateSnapshots file, without going through the quotas
+    TemplateCache restored = new TemplateCache();
+    for (short templateID : new short[]{256, 257}) {
+      restored.putIfAbsent(exporter, factory.templateFlowSet((short) 2, templateID,
+          Arrays.asList(factory.templateField((short) 1, (short) 4, 0))), System.currentTimeMillis());
+    }
+    ExporterQuotas quotas = new ExporterQuotas(2, 1 << 20, 1e6, 1000000, 100, 10, 10, TimeUnit.SECONDS);
+    NetFlowV9Decoder decoder = new NetFlowV9Decoder(factory, restored, new PendingFlowSetBuffer(),
+        new TemplateInterner(), quotas);
+    List<Object> output = new ArrayList<>();
+
+    assertEquals(DecodeResult.OK, decoder.decodeDatagram(ipfixTemplates(257, 0), output));
+    assertEquals(0, quotas.stats(sender).templateCount(), "withdrawing a restored template releases nothing");
+    assertEquals(0, quotas.stats(sender).templateBytes());
+
+    assertEquals(DecodeResult.OK, decoder.decodeDatagram(ipfixTemplates(256, 1, 258, 1, 259, 1), output));
+    assertEquals(2, quotas.stats(sender).templateCount(), "the refreshed template counts");
+    assertEquals(1, quotas.stats(sender).rejectedTemplates());
+    assertNull(restored.get(exporter, (short) 259));
+  }
+
   public static class TestCase {
     public byte[] input;
     public NetFlow.Message expected;
@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OverloadProtectionHandlerTest {
+  final InetSocketAddress sender = new InetSocketAddress("10.0.0.1", 2055);
+  final InetSocketAddress recipient = new InetSocketAddress("10.0.0.2", 2056);
+  final List<Runnable> tasks = new ArrayList<>();
+
+  /**
+   * v9 datagram with an optional template (IN_BYTES, L4_DST_PORT) followed by records (bytes, port) of template 256.
+   */
+  DatagramPacket packet(boolean template, int... bytesPort) {
+    ByteBuf buffer = Unpooled.buffer();
+    buffer.writeShort(9).writeShort(template ? 2 : 1).writeInt(0).writeInt(1000).writeInt(0).writeInt(0);
+    if (template) {
+      buffer.writeShort(0).writeShort(16).writeShort(256).writeShort(2);
+      buffer.writeShort(1).writeShort(4).writeShort(11).writeShort(2);
+    }
+    buffer.writeShort(256).writeShort(4 + bytesPort.length * 3);
+    for (int i = 0; i < bytesPort.length; i += 2) {
+      buffer.writeInt(bytesPort[i]).writeShort(bytesPort[i + 1]);
+    }
+    return new DatagramPacket(buffer, recipient, sender);
+  }
+
+  /**
+   * Alternate between the worker and the event loop until both are idle.
+   */
+  void runTasks(EmbeddedChannel channel) {
+    while (!tasks.isEmpty()) {
+      tasks.remove(0).run();
+      channel.runPendingTasks();
+    }
+  }
+
+  @Test
+  public void dropDataKeepsTemplates() {
+    OverloadProtectionHandler handler = new OverloadProtectionHandler(new NetFlowV9Decoder(), new NetFlowFactoryImpl(),
+        tasks::add, 4, 2, 0, OverloadProtectionHandler.Policy.DROP_DATA, 1);
+    EmbeddedChannel channel = new EmbeddedChannel(handler);
+    channel.writeInbound(packet(true, 100, 80));
+    channel.writeInbound(packet(true, 100, 80));
+    assertEquals(2, handler.queueDepth());
+    channel.writeInbound(packet(false, 100, 80)); // shed
+    channel.writeInbound(packet(true, 100, 80));  // kept, carries a template
+    assertTrue(handler.isShedding());
+    assertEquals(1, handler.droppedDataPacketCount());
+
+    runTasks(channel);
+    int messages = 0;
+    while (channel.readInbound() != null) {
+      messages++;
+    }
+    assertEquals(3, messages);
+    assertEquals(0, handler.queueDepth());
+  }
+
+  @Test
+  public void sampleUpscalesCounters() {
+    OverloadProtectionHandler handler = new OverloadProtectionHandler(new NetFlowV9Decoder(), new NetFlowFactoryImpl(),
+        tasks::add, 8, 1, 0, OverloadProtectionHandler.Policy.SAMPLE, 2);
+    EmbeddedChannel channel = new EmbeddedChannel(handler);
+    channel.writeInbound(packet(true, 100, 80));
+    channel.writeInbound(packet(true, 10, 1, 20, 2, 30, 3, 0x90000000, 4));
+    assertTrue(handler.isShedding());
+
+    runTasks(channel);
+    channel.readInbound(); // first message
+    NetFlow.Message message = channel.readInbound();
+    NetFlow.DataFlowSet data = (NetFlow.DataFlowSet) message.flowsets().get(1);
+    RecordLayout layout = RecordLayout.of(data.template());
+    assertEquals(2, layout.recordCount(data));
+    // the sample counter carries over from the first packet, so the second and fourth records are kept
+    assertEquals(2, handler.sampledOutRecordCount());
+    assertEquals(40, layout.getUnsigned(data.data(), 0, 1));
+    assertEquals(2, layout.getUnsigned(data.data(), 0, 11));
+    assertEquals(0xFFFFFFFFL, layout.getUnsigned(data.data(), 1, 1), "upscaling saturates");
+  }
+
+  @Test
+  public void batchOnItsWayCountsTowardsDepth() {
+    OverloadProtectionHandler handler = new OverloadProtectionHandler(new NetFlowV9Decoder(), new NetFlowFactoryImpl(),
+        tasks::add, 4, 2, 0, OverloadProtectionHandler.Policy.DROP_DATA, 1);
+    EmbeddedChannel channel = new EmbeddedChannel(handler);
+    channel.writeInbound(packet(true, 100, 80));
+    channel.writeInbound(packet(false, 100, 80));
+    tasks.remove(0).run(); // the worker decodes, the event loop has not passed the messages on yet
+    assertTrue(tasks.isEmpty());
+    assertEquals(2, handler.queueDepth());
+    assertNull(channel.readInbound());
+
+    channel.writeInbound(packet(false, 100, 80));
+    assertTrue(handler.isShedding());
+    assertEquals(1, handler.droppedDataPacketCount());
+
+    channel.runPendingTasks();
+    assertEquals(0, handler.queueDepth());
+    assertNotNull(channel.readInbound());
+    assertNotNull(channel.readInbound());
+    runTasks(channel);
+    assertNull(channel.readInbound());
+  }
+}
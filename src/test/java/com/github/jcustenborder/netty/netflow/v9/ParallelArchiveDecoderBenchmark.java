@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Datagrams per second decoding an archive of 20k datagrams (1 to 30 records each) from two exporters, serially
+ * with a single NetFlowV9Decoder and with a ParallelArchiveDecoder on the common pool (as many threads as cores).
+ * Run main() from the IDE, or {@code java -cp <test classpath> org.openjdk.jmh.Main ParallelArchiveDecoderBenchmark}
+ * after {@code mvn test-compile}.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParallelArchiveDecoderBenchmark {
+  static final int DATAGRAMS = 20000;
+
+  PcapDatagramArchive archive;
+  ParallelArchiveDecoder decoder;
+
+  @Setup
+  public void setup() {
+    archive = ParallelArchiveDecoderTest.archive(DATAGRAMS, 30);
+    decoder = new ParallelArchiveDecoder();
+  }
+
+  @TearDown
+  public void tearDown() {
+    archive.close();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(DATAGRAMS)
+  public void serial(Blackhole blackhole) {
+    NetFlowV9Decoder serial = new NetFlowV9Decoder(new NetFlowFactoryImpl(), new TemplateCache(), null);
+    List<Object> output = new ArrayList<>();
+    for (int i = 0; i < archive.size(); i++) {
+      serial.decodeDatagram(archive.datagram(i), output);
+      blackhole.consume(output);
+      output.clear();
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(DATAGRAMS)
+  public void parallel(Blackhole blackhole) {
+    decoder.decode(archive, blackhole::consume);
+  }
+
+  public static void main(String... args) throws Exception {
+    new Runner(new OptionsBuilder().include(ParallelArchiveDecoderBenchmark.class.getSimpleName()).build()).run();
+  }
+}
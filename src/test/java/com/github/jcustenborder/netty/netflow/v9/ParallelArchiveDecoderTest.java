@@ -0,0 +1,214 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.socket.DatagramPacket;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ParallelArchiveDecoderTest {
+  static final int[][] SHORT_LAYOUT = {{8, 4}, {12, 4}, {1, 4}};
+  static final int[][] LONG_LAYOUT = {{8, 4}, {12, 4}, {1, 8}, {2, 4}};
+
+  static byte[] v9(int sourceID, int sequence, int[][] template, int[][] layout, int records) {
+    ByteBuf packet = Unpooled.buffer();
+    packet.writeShort(9).writeShort(0).writeInt(1000).writeInt(1500000000 + sequence).writeInt(sequence).writeInt(sourceID);
+    if (template != null) {
+      packet.writeShort(0).writeShort(8 + 4 * template.length).writeShort(256).writeShort(template.length);
+      for (int[] field : template) {
+        packet.writeShort(field[0]).writeShort(field[1]);
+      }
+    }
+    if (records > 0) {
+      int recordLength = 0;
+      for (int[] field : layout) {
+        recordLength += field[1];
+      }
+      packet.writeShort(256).writeShort(4 + recordLength * records);
+      for (int i = 0; i < records * recordLength; i++) {
+        packet.writeByte(sequence * 31 + i);
+      }
+    }
+    return ByteBufUtil.getBytes(packet);
+  }
+
+  static void writeInt(ByteBuf pcap, boolean littleEndian, int value) {
+    if (littleEndian) {
+      pcap.writeIntLE(value);
+    } else {
+      pcap.writeInt(value);
+    }
+  }
+
+  static void frame(ByteBuf pcap, boolean littleEndian, long millis, int[] source, int[] destination, int protocol, int flags, byte[] payload) {
+    int length = 14 + 20 + 8 + payload.length;
+    writeInt(pcap, littleEndian, (int) (millis / 1000));
+    writeInt(pcap, littleEndian, (int) (millis % 1000 * 1000));
+    writeInt(pcap, littleEndian, length);
+    writeInt(pcap, littleEndian, length);
+    pcap.writeBytes(new byte[12]).writeShort(0x0800);
+    pcap.writeByte(0x45).writeByte(0).writeShort(20 + 8 + payload.length).writeShort(0).writeShort(flags)
+        .writeByte(64).writeByte(protocol).writeShort(0);
+    for (int b : source) {
+      pcap.writeByte(b);
+    }
+    for (int b : destination) {
+      pcap.writeByte(b);
+    }
+    pcap.writeShort(2055).writeShort(9995).writeShort(8 + payload.length).writeShort(0).writeBytes(payload);
+  }
+
+  static ByteBuf pcap(boolean littleEndian) {
+    ByteBuf pcap = Unpooled.buffer();
+    writeInt(pcap, littleEndian, PcapDatagramArchive.MAGIC_MICROS);
+    if (littleEndian) {
+      pcap.writeShortLE(2).writeShortLE(4);
+    } else {
+      pcap.writeShort(2).writeShort(4);
+    }
+    for (int value : new int[]{0, 0, 65535, PcapDatagramArchive.LINKTYPE_ETHERNET}) {
+      writeInt(pcap, littleEndian, value);
+    }
+    return pcap;
+  }
+
+  /**
+   * Two exporters redefining template 256 every 25 packets; the first packet of the second one has data only.
+   */
+  static PcapDatagramArchive archive(int packets, int maxRecords) {
+    ByteBuf pcap = pcap(false);
+    int[][][] layouts = new int[2][][];
+    for (int i = 0; i < packets; i++) {
+      int exporter = i % 2;
+      int[][] template = null;
+      if (i / 2 % 25 == 0 && !(exporter == 1 && i == 1)) {
+        template = i / 50 % 2 == 0 ? SHORT_LAYOUT : LONG_LAYOUT;
+        layouts[exporter] = template;
+      }
+      byte[] payload = v9(7, i, template, layouts[exporter] != null ? layouts[exporter] : SHORT_LAYOUT, 1 + i % maxRecords);
+      frame(pcap, false, 1500000000000L + i, new int[]{10, 0, 0, 1 + exporter}, new int[]{10, 9, 9, 9}, 17, 0, payload);
+    }
+    return new PcapDatagramArchive(pcap);
+  }
+
+  static String describe(NetFlow.Message message) {
+    StringBuilder builder = new StringBuilder();
+    builder.append(message.sender().getAddress().getHostAddress()).append('/').append(message.sourceID())
+        .append(' ').append(message.timestamp());
+    for (NetFlow.FlowSet flowSet : message.flowsets()) {
+      if (flowSet instanceof NetFlow.TemplateFlowSet) {
+        builder.append(" template ").append(((NetFlow.TemplateFlowSet) flowSet).fields().size());
+      } else {
+        NetFlow.DataFlowSet dataFlowSet = (NetFlow.DataFlowSet) flowSet;
+        builder.append(" data ").append(dataFlowSet.template().fields().size()).append(' ')
+            .append(ByteBufUtil.hexDump(dataFlowSet.data()));
+      }
+    }
+    return builder.toString();
+  }
+
+  @Test
+  public void matchesSerialDecoding() throws Exception {
+    try (PcapDatagramArchive archive = archive(400, 3)) {
+      assertEquals(400, archive.size());
+      List<String> expected = new ArrayList<>();
+      NetFlowV9Decoder serial = new NetFlowV9Decoder(new NetFlowFactoryImpl(), new TemplateCache(), null);
+      for (int i = 0; i < archive.size(); i++) {
+        List<Object> output = new ArrayList<>();
+        serial.decodeDatagram(archive.datagram(i), output);
+        for (Object message : output) {
+          expected.add(describe((NetFlow.Message) message));
+        }
+      }
+      assertTrue(expected.get(1).endsWith(String.valueOf(1500000001)), "the data of the unknown template is dropped");
+
+      ForkJoinPool pool = new ForkJoinPool(4);
+      try {
+        ParallelArchiveDecoder decoder = new ParallelArchiveDecoder(new NetFlowFactoryImpl(), pool, 7);
+        List<String> actual = new ArrayList<>();
+        TemplateCache templates = new TemplateCache();
+        assertEquals(expected.size(), decoder.decode(archive, templates, message -> actual.add(describe(message))));
+        assertEquals(expected, actual);
+        assertEquals(58, decoder.chunkCount());
+        assertEquals(400, decoder.datagramCount());
+        assertEquals(2, templates.size());
+        assertEquals(4, templates.get(new ExporterKey(InetAddress.getByName("10.0.0.2"), 7), (short) 256).fields().size());
+      } finally {
+        pool.shutdown();
+      }
+    }
+  }
+
+  @Test
+  public void continuesWithTemplatesOfPreviousArchive() throws Exception {
+    TemplateCache templates = new TemplateCache();
+    ParallelArchiveDecoder decoder = new ParallelArchiveDecoder();
+    try (PcapDatagramArchive archive = archive(10, 3)) {
+      decoder.decode(archive, templates, message -> { });
+    }
+    ByteBuf pcap = pcap(false);
+    frame(pcap, false, 1500000100000L, new int[]{10, 0, 0, 1}, new int[]{10, 9, 9, 9}, 17, 0,
+        v9(7, 100, null, SHORT_LAYOUT, 2));
+    List<NetFlow.Message> messages = new ArrayList<>();
+    try (PcapDatagramArchive archive = new PcapDatagramArchive(pcap)) {
+      decoder.decode(archive, templates, messages::add);
+    }
+    assertEquals(1, messages.size());
+    assertEquals(1, messages.get(0).flowsets().size(), "decoded with the template of the previous archive");
+  }
+
+  @Test
+  public void archiveSkipsOtherFrames() throws Exception {
+    ByteBuf pcap = pcap(true);
+    byte[] payload = v9(1, 1, SHORT_LAYOUT, SHORT_LAYOUT, 1);
+    frame(pcap, true, 1500000000123L, new int[]{10, 0, 0, 1}, new int[]{10, 9, 9, 9}, 17, 0, payload);
+    frame(pcap, true, 1500000000124L, new int[]{10, 0, 0, 1}, new int[]{10, 9, 9, 9}, 6, 0, payload);
+    frame(pcap, true, 1500000000125L, new int[]{10, 0, 0, 1}, new int[]{10, 9, 9, 9}, 17, 0x2000, payload);
+    frame(pcap, true, 1500000000126L, new int[]{10, 0, 0, 3}, new int[]{10, 9, 9, 9}, 17, 0, payload);
+    Path file = Files.createTempDirectory("archive").resolve("capture.pcap");
+    Files.write(file, ByteBufUtil.getBytes(pcap));
+
+    try (PcapDatagramArchive archive = PcapDatagramArchive.open(file)) {
+      assertEquals(2, archive.size());
+      assertEquals(2, archive.skipped());
+      assertEquals(1500000000123L, archive.timestampMillis(0));
+      DatagramPacket datagram = archive.datagram(1);
+      assertEquals("10.0.0.3", datagram.sender().getAddress().getHostAddress());
+      assertEquals(2055, datagram.sender().getPort());
+      assertEquals(9995, datagram.recipient().getPort());
+      assertArrayEquals(payload, ByteBufUtil.getBytes(datagram.content()));
+    }
+
+    Files.write(file, new byte[64]);
+    try {
+      PcapDatagramArchive.open(file);
+      fail("not a capture");
+    } catch (java.io.IOException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PendingFlowSetBufferTest {
+  @Test
+  public void budgetAndTtl() throws Exception {
+    PendingFlowSetBuffer buffer = new PendingFlowSetBuffer(100, 150, 1000);
+    ExporterKey a = new ExporterKey(InetAddress.getByName("10.0.0.1"), 0);
+    ExporterKey b = new ExporterKey(InetAddress.getByName("10.0.0.2"), 0);
+    assertTrue(buffer.add(a, null, (short) 256, new byte[60], 0));
+    assertTrue(buffer.add(a, null, (short) 257, new byte[60], 0)); // evicts the first one
+    assertEquals(60, buffer.droppedBytes());
+    assertTrue(buffer.add(b, null, (short) 256, new byte[80], 0));
+    assertFalse(buffer.add(b, null, (short) 256, new byte[20], 0), "global budget exhausted");
+    assertTrue(buffer.take(a, (short) 256, 0).isEmpty());
+    assertEquals(1, buffer.take(a, (short) 257, 0).size());
+
+    assertTrue(buffer.add(a, null, (short) 256, new byte[10], 2000)); // sweeps b's expired entry
+    assertEquals(80, buffer.expiredBytes());
+    assertEquals(10, buffer.pendingBytes());
+  }
+}
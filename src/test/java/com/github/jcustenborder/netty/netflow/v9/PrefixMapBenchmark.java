@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+
+/**
+ * Longest-prefix-match lookups of random addresses, read from a byte array the way the PrefixEnrichmentHandler
+ * reads them from records, against a table the size of a full IPv4 routing table (900k prefixes) and 200k IPv6
+ * prefixes. Run main() from the IDE, or {@code java -cp <test classpath> org.openjdk.jmh.Main PrefixMapBenchmark}
+ * after {@code mvn test-compile}.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PrefixMapBenchmark {
+  static final int ADDRESSES = 4096;
+
+  PrefixMap<Integer> prefixes;
+  byte[] ipv4;
+  byte[] ipv6;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(42);
+    PrefixMap.Builder<Integer> builder = PrefixMap.builder();
+    byte[] address = new byte[4];
+    for (int i = 0; i < 900000; i++) {
+      random.nextBytes(address);
+      builder.add(address, 8 + random.nextInt(17), i % 65536);
+    }
+    address = new byte[16];
+    for (int i = 0; i < 200000; i++) {
+      random.nextBytes(address);
+      address[0] = 0x20;
+      builder.add(address, 19 + random.nextInt(30), i % 65536);
+    }
+    prefixes = builder.build();
+    ipv4 = new byte[ADDRESSES * 4];
+    random.nextBytes(ipv4);
+    ipv6 = new byte[ADDRESSES * 16];
+    random.nextBytes(ipv6);
+    for (int i = 0; i < ADDRESSES; i++) {
+      ipv6[i * 16] = 0x20;
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ADDRESSES)
+  public void ipv4(Blackhole blackhole) {
+    for (int i = 0; i < ADDRESSES; i++) {
+      blackhole.consume(prefixes.get(ipv4, i * 4, 4));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ADDRESSES)
+  public void ipv6(Blackhole blackhole) {
+    for (int i = 0; i < ADDRESSES; i++) {
+      blackhole.consume(prefixes.get(ipv6, i * 16, 16));
+    }
+  }
+
+  public static void main(String... args) throws Exception {
+    new Runner(new OptionsBuilder().include(PrefixMapBenchmark.class.getSimpleName()).build()).run();
+  }
+}
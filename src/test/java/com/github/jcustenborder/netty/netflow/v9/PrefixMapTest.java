@@ -0,0 +1,238 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PrefixMapTest {
+
+  static final class Prefix {
+    final byte[] address;
+    final int length;
+    final Integer value;
+
+    Prefix(byte[] address, int length, Integer value) {
+      this.address = PrefixMap.Builder.mask(address, length);
+      this.length = length;
+      this.value = value;
+    }
+
+    boolean contains(byte[] address) {
+      return Arrays.equals(this.address, PrefixMap.Builder.mask(address, length));
+    }
+  }
+
+  static Integer linearLookup(List<Prefix> prefixes, byte[] address) {
+    Prefix best = null;
+    for (Prefix prefix : prefixes) {
+      if (prefix.address.length == address.length && prefix.contains(address)
+          && (best == null || prefix.length >= best.length)) {
+        best = prefix;
+      }
+    }
+    return best == null ? null : best.value;
+  }
+
+  void matchesLinearLookup(int addressLength) {
+    Random random = new Random(addressLength);
+    PrefixMap.Builder<Integer> builder = PrefixMap.builder();
+    List<Prefix> prefixes = new ArrayList<>();
+    // few distinct base addresses so that prefixes nest
+    byte[][] bases = new byte[8][addressLength];
+    for (byte[] base : bases) {
+      random.nextBytes(base);
+    }
+    for (int i = 0; i < 2000; i++) {
+      byte[] address = bases[random.nextInt(bases.length)].clone();
+      address[random.nextInt(addressLength)] ^= (byte) random.nextInt(256);
+      int length = random.nextInt(addressLength * 8 + 1);
+      Prefix prefix = new Prefix(address, length, random.nextInt(100));
+      prefixes.add(prefix);
+      builder.add(address, length, prefix.value);
+    }
+    PrefixMap<Integer> map = builder.build();
+
+    for (int i = 0; i < 5000; i++) {
+      byte[] address = bases[random.nextInt(bases.length)].clone();
+      address[random.nextInt(addressLength)] ^= (byte) random.nextInt(256);
+      if (i % 2 == 0) {
+        address[random.nextInt(addressLength)] = (byte) random.nextInt(256);
+      }
+      assertEquals(linearLookup(prefixes, address), map.get(address), () -> Arrays.toString(address));
+    }
+  }
+
+  @Test
+  public void ipv4MatchesLinearLookup() {
+    matchesLinearLookup(4);
+  }
+
+  @Test
+  public void ipv6MatchesLinearLookup() {
+    matchesLinearLookup(16);
+  }
+
+  @Test
+  public void longestPrefixWins() throws Exception {
+    PrefixMap<String> map = PrefixMap.<String>builder()
+        .add("0.0.0.0/0", "default")
+        .add("10.0.0.0/8", "ten")
+        .add("10.1.0.0/16", "ten-one")
+        .add("10.1.2.3", "host")
+        .add("2001:db8::/32", "doc")
+        .build();
+    assertEquals(5, map.size());
+    assertEquals("default", map.get(InetAddress.getByName("192.168.1.1")));
+    assertEquals("ten", map.get(InetAddress.getByName("10.2.0.1")));
+    assertEquals("ten-one", map.get(InetAddress.getByName("10.1.2.4")));
+    assertEquals("host", map.get(InetAddress.getByName("10.1.2.3")));
+    assertEquals("doc", map.get(InetAddress.getByName("2001:db8:1::1")));
+    assertNull(map.get(InetAddress.getByName("2001:db9::1")), "IPv4 prefixes do not cover IPv6");
+    assertNull(PrefixMap.empty().get(new byte[4]));
+
+    byte[] record = {0, 0, 10, 1, 2, 3, 0};
+    assertEquals("host", map.get(record, 2, 4));
+  }
+
+  @Test
+  public void onlyAcceptsAddressLiterals() {
+    for (String prefix : new String[]{"999.1.1.1/8", "1.2.3/24", "localhost", "gg::1/64", ":x/8", "[::1]x"}) {
+      try {
+        PrefixMap.<String>builder().add(prefix, "value");
+        fail(prefix + " is not an address literal");
+      } catch (IllegalArgumentException e) {
+        // expected, without a name lookup
+      }
+    }
+    assertArrayEquals(new byte[]{10, 1, 2, 3}, PrefixMap.Builder.parseAddress("10.1.2.3"));
+    assertEquals(16, PrefixMap.Builder.parseAddress("::ffff:10.1.2.3").length);
+  }
+
+  @Test
+  public void readsCsv() throws Exception {
+    String csv = "prefix,customer,site,asn\n"
+        + "# comment\n"
+        + "10.0.0.0/8,acme,fra1,64500\n"
+        + "10.1.0.0/16,acme,ber2,\n"
+        + "2001:db8::/32,initech\n";
+    PrefixMap<PrefixInfo> map = PrefixEnrichmentHandler.readCsv(new StringReader(csv));
+    assertEquals(new PrefixInfo("acme", "fra1", 64500), map.get(InetAddress.getByName("10.9.9.9")));
+    assertEquals(new PrefixInfo("acme", "ber2", 0), map.get(InetAddress.getByName("10.1.9.9")));
+    assertEquals(new PrefixInfo("initech", null, 0), map.get(InetAddress.getByName("2001:db8::5")));
+
+    try {
+      PrefixEnrichmentHandler.readCsv(new StringReader("10.0.0.0/33,acme\n"));
+      fail("invalid prefix length");
+    } catch (java.io.IOException expected) {
+      assertTrue(expected.getMessage().contains("line 1"));
+    }
+  }
+
+  static void ribEntry(DataOutputStream out, int subtype, byte[] prefix, int length, long... asPath) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream body = new DataOutputStream(bytes);
+    body.writeInt(0); // sequence
+    body.writeByte(length);
+    body.write(prefix, 0, (length + 7) / 8);
+    body.writeShort(1); // entries
+    body.writeShort(0); // peer
+    body.writeInt(0); // originated
+    body.writeShort(4 + 3 + 2 + 4 * asPath.length);
+    body.write(new byte[]{0x40, 1, 1, 0}); // ORIGIN IGP
+    body.write(new byte[]{0x40, 2, (byte) (2 + 4 * asPath.length), 2, (byte) asPath.length});
+    for (long as : asPath) {
+      body.writeInt((int) as);
+    }
+    out.writeInt(0);
+    out.writeShort(13);
+    out.writeShort(subtype);
+    out.writeInt(bytes.size());
+    out.write(bytes.toByteArray());
+  }
+
+  @Test
+  public void readsMrt() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    // a PEER_INDEX_TABLE, which is skipped
+    out.writeInt(0);
+    out.writeShort(13);
+    out.writeShort(1);
+    out.writeInt(3);
+    out.write(new byte[3]);
+    ribEntry(out, 2, InetAddress.getByName("192.0.2.0").getAddress(), 24, 3356, 64501);
+    ribEntry(out, 4, InetAddress.getByName("2001:db8::").getAddress(), 32, 174, 4200000000L);
+
+    PrefixMap<PrefixInfo> map = PrefixEnrichmentHandler.readMrt(new ByteArrayInputStream(bytes.toByteArray()));
+    assertEquals(2, map.size());
+    assertEquals(64501, map.get(InetAddress.getByName("192.0.2.77")).asn());
+    assertEquals(4200000000L, map.get(InetAddress.getByName("2001:db8:ffff::1")).asn());
+    assertNull(map.get(InetAddress.getByName("192.0.3.1")));
+  }
+
+  @Test
+  public void enrichesRecords() throws Exception {
+    NetFlowFactoryImpl factory = new NetFlowFactoryImpl();
+    List<NetFlow.TemplateField> fields = new ArrayList<>();
+    fields.add(factory.templateField((short) 8, (short) 4, 0));
+    fields.add(factory.templateField((short) 12, (short) 4, 4));
+    NetFlow.TemplateFlowSet template = factory.templateFlowSet((short) 0, (short) 256, fields);
+    byte[] data = {10, 1, 0, 1, 8, 8, 8, 8, 10, 2, 0, 1, 10, 1, 0, 2};
+    List<NetFlow.FlowSet> flowSets = new ArrayList<>();
+    flowSets.add(template);
+    flowSets.add(factory.dataFlowSet((short) 256, data, template));
+    InetSocketAddress sender = new InetSocketAddress(InetAddress.getByName("10.0.0.1"), 2055);
+    NetFlow.Message message = factory.netflowMessage(
+        new NetFlow.Header((short) 9, (short) 3, 0, 0, 7, 1, sender, new InetSocketAddress(2055)), flowSets);
+
+    PrefixEnrichmentHandler handler = new PrefixEnrichmentHandler(PrefixMap.<PrefixInfo>builder()
+        .add("10.1.0.0/16", new PrefixInfo("acme", "fra1", 64500)).build());
+    EmbeddedChannel channel = new EmbeddedChannel(handler);
+    channel.writeInbound(message);
+    PrefixEnrichmentHandler.EnrichedMessage enriched = channel.readInbound();
+    assertSame(message, enriched.message());
+    assertEquals(7, enriched.flowSequence());
+    assertNull(enriched.source(0, 0), "template FlowSets are not enriched");
+    assertEquals("acme", enriched.source(1, 0).customer());
+    assertNull(enriched.destination(1, 0));
+    assertNull(enriched.source(1, 1));
+    assertEquals("fra1", enriched.destination(1, 1).site());
+    assertEquals(4, handler.lookups());
+    assertEquals(2, handler.matches());
+
+    PrefixMap<PrefixInfo> previous = handler.swap(PrefixMap.<PrefixInfo>builder()
+        .add("10.2.0.0/16", new PrefixInfo("initech", null, 0)).build());
+    assertEquals(1, previous.size());
+    channel.writeInbound(message);
+    enriched = channel.readInbound();
+    assertNull(enriched.source(1, 0));
+    assertEquals("initech", enriched.source(1, 1).customer());
+  }
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.math.BigInteger;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class RecordLayoutTest {
+  final NetFlowFactoryImpl factory = new NetFlowFactoryImpl();
+  // one field of every length from 1 to 9 bytes, 9 reads the low 8 bytes
+  static final int FIELDS = 9;
+  static final int RECORD_LENGTH = 45;
+
+  RecordLayout layout() {
+    List<NetFlow.TemplateField> fields = new ArrayList<>();
+    int offset = 0;
+    for (int length = 1; length <= FIELDS; length++) {
+      fields.add(factory.templateField((short) (100 + length), (short) length, offset));
+      offset += length;
+    }
+    return RecordLayout.of(factory.templateFlowSet((short) 0, (short) 256, fields));
+  }
+
+  static long expected(byte[] data, int position, int length) {
+    byte[] bytes = Arrays.copyOfRange(data, position + Math.max(0, length - 8), position + length);
+    return new BigInteger(1, bytes).longValue();
+  }
+
+  @Test
+  public void readsLikeBigInteger() {
+    RecordLayout layout = layout();
+    assertEquals(RECORD_LENGTH, layout.recordLength());
+    Random random = new Random(42);
+    for (int records : new int[]{0, 1, 3, 4, 5, 17, 64}) {
+      byte[] data = new byte[records * RECORD_LENGTH + 3];
+      random.nextBytes(data);
+      long[] values = new long[records];
+      for (int length = 1; length <= FIELDS; length++) {
+        int type = 100 + length;
+        assertEquals(records, layout.getUnsigned(data, type, values));
+        for (int record = 0; record < records; record++) {
+          long expected = expected(data, layout.position(record, type), length);
+          assertEquals(expected, layout.getUnsigned(data, record, type), "record " + record + " length " + length);
+          assertEquals(expected, values[record], "column of record " + record + " length " + length + " with " + FieldReader.IMPLEMENTATION);
+        }
+      }
+    }
+  }
+
+  /**
+   * Loads the classes of this package itself, trying the given directories in order, and everything else through
+   * the parent.
+   */
+  static final class PackageFirstClassLoader extends URLClassLoader {
+    static final String PACKAGE = RecordLayout.class.getPackage().getName() + ".";
+
+    PackageFirstClassLoader(List<URL> urls, ClassLoader parent) {
+      super(urls.toArray(new URL[urls.size()]), parent);
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+      if (!name.startsWith(PACKAGE)) {
+        return super.loadClass(name, resolve);
+      }
+      synchronized (getClassLoadingLock(name)) {
+        Class<?> result = findLoadedClass(name);
+        if (result == null) {
+          result = findClass(name);
+        }
+        if (resolve) {
+          resolveClass(result);
+        }
+        return result;
+      }
+    }
+  }
+
+  static int javaVersion() {
+    String version = System.getProperty("java.specification.version");
+    return version.startsWith("1.") ? Integer.parseInt(version.substring(2)) : Integer.parseInt(version);
+  }
+
+  /**
+   * Surefire runs against target/classes, where the Java 11 and 21 variants are never picked up. Run
+   * readsLikeBigInteger again with the package loaded the way a multi-release jar resolves it on this JVM.
+   */
+  @Test
+  public void versionedFieldReader() throws Exception {
+    File classes = new File(RecordLayout.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+    List<URL> urls = new ArrayList<>();
+    for (int version = javaVersion(); version >= 9; version--) {
+      File variant = new File(classes, "META-INF/versions/" + version);
+      if (variant.isDirectory()) {
+        urls.add(variant.toURI().toURL());
+      }
+    }
+    assumeTrue(!urls.isEmpty(), "no variant for this JVM, or built on a JDK before 11");
+    urls.add(classes.toURI().toURL());
+    urls.add(RecordLayoutTest.class.getProtectionDomain().getCodeSource().getLocation());
+
+    try (PackageFirstClassLoader loader = new PackageFirstClassLoader(urls, getClass().getClassLoader())) {
+      Class<?> test = loader.loadClass(RecordLayoutTest.class.getName());
+      Field implementation = loader.loadClass(FieldReader.class.getName()).getDeclaredField("IMPLEMENTATION");
+      implementation.setAccessible(true);
+      assertNotEquals("scalar", implementation.get(null));
+      try {
+        test.getMethod("readsLikeBigInteger").invoke(test.newInstance());
+      } catch (InvocationTargetException e) {
+        if (e.getCause() instanceof Error) {
+          throw (Error) e.getCause();
+        }
+        throw e;
+      }
+    }
+  }
+
+  @Test
+  public void enterpriseTypes() {
+    List<NetFlow.TemplateField> fields = new ArrayList<>();
+    int[][] types = {{8, 4}, {0x8000 | 300, 2}, {2, 4}, {0xFFFF, 1}, {0x8000 | 300, 8}, {8, 4}};
+    int offset = 0;
+    for (int[] type : types) {
+      fields.add(factory.templateField((short) type[0], (short) type[1], offset));
+      offset += type[1];
+    }
+    RecordLayout layout = RecordLayout.of(factory.templateFlowSet((short) 0, (short) 256, fields));
+    assertNull(layout.index.dense, "no 64k entry array for enterprise types");
+    assertEquals(4, layout.index.types.length, "one entry per distinct type");
+    assertEquals(0, layout.offset(8), "first occurrence wins");
+    assertEquals(4, layout.offset(0x8000 | 300));
+    assertEquals(2, layout.length(0x8000 | 300));
+    assertEquals(6, layout.offset(2));
+    assertEquals(10, layout.offset(0xFFFF));
+    assertFalse(layout.has(300));
+    assertFalse(layout.has(0x8000));
+    assertEquals(-1, layout.offset(12));
+    assertEquals(0, layout.length(12));
+
+    byte[] data = {10, 0, 0, 1, 0x12, 0x34, 0, 0, 0, 5, 7, 0, 0, 0, 0, 0, 0, 0, 0, 10, 0, 0, 2};
+    assertEquals(0x1234, layout.getUnsigned(data, 0, 0x8000 | 300));
+    assertEquals(5, layout.getUnsigned(data, 0, 2));
+    assertEquals(7, layout.getUnsigned(data, 0, 0xFFFF));
+  }
+
+  @Test
+  public void columnNeedsRoom() {
+    try {
+      layout().getUnsigned(new byte[RECORD_LENGTH * 4], 104, new long[3]);
+      fail("values too short");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
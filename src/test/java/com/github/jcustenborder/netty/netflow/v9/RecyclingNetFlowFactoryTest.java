@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.channel.ChannelHandlerContext;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+public class RecyclingNetFlowFactoryTest {
+  final ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+  final NetFlowV9Decoder decoder = new NetFlowV9Decoder(new RecyclingNetFlowFactory());
+
+  NetFlow.Message decode(int flowSequence, boolean template, int bytes, int port) throws Exception {
+    List<Object> output = new ArrayList<>();
+    decoder.decode(ctx, NetFlowV9DecoderTest.packet(flowSequence, template, bytes, port), output);
+    assertEquals(1, output.size());
+    return (NetFlow.Message) output.get(0);
+  }
+
+  @Test
+  public void reusesReleasedMessages() throws Exception {
+    NetFlow.Message first = decode(1, true, 100, 80);
+    assertEquals(2, first.flowsets().size());
+    first.release();
+
+    // the Recycler only keeps some of the objects it sees for the first time, so look at a few rounds
+    Set<NetFlow.Message> messages = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (int i = 0; i < 64; i++) {
+      NetFlow.Message message = decode(2 + i, false, 200, 443 + i);
+      assertEquals(2 + i, message.flowSequence());
+      assertEquals(1, message.sourceID());
+      assertEquals("8.8.8.8", message.sender().getAddress().getHostAddress());
+      assertEquals(1, message.flowsets().size());
+      NetFlow.DataFlowSet dataFlowSet = (NetFlow.DataFlowSet) message.flowsets().get(0);
+      assertEquals(443 + i, RecordLayout.of(dataFlowSet.template()).getUnsigned(dataFlowSet.data(), 0, 11));
+      messages.add(message);
+      message.release();
+    }
+    assertTrue(messages.size() < 16, "released messages are handed out again");
+
+    NetFlow.Message second = decode(100, false, 200, 443);
+    NetFlow.Message third = decode(101, false, 300, 22);
+    assertNotSame(second, third, "unreleased messages are not reused");
+    assertEquals(100, second.flowSequence());
+    second.release();
+    third.release();
+  }
+
+  @Test
+  public void replayedMessagesKeepTheirHeaders() throws Exception {
+    NetFlowV9Decoder decoder = new NetFlowV9Decoder(new RecyclingNetFlowFactory());
+    List<Object> output = new ArrayList<>();
+    decoder.decode(ctx, NetFlowV9DecoderTest.packet(1, false, 100, 80), output);
+    ((NetFlow.Message) output.get(0)).release();
+    output.clear();
+    decoder.decode(ctx, NetFlowV9DecoderTest.packet(2, true, 200, 443), output);
+    assertEquals(2, output.size());
+    assertEquals(1, ((NetFlow.Message) output.get(0)).flowSequence(), "replayed with the header of its own packet");
+    assertEquals(2, ((NetFlow.Message) output.get(1)).flowSequence());
+  }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RowBitmapTest {
+
+  static RowBitmap bitmap(BitSet bits) {
+    RowBitmap bitmap = new RowBitmap();
+    for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+      bitmap.add(i);
+    }
+    return bitmap;
+  }
+
+  static BitSet bits(RowBitmap bitmap) {
+    BitSet bits = new BitSet();
+    RowBitmap.Iterator iterator = bitmap.iterator();
+    int previous = -1;
+    while (iterator.hasNext()) {
+      int id = iterator.next();
+      assertTrue(id > previous, "ids must be ascending");
+      bits.set(id);
+      previous = id;
+    }
+    return bits;
+  }
+
+  static BitSet random(Random random, int range, double density) {
+    BitSet bits = new BitSet();
+    for (int i = 0; i < range; i++) {
+      if (random.nextDouble() < density) {
+        bits.set(i);
+      }
+    }
+    return bits;
+  }
+
+  @Test
+  public void andOr() {
+    Random random = new Random(42);
+    // mix sparse (array) and dense (bitmap) containers across several high keys
+    BitSet a = random(random, 300000, 0.2);
+    BitSet b = random(random, 300000, 0.01);
+    RowBitmap x = bitmap(a);
+    RowBitmap y = bitmap(b);
+
+    BitSet and = (BitSet) a.clone();
+    and.and(b);
+    BitSet or = (BitSet) a.clone();
+    or.or(b);
+
+    assertEquals(a.cardinality(), x.cardinality());
+    assertEquals(and, bits(RowBitmap.and(x, y)));
+    assertEquals(and, bits(RowBitmap.and(y, x)));
+    assertEquals(or, bits(RowBitmap.or(x, y)));
+    assertEquals(a, bits(RowBitmap.and(x, x)));
+    assertTrue(RowBitmap.and(x, new RowBitmap()).isEmpty());
+  }
+
+  @Test
+  public void addOutOfOrder() {
+    RowBitmap bitmap = new RowBitmap();
+    bitmap.add(70000);
+    bitmap.add(5);
+    bitmap.add(70000);
+    bitmap.add(1);
+    assertEquals(3, bitmap.cardinality());
+    assertTrue(bitmap.contains(5));
+    assertFalse(bitmap.contains(6));
+    BitSet expected = new BitSet();
+    expected.set(1);
+    expected.set(5);
+    expected.set(70000);
+    assertEquals(expected, bits(bitmap));
+  }
+
+  @Test
+  public void serialization() throws IOException {
+    RowBitmap bitmap = bitmap(random(new Random(7), 200000, 0.1));
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    bitmap.write(new DataOutputStream(output));
+    RowBitmap read = RowBitmap.read(new DataInputStream(new ByteArrayInputStream(output.toByteArray())));
+    assertEquals(bits(bitmap), bits(read));
+  }
+}
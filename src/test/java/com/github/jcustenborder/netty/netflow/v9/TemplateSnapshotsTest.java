@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.channel.ChannelHandlerContext;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+public class TemplateSnapshotsTest {
+
+  @Test
+  public void warmRestart() throws Exception {
+    Path file = Files.createTempDirectory("templates").resolve("templates.snapshot");
+    ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+
+    NetFlowV9Decoder before = new NetFlowV9Decoder();
+    before.decode(ctx, NetFlowV9DecoderTest.packet(1, true, 100, 80), new ArrayList<>());
+    TemplateSnapshots snapshots = new TemplateSnapshots(before, file);
+    assertEquals(1, snapshots.save());
+    assertEquals(-1, snapshots.save(), "unchanged cache is not rewritten");
+
+    NetFlowV9Decoder after = new NetFlowV9Decoder();
+    assertEquals(1, new TemplateSnapshots(after, file).restore());
+    ExporterKey exporter = new ExporterKey(InetAddress.getByName("8.8.8.8"), 1);
+    assertEquals(before.templateCache().learnedAt(exporter, (short) 256),
+        after.templateCache().learnedAt(exporter, (short) 256));
+
+    List<Object> output = new ArrayList<>();
+    after.decode(ctx, NetFlowV9DecoderTest.packet(2, false, 200, 443), output);
+    NetFlow.Message message = (NetFlow.Message) output.get(0);
+    assertEquals(1, message.flowsets().size(), "data decoded with the restored template");
+    NetFlow.DataFlowSet data = (NetFlow.DataFlowSet) message.flowsets().get(0);
+    assertEquals(443, RecordLayout.of(data.template()).getUnsigned(data.data(), 0, 11));
+    assertEquals(4, data.template().fields().get(1).offset());
+  }
+
+  @Test
+  public void staleTemplatesAreNotRestored() throws Exception {
+    Path file = Files.createTempDirectory("templates").resolve("templates.snapshot");
+    NetFlowV9Decoder before = new NetFlowV9Decoder();
+    before.decode(mock(ChannelHandlerContext.class), NetFlowV9DecoderTest.packet(1, true, 100, 80), new ArrayList<>());
+    new TemplateSnapshots(before, file).save();
+
+    TemplateCache cache = new TemplateCache();
+    Thread.sleep(5);
+    assertEquals(0, new TemplateSnapshots(cache, new NetFlowFactoryImpl(), file, 1).restore());
+    assertEquals(0, cache.size());
+  }
+}
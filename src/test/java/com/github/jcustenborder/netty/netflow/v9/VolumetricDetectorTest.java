@@ -0,0 +1,142 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class VolumetricDetectorTest {
+  static final long NOW = 1500000000000L;
+  static final int RECORD = 30;
+
+  final NetFlowFactoryImpl factory = new NetFlowFactoryImpl();
+  final NetFlow.TemplateFlowSet template;
+  final List<VolumetricDetector.Alert> alerts = new ArrayList<>();
+  final VolumetricDetector detector = new VolumetricDetector(alerts::add);
+
+  public VolumetricDetectorTest() {
+    List<NetFlow.TemplateField> fields = new ArrayList<>();
+    int[][] types = {{8, 4}, {12, 4}, {7, 2}, {11, 2}, {4, 1}, {6, 1}, {1, 8}, {2, 8}};
+    int offset = 0;
+    for (int[] type : types) {
+      fields.add(factory.templateField((short) type[0], (short) type[1], offset));
+      offset += type[1];
+    }
+    template = factory.templateFlowSet((short) 0, (short) 256, fields);
+  }
+
+  /**
+   * Records from 172.16.x.y (x.y counting up) to the destination.
+   */
+  NetFlow.Message message(String destination, int records, int sourcePort, int destinationPort, boolean scan,
+                          int protocol, int flags, long octets, long packets) throws Exception {
+    ByteBuffer data = ByteBuffer.allocate(RECORD * records);
+    byte[] address = InetAddress.getByName(destination).getAddress();
+    for (int i = 0; i < records; i++) {
+      data.put(new byte[]{(byte) 172, 16, (byte) (i >>> 8), (byte) i}).put(address)
+          .putShort((short) sourcePort).putShort((short) (scan ? destinationPort + i : destinationPort))
+          .put((byte) protocol).put((byte) flags).putLong(octets).putLong(packets);
+    }
+    List<NetFlow.FlowSet> flowSets = new ArrayList<>();
+    flowSets.add(factory.dataFlowSet((short) 256, data.array(), template));
+    return factory.netflowMessage(new NetFlow.Header((short) 9, (short) 1, 0, 0, 1, 0,
+        new InetSocketAddress(InetAddress.getByName("192.168.0.1"), 2055), new InetSocketAddress(2055)), flowSets);
+  }
+
+  @Test
+  public void detectsSynFlood() throws Exception {
+    // regular web traffic stays below the thresholds
+    for (int second = 0; second < 10; second++) {
+      detector.inspect(message("10.0.0.8", 50, 40000, 443, false, 6, 0x1B, 50000, 100), NOW + second * 1000);
+    }
+    assertTrue(alerts.isEmpty());
+
+    for (int second = 0; second < 3; second++) {
+      detector.inspect(message("10.0.0.9", 200, 40000, 80, false, 6, 0x02, 40 * 300, 300), NOW + second * 1000);
+    }
+    assertEquals(1, alerts.size(), "alerts are raised once per cooldown");
+    VolumetricDetector.Alert alert = alerts.get(0);
+    assertEquals(VolumetricDetector.Alert.Type.SYN_FLOOD, alert.type());
+    assertEquals("10.0.0.9", alert.destination().getHostAddress());
+    assertTrue(alert.synPacketsPerSecond() >= 10000);
+    assertTrue(alert.distinctSources() > 150 && alert.distinctSources() < 260, () -> alert.toString());
+    assertEquals("192.168.0.1", alert.exporter().getAddress().getHostAddress());
+
+    detector.inspect(message("10.0.0.9", 200, 40000, 80, false, 6, 0x02, 40 * 300, 300), NOW + 61000);
+    assertEquals(2, alerts.size(), "again after the cooldown");
+    assertEquals(2, detector.destinationCount());
+    assertEquals(10 * 50 + 4 * 200, detector.recordCount());
+  }
+
+  @Test
+  public void synFloodNeedsManySources() throws Exception {
+    for (int second = 0; second < 3; second++) {
+      detector.inspect(message("10.0.0.9", 1, 40000, 80, false, 6, 0x02, 40 * 100000, 100000), NOW + second * 1000);
+    }
+    assertTrue(alerts.isEmpty(), "a single source is no SYN flood");
+  }
+
+  @Test
+  public void mergesThreadsSeeingOneDestination() throws Exception {
+    // each thread sees 30000 SYNs, below the 50000 of 10k pps over 5 seconds
+    NetFlow.Message first = message("10.0.0.9", 200, 40000, 80, false, 6, 0x02, 40 * 150, 150);
+    NetFlow.Message second = message("10.0.0.9", 200, 40000, 80, false, 6, 0x02, 40 * 150, 150);
+    detector.inspect(first, NOW);
+    assertTrue(alerts.isEmpty());
+
+    Thread thread = new Thread(() -> detector.inspect(second, NOW));
+    thread.start();
+    thread.join();
+    assertEquals(1, alerts.size());
+    VolumetricDetector.Alert alert = alerts.get(0);
+    assertEquals(VolumetricDetector.Alert.Type.SYN_FLOOD, alert.type());
+    assertTrue(alert.synPacketsPerSecond() >= 10000, () -> alert.toString());
+    assertEquals(2, detector.destinationCount(), "tracked by both threads");
+  }
+
+  @Test
+  public void detectsAmplificationAndScans() throws Exception {
+    detector.inspect(message("10.0.0.10", 100, 123, 5000, false, 17, 0, 1000000, 2000), NOW);
+    assertEquals(1, alerts.size());
+    assertEquals(VolumetricDetector.Alert.Type.UDP_AMPLIFICATION, alerts.get(0).type());
+
+    detector.inspect(message("10.0.0.11", 100, 5000, 53, false, 17, 0, 1000000, 2000), NOW);
+    assertEquals(1, alerts.size(), "requests to DNS are no amplification");
+
+    detector.inspect(message("10.0.0.12", 800, 40000, 1, true, 6, 0x02, 40, 1), NOW);
+    assertEquals(2, alerts.size());
+    VolumetricDetector.Alert scan = alerts.get(1);
+    assertEquals(VolumetricDetector.Alert.Type.PORT_SCAN, scan.type());
+    assertTrue(scan.distinctPorts() >= 500 && scan.distinctPorts() < 1000, () -> scan.toString());
+  }
+
+  @Test
+  public void fixedSizeTables() throws Exception {
+    VolumetricDetector small = new VolumetricDetector(alerts::add, new VolumetricDetector.Thresholds(), 16);
+    for (int i = 0; i < 100; i++) {
+      small.inspect(message("10.1.0." + i, 1, 40000, 80, false, 6, 0x1B, 1000, 10), NOW);
+    }
+    assertEquals(16, small.destinationCount());
+    assertTrue(alerts.isEmpty());
+  }
+}